@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate;
+
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateRegionBean;
+import au.gov.aims.ereefs.bean.ncanimate.render.AbstractNcAnimateRenderFileBean;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.commons.timetable.FrameTimetableMap;
+import au.gov.aims.ncanimate.generator.FrameKeys;
+import au.gov.aims.ncanimate.generator.FrameRegistry;
+import au.gov.aims.ncanimate.timetable.DateRangeIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * - Planning benchmarks -
+ * Benchmarks of the NcAnimate code paths which grow with the size of the archive,
+ * over synthetic timetables of 1, 5 and 10 years of hourly frames
+ * (see {@link SyntheticTimetable}), with 1 to 20 regions and 1 to 3 target heights.
+ *
+ * The frame file paths, the frame cleanup and the product readiness checks
+ * are benchmarked through the classes which implement them:
+ * {@link FrameKeys}, {@link FrameRegistry} and {@link DateRangeIndex}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class PlanningBenchmark {
+    private static final Double[] TARGET_HEIGHTS = { -1.5, -5.55, -17.75 };
+
+    // Frames of all the products are rendered with the default frame format
+    private static final Collection<AbstractNcAnimateRenderFileBean> RENDER_FILES =
+            Collections.singletonList((AbstractNcAnimateRenderFileBean)null);
+
+    @State(Scope.Benchmark)
+    public static class TimetableState {
+        @Param({ "1", "5", "10" })
+        public int years;
+
+        SyntheticTimetable timetable;
+        Map<DateTimeRange, List<FrameTimetableMap>> allFrames;
+        List<DateTimeRange> productDateRanges;
+        List<DateTimeRange> dailyDateRanges;
+
+        @Setup
+        public void setup() {
+            this.timetable = new SyntheticTimetable(this.years);
+            this.allFrames = NcAnimate.combineFrames(this.timetable.getVideoFrameMap(), this.timetable.getMapFrameMap());
+            this.productDateRanges = this.timetable.getProductDateRanges();
+            this.dailyDateRanges = this.timetable.getDailyDateRanges();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FrameKeyState {
+        @Param({ "1", "5", "10" })
+        public int years;
+
+        @Param({ "1", "5", "20" })
+        public int regions;
+
+        @Param({ "1", "3" })
+        public int targetHeights;
+
+        Map<DateTimeRange, List<FrameTimetableMap>> allFrames;
+        List<DateTimeRange> productDateRanges;
+        long[][] productFrameKeys;
+
+        @Setup
+        public void setup() {
+            SyntheticTimetable timetable = new SyntheticTimetable(this.years);
+            this.allFrames = NcAnimate.combineFrames(timetable.getVideoFrameMap(), timetable.getMapFrameMap());
+            this.productDateRanges = timetable.getProductDateRanges();
+
+            FrameKeys frameKeys = this.createFrameKeys();
+            this.productFrameKeys = new long[this.productDateRanges.size()][];
+            for (int i = 0; i < this.productFrameKeys.length; i++) {
+                this.productFrameKeys[i] = NcAnimate.getFrameKeys(frameKeys, this.productDateRanges.get(i), RENDER_FILES, this.allFrames);
+            }
+        }
+
+        FrameKeys createFrameKeys() {
+            return new FrameKeys(
+                    Collections.nCopies(this.regions, (NcAnimateRegionBean)null),
+                    Arrays.asList(TARGET_HEIGHTS).subList(0, this.targetHeights));
+        }
+    }
+
+    @Benchmark
+    public Map<DateTimeRange, List<FrameTimetableMap>> combineFrames(TimetableState state) {
+        return NcAnimate.combineFrames(state.timetable.getVideoFrameMap(), state.timetable.getMapFrameMap());
+    }
+
+    @Benchmark
+    public Map<Set<String>, SortedSet<DateTimeRange>> groupFrames(TimetableState state) {
+        return NcAnimate.groupFrames(state.timetable.getDateRange(), state.allFrames, new HashMap<String, String>());
+    }
+
+    @Benchmark
+    public SortedSet<DateTimeRange> mergeDateRanges(TimetableState state) {
+        return DateTimeRange.mergeDateRanges(state.timetable.getFrameDateRanges());
+    }
+
+    /**
+     * Products becoming ready as daily date ranges are generated (replaces isReady).
+     */
+    @Benchmark
+    public int isReady(TimetableState state) {
+        DateRangeIndex<DateTimeRange> readinessIndex = new DateRangeIndex<DateTimeRange>();
+        for (DateTimeRange productDateRange : state.productDateRanges) {
+            readinessIndex.addPending(productDateRange, productDateRange);
+        }
+
+        int readyCount = 0;
+        for (DateTimeRange dailyDateRange : state.dailyDateRanges) {
+            readyCount += readinessIndex.add(dailyDateRange).size();
+        }
+        return readyCount;
+    }
+
+    /**
+     * Frames of every product (replaces getFrameFiles).
+     */
+    @Benchmark
+    public int getFrameFiles(FrameKeyState state) {
+        FrameKeys frameKeys = state.createFrameKeys();
+
+        int frameCount = 0;
+        for (DateTimeRange productDateRange : state.productDateRanges) {
+            frameCount += NcAnimate.getFrameKeys(frameKeys, productDateRange, RENDER_FILES, state.allFrames).length;
+        }
+        return frameCount;
+    }
+
+    /**
+     * Frames not needed anymore as products are generated (replaces cleanupFrames).
+     */
+    @Benchmark
+    public int cleanupFrames(FrameKeyState state) {
+        FrameRegistry frameRegistry = new FrameRegistry();
+        for (long[] frameKeys : state.productFrameKeys) {
+            frameRegistry.register(frameKeys);
+        }
+
+        int unneededFrameCount = 0;
+        for (long[] frameKeys : state.productFrameKeys) {
+            unneededFrameCount += frameRegistry.release(frameKeys).length;
+        }
+        return unneededFrameCount;
+    }
+}
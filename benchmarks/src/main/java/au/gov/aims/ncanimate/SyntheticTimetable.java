@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate;
+
+import au.gov.aims.ereefs.bean.metadata.netcdf.NetCDFMetadataBean;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.commons.timetable.FrameTimetable;
+import au.gov.aims.ncanimate.commons.timetable.FrameTimetableMap;
+import au.gov.aims.ncanimate.commons.timetable.NetCDFMetadataFrame;
+import au.gov.aims.ncanimate.commons.timetable.NetCDFMetadataSet;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Synthetic frame timetables, shaped like the ones built by the ProductTimetable
+ * of an hourly product: hourly maps, monthly videos and yearly videos,
+ * generated from monthly input files containing 2 variables.
+ */
+public class SyntheticTimetable {
+    public static final DateTime START = new DateTime(2010, 1, 1, 0, 0, DateTimeZone.UTC);
+    private static final String[] VARIABLES = { "temp", "wind" };
+
+    private DateTimeRange dateRange;
+    private Map<DateTimeRange, List<FrameTimetableMap>> videoFrameMap;
+    private Map<DateTimeRange, List<FrameTimetableMap>> mapFrameMap;
+    private SortedSet<DateTimeRange> frameDateRanges;
+
+    public SyntheticTimetable(int years) {
+        DateTime end = START.plusYears(years);
+        this.dateRange = DateTimeRange.create(START, end);
+
+        this.videoFrameMap = new HashMap<DateTimeRange, List<FrameTimetableMap>>();
+        this.mapFrameMap = new HashMap<DateTimeRange, List<FrameTimetableMap>>();
+        this.frameDateRanges = new TreeSet<DateTimeRange>();
+
+        FrameTimetableMap yearlyVideoFrames = null;
+        DateTimeRange yearlyVideoDateRange = null;
+        FrameTimetableMap monthlyVideoFrames = null;
+        DateTimeRange monthlyVideoDateRange = null;
+        NetCDFMetadataBean inputFile = null;
+
+        for (DateTime hour = START; hour.isBefore(end); hour = hour.plusHours(1)) {
+            if (yearlyVideoDateRange == null || !hour.isBefore(yearlyVideoDateRange.getEndDate())) {
+                yearlyVideoDateRange = DateTimeRange.create(hour, hour.plusYears(1));
+                yearlyVideoFrames = new FrameTimetableMap();
+                this.videoFrameMap.put(yearlyVideoDateRange, Collections.singletonList(yearlyVideoFrames));
+            }
+            if (monthlyVideoDateRange == null || !hour.isBefore(monthlyVideoDateRange.getEndDate())) {
+                monthlyVideoDateRange = DateTimeRange.create(hour, hour.plusMonths(1));
+                monthlyVideoFrames = new FrameTimetableMap();
+                this.videoFrameMap.put(monthlyVideoDateRange, Collections.singletonList(monthlyVideoFrames));
+
+                // One input file per month
+                inputFile = SyntheticTimetable.createInputFile(hour);
+            }
+
+            DateTimeRange frameDateRange = DateTimeRange.create(hour, hour.plusHours(1));
+            FrameTimetable frameTimetable = new FrameTimetable();
+            for (String variable : VARIABLES) {
+                NetCDFMetadataSet netCDFMetadataSet = new NetCDFMetadataSet();
+                netCDFMetadataSet.add(new NetCDFMetadataFrame(inputFile, hour));
+                frameTimetable.put(variable, netCDFMetadataSet);
+            }
+
+            yearlyVideoFrames.put(frameDateRange, frameTimetable);
+            monthlyVideoFrames.put(frameDateRange, frameTimetable);
+
+            FrameTimetableMap mapFrames = new FrameTimetableMap();
+            mapFrames.put(frameDateRange, frameTimetable);
+            this.mapFrameMap.put(frameDateRange, Collections.singletonList(mapFrames));
+
+            this.frameDateRanges.add(frameDateRange);
+        }
+    }
+
+    private static NetCDFMetadataBean createInputFile(DateTime month) {
+        String datasetId = String.format("gbr4_v2_%s.nc", month.toString("yyyy-MM"));
+        return new NetCDFMetadataBean(new JSONObject()
+            .put("_id", "downloads/gbr4_v2/" + datasetId)
+            .put("definitionId", "downloads/gbr4_v2")
+            .put("datasetId", datasetId)
+            .put("checksum", String.format("MD5:%032x", month.getMillis())));
+    }
+
+    /**
+     * @return The date range covered by the timetable.
+     */
+    public DateTimeRange getDateRange() {
+        return this.dateRange;
+    }
+
+    public Map<DateTimeRange, List<FrameTimetableMap>> getVideoFrameMap() {
+        return this.videoFrameMap;
+    }
+
+    public Map<DateTimeRange, List<FrameTimetableMap>> getMapFrameMap() {
+        return this.mapFrameMap;
+    }
+
+    /**
+     * @return The date range of every product (videos and maps).
+     */
+    public List<DateTimeRange> getProductDateRanges() {
+        List<DateTimeRange> productDateRanges = new ArrayList<DateTimeRange>(this.videoFrameMap.keySet());
+        productDateRanges.addAll(this.mapFrameMap.keySet());
+        return productDateRanges;
+    }
+
+    /**
+     * @return The hourly frame date ranges, not merged.
+     */
+    public SortedSet<DateTimeRange> getFrameDateRanges() {
+        return this.frameDateRanges;
+    }
+
+    /**
+     * @return Daily date ranges, in the order they would be generated by NcAnimate frame.
+     */
+    public List<DateTimeRange> getDailyDateRanges() {
+        List<DateTimeRange> dailyDateRanges = new ArrayList<DateTimeRange>();
+        for (DateTime day = this.dateRange.getStartDate(); day.isBefore(this.dateRange.getEndDate()); day = day.plusDays(1)) {
+            dailyDateRanges.add(DateTimeRange.create(day, day.plusDays(1)));
+        }
+        return dailyDateRanges;
+    }
+}
@@ -0,0 +1,47 @@
+#!/usr/bin/env bash
+
+#
+# Check that the SIGTERM sent to the container (AWS Batch, docker stop, etc) reaches the NcAnimate JVM,
+# so NcAnimate can save its progress before the container is stopped.
+#
+# Usage: check-sigterm.sh [docker run options]
+#     The docker run options need to give NcAnimate a task to run (TASK_ID, database, etc),
+#     so it's still running when the signal is sent. Example:
+#         check-sigterm.sh -e TASK_ID=... -e DATABASE_SERVER_ADDRESS=... -e DATABASE_NAME=...
+#
+
+IMAGE="${NCANIMATE_IMAGE:-ereefs-ncanimate-test:latest}"
+STARTUP_DELAY=${STARTUP_DELAY:-20}
+STOP_TIMEOUT=${STOP_TIMEOUT:-120}
+
+CONTAINER=$(docker run -d "$@" "$IMAGE")
+if [ -z "$CONTAINER" ]; then
+    echo "ERROR: The container could not be started: ${IMAGE}"
+    exit 1
+fi
+
+sleep "$STARTUP_DELAY"
+
+# The entrypoint needs to "exec" the JVM, otherwise PID 1 is a shell which doesn't forward the signal.
+PID1=$(docker exec "$CONTAINER" cat /proc/1/comm)
+if [ "$PID1" != "java" ]; then
+    echo "ERROR: PID 1 of the container is \"${PID1}\", not the NcAnimate JVM. Is NcAnimate still running?"
+    docker rm -f "$CONTAINER" > /dev/null
+    exit 1
+fi
+
+docker kill --signal=TERM "$CONTAINER" > /dev/null
+EXIT_CODE=$(timeout "$STOP_TIMEOUT" docker wait "$CONTAINER")
+LOGS=$(docker logs "$CONTAINER" 2>&1)
+docker rm -f "$CONTAINER" > /dev/null
+
+if [ -z "$EXIT_CODE" ]; then
+    echo "ERROR: The container did not stop within ${STOP_TIMEOUT} seconds"
+    exit 1
+fi
+if ! echo "$LOGS" | grep -q "Shutdown requested"; then
+    echo "ERROR: NcAnimate did not receive the SIGTERM. Exit code: ${EXIT_CODE}"
+    exit 1
+fi
+
+echo "OK: NcAnimate received the SIGTERM and stopped. Exit code: ${EXIT_CODE}"
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 digests, used to identify frame files and cache keys.
+ */
+public class Digests {
+    private static final String ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 8192;
+
+    private Digests() {}
+
+    /**
+     * Compute the SHA-256 digest of a string.
+     * @param value The string, encoded in UTF-8.
+     * @return The digest, as a lowercase hexadecimal string.
+     */
+    public static String sha256(String value) throws NoSuchAlgorithmException {
+        MessageDigest messageDigest = MessageDigest.getInstance(ALGORITHM);
+        return Digests.toHex(messageDigest.digest(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Compute the SHA-256 digest of a file content.
+     * @param file The file.
+     * @return The digest, as a lowercase hexadecimal string.
+     */
+    public static String sha256(File file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest messageDigest = MessageDigest.getInstance(ALGORITHM);
+        try (InputStream inputStream = new FileInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, bytesRead);
+            }
+        }
+        return Digests.toHex(messageDigest.digest());
+    }
+
+    private static String toHex(byte[] hash) {
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
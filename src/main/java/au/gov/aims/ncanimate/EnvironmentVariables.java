@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+
+/**
+ * Settings of NcAnimate found in the environment variables.
+ *
+ * Values are trimmed, and empty values are considered as not set.
+ * Invalid values are logged and ignored, so the default value is used instead.
+ */
+public class EnvironmentVariables {
+    private static final Logger LOGGER = Logger.getLogger(EnvironmentVariables.class);
+
+    private EnvironmentVariables() {}
+
+    /**
+     * @param name The environment variable name.
+     * @return The trimmed value, or null if the environment variable is not set.
+     */
+    public static String getString(String name) {
+        return EnvironmentVariables.trim(System.getenv(name));
+    }
+
+    /**
+     * @param name The environment variable name.
+     * @return The file, or null if the environment variable is not set.
+     */
+    public static File getFile(String name) {
+        String value = EnvironmentVariables.getString(name);
+        return value == null ? null : new File(value);
+    }
+
+    /**
+     * @param name The environment variable name.
+     * @param defaultValue Value returned when the environment variable is not set.
+     * @return true if the environment variable is set to "true" (case insensitive).
+     */
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        return EnvironmentVariables.parseBoolean(System.getenv(name), defaultValue);
+    }
+
+    /**
+     * @param name The environment variable name.
+     * @return The value, or null if the environment variable is not set or is not a valid integer.
+     */
+    public static Integer getInteger(String name) {
+        Long value = EnvironmentVariables.parseLong(name, System.getenv(name));
+        if (value == null) {
+            return null;
+        }
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            LOGGER.warn(String.format("Invalid value for environment variable %s: %d", name, value));
+            return null;
+        }
+        return value.intValue();
+    }
+
+    /**
+     * @param name The environment variable name.
+     * @param defaultValue Value returned when the environment variable is not set or is invalid.
+     * @param minValue Minimum valid value.
+     * @return The value of the environment variable, or the default value.
+     */
+    public static int getInteger(String name, int defaultValue, int minValue) {
+        Integer value = EnvironmentVariables.getInteger(name);
+        return (int)EnvironmentVariables.checkMin(name, value == null ? null : value.longValue(), defaultValue, minValue);
+    }
+
+    /**
+     * @param name The environment variable name.
+     * @param defaultValue Value returned when the environment variable is not set or is invalid.
+     * @param minValue Minimum valid value.
+     * @return The value of the environment variable, or the default value.
+     */
+    public static long getLong(String name, long defaultValue, long minValue) {
+        return EnvironmentVariables.checkMin(name, EnvironmentVariables.parseLong(name, System.getenv(name)), defaultValue, minValue);
+    }
+
+    private static long checkMin(String name, Long value, long defaultValue, long minValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value < minValue) {
+            LOGGER.warn(String.format("Invalid value for environment variable %s: %d. The value must be at least %d. Using the default value: %d",
+                    name, value, minValue, defaultValue));
+            return defaultValue;
+        }
+        return value;
+    }
+
+    static String trim(String value) {
+        if (value == null) {
+            return null;
+        }
+        String trimmed = value.trim();
+        return trimmed.isEmpty() ? null : trimmed;
+    }
+
+    static boolean parseBoolean(String value, boolean defaultValue) {
+        String trimmed = EnvironmentVariables.trim(value);
+        return trimmed == null ? defaultValue : Boolean.parseBoolean(trimmed);
+    }
+
+    static Long parseLong(String name, String value) {
+        String trimmed = EnvironmentVariables.trim(value);
+        if (trimmed == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(trimmed);
+        } catch(NumberFormatException ex) {
+            LOGGER.warn(String.format("Invalid value for environment variable %s: %s", name, value));
+            return null;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate;
+
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Java Flight Recorder (JFR) events for the stages of the NcAnimate pipeline.
+ *
+ * Each event carries the product ID, the region ID, the date range, a number of bytes
+ * and a detail (command line, destination URI, etc). The events can be recorded
+ * with any JFR recording, or with the recording started by NcAnimate when the
+ * environment variable "NCANIMATE_JFR_RECORDING" is set to true
+ * (see {@link #startRecording(String)}).
+ *
+ * NcAnimate is compiled for Java 8, and JFR is only available with Java 8u262 or later.
+ * The JFR API is therefore used through reflection, with dynamic events
+ * (jdk.jfr.EventFactory). When JFR is not available, the events are ignored.
+ */
+public class FlightRecorder {
+    private static final Logger LOGGER = Logger.getLogger(FlightRecorder.class);
+    private static final String NCANIMATE_JFR_RECORDING_ENV_VARIABLE = "NCANIMATE_JFR_RECORDING";
+
+    private static final String EVENT_PREFIX = "au.gov.aims.ncanimate.";
+    private static final String CATEGORY = "NcAnimate";
+
+    public static final String FRAME_GENERATION = "FrameGeneration";
+    public static final String SUBPROCESS = "Subprocess";
+    public static final String VIDEO_ENCODING = "VideoEncoding";
+    public static final String ZIP_CREATION = "ZipCreation";
+    public static final String IMAGE_RESIZE = "ImageResize";
+    public static final String S3_UPLOAD = "S3Upload";
+    public static final String METADATA_SAVE = "MetadataSave";
+
+    private static final String[] EVENT_TYPES = new String[] {
+        FRAME_GENERATION, SUBPROCESS, VIDEO_ENCODING, ZIP_CREATION, IMAGE_RESIZE, S3_UPLOAD, METADATA_SAVE
+    };
+
+    // Index of the event fields, in the order they are declared
+    private static final int PRODUCT_ID_FIELD = 0;
+    private static final int REGION_ID_FIELD = 1;
+    private static final int START_DATE_FIELD = 2;
+    private static final int END_DATE_FIELD = 3;
+    private static final int BYTES_FIELD = 4;
+    private static final int DETAIL_FIELD = 5;
+
+    // Event type => jdk.jfr.EventFactory. Empty if JFR is not available.
+    private static final Map<String, Object> EVENT_FACTORIES = new HashMap<String, Object>();
+    private static Method newEventMethod;
+    private static Method beginMethod;
+    private static Method endMethod;
+    private static Method commitMethod;
+    private static Method setMethod;
+
+    static {
+        try {
+            FlightRecorder.createEventFactories();
+        } catch(Throwable ex) {
+            EVENT_FACTORIES.clear();
+            LOGGER.debug("Java Flight Recorder is not available. NcAnimate events will not be recorded.", ex);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void createEventFactories() throws Exception {
+        Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+        Class<?> eventClass = Class.forName("jdk.jfr.Event");
+        Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+        Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+        Class<? extends Annotation> nameClass = (Class<? extends Annotation>)Class.forName("jdk.jfr.Name");
+        Class<? extends Annotation> labelClass = (Class<? extends Annotation>)Class.forName("jdk.jfr.Label");
+        Class<? extends Annotation> categoryClass = (Class<? extends Annotation>)Class.forName("jdk.jfr.Category");
+
+        Constructor<?> annotationElementConstructor = annotationElementClass.getConstructor(Class.class, Object.class);
+        Constructor<?> valueDescriptorConstructor = valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+        Method createMethod = eventFactoryClass.getMethod("create", List.class, List.class);
+
+        List<Object> fields = new ArrayList<Object>();
+        fields.add(FlightRecorder.createField(valueDescriptorConstructor, annotationElementConstructor, labelClass, String.class, "productId", "Product ID"));
+        fields.add(FlightRecorder.createField(valueDescriptorConstructor, annotationElementConstructor, labelClass, String.class, "regionId", "Region ID"));
+        fields.add(FlightRecorder.createField(valueDescriptorConstructor, annotationElementConstructor, labelClass, String.class, "startDate", "Start Date"));
+        fields.add(FlightRecorder.createField(valueDescriptorConstructor, annotationElementConstructor, labelClass, String.class, "endDate", "End Date"));
+        fields.add(FlightRecorder.createField(valueDescriptorConstructor, annotationElementConstructor, labelClass, long.class, "bytes", "Bytes"));
+        fields.add(FlightRecorder.createField(valueDescriptorConstructor, annotationElementConstructor, labelClass, String.class, "detail", "Detail"));
+
+        for (String eventType : EVENT_TYPES) {
+            List<Object> annotations = new ArrayList<Object>();
+            annotations.add(annotationElementConstructor.newInstance(nameClass, EVENT_PREFIX + eventType));
+            annotations.add(annotationElementConstructor.newInstance(labelClass, eventType));
+            annotations.add(annotationElementConstructor.newInstance(categoryClass, new String[] { CATEGORY }));
+            EVENT_FACTORIES.put(eventType, createMethod.invoke(null, annotations, fields));
+        }
+
+        newEventMethod = eventFactoryClass.getMethod("newEvent");
+        beginMethod = eventClass.getMethod("begin");
+        endMethod = eventClass.getMethod("end");
+        commitMethod = eventClass.getMethod("commit");
+        setMethod = eventClass.getMethod("set", int.class, Object.class);
+    }
+
+    private static Object createField(
+            Constructor<?> valueDescriptorConstructor,
+            Constructor<?> annotationElementConstructor,
+            Class<? extends Annotation> labelClass,
+            Class<?> type, String name, String label) throws Exception {
+
+        return valueDescriptorConstructor.newInstance(type, name,
+                Arrays.asList(annotationElementConstructor.newInstance(labelClass, label)));
+    }
+
+    /**
+     * @return true if the events can be recorded (Java 8u262 or later).
+     */
+    public static boolean isAvailable() {
+        return !EVENT_FACTORIES.isEmpty();
+    }
+
+    /**
+     * Begin an event. The event is recorded when it's committed.
+     * @param eventType The event type. See the constants of this class.
+     * @param productId The product ID, or null.
+     * @param regionId The region ID, or null.
+     * @param dateRange The date range, or null.
+     * @return The event. Never null.
+     */
+    public static Event begin(String eventType, String productId, String regionId, DateTimeRange dateRange) {
+        Object eventFactory = EVENT_FACTORIES.get(eventType);
+        if (eventFactory == null) {
+            return new Event(null);
+        }
+
+        try {
+            Object jfrEvent = newEventMethod.invoke(eventFactory);
+            setMethod.invoke(jfrEvent, PRODUCT_ID_FIELD, productId);
+            setMethod.invoke(jfrEvent, REGION_ID_FIELD, regionId);
+            if (dateRange != null) {
+                setMethod.invoke(jfrEvent, START_DATE_FIELD, dateRange.getStartDate() == null ? null : dateRange.getStartDate().toString());
+                setMethod.invoke(jfrEvent, END_DATE_FIELD, dateRange.getEndDate() == null ? null : dateRange.getEndDate().toString());
+            }
+            beginMethod.invoke(jfrEvent);
+            return new Event(jfrEvent);
+        } catch(Exception ex) {
+            LOGGER.debug(String.format("Could not create the Java Flight Recorder event: %s", eventType), ex);
+            return new Event(null);
+        }
+    }
+
+    /**
+     * Start a JFR recording, with the "default" JFR settings and the NcAnimate events.
+     * @param name The recording name.
+     * @return The recording, or null if JFR is not available.
+     */
+    public static Recording startRecording(String name) {
+        if (!FlightRecorder.isAvailable()) {
+            LOGGER.warn("Java Flight Recorder is not available. Java 8u262 or later is required.");
+            return null;
+        }
+
+        try {
+            Class<?> configurationClass = Class.forName("jdk.jfr.Configuration");
+            Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+
+            Object configuration = configurationClass.getMethod("getConfiguration", String.class).invoke(null, "default");
+            Object jfrRecording = recordingClass.getConstructor(configurationClass).newInstance(configuration);
+            recordingClass.getMethod("setName", String.class).invoke(jfrRecording, name);
+            recordingClass.getMethod("start").invoke(jfrRecording);
+
+            LOGGER.info(String.format("Java Flight Recorder recording started: %s", name));
+            return new Recording(jfrRecording);
+        } catch(Exception ex) {
+            LOGGER.warn("Could not start the Java Flight Recorder recording", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Use the environment variable "NCANIMATE_JFR_RECORDING" if set.
+     * @return true if NcAnimate records a JFR file for each product. Default: false.
+     */
+    public static boolean isRecordingEnabled() {
+        return EnvironmentVariables.getBoolean(NCANIMATE_JFR_RECORDING_ENV_VARIABLE, false);
+    }
+
+    /**
+     * Event of a stage of the pipeline, between its begin and its commit.
+     */
+    public static class Event {
+        private Object jfrEvent;
+
+        private Event(Object jfrEvent) {
+            this.jfrEvent = jfrEvent;
+        }
+
+        public Event setBytes(long bytes) {
+            this.set(BYTES_FIELD, bytes);
+            return this;
+        }
+
+        public Event setDetail(String detail) {
+            this.set(DETAIL_FIELD, detail);
+            return this;
+        }
+
+        private void set(int field, Object value) {
+            if (this.jfrEvent != null) {
+                try {
+                    setMethod.invoke(this.jfrEvent, field, value);
+                } catch(Exception ex) {
+                    LOGGER.debug("Could not set the Java Flight Recorder event field", ex);
+                }
+            }
+        }
+
+        /**
+         * @return true if the event will not be recorded: JFR is not available,
+         *     the event type is unknown or the event was already committed.
+         *     Used with unit tests.
+         */
+        boolean isNoOp() {
+            return this.jfrEvent == null;
+        }
+
+        /**
+         * End the event and record it. Only the first call is recorded.
+         */
+        public void commit() {
+            if (this.jfrEvent != null) {
+                try {
+                    endMethod.invoke(this.jfrEvent);
+                    commitMethod.invoke(this.jfrEvent);
+                } catch(Exception ex) {
+                    LOGGER.debug("Could not commit the Java Flight Recorder event", ex);
+                }
+                this.jfrEvent = null;
+            }
+        }
+    }
+
+    /**
+     * JFR recording started by NcAnimate.
+     */
+    public static class Recording {
+        private Object jfrRecording;
+
+        private Recording(Object jfrRecording) {
+            this.jfrRecording = jfrRecording;
+        }
+
+        /**
+         * Stop the recording and write it to a file.
+         * @param jfrFile The file to write.
+         * @return The file, or null if the recording could not be written.
+         */
+        public File stop(File jfrFile) {
+            Class<?> recordingClass = this.jfrRecording.getClass();
+            try {
+                recordingClass.getMethod("stop").invoke(this.jfrRecording);
+                recordingClass.getMethod("dump", Path.class).invoke(this.jfrRecording, jfrFile.toPath());
+                return jfrFile;
+            } catch(Exception ex) {
+                LOGGER.warn(String.format("Could not write the Java Flight Recorder recording to %s", jfrFile), ex);
+                return null;
+            } finally {
+                try {
+                    recordingClass.getMethod("close").invoke(this.jfrRecording);
+                } catch(Exception ex) {
+                    LOGGER.debug("Could not close the Java Flight Recorder recording", ex);
+                }
+            }
+        }
+    }
+}
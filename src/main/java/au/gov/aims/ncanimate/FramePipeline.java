@@ -0,0 +1,575 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate;
+
+import au.gov.aims.ereefs.bean.metadata.TimeIncrement;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ncanimate.commons.NcAnimateGenerateFileBean;
+import au.gov.aims.ncanimate.commons.NcAnimateUtils;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.commons.timetable.FrameTimetableMap;
+import au.gov.aims.ncanimate.generator.FrameCache;
+import au.gov.aims.ncanimate.generator.FrameGenerator;
+import au.gov.aims.ncanimate.generator.FrameGeneratorPool;
+import au.gov.aims.ncanimate.generator.FrameKeys;
+import au.gov.aims.ncanimate.generator.FrameRegistry;
+import au.gov.aims.ncanimate.generator.FrameStore;
+import au.gov.aims.ncanimate.generator.MapGenerator;
+import au.gov.aims.ncanimate.generator.ProductAssembler;
+import au.gov.aims.ncanimate.generator.VideoGenerator;
+import au.gov.aims.ncanimate.timetable.DateRangeIndex;
+import au.gov.aims.ncanimate.timetable.FrameGroup;
+import au.gov.aims.ncanimate.timetable.FrameGroupScheduler;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Generate the frames of a product and assemble its videos and maps.
+ *
+ * Frames are generated per group of dates that share the same input files.
+ * Several groups are generated at once (see {@link FrameGeneratorPool}). They may finish in any order.
+ * Products (videos and maps) are assembled in the background (see {@link ProductAssembler})
+ * as soon as all their frames are generated, while the frames for the next date ranges are generated.
+ * Once a product is assembled, the frame files which are not needed by other products are deleted.
+ *
+ * The frame groups generated by a previous run of the task (see {@link RunCheckpoint}),
+ * or which frames are all in the frame cache (see {@link FrameCache}), are not generated again.
+ */
+public class FramePipeline {
+    private static final Logger LOGGER = Logger.getLogger(FramePipeline.class);
+
+    private NcAnimateConfigBean ncAnimateConfig;
+    private String regionId;
+    private TimeIncrement frameTimeIncrement;
+
+    private FrameGenerator frameGenerator;
+    private VideoGenerator videoGenerator;
+    private MapGenerator mapGenerator;
+
+    // Plan of the product
+    private FrameGroupScheduler frameGroupScheduler;
+    private FrameKeys frameKeys;
+    private long[] sortedFrameKeys;
+    private FrameRegistry frameRegistry;
+    private Map<String, String> inputChecksums;
+    private Map<DateTimeRange, List<FrameTimetableMap>> videoFrameMap;
+    private Map<DateTimeRange, List<FrameTimetableMap>> mapFrameMap;
+    private DateRangeIndex<NcAnimateGenerateFileBean> videoReadinessIndex;
+    private DateRangeIndex<NcAnimateGenerateFileBean> mapReadinessIndex;
+    private Set<NcAnimateGenerateFileBean> remainingVideoOutputFileBeans;
+    private Set<NcAnimateGenerateFileBean> remainingMapOutputFileBeans;
+
+    private RunMetrics runMetrics;
+    private RunCheckpoint runCheckpoint;
+    private ShutdownHandler shutdownHandler;
+    private FrameCache frameCache;
+    private String configFingerprint;
+    private File workingDirectory;
+
+    // Set while the pipeline runs
+    private FrameGeneratorPool frameGeneratorPool;
+    private ProductAssembler productAssembler;
+    private FrameStore frameStore;
+    // Frame groups which frame files are already on disk, waiting to be sent to the assembly stage
+    private List<FrameGroup> resumedFrameGroups;
+
+    /**
+     * @param ncAnimateConfig The NcAnimate configuration of the product.
+     * @param regionId The region to generate, or null for all the regions.
+     * @param frameGenerator Used to generate the frames.
+     * @param videoGenerator Used to assemble the videos.
+     * @param mapGenerator Used to assemble the maps.
+     * @param frameGroupScheduler The frame groups to generate, in the order they are generated.
+     * @param frameKeys Used to find the frame files.
+     * @param frameRegistry The frames needed by the outdated products.
+     * @param inputChecksums Input file ID => checksum, for the input files of the frame groups.
+     * @param videoFrameMap Frames of the videos.
+     * @param mapFrameMap Frames of the maps.
+     * @param videoReadinessIndex Outdated videos, indexed by date range.
+     * @param mapReadinessIndex Outdated maps, indexed by date range.
+     * @param remainingVideoOutputFileBeans Outdated videos. They are removed from the set once they are assembled.
+     * @param remainingMapOutputFileBeans Outdated maps. They are removed from the set once they are assembled.
+     */
+    public FramePipeline(
+            NcAnimateConfigBean ncAnimateConfig,
+            String regionId,
+            FrameGenerator frameGenerator,
+            VideoGenerator videoGenerator,
+            MapGenerator mapGenerator,
+            FrameGroupScheduler frameGroupScheduler,
+            FrameKeys frameKeys,
+            FrameRegistry frameRegistry,
+            Map<String, String> inputChecksums,
+            Map<DateTimeRange, List<FrameTimetableMap>> videoFrameMap,
+            Map<DateTimeRange, List<FrameTimetableMap>> mapFrameMap,
+            DateRangeIndex<NcAnimateGenerateFileBean> videoReadinessIndex,
+            DateRangeIndex<NcAnimateGenerateFileBean> mapReadinessIndex,
+            Set<NcAnimateGenerateFileBean> remainingVideoOutputFileBeans,
+            Set<NcAnimateGenerateFileBean> remainingMapOutputFileBeans) {
+
+        this.ncAnimateConfig = ncAnimateConfig;
+        this.regionId = regionId;
+        this.frameTimeIncrement = ncAnimateConfig.getFrameTimeIncrement();
+        this.workingDirectory = ncAnimateConfig.getRender().getWorkingDirectoryFile();
+
+        this.frameGenerator = frameGenerator;
+        this.videoGenerator = videoGenerator;
+        this.mapGenerator = mapGenerator;
+
+        this.frameGroupScheduler = frameGroupScheduler;
+        this.frameKeys = frameKeys;
+        this.frameRegistry = frameRegistry;
+        this.sortedFrameKeys = frameRegistry.getFrameKeys();
+        this.inputChecksums = inputChecksums;
+        this.videoFrameMap = videoFrameMap;
+        this.mapFrameMap = mapFrameMap;
+        this.videoReadinessIndex = videoReadinessIndex;
+        this.mapReadinessIndex = mapReadinessIndex;
+        this.remainingVideoOutputFileBeans = remainingVideoOutputFileBeans;
+        this.remainingMapOutputFileBeans = remainingMapOutputFileBeans;
+
+        this.runMetrics = null;
+        this.runCheckpoint = null;
+        this.shutdownHandler = null;
+        this.frameCache = null;
+        this.configFingerprint = null;
+    }
+
+    public void setRunMetrics(RunMetrics runMetrics) {
+        this.runMetrics = runMetrics;
+    }
+
+    /**
+     * @param runCheckpoint Progress of the task, or null if the task can't be resumed.
+     */
+    public void setRunCheckpoint(RunCheckpoint runCheckpoint) {
+        this.runCheckpoint = runCheckpoint;
+    }
+
+    /**
+     * @param shutdownHandler The handler which tells the pipeline to stop, or null to ignore shut downs.
+     */
+    public void setShutdownHandler(ShutdownHandler shutdownHandler) {
+        this.shutdownHandler = shutdownHandler;
+    }
+
+    /**
+     * @param frameCache Frames generated by previous runs, or null if the frame cache is disabled.
+     */
+    public void setFrameCache(FrameCache frameCache) {
+        this.frameCache = frameCache;
+        this.configFingerprint = frameCache == null ? null : FrameCache.getConfigFingerprint(this.ncAnimateConfig);
+    }
+
+    /**
+     * Generate the frames and assemble the products, until all the products are assembled.
+     * The products which could not be generated are left in the remaining sets.
+     * @param frameWorkers Number of frame groups generated at once.
+     * @throws InterruptedException If the pipeline was stopped by a shutdown request.
+     *     The task can be resumed.
+     */
+    public void run(int frameWorkers) throws Exception {
+        this.frameGeneratorPool = new FrameGeneratorPool(this.frameGenerator, frameWorkers);
+        this.productAssembler = new ProductAssembler(this.videoGenerator, this.mapGenerator, ProductAssembler.getDefaultMaxPendingProducts());
+        this.resumedFrameGroups = new ArrayList<FrameGroup>();
+
+        // Identical frame files are stored once
+        this.frameStore = FrameStore.isDedupEnabled() ? new FrameStore(this.workingDirectory) : null;
+        this.videoGenerator.setFrameStore(this.frameStore);
+
+        // Used to restart NcAnimate frame from the first missing frame, after a crash
+        this.frameGenerator.setFrameKeys(this.frameKeys, this.sortedFrameKeys);
+        boolean shutdown = false;
+        try {
+            while (true) {
+                // Stop sending date ranges to NcAnimate frame when the JVM gets shut down
+                if (this.isShutdownRequested()) {
+                    shutdown = true;
+                    break;
+                }
+
+                // Collect the products assembled so far.
+                // NOTE: Frames of date ranges still in progress are needed by the remaining products,
+                //     so they are never deleted here.
+                NcAnimateGenerateFileBean assembledProduct;
+                while ((assembledProduct = this.productAssembler.poll()) != null) {
+                    this.release(assembledProduct);
+                }
+
+                // Do not start new date ranges while the assembly stage is lagging behind.
+                // The frames can not be deleted until their products are assembled,
+                // so this keeps the number of frames on disk bounded.
+                if (!this.productAssembler.isFull()) {
+                    this.submitFrameGroups();
+                }
+
+                if ((!this.resumedFrameGroups.isEmpty() || this.frameGeneratorPool.getInFlightCount() > 0) &&
+                        (!this.productAssembler.isFull() || this.productAssembler.getPendingCount() <= 0)) {
+                    this.assembleReadyProducts(this.takeReadyFrameGroup());
+                } else if (this.productAssembler.getPendingCount() > 0) {
+                    // Nothing else to do than waiting for the assembly stage
+                    this.release(this.productAssembler.take());
+                } else {
+                    // All frames are generated and all products are assembled
+                    break;
+                }
+            }
+        } catch(Exception ex) {
+            // Woken up by the shutdown hook. The interruption may surface as any exception
+            // (InterruptedException, or a runtime exception thrown by the database or S3 client).
+            if (!this.isShutdownRequested()) {
+                throw ex;
+            }
+            LOGGER.debug("Exception caused by the shutdown request", ex);
+            shutdown = true;
+        } finally {
+            // Terminates the running NcAnimate frame processes
+            this.frameGeneratorPool.shutdown();
+            this.frameGenerator.setFrameKeys(null, null);
+
+            // Decide from the shutdown request, not from the exception that was caught
+            if (this.isShutdownRequested()) {
+                shutdown = true;
+                // Give the product being assembled a chance to finish its upload and metadata
+                Thread.interrupted();
+                for (NcAnimateGenerateFileBean drainedProduct : this.productAssembler.drain(this.shutdownHandler.getRemainingTime())) {
+                    this.release(drainedProduct);
+                }
+            }
+            this.productAssembler.shutdown();
+        }
+
+        if (shutdown) {
+            throw new InterruptedException("NcAnimate stopped by a shutdown request. The task can be resumed.");
+        }
+
+        this.logStatistics();
+    }
+
+    private boolean isShutdownRequested() {
+        return this.shutdownHandler != null && this.shutdownHandler.isShutdownRequested();
+    }
+
+    /**
+     * Send the next frame groups to the frame generator pool, while it has capacity.
+     * Frame groups which frame files are already on disk, or in the frame cache, are not generated again.
+     */
+    private void submitFrameGroups() throws Exception {
+        while (this.frameGroupScheduler.hasNext() && this.frameGeneratorPool.hasCapacity()) {
+            // Wait for frames to be deleted if the next group doesn't fit in the disk budget,
+            // unless nothing is in progress.
+            boolean canWait = this.frameGeneratorPool.getInFlightCount() > 0 || this.productAssembler.getPendingCount() > 0;
+            // "No data" frames are generated by their own workers
+            FrameGroup frameGroup = this.frameGroupScheduler.next(canWait,
+                    this.frameGeneratorPool.hasDataCapacity(), this.frameGeneratorPool.hasNoDataCapacity());
+            if (frameGroup == null) {
+                return;
+            }
+            DateTimeRange dateRange = frameGroup.getDateRange();
+            long[] dateRangeFrameKeys = FrameKeys.getKeys(this.sortedFrameKeys, dateRange);
+
+            if (this.runCheckpoint != null && this.runCheckpoint.isGenerated(frameGroup, this.inputChecksums) &&
+                    FramePipeline.framesExist(this.frameKeys, dateRangeFrameKeys)) {
+                LOGGER.info(String.format("Frame files already generated for date range [%s - %s]", dateRange.getStartDate(), dateRange.getEndDate()));
+                this.resumedFrameGroups.add(frameGroup);
+                continue;
+            }
+
+            if (this.frameStore != null || this.frameCache != null) {
+                // Frame files left by a previous run may be links to a stored or cached frame.
+                // They are deleted rather than overwritten, to leave the stored frame untouched.
+                FramePipeline.deleteFrames(this.frameKeys, dateRangeFrameKeys);
+            }
+
+            List<DateTimeRange> renderDateRanges = Collections.singletonList(dateRange);
+            if (this.frameCache != null) {
+                // Only generate the frames which are not in the frame cache
+                renderDateRanges = this.restoreCachedFrames(frameGroup, dateRangeFrameKeys);
+                if (renderDateRanges.isEmpty()) {
+                    LOGGER.info(String.format("Frame files restored from the frame cache for date range [%s - %s]", dateRange.getStartDate(), dateRange.getEndDate()));
+                    this.resumedFrameGroups.add(frameGroup);
+                    continue;
+                }
+            }
+
+            LOGGER.info(String.format("Generate frame files for date range [%s - %s]", dateRange.getStartDate(), dateRange.getEndDate()));
+
+            if (this.runMetrics != null) {
+                for (DateTimeRange renderDateRange : renderDateRanges) {
+                    this.runMetrics.addItems(RunMetrics.PHASE_FRAME, FrameKeys.countKeys(this.sortedFrameKeys, renderDateRange));
+                }
+            }
+
+            NcAnimateUtils.printMemoryUsage("NcAnimate before generateFrames");
+            this.frameGeneratorPool.submit(this.ncAnimateConfig, frameGroup, renderDateRanges, this.frameGroupScheduler.getUpcomingMetadataIds(frameGroup));
+        }
+    }
+
+    /**
+     * @return The next frame group which frame files are all on disk:
+     *     a resumed frame group, or the next frame group generated by the pool.
+     */
+    private FrameGroup takeReadyFrameGroup() throws Exception {
+        if (!this.resumedFrameGroups.isEmpty()) {
+            return this.resumedFrameGroups.remove(0);
+        }
+
+        FrameGroup generatedFrameGroup = this.frameGeneratorPool.take();
+        DateTimeRange dateRange = generatedFrameGroup.getDateRange();
+        LOGGER.info(String.format("Frame files generated for date range [%s - %s]", dateRange.getStartDate(), dateRange.getEndDate()));
+
+        if (this.runCheckpoint != null) {
+            this.runCheckpoint.addGenerated(generatedFrameGroup, this.inputChecksums);
+            this.runCheckpoint.save();
+        }
+
+        return generatedFrameGroup;
+    }
+
+    /**
+     * Send the maps and videos that can be generated with the frames we currently have to the assembly stage.
+     * NOTE: The index merges the date ranges as they are added, which takes care of
+     *     date ranges finishing out of order. Products are only returned once all their
+     *     date ranges are generated.
+     */
+    private void assembleReadyProducts(FrameGroup readyFrameGroup) throws Exception {
+        DateTimeRange dateRange = readyFrameGroup.getDateRange();
+        long[] dateRangeFrameKeys = FrameKeys.getKeys(this.sortedFrameKeys, dateRange);
+
+        NcAnimateUtils.printMemoryUsage("NcAnimate after generateFrames");
+
+        if (this.frameCache != null) {
+            this.cacheFrames(readyFrameGroup, dateRangeFrameKeys);
+        }
+        if (this.frameStore != null) {
+            FramePipeline.storeFrames(this.frameStore, this.frameKeys, dateRangeFrameKeys);
+        }
+
+        // Generate outdated videos
+        for (NcAnimateGenerateFileBean readyVideoOutputFileBean : this.videoReadinessIndex.add(dateRange)) {
+            this.productAssembler.submitVideo(readyVideoOutputFileBean, this.videoFrameMap, this.frameTimeIncrement, this.regionId);
+        }
+
+        // Generate outdated maps
+        for (NcAnimateGenerateFileBean readyMapOutputFileBean : this.mapReadinessIndex.add(dateRange)) {
+            this.productAssembler.submitMap(readyMapOutputFileBean, this.mapFrameMap, this.frameTimeIncrement, this.regionId);
+        }
+    }
+
+    /**
+     * Release a product which has been assembled: record it in the task checkpoint,
+     * remove it from the remaining products, and delete the generated frame files
+     * that are no longer needed by other products.
+     * NOTE: NcAnimate frame generate many GB of frames. If those frames stay on disk
+     *     until the end, on a long generation, the server may run out of disk space.
+     * @param assembledProduct The product, uploaded and saved in the database.
+     */
+    private void release(NcAnimateGenerateFileBean assembledProduct) {
+        if (this.runCheckpoint != null) {
+            this.runCheckpoint.addGeneratedProduct(assembledProduct.getFileId());
+        }
+
+        Map<DateTimeRange, List<FrameTimetableMap>> frameMap;
+        if (this.remainingVideoOutputFileBeans.remove(assembledProduct)) {
+            frameMap = this.videoFrameMap;
+        } else if (this.remainingMapOutputFileBeans.remove(assembledProduct)) {
+            frameMap = this.mapFrameMap;
+        } else {
+            // Already released
+            return;
+        }
+
+        long[] unneededFrameKeys = this.frameRegistry.release(NcAnimate.getFrameKeys(this.frameKeys, assembledProduct, frameMap));
+
+        List<File> deletedFiles = new ArrayList<File>();
+        for (long unneededFrameKey : unneededFrameKeys) {
+            File unneededFrameFile = this.frameKeys.getFrameFile(unneededFrameKey);
+            if (unneededFrameFile != null && unneededFrameFile.exists()) {
+                if (!unneededFrameFile.delete()) {
+                    LOGGER.warn(String.format("Could not delete old frame file: %s", unneededFrameFile));
+                } else {
+                    deletedFiles.add(unneededFrameFile);
+                    if (this.frameStore != null) {
+                        this.frameStore.release(unneededFrameFile);
+                    }
+                }
+            }
+        }
+
+        if (!deletedFiles.isEmpty()) {
+            LOGGER.info(String.format("Deleted %d old frame files", deletedFiles.size()));
+
+            // Only generate the following debug message is the LOGGER level is DEBUG or higher
+            if (LOGGER.isDebugEnabled()) {
+                StringBuilder debugMessage = new StringBuilder("Deleted old frame files:");
+                for (File deletedFile : deletedFiles) {
+                    debugMessage.append(String.format("%n- %s", deletedFile));
+                }
+                LOGGER.debug(debugMessage);
+            }
+        }
+
+        this.frameGroupScheduler.releaseFrames(unneededFrameKeys.length);
+    }
+
+    private void logStatistics() {
+        LOGGER.info(String.format("Estimated frame disk usage: peak %.2f MB, average %.2f MB",
+                this.frameGroupScheduler.getPeakFrameDiskUsage() / (1024 * 1024.0),
+                this.frameGroupScheduler.getAverageFrameDiskUsage() / (1024 * 1024.0)));
+        if (this.frameCache != null) {
+            LOGGER.info(String.format("Frame cache: %d hits, %d misses, %d evicted, %d frames, %.2f MB",
+                    this.frameCache.getHitCount(),
+                    this.frameCache.getMissCount(),
+                    this.frameCache.getEvictionCount(),
+                    this.frameCache.getFrameCount(),
+                    this.frameCache.getSize() / (1024 * 1024.0)));
+        }
+        if (this.frameStore != null) {
+            LOGGER.info(String.format("Frame deduplication: %d frame files, %d duplicates, %.2f MB saved",
+                    this.frameStore.getFrameCount(),
+                    this.frameStore.getDuplicateCount(),
+                    this.frameStore.getSavedBytes() / (1024 * 1024.0)));
+        }
+    }
+
+    /**
+     * Restore the frames of a frame group from the frame cache.
+     * A frame date is generated again if any of its frames (region, target height, format)
+     * is missing from the cache.
+     * @return The date ranges which needs to be generated, in chronological order.
+     *     Empty if all the frames were restored.
+     */
+    private List<DateTimeRange> restoreCachedFrames(FrameGroup frameGroup, long[] dateRangeFrameKeys) {
+        // Frame start date (seconds) => frame date range, for the frame dates which are missing from the cache
+        SortedMap<Long, DateTimeRange> missingFrameDateRanges = new TreeMap<Long, DateTimeRange>();
+        for (long frameKey : dateRangeFrameKeys) {
+            String cacheKey = this.getFrameCacheKey(frameGroup, this.frameKeys.getFrameFile(frameKey));
+            if (!this.frameCache.contains(cacheKey)) {
+                missingFrameDateRanges.put(FrameKeys.getStartSeconds(frameKey), this.frameKeys.getFrameDateRange(frameKey));
+            }
+        }
+
+        for (long frameKey : dateRangeFrameKeys) {
+            long frameStartSeconds = FrameKeys.getStartSeconds(frameKey);
+            if (!missingFrameDateRanges.containsKey(frameStartSeconds)) {
+                File frameFile = this.frameKeys.getFrameFile(frameKey);
+                if (!this.frameCache.restore(this.getFrameCacheKey(frameGroup, frameFile), frameFile)) {
+                    missingFrameDateRanges.put(frameStartSeconds, this.frameKeys.getFrameDateRange(frameKey));
+                }
+            }
+        }
+
+        if (missingFrameDateRanges.isEmpty()) {
+            this.frameCache.countLookups(dateRangeFrameKeys.length, 0);
+            return Collections.emptyList();
+        }
+
+        // Frames restored for a date which needs to be generated again would get overwritten
+        for (long frameKey : dateRangeFrameKeys) {
+            if (missingFrameDateRanges.containsKey(FrameKeys.getStartSeconds(frameKey))) {
+                File frameFile = this.frameKeys.getFrameFile(frameKey);
+                if (frameFile != null && frameFile.exists() && !frameFile.delete()) {
+                    LOGGER.warn(String.format("Could not delete old frame file: %s", frameFile));
+                }
+            }
+        }
+
+        // Merge consecutive frame dates, to call NcAnimate frame as few times as possible
+        List<DateTimeRange> renderDateRanges = new ArrayList<DateTimeRange>();
+        DateTimeRange renderDateRange = null;
+        for (DateTimeRange missingFrameDateRange : missingFrameDateRanges.values()) {
+            if (renderDateRange != null && renderDateRange.getEndDate().equals(missingFrameDateRange.getStartDate())) {
+                renderDateRange = DateTimeRange.create(renderDateRange.getStartDate(), missingFrameDateRange.getEndDate());
+            } else {
+                if (renderDateRange != null) {
+                    renderDateRanges.add(renderDateRange);
+                }
+                renderDateRange = missingFrameDateRange;
+            }
+        }
+        renderDateRanges.add(renderDateRange);
+
+        // The frames of the dates generated again are misses, even if some of them were in the cache
+        int restoredFrameCount = dateRangeFrameKeys.length;
+        for (DateTimeRange missingDateRange : renderDateRanges) {
+            restoredFrameCount -= FrameKeys.countKeys(dateRangeFrameKeys, missingDateRange);
+        }
+        this.frameCache.countLookups(restoredFrameCount, dateRangeFrameKeys.length - restoredFrameCount);
+        if (restoredFrameCount > 0) {
+            LOGGER.info(String.format("%d frame files restored from the frame cache", restoredFrameCount));
+        }
+
+        return renderDateRanges;
+    }
+
+    /**
+     * Add the frame files of a frame group to the frame cache.
+     */
+    private void cacheFrames(FrameGroup frameGroup, long[] dateRangeFrameKeys) {
+        for (long frameKey : dateRangeFrameKeys) {
+            File frameFile = this.frameKeys.getFrameFile(frameKey);
+            this.frameCache.put(this.getFrameCacheKey(frameGroup, frameFile), frameFile);
+        }
+    }
+
+    private String getFrameCacheKey(FrameGroup frameGroup, File frameFile) {
+        if (frameFile == null) {
+            return null;
+        }
+
+        // The working directory may be different from one run to another
+        String framePath = this.workingDirectory.toPath().toAbsolutePath().relativize(frameFile.toPath().toAbsolutePath()).toString();
+        return FrameCache.getCacheKey(this.configFingerprint, frameGroup.getMetadataIds(), this.inputChecksums, framePath);
+    }
+
+    /**
+     * Add the frame files of a date range to the frame store.
+     */
+    private static void storeFrames(FrameStore frameStore, FrameKeys frameKeys, long[] dateRangeFrameKeys) {
+        int duplicateCount = 0;
+        for (long frameKey : dateRangeFrameKeys) {
+            if (frameStore.add(frameKeys.getFrameFile(frameKey))) {
+                duplicateCount++;
+            }
+        }
+
+        if (duplicateCount > 0) {
+            LOGGER.debug(String.format("%d duplicated frame files replaced with links", duplicateCount));
+        }
+    }
+
+    /**
+     * Delete the frame files of a date range, before generating them again.
+     */
+    private static void deleteFrames(FrameKeys frameKeys, long[] dateRangeFrameKeys) {
+        for (long frameKey : dateRangeFrameKeys) {
+            File frameFile = frameKeys.getFrameFile(frameKey);
+            if (frameFile != null && frameFile.exists() && !frameFile.delete()) {
+                LOGGER.warn(String.format("Could not delete old frame file: %s", frameFile));
+            }
+        }
+    }
+
+    /**
+     * Check if the frame files of a date range are on disk, before reusing them.
+     */
+    private static boolean framesExist(FrameKeys frameKeys, long[] dateRangeFrameKeys) {
+        for (long frameKey : dateRangeFrameKeys) {
+            File frameFile = frameKeys.getFrameFile(frameKey);
+            if (frameFile == null || !frameFile.exists()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -28,17 +28,30 @@ import au.gov.aims.ncanimate.commons.timetable.NetCDFMetadataFrame;
 import au.gov.aims.ncanimate.commons.timetable.NetCDFMetadataSet;
 import au.gov.aims.ncanimate.commons.timetable.ProductTimetable;
 import au.gov.aims.ncanimate.generator.AbstractMediaGenerator;
+import au.gov.aims.ncanimate.generator.FrameCache;
 import au.gov.aims.ncanimate.generator.FrameGenerator;
+import au.gov.aims.ncanimate.generator.FrameGeneratorPool;
+import au.gov.aims.ncanimate.generator.FrameKeys;
+import au.gov.aims.ncanimate.generator.FrameRegistry;
 import au.gov.aims.ncanimate.generator.MapGenerator;
+import au.gov.aims.ncanimate.generator.OutdatedProductDetector;
 import au.gov.aims.ncanimate.generator.VideoGenerator;
+import au.gov.aims.ncanimate.timetable.DateRangeIndex;
+import au.gov.aims.ncanimate.timetable.ExecutionPlan;
+import au.gov.aims.ncanimate.timetable.FrameGroup;
+import au.gov.aims.ncanimate.timetable.FrameGroupScheduler;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 
 import java.io.File;
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -49,6 +62,11 @@ public class NcAnimate {
     private static final Logger LOGGER = Logger.getLogger(NcAnimate.class);
 
     private static final String TASKID_ENV_VARIABLE = "TASK_ID";
+    private static final String PLAN_ONLY_ENV_VARIABLE = "NCANIMATE_PLAN_ONLY";
+    private static final String PLAN_FILE_ENV_VARIABLE = "NCANIMATE_PLAN_FILE";
+
+    private static final String PLAN_ONLY_OPTION = "--plan-only";
+    private static final String PLAN_FILE_OPTION = "--plan-file=";
     private static final String NCANIMATE_TASK_TYPE = "ncanimate";
 
     private static final int LOG_OUTDATED_LIMIT = 3;
@@ -59,6 +77,21 @@ public class NcAnimate {
     private S3Client s3Client;
 
     private String regionId;
+    private Integer frameWorkers;
+
+    private boolean planOnly;
+    private File planFile;
+
+    // ID of the task being generated, used to save the progress (see RunCheckpoint)
+    private String taskId;
+
+    private ShutdownHandler shutdownHandler;
+
+    // Frames kept between runs, shared by all the products (see FrameCache)
+    private FrameCache frameCache;
+
+    // Metrics of the last product generated
+    private RunMetrics lastRunMetrics;
 
     public static void main(String ... args) throws Exception {
         String taskId = NcAnimate.getTaskId(args);
@@ -93,7 +126,18 @@ public class NcAnimate {
         }
 
         NcAnimate ncAnimate = new NcAnimate();
-        ncAnimate.generateFromTaskId(taskId);
+        ncAnimate.setPlanOnly(NcAnimate.isPlanOnly(args));
+        ncAnimate.setPlanFile(NcAnimate.getPlanFile(args));
+
+        // Stop gracefully on SIGTERM (spot instance reclaimed by AWS Batch)
+        ShutdownHandler shutdownHandler = new ShutdownHandler();
+        shutdownHandler.register();
+        ncAnimate.setShutdownHandler(shutdownHandler);
+        try {
+            ncAnimate.generateFromTaskId(taskId);
+        } finally {
+            shutdownHandler.done();
+        }
     }
 
     public NcAnimate() {
@@ -114,6 +158,11 @@ public class NcAnimate {
         this.s3Client = s3Client;
 
         this.regionId = null;
+        this.frameWorkers = null;
+        this.planOnly = false;
+        this.planFile = null;
+        this.taskId = null;
+        this.shutdownHandler = null;
         this.frameGenerator = new FrameGenerator();
     }
 
@@ -143,16 +192,105 @@ public class NcAnimate {
         this.regionId = regionId;
     }
 
+    /**
+     * Set the number of ncanimate-frame to run at once.
+     * @param frameWorkers Number of workers. Set to null to size the pool
+     *     according to the number of CPU cores and the available memory.
+     */
+    public void setFrameWorkers(Integer frameWorkers) {
+        this.frameWorkers = frameWorkers;
+    }
+
+    private int getFrameWorkers() {
+        if (this.frameWorkers != null && this.frameWorkers > 0) {
+            return this.frameWorkers;
+        }
+        return FrameGeneratorPool.getDefaultPoolSize();
+    }
+
+    /**
+     * Only plan out the generation, without generating anything.
+     * The execution plan is saved as a JSON file.
+     * @param planOnly True to only create the execution plan.
+     */
+    public void setPlanOnly(boolean planOnly) {
+        this.planOnly = planOnly;
+    }
+
+    /**
+     * Set the file where the execution plan is saved.
+     * @param planFile The JSON file. Set to null to save the plan
+     *     in the current directory, in a file named after the product ID.
+     */
+    public void setPlanFile(File planFile) {
+        this.planFile = planFile;
+    }
+
+    /**
+     * Set the handler which tells NcAnimate to stop when the JVM gets shut down.
+     * @param shutdownHandler The handler, or null to ignore shut downs.
+     */
+    public void setShutdownHandler(ShutdownHandler shutdownHandler) {
+        this.shutdownHandler = shutdownHandler;
+    }
+
+    /**
+     * @return The metrics of the last product generated, or null if no product was generated.
+     *     Used with benchmarks.
+     */
+    public RunMetrics getLastRunMetrics() {
+        return this.lastRunMetrics;
+    }
+
+    private boolean isShutdownRequested() {
+        return this.shutdownHandler != null && this.shutdownHandler.isShutdownRequested();
+    }
+
+    private File getPlanFile(String productId) {
+        if (this.planFile != null) {
+            return this.planFile;
+        }
+        return new File(String.format("ncanimate-plan_%s.json", productId.replaceAll("[^a-zA-Z0-9._-]", "_")));
+    }
+
     private static String getTaskId(String ... args) {
-        // Look for a task ID from parameters.
-        if (args != null && args.length > 0) {
-            return args[0];
+        // Look for a task ID from parameters. Options starting with "--" are not task IDs.
+        if (args != null) {
+            for (String arg : args) {
+                if (arg != null && !arg.startsWith("--")) {
+                    return arg;
+                }
+            }
         }
 
         // Get "TASK_ID" from environmental variables (used when ran on AWS infrastructure)
         return System.getenv(TASKID_ENV_VARIABLE);
     }
 
+    private static boolean isPlanOnly(String ... args) {
+        if (args != null) {
+            for (String arg : args) {
+                if (PLAN_ONLY_OPTION.equals(arg)) {
+                    return true;
+                }
+            }
+        }
+
+        return EnvironmentVariables.getBoolean(PLAN_ONLY_ENV_VARIABLE, false);
+    }
+
+    private static File getPlanFile(String ... args) {
+        if (args != null) {
+            for (String arg : args) {
+                if (arg != null && arg.startsWith(PLAN_FILE_OPTION)) {
+                    return new File(arg.substring(PLAN_FILE_OPTION.length()));
+                }
+            }
+        }
+
+        return EnvironmentVariables.getFile(PLAN_FILE_ENV_VARIABLE);
+    }
+
     public TaskBean getTask(String taskId) throws Exception {
         if (taskId != null) {
             TaskHelper taskHelper = new TaskHelper(this.dbClient, CacheStrategy.DISK);
@@ -188,7 +326,12 @@ public class NcAnimate {
             if (NCANIMATE_TASK_TYPE.equals(taskType)) {
                 String productId = task.getProductId();
                 if (productId != null && !productId.isEmpty()) {
-                    this.generateFromProductId(productId);
+                    this.taskId = taskId;
+                    try {
+                        this.generateFromProductId(productId);
+                    } finally {
+                        this.taskId = null;
+                    }
                 } else {
                     throw new IllegalArgumentException(String.format("The task has no productDefinitionId. Task ID: %s", taskId));
                 }
@@ -211,6 +354,12 @@ public class NcAnimate {
      * 5. Generate the frames (using the grouping above)
      * 6. Generate outdated products (videos and maps)
      *
+     * In plan only mode, NcAnimate stops after step 4 and saves the execution plan.
+     *
+     * When generating for a task, the progress is saved in the database (see {@link RunCheckpoint}).
+     * If the task is interrupted, the working directory is kept so the frames
+     * can be reused when the task is restarted.
+     *
      * @param productId ID of the NcAnimate configuration to generate.
      * @throws Exception
      */
@@ -219,12 +368,27 @@ public class NcAnimate {
 
         NcAnimateConfigHelper configHelper = new NcAnimateConfigHelper(this.dbClient, CacheStrategy.DISK);
         NcAnimateConfigBean ncAnimateConfig = configHelper.getNcAnimateConfig(productId);
+
+        // Java Flight Recorder recording of the generation, uploaded with the product files
+        FlightRecorder.Recording flightRecording = null;
+        if (!this.planOnly && FlightRecorder.isRecordingEnabled()) {
+            flightRecording = FlightRecorder.startRecording(String.format("ncanimate_%s", productId));
+        }
+
+        // Time spent in each phase of the generation, published once the product is generated
+        RunMetrics runMetrics = new RunMetrics(this.taskId, productId, this.regionId);
+
+        RunMetrics.Timer timetableTimer = runMetrics.start(RunMetrics.PHASE_TIMETABLE);
         ProductTimetable productTimetable = new ProductTimetable(ncAnimateConfig, this.dbClient);
+        timetableTimer.stop();
 
         NcAnimateUtils.printMemoryUsage("NcAnimate ProductTimetable");
 
         MapGenerator mapGenerator = new MapGenerator(ncAnimateConfig, productTimetable, this.s3Client, this.dbClient);
         VideoGenerator videoGenerator = new VideoGenerator(ncAnimateConfig, productTimetable, this.s3Client, this.dbClient);
+        mapGenerator.setRunMetrics(runMetrics);
+        videoGenerator.setRunMetrics(runMetrics);
+        this.frameGenerator.setRunMetrics(runMetrics);
 
         // Validate regions
         Map<String, NcAnimateRegionBean> regionMap = ncAnimateConfig.getRegions();
@@ -239,57 +403,110 @@ public class NcAnimate {
             }
         }
 
+        RunCheckpoint runCheckpoint = null;
+        if (this.taskId != null && !this.planOnly && RunCheckpoint.isEnabled()) {
+            runCheckpoint = new RunCheckpoint(this.dbClient, this.taskId, productId, this.regionId);
+            runCheckpoint.load();
+        }
+        boolean completed = false;
+
         try {
             LOGGER.info(String.format("Region ID: %s", (this.regionId == null ? "unset (generating for all regions)" : this.regionId)));
 
+            // Metadata and output files are loaded once for all the products
+            OutdatedProductDetector outdatedProductDetector = null;
+            if (OutdatedProductDetector.isEnabled()) {
+                outdatedProductDetector = new OutdatedProductDetector(
+                        this.s3Client, this.dbClient, ncAnimateConfig, ncAnimateConfig.getFrameTimeIncrement(), this.regionId);
+            }
+
             // Get all video frames and files
             LOGGER.info("Generate list of outdated videos");
+            timetableTimer = runMetrics.start(RunMetrics.PHASE_TIMETABLE);
             Map<DateTimeRange, List<FrameTimetableMap>> videoFrameMap = productTimetable.getVideoFrames();
             List<NcAnimateGenerateFileBean> videoOutputFileBeans = productTimetable.getVideoOutputFiles();
+            timetableTimer.stop(videoFrameMap == null ? 0 : videoFrameMap.size(), 0);
 
             // Filter outdated video files
-            List<NcAnimateGenerateFileBean> outdatedVideoOutputFileBeans = new ArrayList<NcAnimateGenerateFileBean>();
-            for (NcAnimateGenerateFileBean videoOutputFileBean : videoOutputFileBeans) {
-                if (NcAnimateUtils.isOutdated(this.s3Client, videoOutputFileBean, videoFrameMap, ncAnimateConfig, this.regionId, outdatedVideoOutputFileBeans.size() < LOG_OUTDATED_LIMIT)) {
-                    outdatedVideoOutputFileBeans.add(videoOutputFileBean);
+            RunMetrics.Timer outdatedTimer = runMetrics.start(RunMetrics.PHASE_OUTDATED);
+            List<NcAnimateGenerateFileBean> outdatedVideoOutputFileBeans;
+            if (outdatedProductDetector != null) {
+                outdatedVideoOutputFileBeans = outdatedProductDetector.getOutdated(videoOutputFileBeans, videoFrameMap, "video", LOG_OUTDATED_LIMIT);
+            } else {
+                outdatedVideoOutputFileBeans = new ArrayList<NcAnimateGenerateFileBean>();
+                for (NcAnimateGenerateFileBean videoOutputFileBean : videoOutputFileBeans) {
+                    if (NcAnimateUtils.isOutdated(this.s3Client, videoOutputFileBean, videoFrameMap, ncAnimateConfig, this.regionId, outdatedVideoOutputFileBeans.size() < LOG_OUTDATED_LIMIT)) {
+                        outdatedVideoOutputFileBeans.add(videoOutputFileBean);
+                    }
                 }
             }
+            outdatedTimer.stop(videoOutputFileBeans == null ? 0 : videoOutputFileBeans.size(), 0);
             LOGGER.info(String.format("Found %d outdated videos", outdatedVideoOutputFileBeans.size()));
 
 
             // Get all map frames and files
             LOGGER.info("Generate list of outdated maps");
+            timetableTimer = runMetrics.start(RunMetrics.PHASE_TIMETABLE);
             Map<DateTimeRange, List<FrameTimetableMap>> mapFrameMap = productTimetable.getMapFrames();
             List<NcAnimateGenerateFileBean> mapOutputFileBeans = productTimetable.getMapOutputFiles();
+            timetableTimer.stop(mapFrameMap == null ? 0 : mapFrameMap.size(), 0);
 
             // Filter outdated map files
-            List<NcAnimateGenerateFileBean> outdatedMapOutputFileBeans = new ArrayList<NcAnimateGenerateFileBean>();
-            for (NcAnimateGenerateFileBean mapOutputFileBean : mapOutputFileBeans) {
-                if (NcAnimateUtils.isOutdated(this.s3Client, mapOutputFileBean, mapFrameMap, ncAnimateConfig, this.regionId, outdatedMapOutputFileBeans.size() < LOG_OUTDATED_LIMIT)) {
-                    outdatedMapOutputFileBeans.add(mapOutputFileBean);
+            outdatedTimer = runMetrics.start(RunMetrics.PHASE_OUTDATED);
+            List<NcAnimateGenerateFileBean> outdatedMapOutputFileBeans;
+            if (outdatedProductDetector != null) {
+                outdatedMapOutputFileBeans = outdatedProductDetector.getOutdated(mapOutputFileBeans, mapFrameMap, "map", LOG_OUTDATED_LIMIT);
+            } else {
+                outdatedMapOutputFileBeans = new ArrayList<NcAnimateGenerateFileBean>();
+                for (NcAnimateGenerateFileBean mapOutputFileBean : mapOutputFileBeans) {
+                    if (NcAnimateUtils.isOutdated(this.s3Client, mapOutputFileBean, mapFrameMap, ncAnimateConfig, this.regionId, outdatedMapOutputFileBeans.size() < LOG_OUTDATED_LIMIT)) {
+                        outdatedMapOutputFileBeans.add(mapOutputFileBean);
+                    }
                 }
             }
+            outdatedTimer.stop(mapOutputFileBeans == null ? 0 : mapOutputFileBeans.size(), 0);
             LOGGER.info(String.format("Found %d outdated maps", outdatedMapOutputFileBeans.size()));
+            if (outdatedProductDetector != null) {
+                LOGGER.info(String.format("Outdated products found using %d metadata queries and %d output directory listings. %d products checked individually.",
+                        outdatedProductDetector.getMetadataQueryCount(), outdatedProductDetector.getListingCount(), outdatedProductDetector.getFallbackCount()));
+            }
 
             NcAnimateUtils.printMemoryUsage("NcAnimate outdated products");
 
+            // Products which still need to be generated.
+            // NOTE: Products are compared by identity.
+            Set<NcAnimateGenerateFileBean> remainingVideoOutputFileBeans = NcAnimate.createProductSet(outdatedVideoOutputFileBeans);
+            Set<NcAnimateGenerateFileBean> remainingMapOutputFileBeans = NcAnimate.createProductSet(outdatedMapOutputFileBeans);
+
+            int frameWorkers = this.getFrameWorkers();
+
+            ExecutionPlan executionPlan = null;
+            if (this.planOnly) {
+                executionPlan = new ExecutionPlan(productId, this.regionId, frameWorkers);
+                executionPlan.setOutdatedProductCount(outdatedVideoOutputFileBeans.size(), outdatedMapOutputFileBeans.size());
+            }
 
             if (!outdatedVideoOutputFileBeans.isEmpty() || !outdatedMapOutputFileBeans.isEmpty()) {
                 TimeIncrement frameTimeIncrement = ncAnimateConfig.getFrameTimeIncrement();
 
-                // Create a (very big) list of all the frame files that will be generated
+                // Count how many products needs each frame file that will be generated.
+                // Frame files are deleted as soon as the last product which needs them is generated.
                 LOGGER.info("Plan out how frame files needs to be generated");
-                Map<String, File> allFrameFiles = new HashMap<String, File>();
+                RunMetrics.Timer planningTimer = runMetrics.start(RunMetrics.PHASE_PLANNING);
+                // NOTE: Frames are identified by compact keys. Their file path is only built when the file is deleted.
+                FrameKeys frameKeys = new FrameKeys(ncAnimateConfig, frameTimeIncrement, this.regionId);
+                FrameRegistry frameRegistry = new FrameRegistry();
                 if (!outdatedVideoOutputFileBeans.isEmpty()) {
                     for (NcAnimateGenerateFileBean outdatedVideoOutdatedFileBean : outdatedVideoOutputFileBeans) {
-                        allFrameFiles.putAll(this.getFrameFiles(ncAnimateConfig, outdatedVideoOutdatedFileBean, videoFrameMap, frameTimeIncrement));
+                        frameRegistry.register(NcAnimate.getFrameKeys(frameKeys, outdatedVideoOutdatedFileBean, videoFrameMap));
                     }
                 }
                 if (!outdatedMapOutputFileBeans.isEmpty()) {
                     for (NcAnimateGenerateFileBean outdatedMapOutdatedFileBean : outdatedMapOutputFileBeans) {
-                        allFrameFiles.putAll(this.getFrameFiles(ncAnimateConfig, outdatedMapOutdatedFileBean, mapFrameMap, frameTimeIncrement));
+                        frameRegistry.register(NcAnimate.getFrameKeys(frameKeys, outdatedMapOutdatedFileBean, mapFrameMap));
                     }
                 }
+                LOGGER.info(String.format("%d frame files needed", frameRegistry.getFrameCount()));
 
                 // Group all video and map frames into one big collection (since the process to generate video frame and map is the same)
                 Map<DateTimeRange, List<FrameTimetableMap>> allFrames = combineFrames(videoFrameMap, mapFrameMap);
@@ -310,118 +527,90 @@ public class NcAnimate {
                     // Merge product date range into long continuous date ranges (defragmentation)
                     SortedSet<DateTimeRange> mergedDateRanges = DateTimeRange.mergeDateRanges(unmergedDateRanges);
                     if (mergedDateRanges != null && !mergedDateRanges.isEmpty()) {
-                        SortedSet<DateTimeRange> generatedDateRanges = new TreeSet<DateTimeRange>();
-
+                        // List all the frame groups to send to NcAnimate frame, in chronological order
+                        // Checksum of the input files, used to find out if frames generated by a previous run are still valid
+                        Map<String, String> inputChecksums = new HashMap<String, String>();
+                        List<FrameGroup> frameGroups = new ArrayList<FrameGroup>();
                         for (DateTimeRange mergedDateRange : mergedDateRanges) {
-                            // Split the long continuous date range into smaller date range containing frames that use the same input files
-                            Map<Set<String>, SortedSet<DateTimeRange>> groupedFrames = this.groupFrames(mergedDateRange, allFrames);
-
-                            // Sort all date ranges in a single collection
-                            SortedSet<DateTimeRange> sortedDateRanges = new TreeSet<DateTimeRange>();
-                            for (SortedSet<DateTimeRange> fileGroupDateRange : groupedFrames.values()) {
-                                sortedDateRanges.addAll(fileGroupDateRange);
-                            }
-
-                            if (!sortedDateRanges.isEmpty()) {
-                                // Add missing frames, to generate "No data" frames where there is no data available
-                                SortedSet<DateTimeRange> noGapSortedDateRanges = new TreeSet<DateTimeRange>();
-                                DateTime lastEndDate = null;
-                                for (DateTimeRange dateRange : sortedDateRanges) {
-                                    noGapSortedDateRanges.add(dateRange);
-                                    if (lastEndDate != null) {
-                                        if (lastEndDate.compareTo(dateRange.getStartDate()) < 0) {
-                                            DateTimeRange noDataDateRange = DateTimeRange.create(lastEndDate, dateRange.getStartDate());
-                                            noGapSortedDateRanges.add(noDataDateRange);
-                                        }
-                                    }
-                                    lastEndDate = dateRange.getEndDate();
-                                }
-                                // Add missing frames at the beginning
-                                if (!DateTimeRange.ALL_TIME.equals(mergedDateRange)) {
-                                    DateTimeRange firstDateRange = sortedDateRanges.first();
-                                    if (mergedDateRange.getStartDate().compareTo(firstDateRange.getStartDate()) < 0) {
-                                        noGapSortedDateRanges.add(DateTimeRange.create(mergedDateRange.getStartDate(), firstDateRange.getStartDate()));
-                                    }
-                                    // Add missing frames at the end
-                                    DateTimeRange lastDateRange = sortedDateRanges.last();
-                                    if (mergedDateRange.getEndDate().compareTo(lastDateRange.getEndDate()) > 0) {
-                                        noGapSortedDateRanges.add(DateTimeRange.create(lastDateRange.getEndDate(), mergedDateRange.getEndDate()));
-                                    }
-                                }
-
-                                for (DateTimeRange dateRange : noGapSortedDateRanges) {
-                                    LOGGER.info(String.format("Generate frame files for date range [%s - %s]", dateRange.getStartDate(), dateRange.getEndDate()));
-
-
-                                    NcAnimateUtils.printMemoryUsage("NcAnimate before generateFrames");
-
-                                    // Generate video frames & map frames per group of dates that share the same input files
-                                    this.frameGenerator.generateFrames(ncAnimateConfig, dateRange);
-
-                                    NcAnimateUtils.printMemoryUsage("NcAnimate after generateFrames");
-
-
-                                    generatedDateRanges.add(dateRange);
-                                    generatedDateRanges = DateTimeRange.mergeDateRanges(generatedDateRanges);
-
-                                    // Generate maps and videos that can be generated with the frames we currently have
-
-                                    // Generate outdated videos
-                                    if (!outdatedVideoOutputFileBeans.isEmpty()) {
-                                        List<NcAnimateGenerateFileBean> newOutdatedVideoOutputFiles = new ArrayList<NcAnimateGenerateFileBean>();
-
-                                        for (NcAnimateGenerateFileBean outdatedVideoOutputFileBean : outdatedVideoOutputFileBeans) {
-                                            DateTimeRange videoDateRange = outdatedVideoOutputFileBean.getDateRange();
-                                            if (this.isReady(generatedDateRanges, videoDateRange)) {
-                                                videoGenerator.generateVideo(outdatedVideoOutputFileBean, videoFrameMap, frameTimeIncrement, this.regionId);
-                                            } else {
-                                                newOutdatedVideoOutputFiles.add(outdatedVideoOutputFileBean);
-                                            }
-                                        }
-
-                                        outdatedVideoOutputFileBeans = newOutdatedVideoOutputFiles;
-                                    }
-
-                                    // Generate outdated maps
-                                    if (!outdatedMapOutputFileBeans.isEmpty()) {
-                                        List<NcAnimateGenerateFileBean> newOutdatedMapOutputFiles = new ArrayList<NcAnimateGenerateFileBean>();
-
-                                        for (NcAnimateGenerateFileBean outdatedMapOutputFileBean : outdatedMapOutputFileBeans) {
-                                            DateTimeRange mapDateRange = outdatedMapOutputFileBean.getDateRange();
-                                            if (this.isReady(generatedDateRanges, mapDateRange)) {
-                                                mapGenerator.generateMap(outdatedMapOutputFileBean, mapFrameMap, frameTimeIncrement, this.regionId);
-                                            } else {
-                                                newOutdatedMapOutputFiles.add(outdatedMapOutputFileBean);
-                                            }
-                                        }
+                            frameGroups.addAll(this.getFrameGroups(mergedDateRange, allFrames, inputChecksums));
+                        }
 
-                                        outdatedMapOutputFileBeans = newOutdatedMapOutputFiles;
-                                    }
+                        // Index of the generated date ranges, used to find which products are ready to be generated.
+                        // Products are removed from the index when they are sent to the assembly stage.
+                        // They stay in the remaining sets until they are assembled, since they still need their frames.
+                        DateRangeIndex<NcAnimateGenerateFileBean> videoReadinessIndex = new DateRangeIndex<NcAnimateGenerateFileBean>();
+                        for (NcAnimateGenerateFileBean outdatedVideoOutputFileBean : outdatedVideoOutputFileBeans) {
+                            videoReadinessIndex.addPending(outdatedVideoOutputFileBean.getDateRange(), outdatedVideoOutputFileBean);
+                        }
+                        DateRangeIndex<NcAnimateGenerateFileBean> mapReadinessIndex = new DateRangeIndex<NcAnimateGenerateFileBean>();
+                        for (NcAnimateGenerateFileBean outdatedMapOutputFileBean : outdatedMapOutputFileBeans) {
+                            mapReadinessIndex.addPending(outdatedMapOutputFileBean.getDateRange(), outdatedMapOutputFileBean);
+                        }
 
-                                    // Delete generated frame files that are not needed anymore to generate other products (video or map)
-                                    this.cleanupFrames(
-                                            ncAnimateConfig,
-                                            videoFrameMap,
-                                            frameTimeIncrement,
-                                            mapFrameMap,
-                                            frameTimeIncrement,
-                                            outdatedVideoOutputFileBeans,
-                                            outdatedMapOutputFileBeans,
-                                            allFrameFiles);
-                                }
-                            }
+                        // Order the frame groups to keep the frame files on disk within the disk budget
+                        FrameGroupScheduler frameGroupScheduler = new FrameGroupScheduler(
+                                frameGroups,
+                                frameRegistry.getFrameKeys(),
+                                unmergedDateRanges,
+                                FrameGroupScheduler.getDefaultDiskBudget(),
+                                ExecutionPlan.getEstimatedFrameSizeKB() * 1024,
+                                frameWorkers);
+                        planningTimer.stop(frameRegistry.getFrameCount(), 0);
+
+                        if (executionPlan != null) {
+                            // Plan only: go through the frame groups without generating anything
+                            this.planExecution(
+                                    executionPlan,
+                                    frameGroupScheduler,
+                                    videoFrameMap,
+                                    mapFrameMap,
+                                    videoReadinessIndex,
+                                    mapReadinessIndex,
+                                    frameKeys,
+                                    frameRegistry,
+                                    remainingVideoOutputFileBeans,
+                                    remainingMapOutputFileBeans);
+                        } else {
+                            // Generate the frames and assemble the products
+                            FramePipeline framePipeline = new FramePipeline(
+                                    ncAnimateConfig,
+                                    this.regionId,
+                                    this.frameGenerator,
+                                    videoGenerator,
+                                    mapGenerator,
+                                    frameGroupScheduler,
+                                    frameKeys,
+                                    frameRegistry,
+                                    inputChecksums,
+                                    videoFrameMap,
+                                    mapFrameMap,
+                                    videoReadinessIndex,
+                                    mapReadinessIndex,
+                                    remainingVideoOutputFileBeans,
+                                    remainingMapOutputFileBeans);
+                            framePipeline.setRunMetrics(runMetrics);
+                            framePipeline.setRunCheckpoint(runCheckpoint);
+                            framePipeline.setShutdownHandler(this.shutdownHandler);
+                            // Frames generated by previous runs, with the same configuration and input files
+                            framePipeline.setFrameCache(this.getFrameCache());
+                            framePipeline.run(frameWorkers);
                         }
                     }
                 }
             }
 
+            if (executionPlan != null) {
+                executionPlan.save(this.getPlanFile(productId));
+                return;
+            }
+
             LOGGER.info("--------------------------------------------------");
             LOGGER.info("---------------- End of NcAnimate ----------------");
             LOGGER.info("--------------------------------------------------");
 
-            if (!outdatedVideoOutputFileBeans.isEmpty()) {
+            if (!remainingVideoOutputFileBeans.isEmpty()) {
                 LOGGER.error("Some videos could not be generated:");
-                for (NcAnimateGenerateFileBean outdatedVideoOutputFileBean : outdatedVideoOutputFileBeans) {
+                for (NcAnimateGenerateFileBean outdatedVideoOutputFileBean : remainingVideoOutputFileBeans) {
                     DateTimeRange dateRange = outdatedVideoOutputFileBean.getDateRange();
                     LOGGER.error(String.format("    - %s (%s - %s)",
                             outdatedVideoOutputFileBean.getFileId(),
@@ -430,9 +619,9 @@ public class NcAnimate {
                 }
             }
 
-            if (!outdatedMapOutputFileBeans.isEmpty()) {
+            if (!remainingMapOutputFileBeans.isEmpty()) {
                 LOGGER.error("Some maps could not be generated:");
-                for (NcAnimateGenerateFileBean outdatedMapOutputFileBean : outdatedMapOutputFileBeans) {
+                for (NcAnimateGenerateFileBean outdatedMapOutputFileBean : remainingMapOutputFileBeans) {
                     DateTimeRange dateRange = outdatedMapOutputFileBean.getDateRange();
                     LOGGER.error(String.format("    - %s (%s - %s)",
                             outdatedMapOutputFileBean.getFileId(),
@@ -441,177 +630,280 @@ public class NcAnimate {
                 }
             }
 
-            if (!outdatedVideoOutputFileBeans.isEmpty() || !outdatedMapOutputFileBeans.isEmpty()) {
+            if (!remainingVideoOutputFileBeans.isEmpty() || !remainingMapOutputFileBeans.isEmpty()) {
                 throw new IllegalStateException("Some output products could not be generated.");
             }
 
+            completed = true;
+
         } finally {
             NcAnimateUtils.clearCache();
 
-            // Delete temporary working directory before exiting
+            if (runCheckpoint != null) {
+                if (completed) {
+                    runCheckpoint.delete();
+                } else {
+                    runCheckpoint.save();
+                }
+            }
+
+            // Delete temporary working directory before exiting.
+            // Keep it if the task can be resumed, to reuse the frames already generated.
             File workingDirectory = ncAnimateConfig.getRender().getWorkingDirectoryFile();
-            if (workingDirectory.exists()) {
+
+            if (!this.planOnly) {
+                runMetrics.publish(this.dbClient);
+                this.lastRunMetrics = runMetrics;
+            }
+            if (flightRecording != null) {
+                this.uploadFlightRecording(flightRecording, workingDirectory, productId, videoGenerator, mapGenerator);
+            }
+            if (runCheckpoint != null && !completed) {
+                LOGGER.info(String.format("Working directory kept to resume task ID %s: %s", runCheckpoint.getTaskId(), workingDirectory));
+            } else if (workingDirectory.exists()) {
                 Utils.deleteDirectory(workingDirectory);
             }
         }
     }
 
     /**
-     * Check if a product (video or map) has all the frame files needed to generate it.
-     * @param generatedDateRanges
-     * @param productDateRange
-     * @return
+     * Stop the Java Flight Recorder recording of the product and upload it
+     * next to the last product file uploaded (video first, then map).
+     * The recording is named after the product ID, the region ID and the task ID.
      */
-    private boolean isReady(SortedSet<DateTimeRange> generatedDateRanges, DateTimeRange productDateRange) {
-        for (DateTimeRange generatedDateRange : generatedDateRanges) {
-            if (generatedDateRange.contains(productDateRange)) {
-                return true;
+    private void uploadFlightRecording(
+            FlightRecorder.Recording flightRecording,
+            File workingDirectory,
+            String productId,
+            AbstractMediaGenerator ... generators) {
+
+        String filename = String.format("%s%s%s.jfr", productId,
+                this.regionId == null ? "" : "_" + this.regionId,
+                this.taskId == null ? "" : "_" + this.taskId);
+
+        if (!workingDirectory.exists() && !workingDirectory.mkdirs()) {
+            LOGGER.error(String.format("Could not create the working directory to write the Java Flight Recorder recording: %s", workingDirectory));
+            return;
+        }
+        File jfrFile = flightRecording.stop(new File(workingDirectory, filename));
+        if (jfrFile == null) {
+            return;
+        }
+
+        for (AbstractMediaGenerator generator : generators) {
+            URI lastUploadURI = generator.getLastUploadURI();
+            if (lastUploadURI != null) {
+                URI jfrUri = lastUploadURI.resolve(filename);
+                try {
+                    LOGGER.info(String.format("Uploading Java Flight Recorder recording %s to %s", jfrFile, jfrUri));
+                    generator.uploadFile(jfrFile, jfrUri);
+                } catch(Exception ex) {
+                    LOGGER.error(String.format("Could not upload the Java Flight Recorder recording %s to %s", jfrFile, jfrUri), ex);
+                }
+                return;
             }
         }
-        return false;
+
+        LOGGER.warn(String.format("No product file was uploaded. The Java Flight Recorder recording was not uploaded: %s", jfrFile));
     }
 
     /**
-     * Delete generated frames files that are no longer needed.
-     * NOTE: This method needs to be called after the generation of maps / videos.
-     *     NcAnimate frame generate many GB of frames. If those frames stay on disk
-     *     until the end, on a long generation, the server may run out of disk space.
-     * @param ncAnimateConfig
-     * @param videoFrameMap
-     * @param videoFrameTimeIncrement
-     * @param mapFrameMap
-     * @param mapFrameTimeIncrement
-     * @param remainingVideoOutdatedFileBeans
-     * @param remainingMapOutdatedFileBeans
-     * @param allFrameFiles
+     * Go through the frame groups, in the order they would be generated, and record
+     * in the execution plan the products which become ready after each group.
+     * The frame groups are considered to be generated one after the other.
      */
-    private void cleanupFrames(
-            NcAnimateConfigBean ncAnimateConfig,
+    private void planExecution(
+            ExecutionPlan executionPlan,
+            FrameGroupScheduler frameGroupScheduler,
             Map<DateTimeRange, List<FrameTimetableMap>> videoFrameMap,
-            TimeIncrement videoFrameTimeIncrement,
             Map<DateTimeRange, List<FrameTimetableMap>> mapFrameMap,
-            TimeIncrement mapFrameTimeIncrement,
-            List<NcAnimateGenerateFileBean> remainingVideoOutdatedFileBeans,
-            List<NcAnimateGenerateFileBean> remainingMapOutdatedFileBeans,
-            Map<String, File> allFrameFiles) {
-
-        LOGGER.info("Cleanup old frame files");
-
-        // Create a (very big) list of all the frame files needed for the remaining products (maps & videos) to create
-        Map<String, File> frameFileNeeded = new HashMap<String, File>();
-        if (remainingVideoOutdatedFileBeans != null && !remainingVideoOutdatedFileBeans.isEmpty()) {
-            for (NcAnimateGenerateFileBean remainingVideoOutdatedFileBean : remainingVideoOutdatedFileBeans) {
-                frameFileNeeded.putAll(this.getFrameFiles(ncAnimateConfig, remainingVideoOutdatedFileBean, videoFrameMap, videoFrameTimeIncrement));
+            DateRangeIndex<NcAnimateGenerateFileBean> videoReadinessIndex,
+            DateRangeIndex<NcAnimateGenerateFileBean> mapReadinessIndex,
+            FrameKeys frameKeys,
+            FrameRegistry frameRegistry,
+            Set<NcAnimateGenerateFileBean> remainingVideoOutputFileBeans,
+            Set<NcAnimateGenerateFileBean> remainingMapOutputFileBeans) {
+
+        while (frameGroupScheduler.hasNext()) {
+            FrameGroup frameGroup = frameGroupScheduler.next(false);
+            DateTimeRange dateRange = frameGroup.getDateRange();
+
+            List<NcAnimateGenerateFileBean> readyProducts = new ArrayList<NcAnimateGenerateFileBean>();
+            readyProducts.addAll(videoReadinessIndex.add(dateRange));
+            readyProducts.addAll(mapReadinessIndex.add(dateRange));
+
+            executionPlan.addGroup(frameGroup, frameGroupScheduler.getFrameCount(frameGroup), readyProducts, frameGroupScheduler.getFramesOnDisk());
+
+            // Frames of the ready products which are not needed by other products are deleted
+            for (NcAnimateGenerateFileBean readyProduct : readyProducts) {
+                Map<DateTimeRange, List<FrameTimetableMap>> frameMap;
+                if (remainingVideoOutputFileBeans.remove(readyProduct)) {
+                    frameMap = videoFrameMap;
+                } else if (remainingMapOutputFileBeans.remove(readyProduct)) {
+                    frameMap = mapFrameMap;
+                } else {
+                    continue;
+                }
+                frameGroupScheduler.releaseFrames(frameRegistry.release(NcAnimate.getFrameKeys(frameKeys, readyProduct, frameMap)).length);
             }
         }
-        if (remainingMapOutdatedFileBeans != null && !remainingMapOutdatedFileBeans.isEmpty()) {
-            for (NcAnimateGenerateFileBean remainingMapOutdatedFileBean : remainingMapOutdatedFileBeans) {
-                frameFileNeeded.putAll(this.getFrameFiles(ncAnimateConfig, remainingMapOutdatedFileBean, mapFrameMap, mapFrameTimeIncrement));
+
+        List<NcAnimateGenerateFileBean> unreachableProducts = new ArrayList<NcAnimateGenerateFileBean>();
+        unreachableProducts.addAll(remainingVideoOutputFileBeans);
+        unreachableProducts.addAll(remainingMapOutputFileBeans);
+        executionPlan.setUnreachableProducts(unreachableProducts);
+    }
+
+    /**
+     * Split a long continuous date range into smaller date ranges containing frames that use the same input files,
+     * then add the missing date ranges, to generate "No data" frames where there is no data available.
+     * @param mergedDateRange
+     * @param allFrames
+     * @param inputChecksums Map of input file ID => checksum, filled with the input files of the frames.
+     * @return The frame groups, in chronological order.
+     */
+    private SortedSet<FrameGroup> getFrameGroups(
+            DateTimeRange mergedDateRange,
+            Map<DateTimeRange, List<FrameTimetableMap>> allFrames,
+            Map<String, String> inputChecksums) {
+
+        // Split the long continuous date range into smaller date range containing frames that use the same input files
+        Map<Set<String>, SortedSet<DateTimeRange>> groupedFrames = NcAnimate.groupFrames(mergedDateRange, allFrames, inputChecksums);
+
+        // Sort all date ranges in a single collection
+        SortedSet<FrameGroup> sortedFrameGroups = new TreeSet<FrameGroup>();
+        for (Map.Entry<Set<String>, SortedSet<DateTimeRange>> groupedFramesEntry : groupedFrames.entrySet()) {
+            for (DateTimeRange dateRange : groupedFramesEntry.getValue()) {
+                sortedFrameGroups.add(new FrameGroup(dateRange, groupedFramesEntry.getKey()));
             }
         }
 
-        // Loop through all frame files and delete the one which are not required anymore
-        Set<File> deletedFiles = new TreeSet<File>();
-        if (allFrameFiles != null && !allFrameFiles.isEmpty()) {
-            for (Map.Entry<String, File> allFrameFileEntry : allFrameFiles.entrySet()) {
-                if (!frameFileNeeded.containsKey(allFrameFileEntry.getKey())) {
-                    File unneededFrameFile = allFrameFileEntry.getValue();
-                    if (unneededFrameFile != null && unneededFrameFile.exists()) {
-                        if (!unneededFrameFile.delete()) {
-                            LOGGER.warn(String.format("Could not delete old frame file: %s", unneededFrameFile));
-                        } else {
-                            deletedFiles.add(unneededFrameFile);
-                        }
+        // Add missing frames, to generate "No data" frames where there is no data available
+        SortedSet<FrameGroup> noGapSortedFrameGroups = new TreeSet<FrameGroup>();
+        if (!sortedFrameGroups.isEmpty()) {
+            DateTime lastEndDate = null;
+            for (FrameGroup frameGroup : sortedFrameGroups) {
+                DateTimeRange dateRange = frameGroup.getDateRange();
+                noGapSortedFrameGroups.add(frameGroup);
+                if (lastEndDate != null) {
+                    if (lastEndDate.compareTo(dateRange.getStartDate()) < 0) {
+                        DateTimeRange noDataDateRange = DateTimeRange.create(lastEndDate, dateRange.getStartDate());
+                        noGapSortedFrameGroups.add(new FrameGroup(noDataDateRange, null));
                     }
                 }
+                lastEndDate = dateRange.getEndDate();
+            }
+            // Add missing frames at the beginning
+            if (!DateTimeRange.ALL_TIME.equals(mergedDateRange)) {
+                DateTimeRange firstDateRange = sortedFrameGroups.first().getDateRange();
+                if (mergedDateRange.getStartDate().compareTo(firstDateRange.getStartDate()) < 0) {
+                    noGapSortedFrameGroups.add(new FrameGroup(DateTimeRange.create(mergedDateRange.getStartDate(), firstDateRange.getStartDate()), null));
+                }
+                // Add missing frames at the end
+                DateTimeRange lastDateRange = sortedFrameGroups.last().getDateRange();
+                if (mergedDateRange.getEndDate().compareTo(lastDateRange.getEndDate()) > 0) {
+                    noGapSortedFrameGroups.add(new FrameGroup(DateTimeRange.create(lastDateRange.getEndDate(), mergedDateRange.getEndDate()), null));
+                }
             }
         }
 
-        if (!deletedFiles.isEmpty()) {
-            LOGGER.info(String.format("Deleted %d old frame files", deletedFiles.size()));
+        return noGapSortedFrameGroups;
+    }
 
-            // Only generate the following debug message is the LOGGER level is DEBUG or higher
-            if (LOGGER.isDebugEnabled()) {
-                StringBuilder debugMessage = new StringBuilder("Deleted old frame files:");
-                for (File deletedFile : deletedFiles) {
-                    debugMessage.append(String.format("%n- %s", deletedFile));
-                }
-                LOGGER.debug(debugMessage);
+    /**
+     * Create a set of products, compared by identity.
+     * Removing a product from the set is done in constant time.
+     */
+    private static Set<NcAnimateGenerateFileBean> createProductSet(Collection<NcAnimateGenerateFileBean> products) {
+        Set<NcAnimateGenerateFileBean> productSet = Collections.newSetFromMap(new IdentityHashMap<NcAnimateGenerateFileBean, Boolean>());
+        if (products != null) {
+            productSet.addAll(products);
+        }
+        return productSet;
+    }
+
+    /**
+     * The frame cache is shared by all the products generated by this instance.
+     * @return The frame cache, or null if it's disabled.
+     */
+    private FrameCache getFrameCache() {
+        if (this.frameCache == null) {
+            File frameCacheDirectory = FrameCache.getDefaultCacheDirectory();
+            if (frameCacheDirectory != null) {
+                this.frameCache = new FrameCache(frameCacheDirectory, FrameCache.getDefaultMaxSize());
             }
         }
+        return this.frameCache;
     }
 
-    private Map<String, File> getFrameFiles(
-            NcAnimateConfigBean ncAnimateConfig,
+    /**
+     * Get the keys of all the frames needed to generate a product.
+     * @return The unique frame keys, in chronological order.
+     */
+    static long[] getFrameKeys(
+            FrameKeys frameKeys,
             NcAnimateGenerateFileBean outputFile,
-            Map<DateTimeRange, List<FrameTimetableMap>> frameMap,
-            TimeIncrement frameTimeIncrement) {
-
-        Map<String, File> frameFiles = new HashMap<String, File>();
+            Map<DateTimeRange, List<FrameTimetableMap>> frameMap) {
 
-        if (outputFile == null || frameMap == null || frameMap.isEmpty()) {
-            return frameFiles;
+        if (outputFile == null) {
+            return new long[0];
         }
 
-        DateTimeRange dateRange = outputFile.getDateRange();
+        Map<String, AbstractNcAnimateRenderFileBean> renderFiles = outputFile.getRenderFiles();
+        return NcAnimate.getFrameKeys(frameKeys, outputFile.getDateRange(),
+                renderFiles == null ? null : renderFiles.values(), frameMap);
+    }
+
+    /**
+     * Get the keys of all the frames needed to generate the product covering the date range,
+     * with the given render files.
+     * @return The unique frame keys, in chronological order.
+     */
+    static long[] getFrameKeys(
+            FrameKeys frameKeys,
+            DateTimeRange dateRange,
+            Collection<AbstractNcAnimateRenderFileBean> renderFiles,
+            Map<DateTimeRange, List<FrameTimetableMap>> frameMap) {
+
+        if (renderFiles == null || frameMap == null || frameMap.isEmpty()) {
+            return new long[0];
+        }
 
         List<FrameTimetableMap> productFrameTimetableMaps = frameMap.get(dateRange);
         if (productFrameTimetableMaps == null || productFrameTimetableMaps.isEmpty()) {
-            return frameFiles;
+            return new long[0];
         }
 
-        Map<String, NcAnimateRegionBean> regionMap = ncAnimateConfig.getRegions();
-        List<Double> targetHeights =  ncAnimateConfig.getTargetHeights();
-        if (targetHeights == null || targetHeights.isEmpty()) {
-            targetHeights = new ArrayList<Double>();
-            targetHeights.add(null);
-        }
+        List<NcAnimateRegionBean> regions = frameKeys.getRegions();
+        List<Double> targetHeights = frameKeys.getTargetHeights();
 
-        GeneratorContext context = new GeneratorContext(ncAnimateConfig);
-
-        Map<String, AbstractNcAnimateRenderFileBean> renderFiles = outputFile.getRenderFiles();
-
-        if (regionMap != null) {
-
-            Collection<NcAnimateRegionBean> regions = regionMap.values();
-            // If regionId is specified, filter out regions
-            if (this.regionId != null) {
-                regions = new ArrayList<NcAnimateRegionBean>();
-                regions.add(regionMap.get(this.regionId));
-            }
+        long[] keys = new long[64];
+        int keyCount = 0;
 
-            for (NcAnimateRegionBean region : regions) {
-                for (Double targetHeight : targetHeights) {
+        for (int regionIndex = 0; regionIndex < regions.size(); regionIndex++) {
+            for (int heightIndex = 0; heightIndex < targetHeights.size(); heightIndex++) {
 
-                    for (FrameTimetableMap productFrameTimetableMap : productFrameTimetableMaps) {
-                        for (DateTimeRange frameDateRange : productFrameTimetableMap.keySet()) {
-                            context.setFrameTimeIncrement(frameTimeIncrement);
-                            context.setRegion(region);
-                            context.setTargetHeight(targetHeight);
-                            context.setDateRange(frameDateRange);
-
-                            for (AbstractNcAnimateRenderFileBean renderFile : renderFiles.values()) {
-                                context.setRenderFile(renderFile);
-
-                                NcAnimateRenderMapBean.MapFormat frameFormat = null;
-                                if (renderFile instanceof NcAnimateRenderVideoBean) {
-                                    frameFormat = GeneratorContext.VIDEO_FRAME_FORMAT;
-                                } else if (renderFile instanceof NcAnimateRenderMapBean) {
-                                    frameFormat = NcAnimateRenderMapBean.MapFormat.fromExtension(renderFile.getFileExtension());
-                                }
+                for (FrameTimetableMap productFrameTimetableMap : productFrameTimetableMaps) {
+                    for (DateTimeRange frameDateRange : productFrameTimetableMap.keySet()) {
+                        for (AbstractNcAnimateRenderFileBean renderFile : renderFiles) {
+                            NcAnimateRenderMapBean.MapFormat frameFormat = null;
+                            if (renderFile instanceof NcAnimateRenderVideoBean) {
+                                frameFormat = GeneratorContext.VIDEO_FRAME_FORMAT;
+                            } else if (renderFile instanceof NcAnimateRenderMapBean) {
+                                frameFormat = NcAnimateRenderMapBean.MapFormat.fromExtension(renderFile.getFileExtension());
+                            }
 
-                                File frameFile = AbstractMediaGenerator.getFrameFile(context, frameDateRange, frameFormat);
-                                if (frameFile != null) {
-                                    frameFiles.put(frameFile.getAbsolutePath(), frameFile);
-                                }
+                            if (keyCount >= keys.length) {
+                                keys = Arrays.copyOf(keys, keys.length * 2);
                             }
+                            keys[keyCount++] = frameKeys.getKey(regionIndex, heightIndex, frameDateRange, renderFile, frameFormat);
                         }
                     }
                 }
             }
         }
 
-        return frameFiles;
+        return FrameKeys.sortUnique(keys, keyCount);
     }
 
     /**
@@ -621,7 +913,7 @@ public class NcAnimate {
      * @param mapFrameMap
      * @return A new Map containing all the FrameTimetableMap for the videos and maps.
      */
-    private Map<DateTimeRange, List<FrameTimetableMap>> combineFrames(Map<DateTimeRange, List<FrameTimetableMap>> videoFrameMap, Map<DateTimeRange, List<FrameTimetableMap>> mapFrameMap) {
+    static Map<DateTimeRange, List<FrameTimetableMap>> combineFrames(Map<DateTimeRange, List<FrameTimetableMap>> videoFrameMap, Map<DateTimeRange, List<FrameTimetableMap>> mapFrameMap) {
         Map<DateTimeRange, List<FrameTimetableMap>> allFrames = new HashMap<DateTimeRange, List<FrameTimetableMap>>();
 
         if (videoFrameMap != null) {
@@ -651,7 +943,16 @@ public class NcAnimate {
         return allFrames;
     }
 
-    private Map<Set<String>, SortedSet<DateTimeRange>> groupFrames(DateTimeRange mergedDateRange, Map<DateTimeRange, List<FrameTimetableMap>> frameMap) {
+    /**
+     * Group the frames within the merged date range by input files.
+     * @param inputChecksums Filled with the checksum of each input file. Can be null.
+     * @return The date ranges of the frames, merged, for each set of input file metadata IDs.
+     */
+    static Map<Set<String>, SortedSet<DateTimeRange>> groupFrames(
+            DateTimeRange mergedDateRange,
+            Map<DateTimeRange, List<FrameTimetableMap>> frameMap,
+            Map<String, String> inputChecksums) {
+
         Map<Set<String>, SortedSet<DateTimeRange>> dateRangeMap = new HashMap<Set<String>, SortedSet<DateTimeRange>>();
 
         if (frameMap != null) {
@@ -662,7 +963,7 @@ public class NcAnimate {
                     for (FrameTimetableMap frameTimetableMap : frameList) {
                         for (Map.Entry<DateTimeRange, FrameTimetable> frameTimetableMapEntry : frameTimetableMap.entrySet()) {
                             FrameTimetable frameTimetable = frameTimetableMapEntry.getValue();
-                            Set<String> metadataIds = this.getMetadataIds(frameTimetable);
+                            Set<String> metadataIds = NcAnimate.getMetadataIds(frameTimetable, inputChecksums);
                             if (!metadataIds.isEmpty()) {
                                 // NOTE: Date ranges can not simply be merged here.
                                 //     That could be a problem if we have gaps in the data:
@@ -702,7 +1003,7 @@ public class NcAnimate {
         return dateRangeMap;
     }
 
-    private Set<String> getMetadataIds(FrameTimetable frameTimetable) {
+    private static Set<String> getMetadataIds(FrameTimetable frameTimetable, Map<String, String> inputChecksums) {
         Set<String> metadataIds = new HashSet<String>();
 
         if (frameTimetable != null) {
@@ -713,6 +1014,9 @@ public class NcAnimate {
                         String metadataId = netCDFMetadataBean.getId();
                         if (metadataId != null) {
                             metadataIds.add(metadataId);
+                            if (inputChecksums != null) {
+                                inputChecksums.put(metadataId, netCDFMetadataBean.getChecksum());
+                            }
                         }
                     }
                 }
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate;
+
+import au.gov.aims.ereefs.database.DatabaseClient;
+import au.gov.aims.ereefs.database.table.DatabaseTable;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.timetable.DateRangeIndex;
+import au.gov.aims.ncanimate.timetable.FrameGroup;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Progress of a NcAnimate task, saved in the database as the task goes,
+ * so a task which gets interrupted (container killed, spot instance reclaimed, etc)
+ * can resume where it stopped when it's restarted with the same task ID.
+ *
+ * The checkpoint records:
+ * <ul>
+ *   <li>the date ranges for which the frames has been generated,</li>
+ *   <li>the products (videos and maps) which has been generated, uploaded and saved in the database.</li>
+ * </ul>
+ *
+ * Generated products are not outdated anymore, so they are skipped when the task is restarted.
+ * Frames are only reused if the frame files are still in the working directory
+ * and the input files used to generate them have not changed (same checksum).
+ * The checkpoint is deleted once the task finishes successfully.
+ */
+public class RunCheckpoint {
+    private static final Logger LOGGER = Logger.getLogger(RunCheckpoint.class);
+
+    private static final String NCANIMATE_CHECKPOINT_ENV_VARIABLE = "NCANIMATE_CHECKPOINT";
+    public static final String TABLE_NAME = "ncanimateCheckpoint";
+
+    private DatabaseClient dbClient;
+    private String taskId;
+    private String productId;
+    private String regionId;
+
+    private DateRangeIndex<Boolean> generatedDateRanges;
+    // Input file ID => checksum of the input file, when the frames were generated
+    private Map<String, String> inputChecksums;
+    private Set<String> generatedProductIds;
+    private boolean exists;
+
+    public RunCheckpoint(DatabaseClient dbClient, String taskId, String productId, String regionId) {
+        this.dbClient = dbClient;
+        this.taskId = taskId;
+        this.productId = productId;
+        this.regionId = regionId;
+
+        this.generatedDateRanges = new DateRangeIndex<Boolean>();
+        this.inputChecksums = new HashMap<String, String>();
+        this.generatedProductIds = new TreeSet<String>();
+        this.exists = false;
+    }
+
+    public String getTaskId() {
+        return this.taskId;
+    }
+
+    /**
+     * Load the checkpoint saved by a previous run of the task, if any.
+     * Checkpoints saved for a different product or region are ignored.
+     * @return true if a checkpoint was found.
+     */
+    public boolean load() {
+        JSONObject jsonCheckpoint;
+        try {
+            jsonCheckpoint = this.getTable().select(this.taskId);
+        } catch(Exception ex) {
+            LOGGER.warn(String.format("Could not load the checkpoint for task ID: %s", this.taskId), ex);
+            return false;
+        }
+
+        if (jsonCheckpoint == null) {
+            return false;
+        }
+        this.exists = true;
+
+        if (!RunCheckpoint.equals(this.productId, jsonCheckpoint.optString("productId", null)) ||
+                !RunCheckpoint.equals(this.regionId, jsonCheckpoint.optString("regionId", null))) {
+            LOGGER.warn(String.format("Ignoring the checkpoint for task ID %s. It was saved for product %s, region %s.",
+                    this.taskId, jsonCheckpoint.optString("productId", null), jsonCheckpoint.optString("regionId", null)));
+            return false;
+        }
+
+        JSONArray jsonDateRanges = jsonCheckpoint.optJSONArray("generatedDateRanges");
+        if (jsonDateRanges != null) {
+            for (int i = 0; i < jsonDateRanges.length(); i++) {
+                JSONObject jsonDateRange = jsonDateRanges.optJSONObject(i);
+                if (jsonDateRange != null) {
+                    this.generatedDateRanges.add(DateTimeRange.create(
+                            RunCheckpoint.toDateTime(jsonDateRange.optLong("start", Long.MIN_VALUE), Long.MIN_VALUE),
+                            RunCheckpoint.toDateTime(jsonDateRange.optLong("end", Long.MAX_VALUE), Long.MAX_VALUE)));
+                }
+            }
+        }
+
+        JSONArray jsonInputFiles = jsonCheckpoint.optJSONArray("inputFiles");
+        if (jsonInputFiles != null) {
+            for (int i = 0; i < jsonInputFiles.length(); i++) {
+                JSONObject jsonInputFile = jsonInputFiles.optJSONObject(i);
+                if (jsonInputFile != null && jsonInputFile.has("id")) {
+                    this.inputChecksums.put(jsonInputFile.optString("id", null), jsonInputFile.optString("checksum", ""));
+                }
+            }
+        }
+
+        JSONArray jsonProductIds = jsonCheckpoint.optJSONArray("generatedProducts");
+        if (jsonProductIds != null) {
+            for (int i = 0; i < jsonProductIds.length(); i++) {
+                String generatedProductId = jsonProductIds.optString(i, null);
+                if (generatedProductId != null) {
+                    this.generatedProductIds.add(generatedProductId);
+                }
+            }
+        }
+
+        LOGGER.info(String.format("Resuming task ID %s: %d generated date ranges, %d generated products",
+                this.taskId, this.generatedDateRanges.getCoveredRangeCount(), this.generatedProductIds.size()));
+        return true;
+    }
+
+    /**
+     * @param frameGroup The frame group.
+     * @param currentInputChecksums Input file ID => current checksum of the input file.
+     * @return true if the frames of the group were generated by a previous run,
+     *     using the same input files.
+     */
+    public boolean isGenerated(FrameGroup frameGroup, Map<String, String> currentInputChecksums) {
+        if (!this.generatedDateRanges.contains(frameGroup.getDateRange())) {
+            return false;
+        }
+
+        for (String inputId : frameGroup.getMetadataIds()) {
+            String checksum = this.inputChecksums.get(inputId);
+            if (checksum == null || !checksum.equals(RunCheckpoint.getChecksum(currentInputChecksums, inputId))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record a frame group which frames has been generated.
+     * @param frameGroup The frame group.
+     * @param currentInputChecksums Input file ID => current checksum of the input file.
+     */
+    public void addGenerated(FrameGroup frameGroup, Map<String, String> currentInputChecksums) {
+        this.generatedDateRanges.add(frameGroup.getDateRange());
+        for (String inputId : frameGroup.getMetadataIds()) {
+            this.inputChecksums.put(inputId, RunCheckpoint.getChecksum(currentInputChecksums, inputId));
+        }
+    }
+
+    public void addGeneratedProduct(String productFileId) {
+        if (productFileId != null) {
+            this.generatedProductIds.add(productFileId);
+        }
+    }
+
+    public int getGeneratedProductCount() {
+        return this.generatedProductIds.size();
+    }
+
+    /**
+     * Save the progress in the database.
+     * Errors are logged; a checkpoint which can not be saved should not stop the generation.
+     */
+    public void save() {
+        JSONArray jsonDateRanges = new JSONArray();
+        for (Map.Entry<Long, Long> generatedDateRange : this.generatedDateRanges.getCoveredRanges().entrySet()) {
+            jsonDateRanges.put(new JSONObject()
+                .put("start", generatedDateRange.getKey())
+                .put("end", generatedDateRange.getValue()));
+        }
+
+        // NOTE: Input file IDs contains dots, they can not be used as MongoDB field names
+        JSONArray jsonInputFiles = new JSONArray();
+        for (Map.Entry<String, String> inputChecksum : this.inputChecksums.entrySet()) {
+            jsonInputFiles.put(new JSONObject()
+                .put("id", inputChecksum.getKey())
+                .put("checksum", inputChecksum.getValue()));
+        }
+
+        JSONArray jsonProductIds = new JSONArray();
+        for (String generatedProductId : this.generatedProductIds) {
+            jsonProductIds.put(generatedProductId);
+        }
+
+        JSONObject jsonCheckpoint = new JSONObject()
+            .put("_id", this.taskId)
+            .put("productId", this.productId)
+            .put("regionId", this.regionId)
+            .put("lastModified", new DateTime().toString())
+            .put("generatedDateRanges", jsonDateRanges)
+            .put("inputFiles", jsonInputFiles)
+            .put("generatedProducts", jsonProductIds);
+
+        try {
+            DatabaseTable table = this.getTable();
+            if (this.exists) {
+                table.update(jsonCheckpoint);
+            } else {
+                table.insert(jsonCheckpoint);
+                this.exists = true;
+            }
+        } catch(Exception ex) {
+            LOGGER.warn(String.format("Could not save the checkpoint for task ID: %s", this.taskId), ex);
+        }
+    }
+
+    /**
+     * Delete the checkpoint, once the task is done.
+     */
+    public void delete() {
+        if (!this.exists) {
+            return;
+        }
+
+        try {
+            this.getTable().delete(this.taskId);
+            this.exists = false;
+        } catch(Exception ex) {
+            LOGGER.warn(String.format("Could not delete the checkpoint for task ID: %s", this.taskId), ex);
+        }
+    }
+
+    private DatabaseTable getTable() {
+        return new DatabaseTable(this.dbClient, TABLE_NAME);
+    }
+
+    /**
+     * Use the environment variable "NCANIMATE_CHECKPOINT" if set.
+     * @return false if the checkpoints are disabled. Default: true.
+     */
+    public static boolean isEnabled() {
+        return EnvironmentVariables.getBoolean(NCANIMATE_CHECKPOINT_ENV_VARIABLE, true);
+    }
+
+    // Input files without checksum are recorded with an empty checksum
+    private static String getChecksum(Map<String, String> inputChecksums, String inputId) {
+        String checksum = inputChecksums == null ? null : inputChecksums.get(inputId);
+        return checksum == null ? "" : checksum;
+    }
+
+    private static DateTime toDateTime(long millis, long unbounded) {
+        return millis == unbounded ? null : new DateTime(millis, DateTimeZone.UTC);
+    }
+
+    private static boolean equals(String value, String otherValue) {
+        return value == null ? otherValue == null : value.equals(otherValue);
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate;
+
+import au.gov.aims.ereefs.database.DatabaseClient;
+import au.gov.aims.ereefs.database.table.DatabaseTable;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Timing and throughput metrics of the generation of a product.
+ *
+ * Each phase (timetable, outdated products, frame generation, video encoding, etc)
+ * records its wall time, the CPU time of the NcAnimate thread which ran it,
+ * the number of items processed (frames, products, files) and the number of bytes.
+ * NOTE: The CPU time of the subprocesses (NcAnimate frame, ffmpeg) is not included
+ *     in the phase CPU time. The CPU time of the run is the CPU time of the NcAnimate JVM.
+ *
+ * The metrics are published at the end of the run:
+ * <ul>
+ *   <li>as a JSON summary, in the logs and in the database
+ *       (collection "ncanimateRunMetrics", one document per task and product),</li>
+ *   <li>as a Prometheus text file (node exporter "textfile" collector format).</li>
+ * </ul>
+ *
+ * Phases can be recorded from several threads at once.
+ */
+public class RunMetrics {
+    private static final Logger LOGGER = Logger.getLogger(RunMetrics.class);
+    private static final String NCANIMATE_METRICS_DIR_ENV_VARIABLE = "NCANIMATE_METRICS_DIR";
+    private static final String DEFAULT_METRICS_DIRECTORY_NAME = "ncanimate-metrics";
+    public static final String TABLE_NAME = "ncanimateRunMetrics";
+
+    public static final String PHASE_TIMETABLE = "timetable";
+    public static final String PHASE_OUTDATED = "outdated";
+    public static final String PHASE_PLANNING = "planning";
+    public static final String PHASE_FRAME = "frame";
+    public static final String PHASE_VIDEO = "video";
+    public static final String PHASE_MAP_RESIZE = "mapResize";
+    public static final String PHASE_UPLOAD = "upload";
+    public static final String PHASE_METADATA = "metadata";
+
+    private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+
+    private String taskId;
+    private String productId;
+    private String regionId;
+
+    private DateTime startDate;
+    private long startNanos;
+    private long startProcessCpuNanos;
+    private Long wallNanos;
+    private Long processCpuNanos;
+
+    // Phase name => statistics, sorted by name
+    private final Map<String, PhaseMetrics> phases;
+
+    public RunMetrics(String taskId, String productId, String regionId) {
+        this.taskId = taskId;
+        this.productId = productId;
+        this.regionId = regionId;
+
+        this.startDate = new DateTime();
+        this.startNanos = System.nanoTime();
+        this.startProcessCpuNanos = RunMetrics.getProcessCpuTime();
+
+        this.phases = new TreeMap<String, PhaseMetrics>();
+    }
+
+    /**
+     * Start timing a phase, on the current thread.
+     * @param phase The phase name. See the PHASE_ constants.
+     * @return The timer to stop at the end of the phase.
+     */
+    public Timer start(String phase) {
+        return new Timer(this, phase);
+    }
+
+    /**
+     * Add items to a phase, when the number of items is only known once the phase is over.
+     * For example, the number of frames generated by a NcAnimate frame subprocess.
+     */
+    public void addItems(String phase, long items) {
+        synchronized (this.phases) {
+            this.getPhase(phase).items += items;
+        }
+    }
+
+    private void record(String phase, long wallNanos, long cpuNanos, long items, long bytes) {
+        synchronized (this.phases) {
+            PhaseMetrics phaseMetrics = this.getPhase(phase);
+            phaseMetrics.count++;
+            phaseMetrics.wallNanos += wallNanos;
+            phaseMetrics.maxWallNanos = Math.max(phaseMetrics.maxWallNanos, wallNanos);
+            phaseMetrics.cpuNanos += cpuNanos;
+            phaseMetrics.items += items;
+            phaseMetrics.bytes += bytes;
+        }
+    }
+
+    private PhaseMetrics getPhase(String phase) {
+        PhaseMetrics phaseMetrics = this.phases.get(phase);
+        if (phaseMetrics == null) {
+            phaseMetrics = new PhaseMetrics();
+            this.phases.put(phase, phaseMetrics);
+        }
+        return phaseMetrics;
+    }
+
+    /**
+     * Stop the run clock. Called once the product is generated, before publishing the metrics.
+     */
+    public void stop() {
+        if (this.wallNanos == null) {
+            this.wallNanos = System.nanoTime() - this.startNanos;
+            long processCpuTime = RunMetrics.getProcessCpuTime();
+            this.processCpuNanos = processCpuTime < 0 || this.startProcessCpuNanos < 0 ?
+                    null : processCpuTime - this.startProcessCpuNanos;
+        }
+    }
+
+    public String getProductId() {
+        return this.productId;
+    }
+
+    public String getRegionId() {
+        return this.regionId;
+    }
+
+    public long getWallNanos() {
+        return this.wallNanos == null ? System.nanoTime() - this.startNanos : this.wallNanos;
+    }
+
+    public long getPhaseCount(String phase) {
+        synchronized (this.phases) {
+            PhaseMetrics phaseMetrics = this.phases.get(phase);
+            return phaseMetrics == null ? 0 : phaseMetrics.count;
+        }
+    }
+
+    public long getPhaseItems(String phase) {
+        synchronized (this.phases) {
+            PhaseMetrics phaseMetrics = this.phases.get(phase);
+            return phaseMetrics == null ? 0 : phaseMetrics.items;
+        }
+    }
+
+    public long getPhaseBytes(String phase) {
+        synchronized (this.phases) {
+            PhaseMetrics phaseMetrics = this.phases.get(phase);
+            return phaseMetrics == null ? 0 : phaseMetrics.bytes;
+        }
+    }
+
+    public long getPhaseWallNanos(String phase) {
+        synchronized (this.phases) {
+            PhaseMetrics phaseMetrics = this.phases.get(phase);
+            return phaseMetrics == null ? 0 : phaseMetrics.wallNanos;
+        }
+    }
+
+    /**
+     * @return Number of frames generated per second of run wall time.
+     */
+    public double getFramesPerSecond() {
+        return RunMetrics.perSecond(this.getPhaseItems(PHASE_FRAME), this.getWallNanos());
+    }
+
+    /**
+     * @return Number of bytes uploaded per second of upload wall time.
+     */
+    public double getUploadBytesPerSecond() {
+        long uploadWallNanos;
+        synchronized (this.phases) {
+            PhaseMetrics uploadMetrics = this.phases.get(PHASE_UPLOAD);
+            uploadWallNanos = uploadMetrics == null ? 0 : uploadMetrics.wallNanos;
+        }
+        return RunMetrics.perSecond(this.getPhaseBytes(PHASE_UPLOAD), uploadWallNanos);
+    }
+
+    public JSONObject toJSON() {
+        JSONObject jsonPhases = new JSONObject();
+        synchronized (this.phases) {
+            for (Map.Entry<String, PhaseMetrics> phase : this.phases.entrySet()) {
+                PhaseMetrics phaseMetrics = phase.getValue();
+                jsonPhases.put(phase.getKey(), new JSONObject()
+                    .put("count", phaseMetrics.count)
+                    .put("wallSeconds", RunMetrics.toSeconds(phaseMetrics.wallNanos))
+                    .put("maxWallSeconds", RunMetrics.toSeconds(phaseMetrics.maxWallNanos))
+                    .put("cpuSeconds", RunMetrics.toSeconds(phaseMetrics.cpuNanos))
+                    .put("items", phaseMetrics.items)
+                    .put("bytes", phaseMetrics.bytes));
+            }
+        }
+
+        JSONObject jsonMetrics = new JSONObject()
+            .put("taskId", this.taskId)
+            .put("productId", this.productId)
+            .put("regionId", this.regionId)
+            .put("startDate", this.startDate.toString())
+            .put("wallSeconds", RunMetrics.toSeconds(this.getWallNanos()))
+            .put("framesPerSecond", this.getFramesPerSecond())
+            .put("uploadBytesPerSecond", this.getUploadBytesPerSecond())
+            .put("phases", jsonPhases);
+
+        if (this.processCpuNanos != null) {
+            jsonMetrics.put("cpuSeconds", RunMetrics.toSeconds(this.processCpuNanos));
+        }
+
+        return jsonMetrics;
+    }
+
+    /**
+     * @return The metrics in the Prometheus text exposition format.
+     */
+    public String toPrometheus() {
+        String runLabels = String.format("product=\"%s\",region=\"%s\"",
+                RunMetrics.escapeLabel(this.productId), RunMetrics.escapeLabel(this.regionId));
+
+        StringBuilder sb = new StringBuilder();
+        RunMetrics.appendHeader(sb, "ncanimate_run_wall_seconds", "gauge", "Wall time of the generation of the product.");
+        sb.append(String.format("ncanimate_run_wall_seconds{%s} %s%n", runLabels, RunMetrics.toSeconds(this.getWallNanos())));
+        if (this.processCpuNanos != null) {
+            RunMetrics.appendHeader(sb, "ncanimate_run_cpu_seconds", "gauge", "CPU time of the NcAnimate JVM during the generation of the product.");
+            sb.append(String.format("ncanimate_run_cpu_seconds{%s} %s%n", runLabels, RunMetrics.toSeconds(this.processCpuNanos)));
+        }
+        RunMetrics.appendHeader(sb, "ncanimate_frames_per_second", "gauge", "Frames generated per second of run wall time.");
+        sb.append(String.format("ncanimate_frames_per_second{%s} %s%n", runLabels, this.getFramesPerSecond()));
+        RunMetrics.appendHeader(sb, "ncanimate_upload_bytes_per_second", "gauge", "Bytes uploaded per second of upload wall time.");
+        sb.append(String.format("ncanimate_upload_bytes_per_second{%s} %s%n", runLabels, this.getUploadBytesPerSecond()));
+
+        Map<String, PhaseMetrics> phasesCopy = new TreeMap<String, PhaseMetrics>();
+        synchronized (this.phases) {
+            for (Map.Entry<String, PhaseMetrics> phase : this.phases.entrySet()) {
+                phasesCopy.put(phase.getKey(), phase.getValue().copy());
+            }
+        }
+
+        String[][] phaseMetricNames = new String[][] {
+            { "ncanimate_phase_count", "Number of times the phase ran." },
+            { "ncanimate_phase_wall_seconds", "Wall time spent in the phase." },
+            { "ncanimate_phase_cpu_seconds", "CPU time of the NcAnimate thread spent in the phase." },
+            { "ncanimate_phase_items", "Number of items processed by the phase." },
+            { "ncanimate_phase_bytes", "Number of bytes processed by the phase." }
+        };
+        for (int i = 0; i < phaseMetricNames.length; i++) {
+            String metricName = phaseMetricNames[i][0];
+            RunMetrics.appendHeader(sb, metricName, "gauge", phaseMetricNames[i][1]);
+            for (Map.Entry<String, PhaseMetrics> phase : phasesCopy.entrySet()) {
+                PhaseMetrics phaseMetrics = phase.getValue();
+                Object value;
+                switch (i) {
+                    case 0: value = phaseMetrics.count; break;
+                    case 1: value = RunMetrics.toSeconds(phaseMetrics.wallNanos); break;
+                    case 2: value = RunMetrics.toSeconds(phaseMetrics.cpuNanos); break;
+                    case 3: value = phaseMetrics.items; break;
+                    default: value = phaseMetrics.bytes; break;
+                }
+                sb.append(String.format("%s{%s,phase=\"%s\"} %s%n", metricName, runLabels, RunMetrics.escapeLabel(phase.getKey()), value));
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Publish the metrics: log the JSON summary, save it in the database
+     * and write the Prometheus text file.
+     * Errors are logged; metrics which can not be published should not stop the generation.
+     * @param dbClient The database client, or null to not save the metrics in the database.
+     */
+    public void publish(DatabaseClient dbClient) {
+        this.stop();
+
+        JSONObject jsonMetrics = this.toJSON();
+        LOGGER.info(String.format("Run metrics: %s", jsonMetrics.toString()));
+
+        if (dbClient != null && this.taskId != null) {
+            try {
+                String metricsId = String.format("%s_%s", this.taskId, this.productId);
+                jsonMetrics
+                    .put("_id", metricsId)
+                    .put("lastModified", new DateTime().toString());
+
+                // The task may have been restarted
+                DatabaseTable table = new DatabaseTable(dbClient, TABLE_NAME);
+                if (table.select(metricsId) != null) {
+                    table.update(jsonMetrics);
+                } else {
+                    table.insert(jsonMetrics);
+                }
+            } catch(Exception ex) {
+                LOGGER.warn(String.format("Could not save the run metrics for task ID: %s", this.taskId), ex);
+            }
+        }
+
+        File metricsDirectory = RunMetrics.getDefaultMetricsDirectory();
+        try {
+            this.writePrometheusFile(metricsDirectory);
+        } catch(Exception ex) {
+            LOGGER.warn(String.format("Could not write the Prometheus metrics file in directory: %s", metricsDirectory), ex);
+        }
+    }
+
+    /**
+     * Write the Prometheus text file.
+     * The file is written with a temporary name then renamed,
+     * so the node exporter never reads a file half written.
+     * @return The Prometheus file.
+     */
+    public File writePrometheusFile(File directory) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException(String.format("Could not create the metrics directory: %s", directory));
+        }
+        File prometheusFile = new File(directory, String.format("ncanimate_%s.prom", this.productId));
+        File tempFile = new File(directory, prometheusFile.getName() + ".tmp");
+        Files.write(tempFile.toPath(), this.toPrometheus().getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile.toPath(), prometheusFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return prometheusFile;
+    }
+
+    private static void appendHeader(StringBuilder sb, String metricName, String type, String help) {
+        sb.append(String.format("# HELP %s %s%n", metricName, help));
+        sb.append(String.format("# TYPE %s %s%n", metricName, type));
+    }
+
+    private static String escapeLabel(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static double toSeconds(long nanos) {
+        return nanos / 1000000000.0;
+    }
+
+    private static double perSecond(long count, long nanos) {
+        return nanos <= 0 ? 0 : count / RunMetrics.toSeconds(nanos);
+    }
+
+    private static long getCurrentThreadCpuTime() {
+        try {
+            if (THREAD_BEAN.isCurrentThreadCpuTimeSupported()) {
+                return THREAD_BEAN.getCurrentThreadCpuTime();
+            }
+        } catch(UnsupportedOperationException ex) {
+            LOGGER.debug("Thread CPU time not supported", ex);
+        }
+        return -1;
+    }
+
+    private static long getProcessCpuTime() {
+        OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+        if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean)osBean).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * Use the environment variable "NCANIMATE_METRICS_DIR" if set.
+     * The working directory is deleted once the product is generated,
+     * so the Prometheus file is written in a directory which outlives it.
+     * @return The directory where the Prometheus file is written. Default: "ncanimate-metrics" in the temporary directory.
+     */
+    public static File getDefaultMetricsDirectory() {
+        File metricsDirectory = EnvironmentVariables.getFile(NCANIMATE_METRICS_DIR_ENV_VARIABLE);
+        if (metricsDirectory == null) {
+            metricsDirectory = new File(System.getProperty("java.io.tmpdir"), DEFAULT_METRICS_DIRECTORY_NAME);
+        }
+        return metricsDirectory;
+    }
+
+    /**
+     * Time of a single execution of a phase.
+     */
+    public static class Timer {
+        private RunMetrics runMetrics;
+        private String phase;
+        private long startNanos;
+        private long startCpuNanos;
+        private boolean stopped;
+
+        private Timer(RunMetrics runMetrics, String phase) {
+            this.runMetrics = runMetrics;
+            this.phase = phase;
+            this.startNanos = System.nanoTime();
+            this.startCpuNanos = RunMetrics.getCurrentThreadCpuTime();
+            this.stopped = false;
+        }
+
+        public void stop() {
+            this.stop(0, 0);
+        }
+
+        /**
+         * Record the phase. Must be called on the thread which started the timer.
+         * Only the first call is recorded.
+         * @param items Number of items processed.
+         * @param bytes Number of bytes processed.
+         */
+        public void stop(long items, long bytes) {
+            if (this.stopped) {
+                return;
+            }
+            this.stopped = true;
+
+            long wallNanos = System.nanoTime() - this.startNanos;
+            long cpuNanos = 0;
+            long endCpuNanos = RunMetrics.getCurrentThreadCpuTime();
+            if (this.startCpuNanos >= 0 && endCpuNanos >= 0) {
+                cpuNanos = endCpuNanos - this.startCpuNanos;
+            }
+            this.runMetrics.record(this.phase, wallNanos, cpuNanos, items, bytes);
+        }
+    }
+
+    private static class PhaseMetrics {
+        private long count;
+        private long wallNanos;
+        private long maxWallNanos;
+        private long cpuNanos;
+        private long items;
+        private long bytes;
+
+        private PhaseMetrics copy() {
+            PhaseMetrics copy = new PhaseMetrics();
+            copy.count = this.count;
+            copy.wallNanos = this.wallNanos;
+            copy.maxWallNanos = this.maxWallNanos;
+            copy.cpuNanos = this.cpuNanos;
+            copy.items = this.items;
+            copy.bytes = this.bytes;
+            return copy;
+        }
+    }
+}
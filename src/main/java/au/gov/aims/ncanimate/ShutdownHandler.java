@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Graceful shutdown of NcAnimate, when the JVM receives a SIGTERM.
+ *
+ * AWS Batch sends a SIGTERM when it reclaims a spot instance,
+ * and kills the container about 2 minutes later. When the signal is received:
+ * <ol>
+ *   <li>NcAnimate stops sending new date ranges to NcAnimate frame
+ *       and the running NcAnimate frame processes are terminated,</li>
+ *   <li>the product being assembled (video encoding, upload to S3, metadata)
+ *       is given until the deadline to finish,</li>
+ *   <li>the processes which are still running after the deadline (ffmpeg, etc) are terminated,</li>
+ *   <li>the progress is saved (see {@link RunCheckpoint}) so the task can be resumed.</li>
+ * </ol>
+ *
+ * The JVM exits as soon as the shutdown hook returns, so the hook waits
+ * for the generation thread to call {@link #done()}.
+ *
+ * To test locally: <code>kill -TERM &lt;pid&gt;</code>
+ */
+public class ShutdownHandler {
+    private static final Logger LOGGER = Logger.getLogger(ShutdownHandler.class);
+
+    private static final String NCANIMATE_SHUTDOWN_DEADLINE_ENV_VARIABLE = "NCANIMATE_SHUTDOWN_DEADLINE_SECONDS";
+
+    // AWS Batch gives 2 minutes. Keep some time to kill the processes and save the progress.
+    private static final int DEFAULT_SHUTDOWN_DEADLINE_SECONDS = 90;
+
+    // Time given to save the progress, once the processes are terminated
+    private static final long SAVE_GRACE_PERIOD_MS = 15000;
+
+    private long deadlineMs;
+    private Thread generationThread;
+    private Thread shutdownHook;
+    private CountDownLatch doneLatch;
+
+    private volatile boolean shutdownRequested;
+    private volatile long deadlineTime;
+
+    public ShutdownHandler() {
+        this(ShutdownHandler.getDefaultDeadlineSeconds() * 1000L);
+    }
+
+    /**
+     * @param deadlineMs Time given to the products being assembled to finish, in milliseconds.
+     */
+    public ShutdownHandler(long deadlineMs) {
+        this.deadlineMs = Math.max(0, deadlineMs);
+        this.doneLatch = new CountDownLatch(1);
+        this.shutdownRequested = false;
+        this.deadlineTime = Long.MAX_VALUE;
+    }
+
+    /**
+     * Register the shutdown hook.
+     * The current thread is interrupted when the JVM gets shut down,
+     * to wake it up if it's waiting for a date range or a product.
+     */
+    public void register() {
+        this.generationThread = Thread.currentThread();
+        this.shutdownHook = new Thread("ncanimate-shutdown") {
+            @Override
+            public void run() {
+                ShutdownHandler.this.onShutdown();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+    }
+
+    /**
+     * Notify the shutdown hook that the generation has stopped and the progress is saved.
+     * The JVM can exit.
+     */
+    public void done() {
+        this.doneLatch.countDown();
+
+        if (this.shutdownHook != null && !this.shutdownRequested) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+            } catch(IllegalStateException ex) {
+                // The JVM is already shutting down
+            }
+        }
+    }
+
+    public boolean isShutdownRequested() {
+        return this.shutdownRequested;
+    }
+
+    /**
+     * Request the shutdown, without waiting for it.
+     * Used with unit tests.
+     */
+    public void requestShutdown() {
+        this.deadlineTime = System.currentTimeMillis() + this.deadlineMs;
+        this.shutdownRequested = true;
+    }
+
+    /**
+     * @return The time left before the deadline, in milliseconds. 0 if the deadline has passed.
+     */
+    public long getRemainingTime() {
+        return Math.max(0, this.deadlineTime - System.currentTimeMillis());
+    }
+
+    private void onShutdown() {
+        LOGGER.warn(String.format("Shutdown requested. Stop generating new frames, waiting up to %d seconds for the products being assembled.",
+                this.deadlineMs / 1000));
+        this.requestShutdown();
+
+        if (this.generationThread != null) {
+            this.generationThread.interrupt();
+        }
+
+        try {
+            if (!this.doneLatch.await(this.deadlineMs, TimeUnit.MILLISECONDS)) {
+                int killed = SystemCallThread.killAll();
+                LOGGER.warn(String.format("Shutdown deadline reached. %d running processes terminated.", killed));
+
+                if (!this.doneLatch.await(SAVE_GRACE_PERIOD_MS, TimeUnit.MILLISECONDS)) {
+                    LOGGER.error("NcAnimate did not stop in time. The progress may not be saved.");
+                }
+            }
+        } catch (InterruptedException ex) {
+            LOGGER.error("Shutdown interrupted", ex);
+        }
+
+        // Processes which were started after the deadline
+        SystemCallThread.killAll();
+    }
+
+    /**
+     * Time given to the products being assembled to finish, when the JVM gets shut down.
+     * Use the environment variable "NCANIMATE_SHUTDOWN_DEADLINE_SECONDS" if set.
+     */
+    public static int getDefaultDeadlineSeconds() {
+        return EnvironmentVariables.getInteger(NCANIMATE_SHUTDOWN_DEADLINE_ENV_VARIABLE, DEFAULT_SHUTDOWN_DEADLINE_SECONDS, 0);
+    }
+}
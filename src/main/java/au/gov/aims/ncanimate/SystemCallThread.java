@@ -4,6 +4,7 @@
  */
 package au.gov.aims.ncanimate;
 
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -11,9 +12,14 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public abstract class SystemCallThread extends Thread {
     // Bash Exit codes:
@@ -30,16 +36,26 @@ public abstract class SystemCallThread extends Thread {
     public static final int BROKEN_PIPE = 128 + 13;
     public static final int TERMINATED = 128 + 15;
 
+    // Time given to a process to terminate after a SIGTERM, before it gets killed
+    private static final long KILL_GRACE_PERIOD_MS = 5000;
+
+    // Processes currently running, killed when NcAnimate gets shut down
+    private static final Set<SystemCallThread> RUNNING_CALLS = new HashSet<SystemCallThread>();
 
     private boolean running;
     private Integer exitCode;
 
     private String commandLine;
-    private Process process;
+    private volatile Process process;
     private Map<String, String> environmentVariables;
 
     private boolean succeed;
 
+    // Context of the Java Flight Recorder event recorded for the process
+    private String eventProductId;
+    private String eventRegionId;
+    private DateTimeRange eventDateRange;
+
     public SystemCallThread(String commandLine) {
         this.exitCode = null;
         this.running = false;
@@ -74,6 +90,16 @@ public abstract class SystemCallThread extends Thread {
         this.environmentVariables.put(key, value);
     }
 
+    /**
+     * Set the product, region and date range of the
+     * {@link FlightRecorder#SUBPROCESS} event recorded for the process.
+     */
+    public void setFlightRecorderContext(String productId, String regionId, DateTimeRange dateRange) {
+        this.eventProductId = productId;
+        this.eventRegionId = regionId;
+        this.eventDateRange = dateRange;
+    }
+
     /**
      * Semaphore
      * Set the "running" flag.
@@ -112,6 +138,15 @@ public abstract class SystemCallThread extends Thread {
         return this.commandLine;
     }
 
+    /**
+     * Standard input of the process, used to send requests to long-lived processes.
+     * @return The standard input stream, or null if the process is not running.
+     */
+    public OutputStream getProcessInput() {
+        Process runningProcess = this.process;
+        return runningProcess == null ? null : runningProcess.getOutputStream();
+    }
+
 
     @Override
     public void run() {
@@ -121,6 +156,8 @@ public abstract class SystemCallThread extends Thread {
         if (this.commandLine != null && this.setRunning(true)) {
             StreamCollector stderr = null;
             StreamCollector stdout = null;
+            FlightRecorder.Event event = FlightRecorder.begin(FlightRecorder.SUBPROCESS,
+                    this.eventProductId, this.eventRegionId, this.eventDateRange);
 
             try {
                 String[] scriptCommand = SystemCallThread.parseCommandLine(this.commandLine);
@@ -138,6 +175,9 @@ public abstract class SystemCallThread extends Thread {
                 // Execute the command
                 this.succeed = true;
                 this.process = processBuilder.start();
+                synchronized (RUNNING_CALLS) {
+                    RUNNING_CALLS.add(this);
+                }
 
                 // Grab std error (otherwise it will hang as soon as the buffer is full)
                 stderr = new StreamCollector(this.process.getErrorStream()) {
@@ -195,6 +235,10 @@ public abstract class SystemCallThread extends Thread {
                 }
                 this.setExitCode(SystemCallThread.INTERRUPTED);
             } finally {
+                synchronized (RUNNING_CALLS) {
+                    RUNNING_CALLS.remove(this);
+                }
+
                 if (stderr != null && stderr.isAlive()) {
                     stderr.interrupt();
                 }
@@ -202,6 +246,8 @@ public abstract class SystemCallThread extends Thread {
                     stdout.interrupt();
                 }
 
+                event.setDetail(String.format("Exit code %s: %s", this.getExitCode(), this.commandLine)).commit();
+
                 // The script terminated (nicely or not)
                 this.setRunning(false);
                 // Notify the listeners about the termination of the script
@@ -210,6 +256,70 @@ public abstract class SystemCallThread extends Thread {
         }
     }
 
+    /**
+     * Terminate the process, if it's running.
+     * The process gets a SIGTERM, then it gets killed if it's still running after a few seconds.
+     */
+    public void kill() {
+        Process runningProcess = this.process;
+        if (runningProcess == null) {
+            return;
+        }
+
+        runningProcess.destroy();
+        try {
+            if (!runningProcess.waitFor(KILL_GRACE_PERIOD_MS, TimeUnit.MILLISECONDS)) {
+                runningProcess.destroyForcibly();
+            }
+        } catch (InterruptedException ex) {
+            runningProcess.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Terminate all the processes started by NcAnimate which are still running.
+     * Used when NcAnimate gets shut down, to avoid leaving orphan processes.
+     * All the processes get a SIGTERM at once, then the ones still running
+     * after a few seconds get killed. The grace period is shared by all the processes,
+     * so the time spent here doesn't depend on the number of processes.
+     * @return The number of processes terminated.
+     */
+    public static int killAll() {
+        List<SystemCallThread> runningCalls;
+        synchronized (RUNNING_CALLS) {
+            runningCalls = new ArrayList<SystemCallThread>(RUNNING_CALLS);
+        }
+
+        List<Process> runningProcesses = new ArrayList<Process>();
+        for (SystemCallThread runningCall : runningCalls) {
+            Process runningProcess = runningCall.process;
+            if (runningProcess != null) {
+                runningProcess.destroy();
+                runningProcesses.add(runningProcess);
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + KILL_GRACE_PERIOD_MS;
+        boolean interrupted = false;
+        for (Process runningProcess : runningProcesses) {
+            try {
+                long remainingMs = interrupted ? 0 : Math.max(0, deadline - System.currentTimeMillis());
+                if (!runningProcess.waitFor(remainingMs, TimeUnit.MILLISECONDS)) {
+                    runningProcess.destroyForcibly();
+                }
+            } catch (InterruptedException ex) {
+                runningProcess.destroyForcibly();
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        return runningCalls.size();
+    }
+
     protected static String[] parseCommandLine(String commandLine) {
         // Loop through each character. Add them to current "argument"
         // If character is a double quote (and current "argument" is empty), inQuote = true
@@ -13,6 +13,8 @@ import au.gov.aims.ereefs.bean.ncanimate.render.NcAnimateRenderMapBean;
 import au.gov.aims.ereefs.database.CacheStrategy;
 import au.gov.aims.ereefs.database.DatabaseClient;
 import au.gov.aims.ereefs.database.manager.MetadataManager;
+import au.gov.aims.ncanimate.FlightRecorder;
+import au.gov.aims.ncanimate.RunMetrics;
 import au.gov.aims.ncanimate.commons.NcAnimateUtils;
 import au.gov.aims.ncanimate.commons.generator.context.GeneratorContext;
 import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
@@ -36,6 +38,8 @@ public class AbstractMediaGenerator {
     private DatabaseClient dbClient;
     private NcAnimateConfigBean ncAnimateConfig;
     private MetadataGenerator metadataGenerator;
+    private RunMetrics runMetrics;
+    private URI lastUploadURI;
 
     public AbstractMediaGenerator(
             NcAnimateConfigBean ncAnimateConfig,
@@ -49,6 +53,36 @@ public class AbstractMediaGenerator {
         this.metadataGenerator = new MetadataGenerator(ncAnimateConfig, productTimetable.getMapTimeIncrement(), productTimetable.getVideoTimeIncrement());
     }
 
+    /**
+     * @return The metrics of the product, or null if they are not collected.
+     */
+    public RunMetrics getRunMetrics() {
+        return this.runMetrics;
+    }
+
+    public void setRunMetrics(RunMetrics runMetrics) {
+        this.runMetrics = runMetrics;
+    }
+
+    /**
+     * @return The timer of the phase, or null if the metrics are not collected.
+     */
+    protected RunMetrics.Timer startTimer(String phase) {
+        return this.runMetrics == null ? null : this.runMetrics.start(phase);
+    }
+
+    protected FlightRecorder.Event beginEvent(String eventType, DateTimeRange dateRange) {
+        return FlightRecorder.begin(eventType, this.getProductId(), this.getRegionId(), dateRange);
+    }
+
+    protected String getProductId() {
+        return this.runMetrics == null ? null : this.runMetrics.getProductId();
+    }
+
+    protected String getRegionId() {
+        return this.runMetrics == null ? null : this.runMetrics.getRegionId();
+    }
+
     public NcAnimateConfigBean getNcAnimateConfig() {
         return this.ncAnimateConfig;
     }
@@ -72,19 +106,68 @@ public class AbstractMediaGenerator {
         return new URI(NcAnimateUtils.parseString(renderFile.getFileURI(), context));
     }
 
+    /**
+     * @return The URI of the last file uploaded by this generator, or null if nothing was uploaded.
+     */
+    public URI getLastUploadURI() {
+        return this.lastUploadURI;
+    }
+
     public void uploadFile(File file, URI destination) throws IOException, InterruptedException {
-        FileWrapper fileWrapper = new FileWrapper(destination, file);
-        fileWrapper.uploadFile(this.s3Client);
+        this.uploadFile(file, destination, null);
+    }
+
+    public void uploadFile(File file, URI destination, DateTimeRange dateRange) throws IOException, InterruptedException {
+        long fileSize = file.length();
+        FlightRecorder.Event event = this.beginEvent(FlightRecorder.S3_UPLOAD, dateRange)
+                .setDetail(destination.toString());
+        RunMetrics.Timer timer = this.startTimer(RunMetrics.PHASE_UPLOAD);
+        try {
+            FileWrapper fileWrapper = new FileWrapper(destination, file);
+            fileWrapper.uploadFile(this.s3Client);
+            if (timer != null) {
+                timer.stop(1, fileSize);
+            }
+            event.setBytes(fileSize);
+        } finally {
+            // Failed uploads are recorded without items
+            if (timer != null) {
+                timer.stop();
+            }
+            event.commit();
+        }
+        this.lastUploadURI = destination;
     }
 
     public void saveMetadata(JSONObject metadata) throws Exception {
+        this.saveMetadata(metadata, null);
+    }
+
+    public void saveMetadata(JSONObject metadata, DateTimeRange dateRange) throws Exception {
         if (metadata != null) {
-            MetadataManager metadataManager = new MetadataManager(this.dbClient, CacheStrategy.DISK);
-            metadataManager.save(metadata);
+            FlightRecorder.Event event = this.beginEvent(FlightRecorder.METADATA_SAVE, dateRange)
+                    .setDetail(metadata.optString("_id", null));
+            RunMetrics.Timer timer = this.startTimer(RunMetrics.PHASE_METADATA);
+            try {
+                MetadataManager metadataManager = new MetadataManager(this.dbClient, CacheStrategy.DISK);
+                metadataManager.save(metadata);
+                if (timer != null) {
+                    timer.stop(1, 0);
+                }
+            } finally {
+                if (timer != null) {
+                    timer.stop();
+                }
+                event.commit();
+            }
         }
     }
 
     public Map<String, NetCDFMetadataBean> getInputFiles(DateTimeRange productDateRange, Map<DateTimeRange, List<FrameTimetableMap>> frameMap) {
+        return AbstractMediaGenerator.findInputFiles(productDateRange, frameMap);
+    }
+
+    public static Map<String, NetCDFMetadataBean> findInputFiles(DateTimeRange productDateRange, Map<DateTimeRange, List<FrameTimetableMap>> frameMap) {
         Map<String, NetCDFMetadataBean> inputFiles = new HashMap<String, NetCDFMetadataBean>();
 
         List<FrameTimetableMap> frameTimetableMapList = frameMap.get(productDateRange);
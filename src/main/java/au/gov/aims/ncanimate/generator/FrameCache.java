@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ncanimate.Digests;
+import au.gov.aims.ncanimate.EnvironmentVariables;
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Cache of frame files which survives across runs of NcAnimate.
+ *
+ * The working directory is deleted at the end of every run. Without this cache,
+ * a video needs all its frames to be generated again when a single input file changes.
+ *
+ * Each frame is cached under a key computed from:
+ * <ul>
+ *   <li>the fingerprint of the NcAnimate configuration,</li>
+ *   <li>the checksum of the input files used to generate the frame,</li>
+ *   <li>the frame file path in the working directory, which contains
+ *       the product ID, the frame date range, the region, the target height and the format.</li>
+ * </ul>
+ * Frames generated from an input file without checksum are not cached.
+ *
+ * The cache is bounded in size. When it gets too large, the least recently used
+ * frames are deleted. The last access time is the last modified date of the cached file,
+ * so the order is kept between runs.
+ *
+ * The cache directory can be shared by NcAnimate processes running at the same time.
+ * Each process indexes the cache directory again every minute, before evicting frames,
+ * so the frames added by the other processes count towards the size of the cache.
+ */
+public class FrameCache {
+    private static final Logger LOGGER = Logger.getLogger(FrameCache.class);
+    private static final String NCANIMATE_FRAME_CACHE_DIR_ENV_VARIABLE = "NCANIMATE_FRAME_CACHE_DIR";
+    private static final String NCANIMATE_FRAME_CACHE_SIZE_ENV_VARIABLE = "NCANIMATE_FRAME_CACHE_SIZE_MB";
+
+    private static final long DEFAULT_MAX_SIZE_MB = 10240;
+    private static final long DEFAULT_REFRESH_INTERVAL_MS = 60 * 1000;
+
+    private File cacheDirectory;
+    private long maxSize;
+
+    // Cache key => file size, from the least recently used to the most recently used
+    private LinkedHashMap<String, Long> entries;
+    private long size;
+
+    private long refreshInterval;
+    private long lastLoadMillis;
+
+    // Statistics
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * @param cacheDirectory Directory where the frames are cached. Created if it doesn't exist.
+     * @param maxSize Maximum size of the cache, in bytes.
+     */
+    public FrameCache(File cacheDirectory, long maxSize) {
+        this.cacheDirectory = cacheDirectory;
+        this.maxSize = maxSize;
+
+        // Access order: iterating the map goes from the least recently used to the most recently used entry
+        this.entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        this.size = 0;
+        this.refreshInterval = DEFAULT_REFRESH_INTERVAL_MS;
+
+        this.hitCount = 0;
+        this.missCount = 0;
+        this.evictionCount = 0;
+
+        this.load();
+        LOGGER.info(String.format("Frame cache %s: %d frames, %.2f MB",
+                this.cacheDirectory, this.entries.size(), this.size / (1024 * 1024.0)));
+    }
+
+    /**
+     * Index the frames in the cache directory, in the order they were last used.
+     * The frames added or evicted by the other NcAnimate processes sharing the cache directory are
+     * found when the cache directory is indexed again.
+     */
+    private void load() {
+        this.entries.clear();
+        this.size = 0;
+        this.lastLoadMillis = System.currentTimeMillis();
+
+        if (!this.cacheDirectory.exists() && !this.cacheDirectory.mkdirs()) {
+            LOGGER.error(String.format("Could not create the frame cache directory: %s", this.cacheDirectory));
+            return;
+        }
+
+        List<File> cachedFiles = new ArrayList<File>();
+        File[] subDirectories = this.cacheDirectory.listFiles();
+        if (subDirectories != null) {
+            for (File subDirectory : subDirectories) {
+                File[] files = subDirectory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        // Ignore the temporary files left by an interrupted run
+                        if (file.isFile() && !file.getName().endsWith(".tmp")) {
+                            cachedFiles.add(file);
+                        }
+                    }
+                }
+            }
+        }
+
+        final Map<File, Long> lastModifiedDates = new LinkedHashMap<File, Long>();
+        for (File cachedFile : cachedFiles) {
+            lastModifiedDates.put(cachedFile, cachedFile.lastModified());
+        }
+        Collections.sort(cachedFiles, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                return Long.compare(lastModifiedDates.get(file1), lastModifiedDates.get(file2));
+            }
+        });
+
+        for (File cachedFile : cachedFiles) {
+            long fileSize = cachedFile.length();
+            this.entries.put(cachedFile.getName(), fileSize);
+            this.size += fileSize;
+        }
+    }
+
+    /**
+     * Used with unit tests.
+     * @param refreshInterval Time after which the cache directory is indexed again, in milliseconds.
+     */
+    void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * @param cacheKey The cache key of the frame, as returned by {@link #getCacheKey(String, Set, Map, String)}.
+     * @return true if the frame is in the cache.
+     */
+    public boolean contains(String cacheKey) {
+        return cacheKey != null && this.entries.containsKey(cacheKey);
+    }
+
+    /**
+     * Copy a cached frame to its frame file.
+     * The hits and misses are not counted, since a restored frame may still need
+     * to be generated again. See {@link #countLookups(long, long)}.
+     * @param cacheKey The cache key of the frame.
+     * @param frameFile The frame file to restore.
+     * @return true if the frame was restored, false if the frame is not in the cache.
+     */
+    public boolean restore(String cacheKey, File frameFile) {
+        if (cacheKey == null || this.entries.get(cacheKey) == null) {
+            return false;
+        }
+
+        File cachedFile = this.getCachedFile(cacheKey);
+        try {
+            File frameDirectory = frameFile.getParentFile();
+            if (frameDirectory != null && !frameDirectory.exists() && !frameDirectory.mkdirs()) {
+                throw new IOException(String.format("Could not create the frame directory: %s", frameDirectory));
+            }
+            FrameCache.linkOrCopy(cachedFile, frameFile);
+
+            // Mark the frame as recently used, for the next runs
+            if (!cachedFile.setLastModified(System.currentTimeMillis())) {
+                LOGGER.debug(String.format("Could not update the last modified date of the cached frame: %s", cachedFile));
+            }
+
+            return true;
+        } catch(IOException ex) {
+            // The frame may have been evicted by another NcAnimate process sharing the cache
+            LOGGER.warn(String.format("Could not restore the cached frame %s to %s", cachedFile, frameFile), ex);
+            this.remove(cacheKey);
+            return false;
+        }
+    }
+
+    /**
+     * Count the frames found in the cache, and the frames which had to be generated.
+     * @param hitCount Number of frames restored from the cache.
+     * @param missCount Number of frames generated, because they were missing from the cache
+     *     or because another frame of the same date was missing.
+     */
+    public void countLookups(long hitCount, long missCount) {
+        this.hitCount += hitCount;
+        this.missCount += missCount;
+    }
+
+    /**
+     * Add a frame which has just been generated to the cache.
+     * The least recently used frames are deleted if the cache gets too large.
+     * @param cacheKey The cache key of the frame.
+     * @param frameFile The frame file.
+     */
+    public void put(String cacheKey, File frameFile) {
+        if (cacheKey == null || frameFile == null || !frameFile.isFile() || this.entries.containsKey(cacheKey)) {
+            return;
+        }
+
+        File cachedFile = this.getCachedFile(cacheKey);
+        try {
+            File cachedDirectory = cachedFile.getParentFile();
+            if (!cachedDirectory.exists() && !cachedDirectory.mkdirs()) {
+                throw new IOException(String.format("Could not create the frame cache directory: %s", cachedDirectory));
+            }
+            FrameCache.linkOrCopy(frameFile, cachedFile);
+        } catch(IOException ex) {
+            LOGGER.warn(String.format("Could not add the frame %s to the frame cache", frameFile), ex);
+            return;
+        }
+
+        long fileSize = cachedFile.length();
+        this.entries.put(cacheKey, fileSize);
+        this.size += fileSize;
+
+        if (System.currentTimeMillis() - this.lastLoadMillis >= this.refreshInterval) {
+            // Count the frames added by the other NcAnimate processes
+            this.load();
+        }
+        this.evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = this.entries.entrySet().iterator();
+        while (this.size > this.maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            File cachedFile = this.getCachedFile(eldest.getKey());
+            if (cachedFile.exists() && !cachedFile.delete()) {
+                LOGGER.warn(String.format("Could not delete the cached frame: %s", cachedFile));
+            }
+            this.size -= eldest.getValue();
+            this.evictionCount++;
+            iterator.remove();
+        }
+    }
+
+    private void remove(String cacheKey) {
+        Long fileSize = this.entries.remove(cacheKey);
+        if (fileSize != null) {
+            this.size -= fileSize;
+        }
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+
+    public int getFrameCount() {
+        return this.entries.size();
+    }
+
+    public long getHitCount() {
+        return this.hitCount;
+    }
+
+    public long getMissCount() {
+        return this.missCount;
+    }
+
+    public long getEvictionCount() {
+        return this.evictionCount;
+    }
+
+    private File getCachedFile(String cacheKey) {
+        // Spread the files in sub directories, to keep directory listings short
+        return new File(new File(this.cacheDirectory, cacheKey.substring(0, 2)), cacheKey);
+    }
+
+    /**
+     * The frame files are never modified once generated.
+     * Hard link them when possible, to avoid copying them.
+     * The file is created with a temporary name then renamed, so it's never seen half written.
+     */
+    private static void linkOrCopy(File source, File destination) throws IOException {
+        File tempFile = new File(destination.getParentFile(), destination.getName() + ".tmp");
+        if (tempFile.exists() && !tempFile.delete()) {
+            throw new IOException(String.format("Could not delete the temporary file: %s", tempFile));
+        }
+        try {
+            Files.createLink(tempFile.toPath(), source.toPath());
+        } catch(UnsupportedOperationException | IOException ex) {
+            // Different file system, or hard links not supported
+            Files.copy(source.toPath(), tempFile.toPath());
+        }
+        Files.move(tempFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Compute the cache key of a frame.
+     * @param configFingerprint Fingerprint of the NcAnimate configuration.
+     * @param metadataIds IDs of the input files used to generate the frame.
+     * @param inputChecksums Input file ID => checksum.
+     * @param framePath Path of the frame file, relative to the working directory.
+     * @return The cache key, or null if the frame can not be cached
+     *     (missing configuration fingerprint or input file checksum).
+     */
+    public static String getCacheKey(String configFingerprint, Set<String> metadataIds, Map<String, String> inputChecksums, String framePath) {
+        if (configFingerprint == null || framePath == null) {
+            return null;
+        }
+
+        StringBuilder keyInput = new StringBuilder();
+        keyInput.append(configFingerprint).append('\n');
+        if (metadataIds != null) {
+            for (String metadataId : new TreeSet<String>(metadataIds)) {
+                String checksum = inputChecksums == null ? null : inputChecksums.get(metadataId);
+                if (checksum == null || checksum.isEmpty()) {
+                    return null;
+                }
+                keyInput.append(metadataId).append('=').append(checksum).append('\n');
+            }
+        }
+        keyInput.append(framePath);
+
+        String digest;
+        try {
+            digest = Digests.sha256(keyInput.toString());
+        } catch(NoSuchAlgorithmException ex) {
+            LOGGER.error("Could not compute the frame cache key", ex);
+            return null;
+        }
+
+        // Keep the frame file extension, to be able to tell the file format
+        int dotIndex = framePath.lastIndexOf('.');
+        int slashIndex = framePath.lastIndexOf('/');
+        return dotIndex > slashIndex + 1 ? digest + framePath.substring(dotIndex) : digest;
+    }
+
+    /**
+     * SHA-256 digest of the NcAnimate configuration, which doesn't depend on the order of its JSON attributes.
+     * @return The digest, or null if the configuration is null.
+     */
+    public static String getConfigFingerprint(NcAnimateConfigBean ncAnimateConfig) {
+        JSONObject jsonConfig = ncAnimateConfig == null ? null : ncAnimateConfig.toJSON();
+        if (jsonConfig == null) {
+            return null;
+        }
+        try {
+            return Digests.sha256(FrameCache.toCanonicalString(jsonConfig));
+        } catch(NoSuchAlgorithmException ex) {
+            LOGGER.error("Could not compute the configuration fingerprint", ex);
+            return null;
+        }
+    }
+
+    // JSONObject.toString doesn't guarantee the order of the keys
+    private static String toCanonicalString(Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject jsonObject = (JSONObject)value;
+            List<String> keys = new ArrayList<String>(jsonObject.keySet());
+            Collections.sort(keys);
+
+            StringBuilder sb = new StringBuilder("{");
+            for (String key : keys) {
+                sb.append(JSONObject.quote(key)).append(':').append(FrameCache.toCanonicalString(jsonObject.opt(key))).append(',');
+            }
+            return sb.append('}').toString();
+        }
+        if (value instanceof JSONArray) {
+            JSONArray jsonArray = (JSONArray)value;
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < jsonArray.length(); i++) {
+                sb.append(FrameCache.toCanonicalString(jsonArray.opt(i))).append(',');
+            }
+            return sb.append(']').toString();
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * Use the environment variable "NCANIMATE_FRAME_CACHE_DIR" if set.
+     * @return The frame cache directory, or null if the frame cache is disabled. Default: null.
+     */
+    public static File getDefaultCacheDirectory() {
+        return EnvironmentVariables.getFile(NCANIMATE_FRAME_CACHE_DIR_ENV_VARIABLE);
+    }
+
+    /**
+     * Use the environment variable "NCANIMATE_FRAME_CACHE_SIZE_MB" if set.
+     * @return The maximum size of the frame cache, in bytes. Default: 10 GB.
+     */
+    public static long getDefaultMaxSize() {
+        return EnvironmentVariables.getLong(NCANIMATE_FRAME_CACHE_SIZE_ENV_VARIABLE, DEFAULT_MAX_SIZE_MB, 0) * 1024 * 1024;
+    }
+}
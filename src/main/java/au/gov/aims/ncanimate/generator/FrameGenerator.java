@@ -7,15 +7,30 @@ package au.gov.aims.ncanimate.generator;
 import au.gov.aims.ereefs.Utils;
 import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
 import au.gov.aims.ereefs.bean.ncanimate.render.NcAnimateRenderBean;
+import au.gov.aims.ncanimate.EnvironmentVariables;
+import au.gov.aims.ncanimate.FlightRecorder;
+import au.gov.aims.ncanimate.RunMetrics;
 import au.gov.aims.ncanimate.SystemCallThread;
 import au.gov.aims.ncanimate.commons.NcAnimateUtils;
 import au.gov.aims.ncanimate.commons.generator.context.GeneratorContext;
 import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
 import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.joda.time.DateTime;
 
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 public class FrameGenerator {
@@ -26,18 +41,102 @@ public class FrameGenerator {
     private static final String NCANIMATE_DATABASE_SERVER_PORT_ENV_VARIABLE = "DATABASE_SERVER_PORT";
     private static final String NCANIMATE_DATABASE_NAME_ENV_VARIABLE = "DATABASE_NAME";
 
+    // Locality hints, for NcAnimate frame to keep the input files which will be needed again
+    private static final String NCANIMATE_INPUT_METADATA_IDS_ENV_VARIABLE = "NCANIMATE_INPUT_METADATA_IDS";
+    private static final String NCANIMATE_NEXT_INPUT_METADATA_IDS_ENV_VARIABLE = "NCANIMATE_NEXT_INPUT_METADATA_IDS";
+
+    // Long-lived ncanimate-frame processes (see FrameWorker)
+    private static final String NCANIMATE_FRAME_WORKER_MODE_ENV_VARIABLE = "NCANIMATE_FRAME_WORKER_MODE";
+    private static final String NCANIMATE_FRAME_WORKER_MAX_FRAMES_ENV_VARIABLE = "NCANIMATE_FRAME_WORKER_MAX_FRAMES";
+    private static final String NCANIMATE_FRAME_WORKER_MAX_HEAP_PERCENTAGE_ENV_VARIABLE = "NCANIMATE_FRAME_WORKER_MAX_HEAP_PERCENTAGE";
+
+    public static final long DEFAULT_WORKER_MAX_FRAMES = 2000;
+    public static final int DEFAULT_WORKER_MAX_HEAP_PERCENTAGE = 75;
+
+    // ncanimate-frame run in the NcAnimate JVM (see InProcessFrameRunner)
+    private static final String NCANIMATE_FRAME_IN_PROCESS_ENV_VARIABLE = "NCANIMATE_FRAME_IN_PROCESS";
+    private static final String NCANIMATE_FRAME_IN_PROCESS_BATCH_SIZE_ENV_VARIABLE = "NCANIMATE_FRAME_IN_PROCESS_BATCH_SIZE";
+
+    public static final int DEFAULT_IN_PROCESS_BATCH_SIZE = 8;
+
+    // Number of consecutive crashes without new frames after which a date range is split in two
+    private static final String NCANIMATE_FRAME_BISECT_AFTER_CRASHES_ENV_VARIABLE = "NCANIMATE_FRAME_BISECT_AFTER_CRASHES";
+    public static final int DEFAULT_BISECT_AFTER_CRASHES = 2;
+
+    // Percentage of the RAM given to ncanimate-frame JVM, when running alone
+    public static final int DEFAULT_MAX_RAM_PERCENTAGE = 80;
+
+    // Maximum heap of the ncanimate-frame JVM generating "No data" frames. No input file is loaded.
+    public static final int DEFAULT_NO_DATA_MAX_HEAP_MB = 1024;
+
+    // Directory, in the working directory, where the "No data" frame templates are kept (see NoDataFrameTemplates)
+    private static final String NO_DATA_TEMPLATE_DIRECTORY_NAME = "noDataFrames";
+
     protected static final Pattern NCANIMATE_FRAME_JAR_PATTERN = Pattern.compile("ereefs-ncanimate2-frame.*-jar-with-dependencies\\.jar");
 
     private String customDatabaseServerAddress, customDatabaseName;
     private int customDatabaseServerPort;
 
     private String regionId;
+    private final FrameLaunchProfile launchProfile;
+    private int noDataMaxHeapMB;
+    // "No data" frames of the product being generated, rendered once
+    private NoDataFrameTemplates noDataTemplates;
+    // Set when the "No data" frames can't be sent to a long-lived ncanimate-frame process. Subprocesses are used instead.
+    private volatile boolean noDataWorkerDisabled;
+
+    // Metrics of the product being generated. Read by the FrameGeneratorPool workers.
+    private volatile RunMetrics runMetrics;
+
+    // Frames reported by ncanimate-frame progress lines (see FrameProgress)
+    private final AtomicLong generatedFrameCount;
+    // Set once ncanimate-frame reports its progress. The frame directory doesn't need to be listed anymore.
+    private volatile boolean progressReported;
+
+    private boolean workerMode;
+    private long workerMaxFrames;
+    private int workerMaxHeapPercentage;
+    // Workers waiting for a request, by worker key (command line and region)
+    private final Map<String, Deque<FrameWorker>> idleWorkers;
+
+    private boolean inProcess;
+    private int inProcessBatchSize;
+    // Set when ncanimate-frame can't be run in the NcAnimate JVM. The subprocesses are used instead.
+    private volatile boolean inProcessDisabled;
+    // Class loaders waiting for a date range
+    private final Deque<InProcessFrameRunner> idleRunners;
+
+    // Frames of the product being generated. Used to find the frames left to generate after a crash.
+    private volatile FrameKeys frameKeys;
+    private volatile long[] sortedFrameKeys;
+    private int bisectAfterCrashes;
 
     public FrameGenerator() {
         this.customDatabaseServerAddress = null;
         this.customDatabaseServerPort = -1;
         this.customDatabaseName = null;
         this.regionId = null;
+        this.launchProfile = FrameLaunchProfile.getDefaultProfile();
+        this.noDataMaxHeapMB = DEFAULT_NO_DATA_MAX_HEAP_MB;
+        this.noDataTemplates = null;
+        this.noDataWorkerDisabled = false;
+
+        this.generatedFrameCount = new AtomicLong(0);
+        this.progressReported = false;
+
+        this.workerMode = FrameGenerator.isDefaultWorkerMode();
+        this.workerMaxFrames = FrameGenerator.getDefaultWorkerMaxFrames();
+        this.workerMaxHeapPercentage = FrameGenerator.getDefaultWorkerMaxHeapPercentage();
+        this.idleWorkers = new HashMap<String, Deque<FrameWorker>>();
+
+        this.inProcess = FrameGenerator.isDefaultInProcess();
+        this.inProcessBatchSize = FrameGenerator.getDefaultInProcessBatchSize();
+        this.inProcessDisabled = false;
+        this.idleRunners = new ArrayDeque<InProcessFrameRunner>();
+
+        this.frameKeys = null;
+        this.sortedFrameKeys = null;
+        this.bisectAfterCrashes = FrameGenerator.getDefaultBisectAfterCrashes();
     }
 
     /**
@@ -61,45 +160,514 @@ public class FrameGenerator {
         this.regionId = regionId;
     }
 
+    /**
+     * Set the percentage of the RAM each ncanimate-frame JVM can use.
+     * Needs to be lowered when several ncanimate-frame are running at once,
+     * otherwise they all compete for the same memory.
+     */
+    public void setMaxRamPercentage(int maxRamPercentage) {
+        this.launchProfile.setMaxRamPercentage(maxRamPercentage);
+    }
+
+    /**
+     * @return The JVM options used to start ncanimate-frame: heap size, garbage collector, etc.
+     */
+    public FrameLaunchProfile getLaunchProfile() {
+        return this.launchProfile;
+    }
+
+    /**
+     * Set the maximum heap of the ncanimate-frame JVMs generating "No data" frames.
+     */
+    public void setNoDataMaxHeapMB(int noDataMaxHeapMB) {
+        this.noDataMaxHeapMB = Math.max(1, noDataMaxHeapMB);
+    }
+
+    public int getNoDataMaxHeapMB() {
+        return this.noDataMaxHeapMB;
+    }
+
+    /**
+     * Generate the frames with long-lived ncanimate-frame processes (see {@link FrameWorker}),
+     * instead of starting a new process for each date range.
+     * ncanimate-frame needs to support the worker mode.
+     */
+    public void setWorkerMode(boolean workerMode) {
+        this.workerMode = workerMode;
+    }
+
+    /**
+     * Set when the long-lived ncanimate-frame processes are recycled.
+     * @param workerMaxFrames Number of frames after which a worker is recycled. Set to 0 for no limit.
+     * @param workerMaxHeapPercentage Percentage of its heap used after which a worker is recycled.
+     */
+    public void setWorkerRecycling(long workerMaxFrames, int workerMaxHeapPercentage) {
+        this.workerMaxFrames = Math.max(0, workerMaxFrames);
+        this.workerMaxHeapPercentage = Math.max(1, workerMaxHeapPercentage);
+    }
+
+    /**
+     * Generate the frames inside the NcAnimate JVM, in a disposable class loader
+     * (see {@link InProcessFrameRunner}), instead of starting a new process for each date range.
+     * NcAnimate falls back to the subprocesses when ncanimate-frame doesn't support it,
+     * or when a class loader can't be reclaimed after use (memory leak).
+     * @param inProcess true to run ncanimate-frame in the NcAnimate JVM.
+     * @param batchSize Number of date ranges generated with the same class loader.
+     */
+    public void setInProcess(boolean inProcess, int batchSize) {
+        this.inProcess = inProcess;
+        this.inProcessBatchSize = Math.max(1, batchSize);
+        this.inProcessDisabled = false;
+    }
+
+    /**
+     * @return true if the frames are generated inside the NcAnimate JVM.
+     *     false if the in-process generation is disabled, or if NcAnimate fell back to the subprocesses.
+     */
+    public boolean isInProcess() {
+        return this.inProcess && !this.inProcessDisabled;
+    }
+
+    /**
+     * Set the metrics of the product being generated.
+     * Each ncanimate-frame subprocess is recorded in the "frame" phase.
+     */
+    public void setRunMetrics(RunMetrics runMetrics) {
+        this.runMetrics = runMetrics;
+    }
+
+    /**
+     * Set the frames of the product being generated.
+     * When ncanimate-frame crashes, it's restarted from the first frame missing on disk
+     * instead of the start of the date range.
+     * @param frameKeys Used to find the frame files. Set to null when the product is done.
+     * @param sortedFrameKeys Keys of all the frames needed by the product, sorted.
+     */
+    public void setFrameKeys(FrameKeys frameKeys, long[] sortedFrameKeys) {
+        this.sortedFrameKeys = sortedFrameKeys;
+        this.frameKeys = frameKeys;
+
+        // The "No data" frame templates only apply to one product
+        NoDataFrameTemplates previousNoDataTemplates;
+        synchronized (this) {
+            previousNoDataTemplates = this.noDataTemplates;
+            this.noDataTemplates = null;
+        }
+        if (previousNoDataTemplates != null) {
+            previousNoDataTemplates.delete();
+        }
+    }
+
+    /**
+     * Set when a date range is split in two, to isolate the frames which crash ncanimate-frame.
+     * @param bisectAfterCrashes Number of consecutive crashes without new frames after which the date range is split.
+     *     Set to 0 to give up at the first crash without new frames.
+     */
+    public void setBisectAfterCrashes(int bisectAfterCrashes) {
+        this.bisectAfterCrashes = Math.max(0, bisectAfterCrashes);
+    }
+
+    /**
+     * @return The number of frames generated so far, as reported by ncanimate-frame.
+     */
+    public long getGeneratedFrameCount() {
+        return this.generatedFrameCount.get();
+    }
+
     /**
      * Run ncanimate-frame in a loop
      * until it manage to go through without crashing
      * or it crashes without generating any new frame.
+     * The new frames are counted using the progress lines written by ncanimate-frame (see {@link FrameProgress}).
+     * When the frames of the product are known (see {@link #setFrameKeys(FrameKeys, long[])}),
+     * ncanimate-frame is restarted from the first missing frame after a crash.
+     * After repeated crashes without new frames, the date range is split in two
+     * and each half is generated separately, until the timesteps which crash ncanimate-frame are isolated.
+     * The other frames are generated, then the failed timesteps are reported in the exception.
+     * NOTE: This method can be called concurrently for different date ranges
+     *     (see FrameGeneratorPool). With older versions of ncanimate-frame, which don't
+     *     write progress lines, the new frames are counted in the frame directory.
+     *     The number of new frames is then approximative since other date ranges may add frames
+     *     in the same frame directory. It may trigger an unnecessary
+     *     retry, but it never prevents a legitimate one.
      */
     public void generateFrames(
             NcAnimateConfigBean ncanimateConfig,
             DateTimeRange dateRange) throws Exception {
 
-        GeneratorContext context = new GeneratorContext(ncanimateConfig);
-        File frameDirectory = context.getFrameDirectory();
+        this.generateFrames(ncanimateConfig, dateRange, null, null);
+    }
 
-        int currentNbFrame = FrameGenerator.countFiles(frameDirectory),
-            lastNbFrame, nbNewFrame;
-        Exception lastEx;
-        do {
-            lastNbFrame = currentNbFrame;
+    /**
+     * Same as {@link #generateFrames(NcAnimateConfigBean, DateTimeRange)},
+     * with locality hints sent to ncanimate-frame through environment variables.
+     * @param inputMetadataIds IDs of the input files used by the frames of the date range.
+     * @param nextInputMetadataIds IDs of the input files which are also used by the next date ranges.
+     *     ncanimate-frame should not delete them.
+     */
+    public void generateFrames(
+            NcAnimateConfigBean ncanimateConfig,
+            DateTimeRange dateRange,
+            Set<String> inputMetadataIds,
+            Set<String> nextInputMetadataIds) throws Exception {
 
-            lastEx = null;
-            try {
-                this.callNcAnimateFrame(ncanimateConfig, dateRange);
-            } catch(Exception ex) {
-                lastEx = ex;
+        // The heap is sized for the number of frame timesteps, when known.
+        // Long-lived workers get the same heap for every date range, so they can be reused.
+        long[] currentSortedFrameKeys = this.sortedFrameKeys;
+        int frameTimestepCount = this.workerMode || currentSortedFrameKeys == null ? -1 :
+                FrameKeys.countStartDates(currentSortedFrameKeys, dateRange);
+
+        this.generateFrames(ncanimateConfig, dateRange, inputMetadataIds, nextInputMetadataIds,
+                this.launchProfile.getJavaOptions(frameTimestepCount), false);
+    }
+
+    /**
+     * Generate the "No data" frames of a date range without input files.
+     * Those frames only contain the static layers and the date,
+     * so ncanimate-frame is run with a small fixed heap
+     * instead of a share of the RAM.
+     * When the frames of the product are known (see {@link #setFrameKeys(FrameKeys, long[])}),
+     * the frames of the first two dates are rendered and compared. If they are identical,
+     * the other "No data" frames of the product are linked to them
+     * without calling ncanimate-frame (see {@link NoDataFrameTemplates}).
+     * Otherwise, the frames are rendered by a long-lived ncanimate-frame process (see {@link FrameWorker}),
+     * which is reused for all the "No data" date ranges of the product.
+     */
+    public void generateNoDataFrames(
+            NcAnimateConfigBean ncanimateConfig,
+            DateTimeRange dateRange) throws Exception {
+
+        FrameKeys currentFrameKeys = this.frameKeys;
+        long[] currentSortedFrameKeys = this.sortedFrameKeys;
+        NoDataFrameTemplates templates = this.isResumable(dateRange) ? this.getNoDataTemplates(ncanimateConfig) : null;
+        if (currentFrameKeys == null || templates == null || templates.isDated()) {
+            this.renderNoDataFrames(ncanimateConfig, dateRange);
+            return;
+        }
+
+        long[] dateRangeFrameKeys = FrameKeys.getKeys(currentSortedFrameKeys, dateRange);
+        DateTimeRange linkedDateRange = dateRange;
+        if (!templates.isIdentical()) {
+            // Index of the first frame of the second and third dates
+            int secondDateIndex = FrameGenerator.getNextDateIndex(dateRangeFrameKeys, 0);
+            int thirdDateIndex = FrameGenerator.getNextDateIndex(dateRangeFrameKeys, secondDateIndex);
+            if (thirdDateIndex >= dateRangeFrameKeys.length) {
+                // Not enough frames for the templates to be worth it
+                this.renderNoDataFrames(ncanimateConfig, dateRange);
+                return;
             }
-            currentNbFrame = FrameGenerator.countFiles(frameDirectory);
-            nbNewFrame = currentNbFrame - lastNbFrame;
 
-            if (lastEx != null) {
-                LOGGER.warn(String.format("Exception occurred while generating frame. %d frames has been generated (%d new frame)",
-                        currentNbFrame,
-                        nbNewFrame), lastEx);
+            DateTime thirdDate = new DateTime(FrameKeys.getStartSeconds(dateRangeFrameKeys[thirdDateIndex]) * 1000L,
+                    dateRange.getStartDate().getZone());
+            this.renderNoDataFrames(ncanimateConfig, DateTimeRange.create(dateRange.getStartDate(), thirdDate));
+            templates.compare(currentFrameKeys,
+                    Arrays.copyOfRange(dateRangeFrameKeys, 0, secondDateIndex),
+                    Arrays.copyOfRange(dateRangeFrameKeys, secondDateIndex, thirdDateIndex));
+
+            dateRangeFrameKeys = Arrays.copyOfRange(dateRangeFrameKeys, thirdDateIndex, dateRangeFrameKeys.length);
+            linkedDateRange = DateTimeRange.create(thirdDate, dateRange.getEndDate());
+        }
+
+        if (templates.link(currentFrameKeys, dateRangeFrameKeys)) {
+            LOGGER.info(String.format("%d \"No data\" frames linked for %s - %s",
+                    dateRangeFrameKeys.length, linkedDateRange.getStartDate(), linkedDateRange.getEndDate()));
+            this.generatedFrameCount.addAndGet(dateRangeFrameKeys.length);
+        } else {
+            this.renderNoDataFrames(ncanimateConfig, linkedDateRange);
+        }
+    }
+
+    /**
+     * Render the "No data" frames of a date range with ncanimate-frame.
+     * Overridden in unit tests, to simulate ncanimate-frame.
+     */
+    void renderNoDataFrames(
+            NcAnimateConfigBean ncanimateConfig,
+            DateTimeRange dateRange) throws Exception {
+
+        this.generateFrames(ncanimateConfig, dateRange, null, null,
+                this.launchProfile.getJavaOptions(String.format("-Xmx%dm", this.noDataMaxHeapMB)), true);
+    }
+
+    /**
+     * "No data" frame templates of the product being generated.
+     * Overridden in unit tests, to use a temporary directory.
+     */
+    synchronized NoDataFrameTemplates getNoDataTemplates(NcAnimateConfigBean ncanimateConfig) {
+        if (this.noDataTemplates == null) {
+            File templateDirectory = new File(new File(ncanimateConfig.getRender().getWorkingDirectoryFile(),
+                    NO_DATA_TEMPLATE_DIRECTORY_NAME), ncanimateConfig.getId().getValue());
+            if (this.regionId != null) {
+                templateDirectory = new File(templateDirectory, this.regionId);
             }
-        } while (lastEx != null && nbNewFrame > 0);
+            this.noDataTemplates = new NoDataFrameTemplates(templateDirectory);
+        }
+        return this.noDataTemplates;
+    }
 
-        // ncanimate-frame crashes without generating any new frame.
-        // There is no point trying anymore than this.
-        if (lastEx != null) {
-            throw lastEx;
+    // Index of the first key after the given index with a different start date
+    private static int getNextDateIndex(long[] sortedKeys, int index) {
+        if (index >= sortedKeys.length) {
+            return sortedKeys.length;
         }
+        long startSeconds = FrameKeys.getStartSeconds(sortedKeys[index]);
+        int nextIndex = index + 1;
+        while (nextIndex < sortedKeys.length && FrameKeys.getStartSeconds(sortedKeys[nextIndex]) == startSeconds) {
+            nextIndex++;
+        }
+        return nextIndex;
+    }
+
+    /**
+     * @param noData true to use a long-lived ncanimate-frame process for the "No data" frames,
+     *     even when the worker mode is disabled.
+     */
+    private void generateFrames(
+            final NcAnimateConfigBean ncanimateConfig,
+            DateTimeRange dateRange,
+            final Set<String> inputMetadataIds,
+            final Set<String> nextInputMetadataIds,
+            final String javaOptions,
+            final boolean noData) throws Exception {
+
+        String productId = ncanimateConfig.getId().getValue();
+
+        // Number of files in the frame directory. Only used until ncanimate-frame reports its progress,
+        // in case it's an older version which doesn't write progress lines.
+        File frameDirectory = null;
+        if (!this.isResumable(dateRange) && !this.progressReported) {
+            GeneratorContext context = new GeneratorContext(ncanimateConfig);
+            frameDirectory = context.getFrameDirectory();
+        }
+
+        this.generateFrames(productId, dateRange, frameDirectory, new FrameCall() {
+            @Override
+            public void call(DateTimeRange callDateRange, FrameProgress progress) throws Exception {
+                FrameGenerator.this.callNcAnimateFrame(ncanimateConfig, callDateRange, inputMetadataIds, nextInputMetadataIds, javaOptions, noData, progress);
+            }
+        });
+    }
+
+    /**
+     * Generate the frames of a date range with ncanimate-frame.
+     * When ncanimate-frame crashes, it's restarted from the first frame missing on disk,
+     * and the date range is split in two when it keeps crashing without generating new frames.
+     * @param productId ID of the product, used in the log messages.
+     * @param dateRange The date range to generate.
+     * @param frameDirectory Directory where the frames are generated, used to count the new frames
+     *     when the frames missing on disk are unknown and ncanimate-frame doesn't report its progress. May be null.
+     * @param frameCall Call to ncanimate-frame, for a date range.
+     */
+    void generateFrames(
+            String productId,
+            DateTimeRange dateRange,
+            File frameDirectory,
+            FrameCall frameCall) throws Exception {
+
+        FrameProgress progress = new FrameProgress(
+                String.format("%s %s - %s", productId, dateRange.getStartDate(), dateRange.getEndDate()),
+                this.generatedFrameCount);
+
+        // The frames missing on disk are only known if the date range is part of the product being generated
+        long[] currentSortedFrameKeys = this.sortedFrameKeys;
+        boolean resumable = this.isResumable(dateRange);
+
+        int lastNbFrame = frameDirectory == null ? -1 : FrameGenerator.countFiles(frameDirectory);
+
+        FlightRecorder.Event event = FlightRecorder.begin(FlightRecorder.FRAME_GENERATION,
+                productId, this.regionId, dateRange);
+
+        // Date ranges left to generate, in chronological order
+        Deque<DateTimeRange> pendingDateRanges = new ArrayDeque<DateTimeRange>();
+        pendingDateRanges.add(dateRange);
+        // Date ranges which could not be generated
+        List<DateTimeRange> failedDateRanges = new ArrayList<DateTimeRange>();
+        Exception lastEx = null;
+
+        DateTimeRange currentDateRange;
+        while ((currentDateRange = pendingDateRanges.poll()) != null) {
+            // Consecutive crashes without new frames
+            int crashCount = 0;
+            // Frames of the date range which may already be on disk (frame cache, previous run, etc) are not counted as new frames
+            int lastNbMissingFrame = resumable ?
+                    this.getMissingFrameKeys(FrameKeys.getKeys(currentSortedFrameKeys, currentDateRange)).length : -1;
+            while (true) {
+                int lastProgressCount = progress.getFrameCount();
+
+                Exception attemptEx = null;
+                try {
+                    frameCall.call(currentDateRange, progress);
+                } catch(InterruptedException ex) {
+                    // Interrupted on purpose, do not try again
+                    throw ex;
+                } catch(Exception ex) {
+                    attemptEx = ex;
+                }
+                int nbNewFrame = progress.getFrameCount() - lastProgressCount;
+                if (nbNewFrame > 0) {
+                    this.progressReported = true;
+                }
+                if (attemptEx == null) {
+                    break;
+                }
+                lastEx = attemptEx;
+
+                if (!resumable) {
+                    if (nbNewFrame <= 0 && frameDirectory != null && !this.progressReported) {
+                        int currentNbFrame = FrameGenerator.countFiles(frameDirectory);
+                        nbNewFrame = currentNbFrame - lastNbFrame;
+                        lastNbFrame = currentNbFrame;
+                    }
+                    LOGGER.warn(String.format("Exception occurred while generating frame. %d frames has been generated (%d new frame)",
+                            progress.getFrameCount(),
+                            nbNewFrame), attemptEx);
+
+                    // ncanimate-frame crashes without generating any new frame.
+                    // There is no point trying anymore than this.
+                    if (nbNewFrame <= 0) {
+                        failedDateRanges.add(currentDateRange);
+                        break;
+                    }
+                    continue;
+                }
+
+                // Restart from the first frame missing on disk.
+                // ncanimate-frame doesn't need to start up for the frames it already generated.
+                long[] missingFrameKeys = this.getMissingFrameKeys(FrameKeys.getKeys(currentSortedFrameKeys, currentDateRange));
+                if (missingFrameKeys.length == 0) {
+                    LOGGER.warn(String.format("Exception occurred after generating all the frames of %s %s - %s",
+                            productId, currentDateRange.getStartDate(), currentDateRange.getEndDate()), attemptEx);
+                    break;
+                }
+                // The number of missing frames only decreases, so the loop ends
+                nbNewFrame = lastNbMissingFrame - missingFrameKeys.length;
+                lastNbMissingFrame = missingFrameKeys.length;
+                crashCount = nbNewFrame > 0 ? 0 : crashCount + 1;
+                currentDateRange = FrameGenerator.getResumedDateRange(missingFrameKeys, currentDateRange);
+
+                LOGGER.warn(String.format("Exception occurred while generating frame. %d frames has been generated (%d new frame). " +
+                        "%d frames left to generate, starting at %s",
+                        progress.getFrameCount(),
+                        nbNewFrame,
+                        missingFrameKeys.length,
+                        currentDateRange.getStartDate()), attemptEx);
+
+                if (crashCount > 0 && crashCount >= this.bisectAfterCrashes) {
+                    DateTimeRange[] halves = this.bisectAfterCrashes > 0 ?
+                            FrameGenerator.bisect(missingFrameKeys, currentDateRange) : null;
+                    if (halves == null) {
+                        LOGGER.error(String.format("ncanimate-frame crashed %d times in a row while generating the frames of %s %s - %s",
+                                crashCount, productId, currentDateRange.getStartDate(), currentDateRange.getEndDate()));
+                        failedDateRanges.add(currentDateRange);
+                    } else {
+                        LOGGER.warn(String.format("Splitting %s %s - %s at %s to isolate the frames which crash ncanimate-frame",
+                                productId, currentDateRange.getStartDate(), currentDateRange.getEndDate(), halves[1].getStartDate()));
+                        pendingDateRanges.addFirst(halves[1]);
+                        pendingDateRanges.addFirst(halves[0]);
+                    }
+                    break;
+                }
+            }
+        }
+        event.setDetail(progress.toString()).commit();
+        if (progress.getFrameCount() > 0) {
+            LOGGER.info(String.format("%s %s - %s: %s", productId, dateRange.getStartDate(), dateRange.getEndDate(), progress));
+        }
+
+        if (!failedDateRanges.isEmpty()) {
+            if (!resumable || this.bisectAfterCrashes <= 0) {
+                throw lastEx;
+            }
+            StringBuilder failedDates = new StringBuilder();
+            for (DateTimeRange failedDateRange : failedDateRanges) {
+                if (failedDates.length() > 0) {
+                    failedDates.append(", ");
+                }
+                failedDates.append(failedDateRange.getStartDate());
+            }
+            throw new IOException(String.format("ncanimate-frame crashed while generating the frames of %s %s - %s. " +
+                    "The other frames were generated. Failed timesteps: %s",
+                    productId, dateRange.getStartDate(), dateRange.getEndDate(), failedDates), lastEx);
+        }
+    }
+
+    private boolean isResumable(DateTimeRange dateRange) {
+        long[] currentSortedFrameKeys = this.sortedFrameKeys;
+        return this.frameKeys != null && currentSortedFrameKeys != null &&
+                dateRange.getStartDate() != null && dateRange.getEndDate() != null &&
+                FrameKeys.countKeys(currentSortedFrameKeys, dateRange) > 0;
+    }
+
+    /**
+     * Keys of the frames which are not on disk, in chronological order.
+     * Overridden in unit tests, to simulate the frames generated before a crash.
+     * @param dateRangeFrameKeys Keys of the frames of the date range, sorted.
+     */
+    long[] getMissingFrameKeys(long[] dateRangeFrameKeys) {
+        FrameKeys frameKeys = this.frameKeys;
+        long[] missingFrameKeys = new long[dateRangeFrameKeys.length];
+        int missingCount = 0;
+        for (long frameKey : dateRangeFrameKeys) {
+            File frameFile = frameKeys.getFrameFile(frameKey);
+            if (frameFile == null || !frameFile.exists()) {
+                missingFrameKeys[missingCount++] = frameKey;
+            }
+        }
+        return Arrays.copyOf(missingFrameKeys, missingCount);
+    }
+
+    /**
+     * Get the part of the date range which still needs to be generated.
+     * @param missingFrameKeys Keys of the frames missing on disk, sorted. Must not be empty.
+     * @param dateRange The date range being generated.
+     * @return The date range starting at the first missing frame.
+     */
+    static DateTimeRange getResumedDateRange(long[] missingFrameKeys, DateTimeRange dateRange) {
+        DateTime startDate = dateRange.getStartDate();
+        long firstMissingMillis = FrameKeys.getStartSeconds(missingFrameKeys[0]) * 1000L;
+        if (firstMissingMillis <= startDate.getMillis()) {
+            return dateRange;
+        }
+        return DateTimeRange.create(new DateTime(firstMissingMillis, startDate.getZone()), dateRange.getEndDate());
+    }
+
+    /**
+     * Split a date range in two, with half of the missing frames in each.
+     * Frames starting at the same time are kept together.
+     * @param missingFrameKeys Keys of the frames missing on disk, sorted.
+     * @param dateRange The date range being generated.
+     * @return The 2 halves of the date range, or null if all the missing frames start at the same time.
+     */
+    static DateTimeRange[] bisect(long[] missingFrameKeys, DateTimeRange dateRange) {
+        if (missingFrameKeys.length == 0) {
+            return null;
+        }
+        long firstSeconds = FrameKeys.getStartSeconds(missingFrameKeys[0]);
+        int splitIndex = missingFrameKeys.length / 2;
+        while (splitIndex < missingFrameKeys.length && FrameKeys.getStartSeconds(missingFrameKeys[splitIndex]) == firstSeconds) {
+            splitIndex++;
+        }
+        if (splitIndex >= missingFrameKeys.length) {
+            return null;
+        }
+
+        DateTime splitDate = new DateTime(FrameKeys.getStartSeconds(missingFrameKeys[splitIndex]) * 1000L,
+                dateRange.getStartDate().getZone());
+        return new DateTimeRange[] {
+            DateTimeRange.create(dateRange.getStartDate(), splitDate),
+            DateTimeRange.create(splitDate, dateRange.getEndDate())
+        };
+    }
+
+    private static String join(Set<String> values) {
+        StringBuilder joined = new StringBuilder();
+        for (String value : values) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(value);
+        }
+        return joined.toString();
     }
 
     private static int countFiles(File dir) {
@@ -127,9 +695,22 @@ public class FrameGenerator {
      * Call the external ereefs-ncanimate2-frame jar to generate the required frame files
      * @param ncanimateConfig
      * @param dateRange
+     * @param inputMetadataIds
+     * @param nextInputMetadataIds
+     * @param javaOptions JVM options of ncanimate-frame: memory limit, garbage collector, etc.
+     * @param noData true if the date range only contains "No data" frames.
+     * @param progress Progress of the date range, updated with the progress lines written by ncanimate-frame.
      * @throws InterruptedException
      */
-    private void callNcAnimateFrame(NcAnimateConfigBean ncanimateConfig, DateTimeRange dateRange) throws Exception {
+    private void callNcAnimateFrame(
+            NcAnimateConfigBean ncanimateConfig,
+            DateTimeRange dateRange,
+            Set<String> inputMetadataIds,
+            Set<String> nextInputMetadataIds,
+            String javaOptions,
+            boolean noData,
+            final FrameProgress progress) throws Exception {
+
         String productId = ncanimateConfig.getId().getValue();
         LOGGER.debug(String.format("Calling ereefs-ncanimate-frame %s %s %s", productId, dateRange.getStartDate(), dateRange.getEndDate()));
 
@@ -141,7 +722,37 @@ public class FrameGenerator {
                 productId));
         }
 
-        String commandLine = String.format("java -XX:MaxRAMPercentage=80.0 -jar \"%s\" \"%s\" \"%s\" \"%s\"",
+        if (this.isInProcess() &&
+                this.callNcAnimateFrameInProcess(ncanimateFrameJarFile, productId, dateRange, inputMetadataIds, nextInputMetadataIds, progress)) {
+            return;
+        }
+
+        if (this.workerMode) {
+            this.callNcAnimateFrameWorker(ncanimateFrameJarFile, productId, dateRange, inputMetadataIds, nextInputMetadataIds, javaOptions, progress);
+            return;
+        }
+
+        // The "No data" frames are cheap to render. Starting a JVM for each date range would take longer than rendering them.
+        if (noData && !this.noDataWorkerDisabled) {
+            int lastProgressCount = progress.getFrameCount();
+            try {
+                this.callNcAnimateFrameWorker(ncanimateFrameJarFile, productId, dateRange, inputMetadataIds, nextInputMetadataIds, javaOptions, progress);
+                return;
+            } catch(InterruptedException ex) {
+                throw ex;
+            } catch(Exception ex) {
+                if (progress.getFrameCount() != lastProgressCount) {
+                    // The worker generated frames before failing. The failure is not caused by the worker mode.
+                    throw ex;
+                }
+                this.noDataWorkerDisabled = true;
+                LOGGER.warn(String.format("NcAnimate frame worker could not generate the \"No data\" frames of %s. " +
+                        "The \"No data\" frames will be generated by NcAnimate frame subprocesses.", productId), ex);
+            }
+        }
+
+        String commandLine = String.format("java %s -jar \"%s\" \"%s\" \"%s\" \"%s\"",
+                javaOptions,
                 ncanimateFrameJarFile.getAbsolutePath(),
                 productId, dateRange.getStartDate(), dateRange.getEndDate());
 
@@ -163,24 +774,42 @@ public class FrameGenerator {
             public void onException(Exception ex) {
                 LOGGER.fatal(ex);
             }
+
+            @Override
+            public void stdout(String logLine) {
+                if (!progress.parse(logLine)) {
+                    super.stdout(logLine);
+                }
+            }
         };
 
 
-        if (this.customDatabaseServerAddress != null) {
-            systemCall.setEnvironmentVariable(NCANIMATE_DATABASE_SERVER_ADDRESS_ENV_VARIABLE, this.customDatabaseServerAddress);
+        for (Map.Entry<String, String> environmentVariable : this.getEnvironmentVariables().entrySet()) {
+            systemCall.setEnvironmentVariable(environmentVariable.getKey(), environmentVariable.getValue());
         }
-        if (this.customDatabaseServerPort > 0) {
-            systemCall.setEnvironmentVariable(NCANIMATE_DATABASE_SERVER_PORT_ENV_VARIABLE, "" + this.customDatabaseServerPort);
+        if (inputMetadataIds != null && !inputMetadataIds.isEmpty()) {
+            systemCall.setEnvironmentVariable(NCANIMATE_INPUT_METADATA_IDS_ENV_VARIABLE, FrameGenerator.join(inputMetadataIds));
         }
-        if (this.customDatabaseName != null) {
-            systemCall.setEnvironmentVariable(NCANIMATE_DATABASE_NAME_ENV_VARIABLE, this.customDatabaseName);
-        }
-        if (this.regionId != null) {
-            systemCall.setEnvironmentVariable(NCANIMATE_REGION_ENV_VARIABLE, this.regionId);
+        if (nextInputMetadataIds != null && !nextInputMetadataIds.isEmpty()) {
+            systemCall.setEnvironmentVariable(NCANIMATE_NEXT_INPUT_METADATA_IDS_ENV_VARIABLE, FrameGenerator.join(nextInputMetadataIds));
         }
 
+        systemCall.setFlightRecorderContext(productId, this.regionId, dateRange);
+
+        RunMetrics currentRunMetrics = this.runMetrics;
+        RunMetrics.Timer timer = currentRunMetrics == null ? null : currentRunMetrics.start(RunMetrics.PHASE_FRAME);
         systemCall.start();
-        systemCall.join();
+        try {
+            systemCall.join();
+        } catch (InterruptedException ex) {
+            // NcAnimate is shutting down. Do not leave the process running.
+            systemCall.kill();
+            throw ex;
+        } finally {
+            if (timer != null) {
+                timer.stop();
+            }
+        }
 
         Integer exitCode = systemCall.getExitCode();
         if (exitCode != null && exitCode != 0) {
@@ -188,6 +817,299 @@ public class FrameGenerator {
         }
     }
 
+    /**
+     * Send the date range to a long-lived ncanimate-frame process (see {@link FrameWorker}).
+     * The worker is reused for the next date ranges, unless it failed or needs to be recycled.
+     */
+    private void callNcAnimateFrameWorker(
+            File ncanimateFrameJarFile,
+            String productId,
+            DateTimeRange dateRange,
+            Set<String> inputMetadataIds,
+            Set<String> nextInputMetadataIds,
+            String javaOptions,
+            FrameProgress progress) throws Exception {
+
+        String commandLine = String.format("java %s -jar \"%s\" %s",
+                javaOptions,
+                ncanimateFrameJarFile.getAbsolutePath(),
+                FrameWorker.WORKER_OPTION);
+
+        JSONObject request = new JSONObject()
+            .put("productId", productId)
+            .put("startDate", dateRange.getStartDate() == null ? JSONObject.NULL : dateRange.getStartDate().toString())
+            .put("endDate", dateRange.getEndDate() == null ? JSONObject.NULL : dateRange.getEndDate().toString())
+            .put("inputMetadataIds", inputMetadataIds == null ? new JSONArray() : new JSONArray(inputMetadataIds))
+            .put("nextInputMetadataIds", nextInputMetadataIds == null ? new JSONArray() : new JSONArray(nextInputMetadataIds));
+
+        FrameWorker worker = this.borrowWorker(commandLine, productId);
+
+        RunMetrics currentRunMetrics = this.runMetrics;
+        RunMetrics.Timer timer = currentRunMetrics == null ? null : currentRunMetrics.start(RunMetrics.PHASE_FRAME);
+        boolean reusable = false;
+        try {
+            LOGGER.info(String.format("REQUEST: %s", request));
+            JSONObject response = worker.generate(request, progress);
+
+            int exitCode = response.optInt("exitCode", SystemCallThread.ERROR);
+            if (exitCode != SystemCallThread.SUCCESS) {
+                throw new IOException(String.format("Exception occurred while generating frames. Exit code: %d", exitCode));
+            }
+
+            reusable = !worker.isWornOut(this.workerMaxFrames, this.workerMaxHeapPercentage);
+            if (!reusable) {
+                LOGGER.info(String.format("Recycling NcAnimate frame worker after %d requests and %d frames (heap: %d / %d MB)",
+                        worker.getRequestCount(), worker.getFrameCount(), worker.getHeapUsedMB(), worker.getHeapMaxMB()));
+            }
+        } catch (InterruptedException ex) {
+            // NcAnimate is shutting down. Do not leave the process running.
+            worker.kill();
+            throw ex;
+        } finally {
+            if (timer != null) {
+                timer.stop();
+            }
+            if (reusable) {
+                this.releaseWorker(worker);
+            } else if (!worker.isTerminated()) {
+                // The worker may be in a bad state after a failure. Start a new one for the next date range.
+                worker.close();
+            }
+        }
+    }
+
+    /**
+     * Generate the frames of the date range inside the NcAnimate JVM (see {@link InProcessFrameRunner}).
+     * @return false if ncanimate-frame can't be run in the NcAnimate JVM.
+     *     The in-process generation is then disabled, and the date range needs to be generated by a subprocess.
+     */
+    private boolean callNcAnimateFrameInProcess(
+            File ncanimateFrameJarFile,
+            String productId,
+            DateTimeRange dateRange,
+            Set<String> inputMetadataIds,
+            Set<String> nextInputMetadataIds,
+            FrameProgress progress) throws Exception {
+
+        String[] args = new String[] {
+            productId, String.valueOf(dateRange.getStartDate()), String.valueOf(dateRange.getEndDate())
+        };
+
+        Map<String, String> environment = new HashMap<String, String>(System.getenv());
+        environment.putAll(this.getEnvironmentVariables());
+        if (inputMetadataIds != null && !inputMetadataIds.isEmpty()) {
+            environment.put(NCANIMATE_INPUT_METADATA_IDS_ENV_VARIABLE, FrameGenerator.join(inputMetadataIds));
+        }
+        if (nextInputMetadataIds != null && !nextInputMetadataIds.isEmpty()) {
+            environment.put(NCANIMATE_NEXT_INPUT_METADATA_IDS_ENV_VARIABLE, FrameGenerator.join(nextInputMetadataIds));
+        }
+
+        InProcessFrameRunner runner = this.borrowRunner(ncanimateFrameJarFile);
+        try {
+            runner.load();
+        } catch(ReflectiveOperationException | LinkageError ex) {
+            this.disposeRunner(runner);
+            this.disableInProcess(String.format("the NcAnimate frame jar doesn't provide the entry point %s(String[], Map): %s",
+                    InProcessFrameRunner.ENTRY_POINT_METHOD, ncanimateFrameJarFile), ex);
+            return false;
+        } catch(IOException ex) {
+            // Unreadable jar, or jar without main class. The subprocess reports the problem.
+            this.disposeRunner(runner);
+            this.disableInProcess(String.format("the NcAnimate frame jar could not be loaded: %s", ncanimateFrameJarFile), ex);
+            return false;
+        }
+
+        RunMetrics currentRunMetrics = this.runMetrics;
+        RunMetrics.Timer timer = currentRunMetrics == null ? null : currentRunMetrics.start(RunMetrics.PHASE_FRAME);
+        boolean reusable = false;
+        try {
+            LOGGER.info(String.format("RUNNING IN PROCESS: %s %s %s", args[0], args[1], args[2]));
+            int exitCode = runner.run(args, environment, progress);
+            if (exitCode != SystemCallThread.SUCCESS) {
+                throw new IOException(String.format("Exception occurred while generating frames. Exit code: %d", exitCode));
+            }
+            reusable = !runner.isBatchComplete();
+        } catch(Error ex) {
+            // OutOfMemoryError, LinkageError, etc. Running ncanimate-frame in a subprocess is safer.
+            this.disableInProcess(String.format("error while generating frames for %s %s %s", args[0], args[1], args[2]), ex);
+            return false;
+        } finally {
+            if (timer != null) {
+                timer.stop();
+            }
+            if (reusable) {
+                this.releaseRunner(runner);
+            } else {
+                this.disposeRunner(runner);
+            }
+        }
+
+        return true;
+    }
+
+    private InProcessFrameRunner borrowRunner(File ncanimateFrameJarFile) {
+        synchronized (this.idleRunners) {
+            InProcessFrameRunner runner;
+            while ((runner = this.idleRunners.poll()) != null) {
+                if (runner.getJarFile().equals(ncanimateFrameJarFile)) {
+                    return runner;
+                }
+                this.disposeRunner(runner);
+            }
+        }
+        return new InProcessFrameRunner(ncanimateFrameJarFile, this.inProcessBatchSize);
+    }
+
+    private void releaseRunner(InProcessFrameRunner runner) {
+        synchronized (this.idleRunners) {
+            this.idleRunners.push(runner);
+        }
+    }
+
+    private void disposeRunner(InProcessFrameRunner runner) {
+        if (!runner.dispose()) {
+            this.disableInProcess(String.format("the class loader of %s could not be reclaimed after %d date ranges (memory leak)",
+                    runner.getJarFile(), runner.getRunCount()), null);
+        }
+    }
+
+    /**
+     * Generate the frames with NcAnimate frame subprocesses, for the rest of the run.
+     * @param reason Reason why NcAnimate frame can't be run in the NcAnimate JVM, for the logs.
+     */
+    void disableInProcess(String reason, Throwable cause) {
+        if (!this.inProcessDisabled) {
+            this.inProcessDisabled = true;
+            LOGGER.warn(String.format("NcAnimate frame can not be run in the NcAnimate JVM: %s. " +
+                    "The frames will be generated by NcAnimate frame subprocesses.", reason), cause);
+        }
+    }
+
+    private FrameWorker borrowWorker(String commandLine, String productId) throws IOException, InterruptedException {
+        String key = String.format("%s|%s", commandLine, this.regionId);
+        synchronized (this.idleWorkers) {
+            Deque<FrameWorker> workers = this.idleWorkers.get(key);
+            if (workers != null) {
+                FrameWorker worker;
+                while ((worker = workers.poll()) != null) {
+                    if (!worker.isTerminated()) {
+                        return worker;
+                    }
+                }
+            }
+        }
+
+        FrameWorker worker = new FrameWorker(key, commandLine, this.getEnvironmentVariables());
+        worker.start();
+        return worker;
+    }
+
+    private void releaseWorker(FrameWorker worker) {
+        synchronized (this.idleWorkers) {
+            Deque<FrameWorker> workers = this.idleWorkers.get(worker.getKey());
+            if (workers == null) {
+                workers = new ArrayDeque<FrameWorker>();
+                this.idleWorkers.put(worker.getKey(), workers);
+            }
+            workers.push(worker);
+        }
+    }
+
+    /**
+     * Stop the long-lived ncanimate-frame processes waiting for a request,
+     * and drop the class loaders of ncanimate-frame run in the NcAnimate JVM.
+     * Called once the frames of the product are generated, so the memory
+     * they use is freed before the next product.
+     */
+    public void closeWorkers() {
+        List<FrameWorker> workers = new ArrayList<FrameWorker>();
+        synchronized (this.idleWorkers) {
+            for (Deque<FrameWorker> keyWorkers : this.idleWorkers.values()) {
+                workers.addAll(keyWorkers);
+            }
+            this.idleWorkers.clear();
+        }
+
+        for (FrameWorker worker : workers) {
+            worker.close();
+        }
+
+        List<InProcessFrameRunner> runners;
+        synchronized (this.idleRunners) {
+            runners = new ArrayList<InProcessFrameRunner>(this.idleRunners);
+            this.idleRunners.clear();
+        }
+        for (InProcessFrameRunner runner : runners) {
+            this.disposeRunner(runner);
+        }
+    }
+
+    // Environment variables shared by all the ncanimate-frame processes
+    private Map<String, String> getEnvironmentVariables() {
+        Map<String, String> environmentVariables = new HashMap<String, String>();
+        if (this.customDatabaseServerAddress != null) {
+            environmentVariables.put(NCANIMATE_DATABASE_SERVER_ADDRESS_ENV_VARIABLE, this.customDatabaseServerAddress);
+        }
+        if (this.customDatabaseServerPort > 0) {
+            environmentVariables.put(NCANIMATE_DATABASE_SERVER_PORT_ENV_VARIABLE, "" + this.customDatabaseServerPort);
+        }
+        if (this.customDatabaseName != null) {
+            environmentVariables.put(NCANIMATE_DATABASE_NAME_ENV_VARIABLE, this.customDatabaseName);
+        }
+        if (this.regionId != null) {
+            environmentVariables.put(NCANIMATE_REGION_ENV_VARIABLE, this.regionId);
+        }
+        return environmentVariables;
+    }
+
+    /**
+     * Use the environment variable "NCANIMATE_FRAME_WORKER_MODE" if set.
+     * @return true to generate the frames with long-lived ncanimate-frame processes. Default: false.
+     */
+    public static boolean isDefaultWorkerMode() {
+        return EnvironmentVariables.getBoolean(NCANIMATE_FRAME_WORKER_MODE_ENV_VARIABLE, false);
+    }
+
+    /**
+     * Use the environment variable "NCANIMATE_FRAME_WORKER_MAX_FRAMES" if set.
+     * @return Number of frames after which a long-lived ncanimate-frame process is recycled.
+     */
+    public static long getDefaultWorkerMaxFrames() {
+        return EnvironmentVariables.getLong(NCANIMATE_FRAME_WORKER_MAX_FRAMES_ENV_VARIABLE, DEFAULT_WORKER_MAX_FRAMES, 0);
+    }
+
+    /**
+     * Use the environment variable "NCANIMATE_FRAME_WORKER_MAX_HEAP_PERCENTAGE" if set.
+     * @return Percentage of its heap used after which a long-lived ncanimate-frame process is recycled.
+     */
+    public static int getDefaultWorkerMaxHeapPercentage() {
+        return EnvironmentVariables.getInteger(NCANIMATE_FRAME_WORKER_MAX_HEAP_PERCENTAGE_ENV_VARIABLE, DEFAULT_WORKER_MAX_HEAP_PERCENTAGE, 1);
+    }
+
+    /**
+     * Use the environment variable "NCANIMATE_FRAME_IN_PROCESS" if set.
+     * @return true to run ncanimate-frame in the NcAnimate JVM. Default: false.
+     */
+    public static boolean isDefaultInProcess() {
+        return EnvironmentVariables.getBoolean(NCANIMATE_FRAME_IN_PROCESS_ENV_VARIABLE, false);
+    }
+
+    /**
+     * Use the environment variable "NCANIMATE_FRAME_IN_PROCESS_BATCH_SIZE" if set.
+     * @return Number of date ranges generated with the same class loader, when ncanimate-frame is run in the NcAnimate JVM.
+     */
+    public static int getDefaultInProcessBatchSize() {
+        return EnvironmentVariables.getInteger(NCANIMATE_FRAME_IN_PROCESS_BATCH_SIZE_ENV_VARIABLE, DEFAULT_IN_PROCESS_BATCH_SIZE, 1);
+    }
+
+    /**
+     * Use the environment variable "NCANIMATE_FRAME_BISECT_AFTER_CRASHES" if set.
+     * @return Number of consecutive crashes of ncanimate-frame without new frames after which a date range is split in two.
+     */
+    public static int getDefaultBisectAfterCrashes() {
+        return EnvironmentVariables.getInteger(NCANIMATE_FRAME_BISECT_AFTER_CRASHES_ENV_VARIABLE, DEFAULT_BISECT_AFTER_CRASHES, 0);
+    }
+
     /**
      * Get the path to the NcAnimate frame jar file (ereefs-ncanimate2-frame-X.X-jar-with-dependencies.jar)
      * If the attribute is missing or represent a non existent file, NcAnimate will look in the same directory as NcAnimate jar file.
@@ -245,4 +1167,11 @@ public class FrameGenerator {
         return null;
     }
 
+    /**
+     * Call to ncanimate-frame, for a date range.
+     * Replaced by a stub in unit tests.
+     */
+    interface FrameCall {
+        void call(DateTimeRange dateRange, FrameProgress progress) throws Exception;
+    }
 }
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ncanimate.EnvironmentVariables;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.timetable.FrameGroup;
+import org.apache.log4j.Logger;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Bounded pool of workers used to run several ncanimate-frame
+ * subprocesses at once, one date range per worker.
+ *
+ * Frame groups are returned by {@link #take()} in the order they finish,
+ * which may differ from the order they were submitted.
+ * The caller is responsible for dealing with out of order completion.
+ *
+ * Frame groups without input files ("No data" frames) are generated by a separate set
+ * of workers, using ncanimate-frame JVMs with a small heap. They do not take the place
+ * of a worker loading input files.
+ */
+public class FrameGeneratorPool {
+    private static final Logger LOGGER = Logger.getLogger(FrameGeneratorPool.class);
+
+    private static final String NCANIMATE_FRAME_WORKERS_ENV_VARIABLE = "NCANIMATE_FRAME_WORKERS";
+    private static final String NCANIMATE_FRAME_WORKER_MEMORY_ENV_VARIABLE = "NCANIMATE_FRAME_WORKER_MEMORY_MB";
+    private static final String NCANIMATE_NO_DATA_WORKERS_ENV_VARIABLE = "NCANIMATE_NO_DATA_WORKERS";
+    private static final String NCANIMATE_NO_DATA_WORKER_MEMORY_ENV_VARIABLE = "NCANIMATE_NO_DATA_WORKER_MEMORY_MB";
+
+    private static final int DEFAULT_NO_DATA_WORKERS = 1;
+
+    // Rough estimation of the memory used by one ncanimate-frame JVM,
+    // used to size the pool when the number of workers is not specified.
+    private static final long DEFAULT_WORKER_MEMORY_MB = 4096;
+
+    private FrameGenerator frameGenerator;
+    private int poolSize;
+    private int noDataPoolSize;
+
+    private ExecutorService executor;
+    private ExecutorService noDataExecutor;
+    private CompletionService<FrameGroup> completionService;
+    private CompletionService<FrameGroup> noDataCompletionService;
+    // Shared by both completion services, so take() returns the first group to finish in either of them
+    private BlockingQueue<Future<FrameGroup>> completionQueue;
+    private int inFlightCount;
+    private int noDataInFlightCount;
+    // Frame group of each submitted task, to know which worker count to release when a task fails
+    private Map<Future<FrameGroup>, FrameGroup> submittedGroups;
+
+    public FrameGeneratorPool(FrameGenerator frameGenerator, int poolSize) {
+        this(frameGenerator, poolSize, FrameGeneratorPool.getDefaultNoDataPoolSize());
+    }
+
+    /**
+     * @param poolSize Number of workers generating frames from input files.
+     * @param noDataPoolSize Number of workers generating "No data" frames.
+     *     Set to 0 to generate them with the other workers.
+     */
+    public FrameGeneratorPool(FrameGenerator frameGenerator, int poolSize, int noDataPoolSize) {
+        this.frameGenerator = frameGenerator;
+        this.poolSize = Math.max(1, poolSize);
+        this.noDataPoolSize = Math.max(0, noDataPoolSize);
+        this.inFlightCount = 0;
+        this.noDataInFlightCount = 0;
+        this.submittedGroups = new HashMap<Future<FrameGroup>, FrameGroup>();
+
+        // The heap of the NcAnimate JVM is sized for a single ncanimate-frame generating its frames
+        if (this.frameGenerator.isInProcess() && this.poolSize + this.noDataPoolSize > 1) {
+            this.frameGenerator.disableInProcess(String.format(
+                    "%d frame workers and %d \"No data\" workers would share the NcAnimate JVM heap. " +
+                    "Set the environment variables %s to 1 and %s to 0",
+                    this.poolSize, this.noDataPoolSize, NCANIMATE_FRAME_WORKERS_ENV_VARIABLE, NCANIMATE_NO_DATA_WORKERS_ENV_VARIABLE), null);
+        }
+
+        this.frameGenerator.setNoDataMaxHeapMB(EnvironmentVariables.getInteger(
+                NCANIMATE_NO_DATA_WORKER_MEMORY_ENV_VARIABLE, this.frameGenerator.getNoDataMaxHeapMB(), 1));
+        // The memory of this JVM and of the "No data" JVMs is not available to the other ncanimate-frame JVMs
+        long reservedMemoryMB = FrameGeneratorPool.getParentMemory() / (1024 * 1024)
+                + (long)this.noDataPoolSize * this.frameGenerator.getNoDataMaxHeapMB();
+
+        // Share the memory left between the ncanimate-frame JVMs
+        this.frameGenerator.setMaxRamPercentage(FrameGeneratorPool.getMaxRamPercentage(
+                FrameGeneratorPool.getTotalMemory(), reservedMemoryMB * 1024 * 1024) / this.poolSize);
+        // Used by the automatic heap
+        FrameLaunchProfile launchProfile = this.frameGenerator.getLaunchProfile();
+        launchProfile.setWorkers(this.poolSize, reservedMemoryMB);
+        LOGGER.info(String.format("NcAnimate frame launch profile: %s", launchProfile));
+
+        this.completionQueue = new LinkedBlockingQueue<Future<FrameGroup>>();
+        this.executor = Executors.newFixedThreadPool(this.poolSize);
+        this.completionService = new ExecutorCompletionService<FrameGroup>(this.executor, this.completionQueue);
+        if (this.noDataPoolSize > 0) {
+            this.noDataExecutor = Executors.newFixedThreadPool(this.noDataPoolSize);
+            this.noDataCompletionService = new ExecutorCompletionService<FrameGroup>(this.noDataExecutor, this.completionQueue);
+        }
+    }
+
+    public int getPoolSize() {
+        return this.poolSize;
+    }
+
+    public int getNoDataPoolSize() {
+        return this.noDataPoolSize;
+    }
+
+    public int getInFlightCount() {
+        return this.inFlightCount + this.noDataInFlightCount;
+    }
+
+    /**
+     * @return true if a frame group can be submitted: with or without input files.
+     */
+    public boolean hasCapacity() {
+        return this.hasDataCapacity() || this.hasNoDataCapacity();
+    }
+
+    /**
+     * @return true if a frame group with input files can be submitted.
+     */
+    public boolean hasDataCapacity() {
+        return this.inFlightCount < this.poolSize;
+    }
+
+    /**
+     * @return true if a frame group without input files ("No data" frames) can be submitted.
+     */
+    public boolean hasNoDataCapacity() {
+        if (this.noDataCompletionService == null) {
+            return this.hasDataCapacity();
+        }
+        return this.noDataInFlightCount < this.noDataPoolSize;
+    }
+
+    /**
+     * Queue the generation of the frames for a frame group.
+     * The generation starts as soon as a worker is available.
+     * @param nextInputMetadataIds Input files of the group which are also used by the next groups.
+     */
+    public void submit(NcAnimateConfigBean ncanimateConfig, FrameGroup frameGroup, Set<String> nextInputMetadataIds) {
+        this.submit(ncanimateConfig, frameGroup, Collections.singletonList(frameGroup.getDateRange()), nextInputMetadataIds);
+    }
+
+    /**
+     * Queue the generation of some of the frames of a frame group.
+     * The frame group is returned by {@link #take()} once all the date ranges are generated.
+     * @param renderDateRanges Date ranges to generate, within the frame group date range.
+     *     Used when the other frames of the group are already available.
+     * @param nextInputMetadataIds Input files of the group which are also used by the next groups.
+     */
+    public void submit(final NcAnimateConfigBean ncanimateConfig, final FrameGroup frameGroup,
+            final List<DateTimeRange> renderDateRanges, final Set<String> nextInputMetadataIds) {
+
+        if (frameGroup.isNoData() && this.noDataCompletionService != null) {
+            Future<FrameGroup> future = this.noDataCompletionService.submit(new Callable<FrameGroup>() {
+                @Override
+                public FrameGroup call() throws Exception {
+                    for (DateTimeRange renderDateRange : renderDateRanges) {
+                        FrameGeneratorPool.this.frameGenerator.generateNoDataFrames(ncanimateConfig, renderDateRange);
+                    }
+                    return frameGroup;
+                }
+            });
+            this.submittedGroups.put(future, frameGroup);
+            this.noDataInFlightCount++;
+            return;
+        }
+
+        Future<FrameGroup> future = this.completionService.submit(new Callable<FrameGroup>() {
+            @Override
+            public FrameGroup call() throws Exception {
+                for (DateTimeRange renderDateRange : renderDateRanges) {
+                    FrameGeneratorPool.this.frameGenerator.generateFrames(ncanimateConfig, renderDateRange, frameGroup.getMetadataIds(), nextInputMetadataIds);
+                }
+                return frameGroup;
+            }
+        });
+        this.submittedGroups.put(future, frameGroup);
+        this.inFlightCount++;
+    }
+
+    /**
+     * Wait for the next frame group to finish.
+     * @return The frame group which has finished, or null if there is no frame group in progress.
+     * @throws Exception The exception thrown by the frame generator, if the generation failed.
+     */
+    public FrameGroup take() throws Exception {
+        if (this.getInFlightCount() <= 0) {
+            return null;
+        }
+
+        Future<FrameGroup> future = this.completionQueue.take();
+        // Release the worker of the group, whether it succeeded or failed
+        this.release(this.submittedGroups.remove(future));
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception)cause;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Stop the workers.
+     * Subprocesses which are still running are interrupted,
+     * and the long-lived ncanimate-frame processes are stopped (see {@link FrameWorker}).
+     */
+    public void shutdown() {
+        this.executor.shutdownNow();
+        if (this.noDataExecutor != null) {
+            this.noDataExecutor.shutdownNow();
+        }
+        this.frameGenerator.closeWorkers();
+    }
+
+    private void release(FrameGroup frameGroup) {
+        if (frameGroup.isNoData() && this.noDataCompletionService != null) {
+            this.noDataInFlightCount--;
+        } else {
+            this.inFlightCount--;
+        }
+    }
+
+    /**
+     * Number of workers generating "No data" frames.
+     * Use the environment variable "NCANIMATE_NO_DATA_WORKERS" if set.
+     */
+    public static int getDefaultNoDataPoolSize() {
+        return EnvironmentVariables.getInteger(NCANIMATE_NO_DATA_WORKERS_ENV_VARIABLE, DEFAULT_NO_DATA_WORKERS, 0);
+    }
+
+    /**
+     * Number of workers to use when none is specified.
+     * Use the environment variable "NCANIMATE_FRAME_WORKERS" if set,
+     * otherwise use as many workers as the number of CPU cores
+     * and the available memory allow.
+     */
+    public static int getDefaultPoolSize() {
+        int workers = EnvironmentVariables.getInteger(NCANIMATE_FRAME_WORKERS_ENV_VARIABLE, 0, 1);
+        if (workers > 0) {
+            return workers;
+        }
+
+        long workerMemoryMB = EnvironmentVariables.getLong(NCANIMATE_FRAME_WORKER_MEMORY_ENV_VARIABLE, DEFAULT_WORKER_MEMORY_MB, 1);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        // Memory left for the workers, once the memory reserved for this JVM is removed
+        long availableMemoryMB = (FrameGeneratorPool.getTotalMemory() - FrameGeneratorPool.getParentMemory()) / (1024 * 1024);
+        int memoryBoundWorkers = (int)(availableMemoryMB / workerMemoryMB);
+
+        int poolSize = Math.max(1, Math.min(cores, memoryBoundWorkers));
+        LOGGER.info(String.format("Frame worker pool size: %d (%d cores, %d MB available, %d MB per worker)",
+                poolSize, cores, availableMemoryMB, workerMemoryMB));
+
+        return poolSize;
+    }
+
+    /**
+     * Percentage of the RAM given to all the ncanimate-frame JVMs, when their heap is not set.
+     * The heap of this JVM and of the "No data" JVMs is not available to them: with the default percentage,
+     * NcAnimate heap of 25% of the RAM and no "No data" JVM, the ncanimate-frame JVMs get 60% of the RAM.
+     * Used with unit tests.
+     * @param totalMemory Total memory of the machine, in bytes. 0 if unknown.
+     * @param reservedMemory Memory used by this JVM and the "No data" JVMs, in bytes.
+     */
+    static int getMaxRamPercentage(long totalMemory, long reservedMemory) {
+        if (totalMemory <= 0) {
+            return FrameGenerator.DEFAULT_MAX_RAM_PERCENTAGE;
+        }
+        long availableMemory = Math.max(0, totalMemory - reservedMemory);
+        return (int)(FrameGenerator.DEFAULT_MAX_RAM_PERCENTAGE * availableMemory / totalMemory);
+    }
+
+    /**
+     * Total memory of the machine, or the memory limit of the container.
+     */
+    private static long getTotalMemory() {
+        return FrameLaunchProfile.getMemoryLimit();
+    }
+
+    private static long getParentMemory() {
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        return maxMemory == Long.MAX_VALUE ? 0 : maxMemory;
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.ereefs.bean.metadata.TimeIncrement;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateRegionBean;
+import au.gov.aims.ereefs.bean.ncanimate.render.AbstractNcAnimateRenderFileBean;
+import au.gov.aims.ereefs.bean.ncanimate.render.NcAnimateRenderMapBean;
+import au.gov.aims.ncanimate.commons.generator.context.GeneratorContext;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import org.joda.time.DateTime;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compact identifier for frame files.
+ *
+ * A frame file is identified by its frame start date, its region,
+ * its target height and its format. Those are packed into a long:
+ * <pre>
+ *   bits 63-20: frame start date, in seconds since epoch (signed)
+ *   bits 19-10: region index
+ *   bits  9- 4: target height index
+ *   bits  3- 0: format index (0 = no format)
+ * </pre>
+ *
+ * The frame file path is only built when the file needs to be accessed,
+ * with {@link #getFrameFile(long)}. Sorting frame keys sorts the frames
+ * chronologically.
+ */
+public class FrameKeys {
+    private static final int FORMAT_BITS = 4;
+    private static final int HEIGHT_BITS = 6;
+    private static final int REGION_BITS = 10;
+
+    private static final int HEIGHT_SHIFT = FORMAT_BITS;
+    private static final int REGION_SHIFT = HEIGHT_SHIFT + HEIGHT_BITS;
+    private static final int DATE_SHIFT = REGION_SHIFT + REGION_BITS;
+
+    public static final int MAX_REGIONS = 1 << REGION_BITS;
+    public static final int MAX_TARGET_HEIGHTS = 1 << HEIGHT_BITS;
+    public static final int MAX_FORMATS = (1 << FORMAT_BITS) - 1;
+
+    private NcAnimateConfigBean ncAnimateConfig;
+    private TimeIncrement frameTimeIncrement;
+    private List<NcAnimateRegionBean> regions;
+    private List<Double> targetHeights;
+
+    // Frame start date in seconds => frame date range
+    private TreeMap<Long, DateTimeRange> frameDateRanges;
+
+    // Render file used to generate frames, for each format index.
+    private AbstractNcAnimateRenderFileBean[] formatRenderFiles;
+
+    /**
+     * @param ncAnimateConfig NcAnimate configuration
+     * @param frameTimeIncrement Frame time increment
+     * @param regionId Region to generate, or null to generate all the regions of the configuration
+     */
+    public FrameKeys(NcAnimateConfigBean ncAnimateConfig, TimeIncrement frameTimeIncrement, String regionId) {
+        this.ncAnimateConfig = ncAnimateConfig;
+        this.frameTimeIncrement = frameTimeIncrement;
+
+        this.regions = new ArrayList<NcAnimateRegionBean>();
+        Map<String, NcAnimateRegionBean> regionMap = ncAnimateConfig.getRegions();
+        if (regionMap != null) {
+            if (regionId != null) {
+                this.regions.add(regionMap.get(regionId));
+            } else {
+                this.regions.addAll(regionMap.values());
+            }
+        }
+        if (this.regions.size() > MAX_REGIONS) {
+            throw new IllegalArgumentException(String.format("Too many regions: %d. Maximum: %d", this.regions.size(), MAX_REGIONS));
+        }
+
+        this.targetHeights = ncAnimateConfig.getTargetHeights();
+        if (this.targetHeights == null || this.targetHeights.isEmpty()) {
+            this.targetHeights = new ArrayList<Double>();
+            this.targetHeights.add(null);
+        }
+        if (this.targetHeights.size() > MAX_TARGET_HEIGHTS) {
+            throw new IllegalArgumentException(String.format("Too many target heights: %d. Maximum: %d", this.targetHeights.size(), MAX_TARGET_HEIGHTS));
+        }
+
+        if (NcAnimateRenderMapBean.MapFormat.values().length > MAX_FORMATS) {
+            throw new IllegalStateException(String.format("Too many frame formats: %d. Maximum: %d",
+                    NcAnimateRenderMapBean.MapFormat.values().length, MAX_FORMATS));
+        }
+
+        this.frameDateRanges = new TreeMap<Long, DateTimeRange>();
+        this.formatRenderFiles = new AbstractNcAnimateRenderFileBean[MAX_FORMATS + 1];
+    }
+
+    /**
+     * Frame keys without NcAnimate configuration.
+     * Keys can be created, but not the frame files.
+     * Used with unit tests and benchmarks.
+     * @param regions Regions of the frames
+     * @param targetHeights Target heights of the frames
+     */
+    public FrameKeys(List<NcAnimateRegionBean> regions, List<Double> targetHeights) {
+        this.regions = new ArrayList<NcAnimateRegionBean>(regions);
+        this.targetHeights = new ArrayList<Double>(targetHeights);
+        this.frameDateRanges = new TreeMap<Long, DateTimeRange>();
+        this.formatRenderFiles = new AbstractNcAnimateRenderFileBean[MAX_FORMATS + 1];
+    }
+
+    public List<NcAnimateRegionBean> getRegions() {
+        return this.regions;
+    }
+
+    public List<Double> getTargetHeights() {
+        return this.targetHeights;
+    }
+
+    /**
+     * Get the key of a frame file, and remember the information
+     * needed to build its path later on.
+     */
+    public long getKey(int regionIndex, int heightIndex, DateTimeRange frameDateRange,
+            AbstractNcAnimateRenderFileBean renderFile, NcAnimateRenderMapBean.MapFormat frameFormat) {
+
+        long frameStartSeconds = FrameKeys.getStartSeconds(frameDateRange);
+        if (!this.frameDateRanges.containsKey(frameStartSeconds)) {
+            this.frameDateRanges.put(frameStartSeconds, frameDateRange);
+        }
+
+        int formatIndex = FrameKeys.getFormatIndex(frameFormat);
+        if (this.formatRenderFiles[formatIndex] == null) {
+            this.formatRenderFiles[formatIndex] = renderFile;
+        }
+
+        return FrameKeys.pack(frameStartSeconds, regionIndex, heightIndex, formatIndex);
+    }
+
+    /**
+     * Build the frame file identified by the key.
+     * @return The frame file, or null if the key is unknown.
+     */
+    public File getFrameFile(long key) {
+        DateTimeRange frameDateRange = this.frameDateRanges.get(FrameKeys.getStartSeconds(key));
+        int formatIndex = FrameKeys.getFormatIndex(key);
+        if (frameDateRange == null) {
+            return null;
+        }
+
+        GeneratorContext context = new GeneratorContext(this.ncAnimateConfig);
+        context.setFrameTimeIncrement(this.frameTimeIncrement);
+        context.setRegion(this.regions.get(FrameKeys.getRegionIndex(key)));
+        context.setTargetHeight(this.targetHeights.get(FrameKeys.getHeightIndex(key)));
+        context.setDateRange(frameDateRange);
+        context.setRenderFile(this.formatRenderFiles[formatIndex]);
+
+        return AbstractMediaGenerator.getFrameFile(context, frameDateRange, FrameKeys.getFormat(formatIndex));
+    }
+
+    /**
+     * @return The date range of the frame identified by the key, or null if the key is unknown.
+     */
+    public DateTimeRange getFrameDateRange(long key) {
+        return this.frameDateRanges.get(FrameKeys.getStartSeconds(key));
+    }
+
+    /**
+     * @return The number of distinct frame dates seen so far.
+     */
+    public int getFrameDateCount() {
+        return this.frameDateRanges.size();
+    }
+
+    public static long pack(long frameStartSeconds, int regionIndex, int heightIndex, int formatIndex) {
+        return (frameStartSeconds << DATE_SHIFT)
+                | ((long)regionIndex << REGION_SHIFT)
+                | ((long)heightIndex << HEIGHT_SHIFT)
+                | formatIndex;
+    }
+
+    public static long getStartSeconds(long key) {
+        // Arithmetic shift, to keep the sign of dates before 1970
+        return key >> DATE_SHIFT;
+    }
+
+    public static int getRegionIndex(long key) {
+        return (int)((key >>> REGION_SHIFT) & (MAX_REGIONS - 1));
+    }
+
+    public static int getHeightIndex(long key) {
+        return (int)((key >>> HEIGHT_SHIFT) & (MAX_TARGET_HEIGHTS - 1));
+    }
+
+    public static int getFormatIndex(long key) {
+        return (int)(key & MAX_FORMATS);
+    }
+
+    /**
+     * @return The region, target height and format of the frame, without its date.
+     */
+    public static int getVariant(long key) {
+        return (int)(key & ((1L << DATE_SHIFT) - 1));
+    }
+
+    /**
+     * Count the keys of the frames starting within a date range.
+     * @param sortedKeys Frame keys, sorted.
+     * @param dateRange Date range, start inclusive, end exclusive.
+     * @return The number of keys within the date range.
+     */
+    public static int countKeys(long[] sortedKeys, DateTimeRange dateRange) {
+        int[] bounds = FrameKeys.getBounds(sortedKeys, dateRange);
+        return Math.max(0, bounds[1] - bounds[0]);
+    }
+
+    /**
+     * Count the distinct frame start dates within a date range.
+     * @param sortedKeys Frame keys, sorted.
+     * @param dateRange Date range, start inclusive, end exclusive.
+     * @return The number of frame timesteps within the date range.
+     */
+    public static int countStartDates(long[] sortedKeys, DateTimeRange dateRange) {
+        int[] bounds = FrameKeys.getBounds(sortedKeys, dateRange);
+        int count = 0;
+        for (int i = bounds[0]; i < bounds[1]; i++) {
+            if (i == bounds[0] || FrameKeys.getStartSeconds(sortedKeys[i]) != FrameKeys.getStartSeconds(sortedKeys[i - 1])) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the keys of the frames starting within a date range.
+     * @param sortedKeys Keys, in chronological order.
+     * @param dateRange The date range.
+     * @return The keys of the frames within the date range, in chronological order.
+     */
+    public static long[] getKeys(long[] sortedKeys, DateTimeRange dateRange) {
+        int[] bounds = FrameKeys.getBounds(sortedKeys, dateRange);
+        return bounds[1] <= bounds[0] ? new long[0] : Arrays.copyOfRange(sortedKeys, bounds[0], bounds[1]);
+    }
+
+    // Index of the first key within the date range, and index after the last one
+    private static int[] getBounds(long[] sortedKeys, DateTimeRange dateRange) {
+        DateTime startDate = dateRange == null ? null : dateRange.getStartDate();
+        DateTime endDate = dateRange == null ? null : dateRange.getEndDate();
+
+        int from = startDate == null ? 0 :
+                FrameKeys.getInsertionIndex(sortedKeys, FrameKeys.pack(Math.floorDiv(startDate.getMillis(), 1000L), 0, 0, 0));
+        int to = endDate == null ? sortedKeys.length :
+                FrameKeys.getInsertionIndex(sortedKeys, FrameKeys.pack(Math.floorDiv(endDate.getMillis(), 1000L), 0, 0, 0));
+
+        return new int[] { from, to };
+    }
+
+    // Index of the first key greater or equal to the given key
+    private static int getInsertionIndex(long[] sortedKeys, long key) {
+        int index = Arrays.binarySearch(sortedKeys, key);
+        return index < 0 ? -(index + 1) : index;
+    }
+
+    /**
+     * Sort the keys and remove duplicates.
+     * @param keys Array of keys. It gets sorted.
+     * @param length Number of keys in the array.
+     * @return A new array containing the unique keys, in chronological order.
+     */
+    public static long[] sortUnique(long[] keys, int length) {
+        Arrays.sort(keys, 0, length);
+
+        int uniqueLength = 0;
+        for (int i = 0; i < length; i++) {
+            if (uniqueLength == 0 || keys[uniqueLength - 1] != keys[i]) {
+                keys[uniqueLength++] = keys[i];
+            }
+        }
+
+        return Arrays.copyOf(keys, uniqueLength);
+    }
+
+    private static long getStartSeconds(DateTimeRange frameDateRange) {
+        return Math.floorDiv(frameDateRange.getStartDate().getMillis(), 1000L);
+    }
+
+    private static int getFormatIndex(NcAnimateRenderMapBean.MapFormat frameFormat) {
+        return frameFormat == null ? 0 : frameFormat.ordinal() + 1;
+    }
+
+    private static NcAnimateRenderMapBean.MapFormat getFormat(int formatIndex) {
+        return formatIndex == 0 ? null : NcAnimateRenderMapBean.MapFormat.values()[formatIndex - 1];
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.ncanimate.EnvironmentVariables;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.regex.Pattern;
+
+/**
+ * JVM options used to start ncanimate-frame: heap size, garbage collector and extra options.
+ *
+ * The heap can be set in 3 ways:
+ * <ul>
+ *   <li>Fixed heap: every ncanimate-frame JVM gets the same heap ("NCANIMATE_FRAME_HEAP_MB").</li>
+ *   <li>Automatic heap ("NCANIMATE_FRAME_HEAP_AUTO"): the heap is estimated from the number of frame
+ *     timesteps in the date range, and capped to the share of the container memory left for each
+ *     ncanimate-frame JVM, once the memory of the NcAnimate JVM and of the "No data" JVMs are removed.</li>
+ *   <li>Percentage of the RAM (default): the percentage is shared between the ncanimate-frame JVMs
+ *     running at once (see {@link FrameGeneratorPool}).</li>
+ * </ul>
+ *
+ * NOTE: NcAnimate doesn't know the grid size of the input files. The memory used for each timestep
+ *     ("NCANIMATE_FRAME_HEAP_MB_PER_TIMESTEP") needs to be raised for products using large grids (GBR1, etc).
+ */
+public class FrameLaunchProfile {
+    private static final Logger LOGGER = Logger.getLogger(FrameLaunchProfile.class);
+
+    private static final String NCANIMATE_FRAME_HEAP_MB_ENV_VARIABLE = "NCANIMATE_FRAME_HEAP_MB";
+    private static final String NCANIMATE_FRAME_HEAP_AUTO_ENV_VARIABLE = "NCANIMATE_FRAME_HEAP_AUTO";
+    private static final String NCANIMATE_FRAME_HEAP_MB_PER_TIMESTEP_ENV_VARIABLE = "NCANIMATE_FRAME_HEAP_MB_PER_TIMESTEP";
+    private static final String NCANIMATE_FRAME_GC_ENV_VARIABLE = "NCANIMATE_FRAME_GC";
+    private static final String NCANIMATE_FRAME_JAVA_OPTS_ENV_VARIABLE = "NCANIMATE_FRAME_JAVA_OPTS";
+
+    public static final int DEFAULT_HEAP_MB_PER_TIMESTEP = 16;
+
+    // Heap needed by ncanimate-frame before loading any data: libraries, configuration, layers, etc.
+    private static final long BASE_HEAP_MB = 1024;
+    private static final long MIN_HEAP_MB = 512;
+    // Share of the memory of a JVM which can be used by its heap.
+    // The rest is used by the metaspace, the thread stacks, the native libraries, etc.
+    private static final int HEAP_SHARE_PERCENTAGE = 75;
+
+    // Memory limit of the container, for cgroup v2 and cgroup v1
+    private static final File CGROUP_V2_MEMORY_LIMIT_FILE = new File("/sys/fs/cgroup/memory.max");
+    private static final File CGROUP_V1_MEMORY_LIMIT_FILE = new File("/sys/fs/cgroup/memory/memory.limit_in_bytes");
+    // cgroup v1 reports a huge number when there is no limit
+    private static final long CGROUP_UNLIMITED = 1L << 60;
+
+    private static final Pattern GC_NAME_PATTERN = Pattern.compile("[A-Za-z0-9]+");
+
+    private Integer heapMB;
+    private boolean autoHeap;
+    private int heapMBPerTimestep;
+    private int maxRamPercentage;
+    private String garbageCollector;
+    private String extraOptions;
+
+    private long memoryLimitBytes;
+    private long reservedMB;
+    private int workers;
+
+    public FrameLaunchProfile() {
+        this.heapMB = null;
+        this.autoHeap = false;
+        this.heapMBPerTimestep = DEFAULT_HEAP_MB_PER_TIMESTEP;
+        this.maxRamPercentage = FrameGenerator.DEFAULT_MAX_RAM_PERCENTAGE;
+        this.garbageCollector = null;
+        this.extraOptions = null;
+
+        this.memoryLimitBytes = -1;
+        this.reservedMB = 0;
+        this.workers = 1;
+    }
+
+    /**
+     * Create a profile using the environment variables.
+     */
+    public static FrameLaunchProfile getDefaultProfile() {
+        FrameLaunchProfile profile = new FrameLaunchProfile();
+
+        profile.setHeapMB(EnvironmentVariables.getInteger(NCANIMATE_FRAME_HEAP_MB_ENV_VARIABLE));
+        profile.setAutoHeap(EnvironmentVariables.getBoolean(NCANIMATE_FRAME_HEAP_AUTO_ENV_VARIABLE, false));
+        profile.setHeapMBPerTimestep(EnvironmentVariables.getInteger(
+                NCANIMATE_FRAME_HEAP_MB_PER_TIMESTEP_ENV_VARIABLE, DEFAULT_HEAP_MB_PER_TIMESTEP, 0));
+        profile.setGarbageCollector(EnvironmentVariables.getString(NCANIMATE_FRAME_GC_ENV_VARIABLE));
+        profile.setExtraOptions(EnvironmentVariables.getString(NCANIMATE_FRAME_JAVA_OPTS_ENV_VARIABLE));
+
+        return profile;
+    }
+
+    /**
+     * @param heapMB Maximum heap of each ncanimate-frame JVM, in MB. Set to null to use the automatic heap or the percentage of the RAM.
+     */
+    public void setHeapMB(Integer heapMB) {
+        this.heapMB = heapMB == null || heapMB <= 0 ? null : heapMB;
+    }
+
+    public void setAutoHeap(boolean autoHeap) {
+        this.autoHeap = autoHeap;
+    }
+
+    /**
+     * @param heapMBPerTimestep Heap used by ncanimate-frame for each frame timestep of the date range, in MB.
+     */
+    public void setHeapMBPerTimestep(int heapMBPerTimestep) {
+        this.heapMBPerTimestep = Math.max(0, heapMBPerTimestep);
+    }
+
+    /**
+     * Set the percentage of the RAM each ncanimate-frame JVM can use,
+     * when the heap is not fixed or automatic.
+     */
+    public void setMaxRamPercentage(int maxRamPercentage) {
+        this.maxRamPercentage = Math.max(1, maxRamPercentage);
+    }
+
+    /**
+     * @param garbageCollector Name of the garbage collector (G1, Parallel, Serial, etc),
+     *     or the JVM option selecting it (-XX:+UseG1GC). Set to null to use the JVM default.
+     */
+    public void setGarbageCollector(String garbageCollector) {
+        String trimmed = garbageCollector == null ? null : garbageCollector.trim();
+        if (trimmed == null || trimmed.isEmpty()) {
+            this.garbageCollector = null;
+        } else if (trimmed.startsWith("-")) {
+            this.garbageCollector = trimmed;
+        } else if (GC_NAME_PATTERN.matcher(trimmed).matches()) {
+            this.garbageCollector = String.format("-XX:+Use%sGC", trimmed.endsWith("GC") ?
+                    trimmed.substring(0, trimmed.length() - 2) : trimmed);
+        } else {
+            LOGGER.warn(String.format("Invalid garbage collector for ncanimate-frame: %s", garbageCollector));
+            this.garbageCollector = null;
+        }
+    }
+
+    /**
+     * @param extraOptions Extra JVM options, added at the end so they can override the other options.
+     */
+    public void setExtraOptions(String extraOptions) {
+        String trimmed = extraOptions == null ? null : extraOptions.trim();
+        this.extraOptions = trimmed == null || trimmed.isEmpty() ? null : trimmed;
+    }
+
+    /**
+     * Set the memory limit of the container.
+     * Used with unit tests.
+     */
+    public void setMemoryLimitBytes(long memoryLimitBytes) {
+        this.memoryLimitBytes = memoryLimitBytes;
+    }
+
+    /**
+     * Set how many ncanimate-frame JVMs share the memory.
+     * @param workers Number of ncanimate-frame JVMs running at once.
+     * @param reservedMB Memory used by the other processes (NcAnimate JVM, "No data" JVMs, etc), in MB.
+     */
+    public void setWorkers(int workers, long reservedMB) {
+        this.workers = Math.max(1, workers);
+        this.reservedMB = Math.max(0, reservedMB);
+    }
+
+    /**
+     * @param frameTimestepCount Number of frame timesteps in the date range, or -1 if unknown.
+     * @return The JVM options used to start ncanimate-frame.
+     */
+    public String getJavaOptions(int frameTimestepCount) {
+        return this.getJavaOptions(this.getMemoryOption(frameTimestepCount));
+    }
+
+    /**
+     * @param memoryOption The JVM option limiting the memory used by ncanimate-frame.
+     * @return The JVM options used to start ncanimate-frame, with the given memory option.
+     */
+    public String getJavaOptions(String memoryOption) {
+        StringBuilder javaOptions = new StringBuilder(memoryOption);
+        if (this.garbageCollector != null) {
+            javaOptions.append(' ').append(this.garbageCollector);
+        }
+        if (this.extraOptions != null) {
+            javaOptions.append(' ').append(this.extraOptions);
+        }
+        return javaOptions.toString();
+    }
+
+    /**
+     * @param frameTimestepCount Number of frame timesteps in the date range, or -1 if unknown.
+     * @return The JVM option limiting the memory used by ncanimate-frame.
+     */
+    public String getMemoryOption(int frameTimestepCount) {
+        if (this.heapMB != null) {
+            return String.format("-Xmx%dm", this.heapMB);
+        }
+        if (this.autoHeap) {
+            long autoHeapMB = this.getAutoHeapMB(frameTimestepCount);
+            if (autoHeapMB > 0) {
+                return String.format("-Xmx%dm", autoHeapMB);
+            }
+        }
+        return String.format("-XX:MaxRAMPercentage=%d.0", this.maxRamPercentage);
+    }
+
+    /**
+     * Estimate the heap needed to generate the frames of a date range,
+     * within the memory available for each ncanimate-frame JVM.
+     * @param frameTimestepCount Number of frame timesteps in the date range, or -1 if unknown.
+     * @return The heap, in MB, or -1 if the memory limit of the container is unknown.
+     */
+    public long getAutoHeapMB(int frameTimestepCount) {
+        long budgetMB = this.getHeapBudgetMB();
+        if (budgetMB <= 0) {
+            return -1;
+        }
+        if (frameTimestepCount < 0) {
+            return budgetMB;
+        }
+
+        long estimatedMB = BASE_HEAP_MB + (long)frameTimestepCount * this.heapMBPerTimestep;
+        return Math.max(MIN_HEAP_MB, Math.min(estimatedMB, budgetMB));
+    }
+
+    /**
+     * @return The maximum heap of each ncanimate-frame JVM, so they all fit in the container memory.
+     *     In MB, or -1 if the memory limit of the container is unknown.
+     */
+    public long getHeapBudgetMB() {
+        long limitBytes = this.memoryLimitBytes > 0 ? this.memoryLimitBytes : FrameLaunchProfile.getMemoryLimit();
+        if (limitBytes <= 0) {
+            return -1;
+        }
+
+        long availableMB = limitBytes / (1024 * 1024) - this.reservedMB;
+        long workerMB = availableMB / this.workers;
+        return Math.max(MIN_HEAP_MB, workerMB * HEAP_SHARE_PERCENTAGE / 100);
+    }
+
+    /**
+     * Memory limit of the container (cgroup), or the total memory of the machine if there is no limit.
+     * @return The memory limit, in bytes, or 0 if unknown.
+     */
+    public static long getMemoryLimit() {
+        Long cgroupLimit = FrameLaunchProfile.readCgroupLimit(CGROUP_V2_MEMORY_LIMIT_FILE);
+        if (cgroupLimit == null) {
+            cgroupLimit = FrameLaunchProfile.readCgroupLimit(CGROUP_V1_MEMORY_LIMIT_FILE);
+        }
+
+        long totalMemory = 0;
+        OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+        if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+            totalMemory = ((com.sun.management.OperatingSystemMXBean)osBean).getTotalPhysicalMemorySize();
+        }
+
+        if (cgroupLimit != null && (totalMemory <= 0 || cgroupLimit < totalMemory)) {
+            return cgroupLimit;
+        }
+        return totalMemory;
+    }
+
+    private static Long readCgroupLimit(File limitFile) {
+        if (!limitFile.isFile()) {
+            return null;
+        }
+        try {
+            return FrameLaunchProfile.parseCgroupLimit(new String(Files.readAllBytes(limitFile.toPath()), StandardCharsets.UTF_8));
+        } catch(IOException ex) {
+            LOGGER.debug(String.format("Could not read the memory limit: %s", limitFile), ex);
+            return null;
+        }
+    }
+
+    /**
+     * @param value Content of the cgroup memory limit file.
+     * @return The memory limit, in bytes, or null if there is no limit.
+     */
+    static Long parseCgroupLimit(String value) {
+        String trimmed = value == null ? "" : value.trim();
+        if (trimmed.isEmpty() || "max".equals(trimmed)) {
+            return null;
+        }
+        try {
+            long limit = Long.parseLong(trimmed);
+            return limit <= 0 || limit >= CGROUP_UNLIMITED ? null : limit;
+        } catch(NumberFormatException ex) {
+            LOGGER.warn(String.format("Invalid cgroup memory limit: %s", value));
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        String heap;
+        if (this.heapMB != null) {
+            heap = String.format("fixed heap of %d MB", this.heapMB);
+        } else if (this.autoHeap) {
+            heap = String.format("automatic heap, %d MB per timestep, up to %d MB", this.heapMBPerTimestep, this.getHeapBudgetMB());
+        } else {
+            heap = String.format("%d%% of the RAM", this.maxRamPercentage);
+        }
+        return String.format("%s, %d workers, garbage collector: %s, extra options: %s",
+                heap, this.workers,
+                this.garbageCollector == null ? "default" : this.garbageCollector,
+                this.extraOptions == null ? "none" : this.extraOptions);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of ncanimate-frame, for a date range.
+ *
+ * ncanimate-frame writes a progress line on its standard output for each frame it generates:
+ *     NCANIMATE_FRAME_PROGRESS {"file": "/tmp/ncanimate/frame/.../frame_2010-09-01_00h00.png", "millis": 250}
+ * where "millis" is the time spent generating the frame.
+ *
+ * The lines are parsed as they are written, so the number of frames generated
+ * is known without listing the frame directory.
+ */
+public class FrameProgress {
+    private static final Logger LOGGER = Logger.getLogger(FrameProgress.class);
+
+    public static final String PROGRESS_PREFIX = "NCANIMATE_FRAME_PROGRESS ";
+
+    // Log the progress every X frames
+    private static final int LOG_INTERVAL = 100;
+
+    private final String label;
+    // Frames generated by all the date ranges. Can be null.
+    private final AtomicLong totalFrameCount;
+
+    private final AtomicInteger frameCount;
+    private final AtomicLong totalMillis;
+    private final AtomicLong maxMillis;
+    private volatile String lastFrame;
+
+    /**
+     * @param label Label used in the logs, to identify the date range.
+     * @param totalFrameCount Counter of the frames generated by all the date ranges. Can be null.
+     */
+    public FrameProgress(String label, AtomicLong totalFrameCount) {
+        this.label = label;
+        this.totalFrameCount = totalFrameCount;
+        this.frameCount = new AtomicInteger(0);
+        this.totalMillis = new AtomicLong(0);
+        this.maxMillis = new AtomicLong(0);
+        this.lastFrame = null;
+    }
+
+    /**
+     * Parse a line written by ncanimate-frame on its standard output.
+     * @param line The line.
+     * @return true if the line is a progress line. false if it's a line of log.
+     */
+    public boolean parse(String line) {
+        if (line == null || !line.startsWith(PROGRESS_PREFIX)) {
+            return false;
+        }
+
+        // The line says a frame was generated, even if its details can't be parsed
+        long millis = 0;
+        try {
+            JSONObject jsonProgress = new JSONObject(line.substring(PROGRESS_PREFIX.length()));
+            this.lastFrame = jsonProgress.optString("file", null);
+            millis = Math.max(0, jsonProgress.optLong("millis", 0));
+        } catch(Exception ex) {
+            LOGGER.debug(String.format("Invalid NcAnimate frame progress line: %s", line), ex);
+        }
+
+        this.addFrame(millis);
+        return true;
+    }
+
+    private void addFrame(long millis) {
+        int count = this.frameCount.incrementAndGet();
+        this.totalMillis.addAndGet(millis);
+        long currentMax;
+        while (millis > (currentMax = this.maxMillis.get()) && !this.maxMillis.compareAndSet(currentMax, millis)) {
+            // Retry until the max is updated
+        }
+        if (this.totalFrameCount != null) {
+            this.totalFrameCount.incrementAndGet();
+        }
+
+        if (count % LOG_INTERVAL == 0) {
+            LOGGER.info(String.format("%s: %d frames generated (%.1f ms per frame)", this.label, count, this.getAverageMillis()));
+        }
+    }
+
+    public int getFrameCount() {
+        return this.frameCount.get();
+    }
+
+    public long getTotalMillis() {
+        return this.totalMillis.get();
+    }
+
+    public long getMaxMillis() {
+        return this.maxMillis.get();
+    }
+
+    public double getAverageMillis() {
+        int count = this.frameCount.get();
+        return count <= 0 ? 0 : (double)this.totalMillis.get() / count;
+    }
+
+    /**
+     * @return The file of the last frame generated, or null if none was reported.
+     */
+    public String getLastFrame() {
+        return this.lastFrame;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d frames, %.1f ms per frame (max %d ms)",
+                this.getFrameCount(), this.getAverageMillis(), this.getMaxMillis());
+    }
+}
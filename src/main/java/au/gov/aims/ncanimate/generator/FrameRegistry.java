@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+
+/**
+ * Keep track of the frame files needed by the products (videos and maps)
+ * which are not generated yet.
+ *
+ * Each frame has a reference count: the number of pending products
+ * which needs it. A product registers its frames before the generation starts,
+ * and releases them once it's generated. The frames which are not needed by
+ * any pending product anymore are returned, so their files can be deleted.
+ *
+ * Frames are identified by their {@link FrameKeys} key. The cost of releasing
+ * a product is proportional to the number of frames of that product,
+ * regardless of the number of products still pending.
+ */
+public class FrameRegistry {
+    private static final Logger LOGGER = Logger.getLogger(FrameRegistry.class);
+
+    // Frame key => number of pending products which needs the frame
+    private LongIntHashMap referenceCounts;
+
+    public FrameRegistry() {
+        this.referenceCounts = new LongIntHashMap();
+    }
+
+    /**
+     * Register the frames needed by a product.
+     * @param productFrameKeys Unique frame keys of the product.
+     */
+    public void register(long[] productFrameKeys) {
+        if (productFrameKeys == null) {
+            return;
+        }
+
+        for (long productFrameKey : productFrameKeys) {
+            this.referenceCounts.add(productFrameKey, 1);
+        }
+    }
+
+    /**
+     * Release the frames of a product which has been generated.
+     * @param productFrameKeys Unique frame keys of the product, as registered.
+     * @return The keys of the frames which are not needed anymore.
+     */
+    public long[] release(long[] productFrameKeys) {
+        if (productFrameKeys == null) {
+            return new long[0];
+        }
+
+        long[] unneededFrameKeys = new long[productFrameKeys.length];
+        int unneededCount = 0;
+        for (long productFrameKey : productFrameKeys) {
+            if (this.referenceCounts.get(productFrameKey) <= 0) {
+                LOGGER.warn(String.format("Released a frame which was not registered: %d", productFrameKey));
+                continue;
+            }
+
+            if (this.referenceCounts.add(productFrameKey, -1) <= 0) {
+                unneededFrameKeys[unneededCount++] = productFrameKey;
+            }
+        }
+
+        return Arrays.copyOf(unneededFrameKeys, unneededCount);
+    }
+
+    /**
+     * @return The number of pending products which needs the frame.
+     */
+    public int getReferenceCount(long frameKey) {
+        return this.referenceCounts.get(frameKey);
+    }
+
+    /**
+     * @return The keys of the frames needed by the pending products, in chronological order.
+     */
+    public long[] getFrameKeys() {
+        return this.referenceCounts.getSortedKeys();
+    }
+
+    /**
+     * @return The number of frames needed by the pending products.
+     */
+    public int getFrameCount() {
+        return this.referenceCounts.size();
+    }
+}
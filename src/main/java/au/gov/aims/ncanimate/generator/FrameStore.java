@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.ncanimate.Digests;
+import au.gov.aims.ncanimate.EnvironmentVariables;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content addressed store of frame files.
+ *
+ * Many frames are byte identical: "No data" frames, frames of static layers
+ * when the input doesn't change, repeated frames of products with a coarse
+ * time increment, etc. NcAnimate frame writes each frame to its own
+ * file ({@link FrameKeys#getFrameFile(long)}). Once the frames of a date range
+ * are generated, they are added to the store: the content of each frame
+ * is stored once, in a file named after its SHA-256 digest, and the frame files
+ * become hard links to the stored file.
+ *
+ * The frame files can still be used and deleted as usual. The store keeps
+ * a reference count for each stored file, which is deleted when the last
+ * frame file linked to it is released.
+ *
+ * If the file system doesn't support hard links, the store gets disabled
+ * and the frame files are left untouched.
+ */
+public class FrameStore {
+    private static final Logger LOGGER = Logger.getLogger(FrameStore.class);
+    private static final String NCANIMATE_FRAME_DEDUP_ENV_VARIABLE = "NCANIMATE_FRAME_DEDUP";
+
+    private static final String STORE_DIRECTORY_NAME = "frameStore";
+
+    private File storeDirectory;
+    private boolean enabled;
+
+    // Digest => number of frame files linked to the stored file
+    private Map<String, Integer> referenceCounts;
+    // Frame file absolute path => digest
+    private Map<String, String> frameDigests;
+
+    // Statistics
+    private long frameCount;
+    private long duplicateCount;
+    private long savedBytes;
+
+    /**
+     * @param workingDirectory The NcAnimate working directory, where the frame files are generated.
+     *     The stored files have to be on the same file system as the frame files.
+     */
+    public FrameStore(File workingDirectory) {
+        this.storeDirectory = new File(workingDirectory, STORE_DIRECTORY_NAME);
+        this.enabled = true;
+
+        this.referenceCounts = new HashMap<String, Integer>();
+        this.frameDigests = new HashMap<String, String>();
+
+        this.frameCount = 0;
+        this.duplicateCount = 0;
+        this.savedBytes = 0;
+    }
+
+    /**
+     * Add a frame file which has just been generated to the store.
+     * If a frame with the same content is already stored, the frame file
+     * is replaced with a hard link to the stored file.
+     * @param frameFile The frame file.
+     * @return true if the frame was a duplicate of a stored frame.
+     */
+    public boolean add(File frameFile) {
+        if (frameFile == null || !frameFile.isFile() || !this.isEnabled()) {
+            return false;
+        }
+
+        // The frame file is read without locking the store,
+        // so frames generated by different threads can be added at the same time.
+        String digest;
+        try {
+            digest = Digests.sha256(frameFile);
+        } catch(IOException ex) {
+            LOGGER.warn(String.format("Could not read the frame file %s. Frame deduplication disabled.", frameFile), ex);
+            this.disable();
+            return false;
+        } catch(NoSuchAlgorithmException ex) {
+            LOGGER.error("Could not compute the frame digest. Frame deduplication disabled.", ex);
+            this.disable();
+            return false;
+        }
+
+        return this.add(frameFile, digest);
+    }
+
+    private synchronized boolean add(File frameFile, String digest) {
+        if (!this.enabled) {
+            return false;
+        }
+
+        String framePath = frameFile.getAbsolutePath();
+        if (this.frameDigests.containsKey(framePath)) {
+            // Already added
+            return false;
+        }
+
+        try {
+            File storedFile = this.getStoredFile(digest, frameFile);
+
+            boolean duplicate = false;
+            if (!storedFile.exists()) {
+                // First frame with this content
+                File storedParentDirectory = storedFile.getParentFile();
+                if (!storedParentDirectory.exists() && !storedParentDirectory.mkdirs()) {
+                    throw new IOException(String.format("Could not create the frame store directory: %s", storedParentDirectory));
+                }
+                Files.createLink(storedFile.toPath(), frameFile.toPath());
+            } else if (!Files.isSameFile(storedFile.toPath(), frameFile.toPath())) {
+                // Replace the frame file with a link to the stored file.
+                // The link is created next to the frame file, then moved over it,
+                // so the frame file is never missing.
+                long frameSize = frameFile.length();
+                File tempLink = new File(frameFile.getParentFile(), frameFile.getName() + ".link");
+                if (tempLink.exists() && !tempLink.delete()) {
+                    throw new IOException(String.format("Could not delete the temporary link: %s", tempLink));
+                }
+                Files.createLink(tempLink.toPath(), storedFile.toPath());
+                Files.move(tempLink.toPath(), frameFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                duplicate = true;
+                this.duplicateCount++;
+                this.savedBytes += frameSize;
+            }
+            // NOTE: A frame file already linked to the stored file was kept from a previous run of the task.
+            //     It only needs to be referenced.
+
+            Integer referenceCount = this.referenceCounts.get(digest);
+            this.referenceCounts.put(digest, referenceCount == null ? 1 : referenceCount + 1);
+            this.frameDigests.put(framePath, digest);
+            this.frameCount++;
+
+            return duplicate;
+        } catch(UnsupportedOperationException | IOException ex) {
+            LOGGER.warn(String.format("Could not add the frame file %s to the frame store. Frame deduplication disabled.", frameFile), ex);
+            this.enabled = false;
+        }
+
+        return false;
+    }
+
+    /**
+     * Release a frame file which has been deleted.
+     * The stored file is deleted when no other frame file is linked to it.
+     * @param frameFile The deleted frame file.
+     */
+    public synchronized void release(File frameFile) {
+        if (frameFile == null) {
+            return;
+        }
+
+        String digest = this.frameDigests.remove(frameFile.getAbsolutePath());
+        if (digest == null) {
+            // Not in the store
+            return;
+        }
+
+        Integer referenceCount = this.referenceCounts.get(digest);
+        if (referenceCount == null || referenceCount <= 1) {
+            this.referenceCounts.remove(digest);
+            File storedFile = this.getStoredFile(digest, frameFile);
+            if (storedFile.exists() && !storedFile.delete()) {
+                LOGGER.warn(String.format("Could not delete the stored frame file: %s", storedFile));
+            }
+        } else {
+            this.referenceCounts.put(digest, referenceCount - 1);
+        }
+    }
+
+    /**
+     * Digest of a frame file added to the store.
+     * Used to find identical frames without reading the frame files again.
+     * @param frameFile The frame file.
+     * @return The SHA-256 digest of the frame, or null if the frame is not in the store.
+     */
+    public synchronized String getFrameDigest(File frameFile) {
+        if (frameFile == null) {
+            return null;
+        }
+        return this.frameDigests.get(frameFile.getAbsolutePath());
+    }
+
+    public synchronized boolean isEnabled() {
+        return this.enabled;
+    }
+
+    private synchronized void disable() {
+        this.enabled = false;
+    }
+
+    /**
+     * @return The number of frame files added to the store.
+     */
+    public long getFrameCount() {
+        return this.frameCount;
+    }
+
+    /**
+     * @return The number of frame files which were replaced with a link to a frame with the same content.
+     */
+    public long getDuplicateCount() {
+        return this.duplicateCount;
+    }
+
+    /**
+     * @return The number of bytes freed by replacing the duplicated frame files with links.
+     */
+    public long getSavedBytes() {
+        return this.savedBytes;
+    }
+
+    /**
+     * @return The number of frames currently in the store (unique frame contents).
+     */
+    public int getStoredCount() {
+        return this.referenceCounts.size();
+    }
+
+    private File getStoredFile(String digest, File frameFile) {
+        // Keep the frame file extension, to be able to tell the file format
+        String extension = "";
+        String filename = frameFile.getName();
+        int dotIndex = filename.lastIndexOf('.');
+        if (dotIndex > 0) {
+            extension = filename.substring(dotIndex);
+        }
+
+        // Spread the files in sub directories, to keep directory listings short
+        return new File(new File(this.storeDirectory, digest.substring(0, 2)), digest + extension);
+    }
+
+    /**
+     * Use the environment variable "NCANIMATE_FRAME_DEDUP" if set.
+     * Computing the digest of every frame file takes time,
+     * so it's only worth it for products with many identical frames.
+     * @return true if identical frame files are stored once. Default: false.
+     */
+    public static boolean isDedupEnabled() {
+        return EnvironmentVariables.getBoolean(NCANIMATE_FRAME_DEDUP_ENV_VARIABLE, false);
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.ncanimate.SystemCallThread;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived ncanimate-frame process, started in worker mode.
+ *
+ * Instead of starting a new JVM for each date range, the worker receives
+ * the date ranges to generate on its standard input, one JSON request per line:
+ *     {"productId": "...", "startDate": "...", "endDate": "...", "inputMetadataIds": [...], "nextInputMetadataIds": [...]}
+ *
+ * Once the frames of the date range are generated, it writes a response line
+ * on its standard output, starting with {@link #RESPONSE_PREFIX}:
+ *     NCANIMATE_FRAME_WORKER_RESPONSE {"exitCode": 0, "frames": 96, "heapUsedMB": 1250, "heapMaxMB": 6000}
+ *
+ * The worker terminates when its standard input is closed.
+ *
+ * The edal and UCAR libraries leak memory. The worker is therefore recycled
+ * (see {@link #isWornOut(long, int)}) after generating a given number of frames,
+ * or when its heap gets too full.
+ */
+public class FrameWorker {
+    private static final Logger LOGGER = Logger.getLogger(FrameWorker.class);
+
+    public static final String WORKER_OPTION = "--worker";
+    public static final String RESPONSE_PREFIX = "NCANIMATE_FRAME_WORKER_RESPONSE ";
+
+    // Time given to the worker to terminate after its standard input is closed, before it gets killed
+    private static final long CLOSE_GRACE_PERIOD_MS = 10000;
+
+    // Response added to the queue when the process terminates, to release the thread waiting for a response
+    private static final JSONObject TERMINATED_RESPONSE = new JSONObject();
+
+    private final String key;
+    private final SystemCallThread systemCall;
+    private final BlockingQueue<JSONObject> responses;
+    private final CountDownLatch started;
+    private Writer stdin;
+
+    private int requestCount;
+    private long frameCount;
+    private long heapUsedMB;
+    private long heapMaxMB;
+    private volatile boolean terminated;
+    // Progress of the request being generated
+    private volatile FrameProgress progress;
+
+    /**
+     * @param key Identify the workers which can be used for the same requests.
+     * @param commandLine Command line starting ncanimate-frame in worker mode.
+     * @param environmentVariables Environment variables of the process.
+     */
+    public FrameWorker(String key, String commandLine, Map<String, String> environmentVariables) {
+        this.key = key;
+        this.responses = new LinkedBlockingQueue<JSONObject>();
+        this.started = new CountDownLatch(1);
+        this.requestCount = 0;
+        this.frameCount = 0;
+        this.heapUsedMB = 0;
+        this.heapMaxMB = 0;
+        this.terminated = false;
+
+        this.systemCall = new SystemCallThread(commandLine) {
+            @Override
+            public void onStart() {
+                LOGGER.info("STARTED WORKER: " + this.getCommandLine());
+                FrameWorker.this.started.countDown();
+            }
+
+            @Override
+            public void onStop(boolean succeed) {
+                LOGGER.info(String.format("END OF WORKER: %s (exit code %s)", this.getCommandLine(), this.getExitCode()));
+                FrameWorker.this.terminated = true;
+                FrameWorker.this.responses.offer(TERMINATED_RESPONSE);
+                FrameWorker.this.started.countDown();
+            }
+
+            @Override
+            public void onException(Exception ex) {
+                LOGGER.fatal(ex);
+            }
+
+            @Override
+            public void stdout(String logLine) {
+                FrameProgress currentProgress = FrameWorker.this.progress;
+                if (logLine != null && logLine.startsWith(RESPONSE_PREFIX)) {
+                    FrameWorker.this.onResponse(logLine.substring(RESPONSE_PREFIX.length()));
+                } else if (currentProgress == null || !currentProgress.parse(logLine)) {
+                    super.stdout(logLine);
+                }
+            }
+        };
+
+        if (environmentVariables != null) {
+            for (Map.Entry<String, String> environmentVariable : environmentVariables.entrySet()) {
+                this.systemCall.setEnvironmentVariable(environmentVariable.getKey(), environmentVariable.getValue());
+            }
+        }
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    public int getRequestCount() {
+        return this.requestCount;
+    }
+
+    public long getFrameCount() {
+        return this.frameCount;
+    }
+
+    public long getHeapUsedMB() {
+        return this.heapUsedMB;
+    }
+
+    public long getHeapMaxMB() {
+        return this.heapMaxMB;
+    }
+
+    public boolean isTerminated() {
+        return this.terminated;
+    }
+
+    /**
+     * Start the ncanimate-frame process and wait until it's running.
+     */
+    public void start() throws IOException, InterruptedException {
+        this.systemCall.start();
+        this.started.await();
+
+        OutputStream processInput = this.systemCall.getProcessInput();
+        if (this.terminated || processInput == null) {
+            throw new IOException(String.format("NcAnimate frame worker could not be started: %s",
+                    this.systemCall.getCommandLine()));
+        }
+        this.stdin = new OutputStreamWriter(processInput, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Send a request to the worker and wait for its response.
+     * Only one request can be sent at a time.
+     * @param request The date range to generate.
+     * @return The response of the worker.
+     * @throws IOException If the worker terminated before sending its response.
+     */
+    public JSONObject generate(JSONObject request) throws IOException, InterruptedException {
+        return this.generate(request, null);
+    }
+
+    /**
+     * Same as {@link #generate(JSONObject)}, with the progress lines written by the worker
+     * for this request added to the given progress.
+     */
+    public JSONObject generate(JSONObject request, FrameProgress progress) throws IOException, InterruptedException {
+        if (this.terminated || this.stdin == null) {
+            throw new IOException("NcAnimate frame worker is not running");
+        }
+
+        this.progress = progress;
+        JSONObject response;
+        try {
+            this.stdin.write(request.toString());
+            this.stdin.write('\n');
+            this.stdin.flush();
+
+            response = this.responses.take();
+        } finally {
+            this.progress = null;
+        }
+        if (response == TERMINATED_RESPONSE) {
+            throw new IOException(String.format("NcAnimate frame worker terminated while generating frames. Exit code: %s",
+                    this.systemCall.getExitCode()));
+        }
+
+        this.requestCount++;
+        this.frameCount += Math.max(0, response.optLong("frames", 0));
+        this.heapUsedMB = response.optLong("heapUsedMB", 0);
+        this.heapMaxMB = response.optLong("heapMaxMB", 0);
+
+        return response;
+    }
+
+    private void onResponse(String rawResponse) {
+        try {
+            this.responses.offer(new JSONObject(rawResponse));
+        } catch(JSONException ex) {
+            LOGGER.error(String.format("Invalid NcAnimate frame worker response: %s", rawResponse), ex);
+            this.responses.offer(new JSONObject().put("exitCode", SystemCallThread.ERROR));
+        }
+    }
+
+    /**
+     * @param maxFrames Number of frames after which the worker is recycled.
+     * @param maxHeapPercentage Percentage of the heap used after which the worker is recycled.
+     * @return true if the worker needs to be recycled.
+     */
+    public boolean isWornOut(long maxFrames, int maxHeapPercentage) {
+        if (this.terminated) {
+            return true;
+        }
+        if (maxFrames > 0 && this.frameCount >= maxFrames) {
+            return true;
+        }
+        return this.heapMaxMB > 0 && this.heapUsedMB * 100 >= this.heapMaxMB * maxHeapPercentage;
+    }
+
+    /**
+     * Close the worker standard input, so it terminates once it's done.
+     * The process is killed if it doesn't terminate in time.
+     */
+    public void close() {
+        if (this.stdin != null) {
+            try {
+                this.stdin.close();
+            } catch(IOException ex) {
+                LOGGER.debug("Could not close the NcAnimate frame worker standard input", ex);
+            }
+        }
+
+        try {
+            this.systemCall.join(CLOSE_GRACE_PERIOD_MS);
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.systemCall.isAlive()) {
+            this.kill();
+        }
+    }
+
+    /**
+     * Terminate the worker process.
+     */
+    public void kill() {
+        this.systemCall.kill();
+        try {
+            this.systemCall.join(TimeUnit.SECONDS.toMillis(1));
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.ncanimate.SystemCallThread;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Run ncanimate-frame inside the NcAnimate JVM, in its own class loader.
+ *
+ * The ncanimate-frame jar is loaded in a {@link URLClassLoader} which doesn't see
+ * the NcAnimate classes. The class loader is used for a batch of date ranges,
+ * so the rendering code stays JIT-compiled, then it's dropped with the threads
+ * it started, so the memory leaked by the edal and UCAR libraries can be reclaimed.
+ * {@link #dispose()} tells if the class loader was actually reclaimed.
+ *
+ * The main class of the jar needs to provide the entry point:
+ *     public static int run(String[] args, Map<String, String> environment, Consumer<String> progress)
+ * which takes the same parameters as the main method and the environment variables
+ * (which can't be set for a running JVM), and returns the exit code instead of calling System.exit.
+ * ncanimate-frame gives its progress lines (see {@link FrameProgress}) to the progress consumer,
+ * instead of writing them on the standard output shared with NcAnimate.
+ * Versions of ncanimate-frame which don't report their progress provide the entry point:
+ *     public static int run(String[] args, Map<String, String> environment)
+ */
+public class InProcessFrameRunner {
+    private static final Logger LOGGER = Logger.getLogger(InProcessFrameRunner.class);
+
+    public static final String ENTRY_POINT_METHOD = "run";
+
+    // Time given to the threads started by ncanimate-frame to stop, once interrupted
+    private static final long THREAD_STOP_TIMEOUT_MS = 1000;
+
+    // Number of garbage collections requested before considering the class loader leaked
+    private static final int GC_ATTEMPTS = 5;
+    private static final long GC_WAIT_MS = 200;
+
+    private final File jarFile;
+    private final int batchSize;
+
+    private URLClassLoader classLoader;
+    private Method entryPoint;
+    private boolean progressSupported;
+    private int runCount;
+
+    /**
+     * @param jarFile The ncanimate-frame jar file.
+     * @param batchSize Number of date ranges generated with the same class loader.
+     */
+    public InProcessFrameRunner(File jarFile, int batchSize) {
+        this.jarFile = jarFile;
+        this.batchSize = Math.max(1, batchSize);
+        this.runCount = 0;
+    }
+
+    public File getJarFile() {
+        return this.jarFile;
+    }
+
+    public int getRunCount() {
+        return this.runCount;
+    }
+
+    /**
+     * @return true if the class loader has generated its batch of date ranges and needs to be dropped.
+     */
+    public boolean isBatchComplete() {
+        return this.runCount >= this.batchSize;
+    }
+
+    /**
+     * Load the ncanimate-frame jar and find its entry point.
+     * @throws NoSuchMethodException If the jar doesn't provide the entry point.
+     *     ncanimate-frame needs to be run as a subprocess.
+     */
+    public void load() throws IOException, ReflectiveOperationException {
+        if (this.classLoader != null) {
+            return;
+        }
+
+        String mainClassName;
+        try (JarFile jar = new JarFile(this.jarFile)) {
+            Manifest manifest = jar.getManifest();
+            mainClassName = manifest == null ? null : manifest.getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
+        }
+        if (mainClassName == null || mainClassName.isEmpty()) {
+            throw new IOException(String.format("No main class found in the manifest of the NcAnimate frame jar: %s", this.jarFile));
+        }
+
+        // The parent is the platform class loader, so the NcAnimate libraries are not shared with ncanimate-frame
+        URLClassLoader newClassLoader = new URLClassLoader(new URL[] { this.jarFile.toURI().toURL() },
+                ClassLoader.getSystemClassLoader().getParent());
+        try {
+            Class<?> mainClass = Class.forName(mainClassName, false, newClassLoader);
+            Method method;
+            boolean methodProgressSupported;
+            try {
+                method = mainClass.getMethod(ENTRY_POINT_METHOD, String[].class, Map.class, Consumer.class);
+                methodProgressSupported = true;
+            } catch(NoSuchMethodException ex) {
+                method = mainClass.getMethod(ENTRY_POINT_METHOD, String[].class, Map.class);
+                methodProgressSupported = false;
+            }
+            if (!Modifier.isStatic(method.getModifiers())) {
+                throw new NoSuchMethodException(String.format("%s.%s is not static", mainClassName, ENTRY_POINT_METHOD));
+            }
+            this.entryPoint = method;
+            this.progressSupported = methodProgressSupported;
+            this.classLoader = newClassLoader;
+        } catch(ReflectiveOperationException | LinkageError ex) {
+            newClassLoader.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return true if ncanimate-frame reports its progress. Only known once the jar is loaded.
+     */
+    public boolean isProgressSupported() {
+        return this.progressSupported;
+    }
+
+    public int run(String[] args, Map<String, String> environment) throws Exception {
+        return this.run(args, environment, null);
+    }
+
+    /**
+     * Generate the frames of a date range.
+     * @param args The ncanimate-frame parameters: product ID, start date and end date.
+     * @param environment The environment variables given to ncanimate-frame.
+     * @param progress Progress of the date range, updated with the progress lines of ncanimate-frame. May be null.
+     * @return The exit code returned by ncanimate-frame.
+     */
+    public int run(String[] args, Map<String, String> environment, final FrameProgress progress) throws Exception {
+        this.load();
+
+        Thread currentThread = Thread.currentThread();
+        ClassLoader previousClassLoader = currentThread.getContextClassLoader();
+        currentThread.setContextClassLoader(this.classLoader);
+        try {
+            Object exitCode;
+            if (this.progressSupported) {
+                Consumer<String> progressConsumer = progress == null ? null : new Consumer<String>() {
+                    @Override
+                    public void accept(String progressLine) {
+                        progress.parse(progressLine);
+                    }
+                };
+                exitCode = this.entryPoint.invoke(null, args, environment, progressConsumer);
+            } else {
+                exitCode = this.entryPoint.invoke(null, args, environment);
+            }
+            return exitCode instanceof Number ? ((Number)exitCode).intValue() : SystemCallThread.SUCCESS;
+        } catch(InvocationTargetException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw ex;
+        } finally {
+            currentThread.setContextClassLoader(previousClassLoader);
+            this.runCount++;
+        }
+    }
+
+    /**
+     * Drop the class loader, and stop the threads started by ncanimate-frame.
+     * @return true if the class loader has been reclaimed by the garbage collector.
+     *     false if something still holds a reference to it (memory leak).
+     */
+    public boolean dispose() {
+        if (this.classLoader == null) {
+            return true;
+        }
+
+        this.stopThreads(this.classLoader);
+        try {
+            this.classLoader.close();
+        } catch(IOException ex) {
+            LOGGER.debug(String.format("Could not close the class loader of %s", this.jarFile), ex);
+        }
+
+        WeakReference<ClassLoader> classLoaderReference = new WeakReference<ClassLoader>(this.classLoader);
+        this.classLoader = null;
+        this.entryPoint = null;
+
+        for (int i = 0; i < GC_ATTEMPTS; i++) {
+            System.gc();
+            if (classLoaderReference.get() == null) {
+                return true;
+            }
+            try {
+                Thread.sleep(GC_WAIT_MS);
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        return classLoaderReference.get() == null;
+    }
+
+    // Interrupt the threads started by ncanimate-frame, and wait for them to stop
+    private void stopThreads(ClassLoader frameClassLoader) {
+        Thread currentThread = Thread.currentThread();
+        List<Thread> frameThreads = new ArrayList<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread != currentThread && thread.isAlive() &&
+                    (thread.getContextClassLoader() == frameClassLoader || thread.getClass().getClassLoader() == frameClassLoader)) {
+                frameThreads.add(thread);
+            }
+        }
+
+        for (Thread frameThread : frameThreads) {
+            frameThread.interrupt();
+        }
+        for (Thread frameThread : frameThreads) {
+            try {
+                frameThread.join(THREAD_STOP_TIMEOUT_MS);
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (frameThread.isAlive()) {
+                LOGGER.warn(String.format("NcAnimate frame thread \"%s\" is still running", frameThread.getName()));
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import java.util.Arrays;
+
+/**
+ * Hash map of primitive long keys to primitive int values,
+ * using open addressing with linear probing.
+ *
+ * Used to store counters for millions of frame keys without
+ * the overhead of boxed Long, Integer and map entry objects.
+ * It uses about 12 bytes per entry (plus free slots),
+ * instead of about 80 bytes for a HashMap&lt;Long, Integer&gt;.
+ */
+class LongIntHashMap {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    // Value of free slots in the values array. Stored values must be different.
+    private static final int FREE = 0;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+    private int resizeThreshold;
+
+    public LongIntHashMap() {
+        this(1024);
+    }
+
+    public LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int)(expectedSize / LOAD_FACTOR)) - 1) << 1;
+        this.allocate(capacity);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return The value associated with the key, or 0 if the key is not in the map.
+     */
+    public int get(long key) {
+        int mask = this.keys.length - 1;
+        int slot = LongIntHashMap.hash(key) & mask;
+        while (this.values[slot] != FREE) {
+            if (this.keys[slot] == key) {
+                return this.values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return FREE;
+    }
+
+    /**
+     * Add the delta to the value associated with the key.
+     * The key is removed from the map when its value reaches 0.
+     * @return The new value.
+     */
+    public int add(long key, int delta) {
+        int mask = this.keys.length - 1;
+        int slot = LongIntHashMap.hash(key) & mask;
+        while (this.values[slot] != FREE) {
+            if (this.keys[slot] == key) {
+                int newValue = this.values[slot] + delta;
+                if (newValue == FREE) {
+                    this.removeSlot(slot);
+                } else {
+                    this.values[slot] = newValue;
+                }
+                return newValue;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (delta != FREE) {
+            this.keys[slot] = key;
+            this.values[slot] = delta;
+            this.size++;
+            if (this.size > this.resizeThreshold) {
+                this.resize(this.keys.length << 1);
+            }
+        }
+        return delta;
+    }
+
+    // Remove the entry and shift back the entries of the same probe sequence,
+    // so lookups do not stop at the freed slot.
+    private void removeSlot(int slot) {
+        int mask = this.keys.length - 1;
+        this.values[slot] = FREE;
+        this.size--;
+
+        int freeSlot = slot;
+        int currentSlot = (slot + 1) & mask;
+        while (this.values[currentSlot] != FREE) {
+            int idealSlot = LongIntHashMap.hash(this.keys[currentSlot]) & mask;
+            // Move the entry if its ideal slot is not between the free slot and its current slot (cyclically)
+            boolean movable = freeSlot <= currentSlot ?
+                    (idealSlot <= freeSlot || idealSlot > currentSlot) :
+                    (idealSlot <= freeSlot && idealSlot > currentSlot);
+            if (movable) {
+                this.keys[freeSlot] = this.keys[currentSlot];
+                this.values[freeSlot] = this.values[currentSlot];
+                this.values[currentSlot] = FREE;
+                freeSlot = currentSlot;
+            }
+            currentSlot = (currentSlot + 1) & mask;
+        }
+    }
+
+    /**
+     * @return A new array containing the keys of the map, sorted.
+     */
+    public long[] getSortedKeys() {
+        long[] sortedKeys = new long[this.size];
+        int index = 0;
+        for (int slot = 0; slot < this.keys.length; slot++) {
+            if (this.values[slot] != FREE) {
+                sortedKeys[index++] = this.keys[slot];
+            }
+        }
+        Arrays.sort(sortedKeys);
+        return sortedKeys;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = this.keys;
+        int[] oldValues = this.values;
+
+        this.allocate(capacity);
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldValues[slot] != FREE) {
+                this.add(oldKeys[slot], oldValues[slot]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.size = 0;
+        this.resizeThreshold = (int)(capacity * LOAD_FACTOR);
+    }
+
+    // Mix the bits of the key, since consecutive frame keys only differ by their low bits
+    private static int hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int)(hash ^ (hash >>> 32));
+    }
+}
@@ -13,6 +13,8 @@ import au.gov.aims.ereefs.bean.ncanimate.render.AbstractNcAnimateRenderFileBean;
 import au.gov.aims.ereefs.bean.ncanimate.render.NcAnimateRenderMapBean;
 import au.gov.aims.ereefs.database.DatabaseClient;
 import au.gov.aims.ncanimate.ImageResizer;
+import au.gov.aims.ncanimate.FlightRecorder;
+import au.gov.aims.ncanimate.RunMetrics;
 import au.gov.aims.ncanimate.commons.NcAnimateGenerateFileBean;
 import au.gov.aims.ncanimate.commons.generator.context.GeneratorContext;
 import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
@@ -115,7 +117,21 @@ public class MapGenerator extends AbstractMediaGenerator {
                                                 LOGGER.debug(String.format("Resizing image %s to %s (%dx%d to %dx%d)",
                                                         frameFile, destinationFile, originalWidth, originalHeight, productWidth, productHeight));
 
-                                                ImageResizer.resize(frameFile, destinationFile, frameFormat, productWidth, productHeight);
+                                                FlightRecorder.Event event = this.beginEvent(FlightRecorder.IMAGE_RESIZE, mapDateRange)
+                                                        .setDetail(destinationFile.getName());
+                                                RunMetrics.Timer timer = this.startTimer(RunMetrics.PHASE_MAP_RESIZE);
+                                                try {
+                                                    ImageResizer.resize(frameFile, destinationFile, frameFormat, productWidth, productHeight);
+                                                    if (timer != null) {
+                                                        timer.stop(1, destinationFile.length());
+                                                    }
+                                                    event.setBytes(destinationFile.length());
+                                                } finally {
+                                                    if (timer != null) {
+                                                        timer.stop();
+                                                    }
+                                                    event.commit();
+                                                }
                                                 resized = true;
                                             } catch (Exception ex) {
                                                 LOGGER.error(String.format("Error occurred while resizing image %s to %s (%dx%d to %dx%d).",
@@ -142,7 +158,7 @@ public class MapGenerator extends AbstractMediaGenerator {
                                     // Upload to S3
                                     URI uploadUri = this.getFileURI(renderFile, context);
                                     LOGGER.info(String.format("Uploading %s to %s", destinationFile, uploadUri));
-                                    this.uploadFile(destinationFile, uploadUri);
+                                    this.uploadFile(destinationFile, uploadUri, mapDateRange);
 
                                     // Delete generated map file (not the actual frame file, it might be needed for other products such as videos)
                                     if (!destinationFile.delete()) {
@@ -166,7 +182,7 @@ public class MapGenerator extends AbstractMediaGenerator {
                         LOGGER.error("Metadata is null");
                     } else {
                         LOGGER.debug("Saving metadata to the database");
-                        this.saveMetadata(metadata.toJSON());
+                        this.saveMetadata(metadata.toJSON(), mapDateRange);
                     }
                 }
             }
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.ncanimate.Digests;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * "No data" frames of a product, rendered once and linked for every frame date.
+ *
+ * "No data" frames only contain the static layers of the product. Unless
+ * the product shows the frame date, they are identical for all the frame dates
+ * of a region, target height and format. The frames of the first two dates
+ * of a "No data" date range are rendered by ncanimate-frame and compared:
+ * <ul>
+ *   <li>if they are identical, they are kept as templates, and the frame files
+ *       of the other dates become hard links to them. ncanimate-frame
+ *       is not called again for the "No data" frames of the product;</li>
+ *   <li>if they differ (the product shows the date), the "No data" frames
+ *       of the product are all rendered by ncanimate-frame.</li>
+ * </ul>
+ */
+public class NoDataFrameTemplates {
+    private static final Logger LOGGER = Logger.getLogger(NoDataFrameTemplates.class);
+
+    private File templateDirectory;
+
+    // Frame variant (see FrameKeys.getVariant) => template frame file
+    private Map<Integer, File> templates;
+    // null until the first "No data" frames are compared
+    private Boolean identical;
+
+    /**
+     * @param templateDirectory Directory where the template frames are kept.
+     *     The templates have to be on the same file system as the frame files.
+     */
+    public NoDataFrameTemplates(File templateDirectory) {
+        this.templateDirectory = templateDirectory;
+        this.templates = new HashMap<Integer, File>();
+        this.identical = null;
+    }
+
+    /**
+     * @return true if the "No data" frames of the product are known to be identical, and can be linked.
+     */
+    public synchronized boolean isIdentical() {
+        return Boolean.TRUE.equals(this.identical);
+    }
+
+    /**
+     * @return true if the "No data" frames of the product are known to differ, and must be rendered.
+     */
+    public synchronized boolean isDated() {
+        return Boolean.FALSE.equals(this.identical);
+    }
+
+    /**
+     * Compare the "No data" frames of two dates, for each region, target height and format.
+     * When they are all identical, the frames of the first date are kept as templates.
+     * @param frameKeys Used to find the frame files.
+     * @param firstDateKeys Keys of the frames of the first date.
+     * @param secondDateKeys Keys of the frames of the second date.
+     * @return true if the frames are identical.
+     */
+    public synchronized boolean compare(FrameKeys frameKeys, long[] firstDateKeys, long[] secondDateKeys) {
+        if (this.identical != null) {
+            return this.identical;
+        }
+
+        Map<Integer, File> secondDateFrames = new HashMap<Integer, File>();
+        for (long frameKey : secondDateKeys) {
+            secondDateFrames.put(FrameKeys.getVariant(frameKey), frameKeys.getFrameFile(frameKey));
+        }
+
+        Map<Integer, File> firstDateFrames = new HashMap<Integer, File>();
+        try {
+            for (long frameKey : firstDateKeys) {
+                int variant = FrameKeys.getVariant(frameKey);
+                File frameFile = frameKeys.getFrameFile(frameKey);
+                File otherFrameFile = secondDateFrames.get(variant);
+                if (frameFile == null || otherFrameFile == null || !frameFile.isFile() || !otherFrameFile.isFile()) {
+                    // Frames not generated. They are rendered, to be safe.
+                    LOGGER.warn("\"No data\" frames not found after rendering them. They are all rendered.");
+                    this.identical = false;
+                    return false;
+                }
+                if (!Digests.sha256(frameFile).equals(Digests.sha256(otherFrameFile))) {
+                    LOGGER.info("\"No data\" frames show the frame date. They are all rendered.");
+                    this.identical = false;
+                    return false;
+                }
+                firstDateFrames.put(variant, frameFile);
+            }
+
+            for (Map.Entry<Integer, File> firstDateFrame : firstDateFrames.entrySet()) {
+                File frameFile = firstDateFrame.getValue();
+                File templateFile = new File(this.templateDirectory, String.format("%d_%s", firstDateFrame.getKey(), frameFile.getName()));
+                NoDataFrameTemplates.link(frameFile, templateFile);
+                this.templates.put(firstDateFrame.getKey(), templateFile);
+            }
+        } catch(IOException | NoSuchAlgorithmException ex) {
+            LOGGER.warn("Could not compare the \"No data\" frames. They are all rendered.", ex);
+            this.templates.clear();
+            this.identical = false;
+            return false;
+        }
+
+        LOGGER.info(String.format("\"No data\" frames are identical for every date. %d templates linked for the other dates.",
+                this.templates.size()));
+        this.identical = true;
+        return true;
+    }
+
+    /**
+     * Create the frame files as links to the templates.
+     * @param frameKeys Used to find the frame files.
+     * @param keys Keys of the frames to create.
+     * @return false if a frame could not be linked. The frames then need to be rendered.
+     */
+    public synchronized boolean link(FrameKeys frameKeys, long[] keys) {
+        if (!Boolean.TRUE.equals(this.identical)) {
+            return false;
+        }
+
+        try {
+            for (long frameKey : keys) {
+                File templateFile = this.templates.get(FrameKeys.getVariant(frameKey));
+                File frameFile = frameKeys.getFrameFile(frameKey);
+                if (templateFile == null || frameFile == null) {
+                    return false;
+                }
+                NoDataFrameTemplates.link(templateFile, frameFile);
+            }
+        } catch(IOException ex) {
+            LOGGER.warn("Could not link the \"No data\" frames. They are rendered.", ex);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Delete the templates, once the frames of the product are generated.
+     */
+    public synchronized void delete() {
+        for (File templateFile : this.templates.values()) {
+            if (templateFile.exists() && !templateFile.delete()) {
+                LOGGER.warn(String.format("Could not delete the \"No data\" frame template: %s", templateFile));
+            }
+        }
+        this.templates.clear();
+    }
+
+    /**
+     * Hard link the file when possible, copy it otherwise.
+     * The file is created with a temporary name then renamed, so it's never seen half written.
+     */
+    private static void link(File source, File destination) throws IOException {
+        File destinationDirectory = destination.getParentFile();
+        if (destinationDirectory != null && !destinationDirectory.exists() && !destinationDirectory.mkdirs()) {
+            throw new IOException(String.format("Could not create the directory: %s", destinationDirectory));
+        }
+
+        File tempFile = new File(destinationDirectory, destination.getName() + ".tmp");
+        if (tempFile.exists() && !tempFile.delete()) {
+            throw new IOException(String.format("Could not delete the temporary file: %s", tempFile));
+        }
+        try {
+            Files.createLink(tempFile.toPath(), source.toPath());
+        } catch(UnsupportedOperationException | IOException ex) {
+            // Hard links not supported
+            Files.copy(source.toPath(), tempFile.toPath());
+        }
+        Files.move(tempFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.aws.s3.entity.S3Client;
+import au.gov.aims.ereefs.bean.AbstractBean;
+import au.gov.aims.ereefs.bean.metadata.TimeIncrement;
+import au.gov.aims.ereefs.bean.metadata.netcdf.NetCDFMetadataBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateRegionBean;
+import au.gov.aims.ereefs.bean.ncanimate.render.AbstractNcAnimateRenderFileBean;
+import au.gov.aims.ereefs.database.CacheStrategy;
+import au.gov.aims.ereefs.database.DatabaseClient;
+import au.gov.aims.ereefs.database.manager.MetadataManager;
+import au.gov.aims.ereefs.database.table.JSONObjectIterable;
+import au.gov.aims.ncanimate.EnvironmentVariables;
+import au.gov.aims.ncanimate.commons.NcAnimateGenerateFileBean;
+import au.gov.aims.ncanimate.commons.NcAnimateUtils;
+import au.gov.aims.ncanimate.commons.generator.context.GeneratorContext;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.commons.timetable.FrameTimetableMap;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Find outdated products (videos and maps) without querying S3 and the database for each product.
+ *
+ * {@link NcAnimateUtils#isOutdated} checks the metadata and the output files of one product at the time.
+ * For products with thousands of daily maps, that's thousands of requests.
+ * This detector:
+ * <ul>
+ *   <li>loads all the product metadata of the product definition, with a single query,</li>
+ *   <li>lists the files of each output directory (S3 prefix) once,</li>
+ * </ul>
+ * then decides which products are outdated in memory.
+ *
+ * A product is outdated when:
+ * <ul>
+ *   <li>its metadata is missing, for one of the regions or target heights,</li>
+ *   <li>one of its output files is missing,</li>
+ *   <li>its metadata is older than the NcAnimate configuration,</li>
+ *   <li>the input files used to generate it have changed (different URIs or checksums).</li>
+ * </ul>
+ * Products which can not be decided in memory (input files without checksum,
+ * output files which can not be listed, etc) are checked with {@link NcAnimateUtils#isOutdated}.
+ */
+public class OutdatedProductDetector {
+    private static final Logger LOGGER = Logger.getLogger(OutdatedProductDetector.class);
+
+    private static final String NCANIMATE_BULK_OUTDATED_CHECK_ENV_VARIABLE = "NCANIMATE_BULK_OUTDATED_CHECK";
+
+    private S3Client s3Client;
+    private DatabaseClient dbClient;
+    private NcAnimateConfigBean ncAnimateConfig;
+    private TimeIncrement frameTimeIncrement;
+    private String regionId;
+
+    // Definition ID => (metadata ID => product metadata)
+    private Map<String, Map<String, JSONObject>> metadataIndex;
+    // Output directory URI => URIs of the files it contains. Null for directories which can't be listed.
+    private Map<String, Set<String>> outputFileIndex;
+
+    private int metadataQueryCount;
+    private int listingCount;
+    private int fallbackCount;
+
+    public OutdatedProductDetector(
+            S3Client s3Client,
+            DatabaseClient dbClient,
+            NcAnimateConfigBean ncAnimateConfig,
+            TimeIncrement frameTimeIncrement,
+            String regionId) {
+
+        this.s3Client = s3Client;
+        this.dbClient = dbClient;
+        this.ncAnimateConfig = ncAnimateConfig;
+        this.frameTimeIncrement = frameTimeIncrement;
+        this.regionId = regionId;
+
+        this.metadataIndex = new HashMap<String, Map<String, JSONObject>>();
+        this.outputFileIndex = new HashMap<String, Set<String>>();
+    }
+
+    /**
+     * @param outputFileBeans The products.
+     * @param frameMap The frames of the products, used to find their input files.
+     * @param filenamePrefix Prefix of the output files: "video" or "map".
+     * @param logLimit Maximum number of outdated products to log.
+     * @return The outdated products, in the same order.
+     */
+    public List<NcAnimateGenerateFileBean> getOutdated(
+            List<NcAnimateGenerateFileBean> outputFileBeans,
+            Map<DateTimeRange, List<FrameTimetableMap>> frameMap,
+            String filenamePrefix,
+            int logLimit) throws Exception {
+
+        List<NcAnimateGenerateFileBean> outdatedOutputFileBeans = new ArrayList<NcAnimateGenerateFileBean>();
+        if (outputFileBeans == null) {
+            return outdatedOutputFileBeans;
+        }
+
+        for (NcAnimateGenerateFileBean outputFileBean : outputFileBeans) {
+            boolean log = outdatedOutputFileBeans.size() < logLimit;
+            Boolean outdated = this.isOutdated(outputFileBean, frameMap, filenamePrefix, log);
+            if (outdated == null) {
+                this.fallbackCount++;
+                outdated = NcAnimateUtils.isOutdated(this.s3Client, outputFileBean, frameMap, this.ncAnimateConfig, this.regionId, log);
+            }
+
+            if (outdated) {
+                outdatedOutputFileBeans.add(outputFileBean);
+            }
+        }
+
+        return outdatedOutputFileBeans;
+    }
+
+    public int getMetadataQueryCount() {
+        return this.metadataQueryCount;
+    }
+
+    public int getListingCount() {
+        return this.listingCount;
+    }
+
+    /**
+     * @return The number of products which were checked with {@link NcAnimateUtils#isOutdated}.
+     */
+    public int getFallbackCount() {
+        return this.fallbackCount;
+    }
+
+    /**
+     * @return true if the product is outdated, false if it's up to date,
+     *     null if it can't be decided in memory.
+     */
+    private Boolean isOutdated(
+            NcAnimateGenerateFileBean outputFileBean,
+            Map<DateTimeRange, List<FrameTimetableMap>> frameMap,
+            String filenamePrefix,
+            boolean log) throws Exception {
+
+        Map<String, AbstractNcAnimateRenderFileBean> renderFiles = outputFileBean.getRenderFiles();
+        Map<String, NcAnimateRegionBean> regionMap = this.ncAnimateConfig.getRegions();
+        if (renderFiles == null || renderFiles.isEmpty() || regionMap == null) {
+            return null;
+        }
+
+        List<Double> targetHeights = this.ncAnimateConfig.getTargetHeights();
+        if (targetHeights == null || targetHeights.isEmpty()) {
+            targetHeights = new ArrayList<Double>();
+            targetHeights.add(null);
+        }
+
+        Collection<NcAnimateRegionBean> regions = regionMap.values();
+        if (this.regionId != null) {
+            regions = new ArrayList<NcAnimateRegionBean>();
+            regions.add(regionMap.get(this.regionId));
+        }
+
+        DateTimeRange dateRange = outputFileBean.getDateRange();
+        Map<String, String> currentInputFiles = null;
+
+        for (NcAnimateRegionBean region : regions) {
+            for (Double targetHeight : targetHeights) {
+                // Same context as the one used by the generators (see MapGenerator and VideoGenerator)
+                GeneratorContext context = new GeneratorContext(this.ncAnimateConfig);
+                context.setFrameTimeIncrement(this.frameTimeIncrement);
+                context.setRegion(region);
+                context.setTargetHeight(targetHeight);
+                context.setDateRange(dateRange);
+                context.setOutputFilenamePrefix(filenamePrefix);
+
+                String id = AbstractBean.safeIdValue(NcAnimateUtils.parseString(outputFileBean.getId(), context));
+                String definitionId = NcAnimateUtils.parseString(outputFileBean.getDefinitionId(), context);
+
+                JSONObject jsonMetadata = this.getMetadata(definitionId, id);
+                if (jsonMetadata == null) {
+                    if (log) {
+                        LOGGER.info(String.format("Product %s is outdated: metadata not found", id));
+                    }
+                    return true;
+                }
+
+                DateTime configLastModified = this.ncAnimateConfig.getLastModified();
+                DateTime metadataLastModified = OutdatedProductDetector.getLastModified(jsonMetadata);
+                if (configLastModified != null) {
+                    if (metadataLastModified == null) {
+                        return null;
+                    }
+                    if (metadataLastModified.isBefore(configLastModified)) {
+                        if (log) {
+                            LOGGER.info(String.format("Product %s is outdated: the configuration was modified on %s",
+                                    id, configLastModified));
+                        }
+                        return true;
+                    }
+                }
+
+                for (AbstractNcAnimateRenderFileBean renderFile : renderFiles.values()) {
+                    context.setRenderFile(renderFile);
+                    String fileUri = NcAnimateUtils.parseString(renderFile.getFileURI(), context);
+                    Boolean exists = this.exists(fileUri);
+                    if (exists == null) {
+                        return null;
+                    }
+                    if (!exists) {
+                        if (log) {
+                            LOGGER.info(String.format("Product %s is outdated: output file %s not found", id, fileUri));
+                        }
+                        return true;
+                    }
+                }
+
+                if (currentInputFiles == null) {
+                    currentInputFiles = OutdatedProductDetector.getInputFiles(dateRange, frameMap);
+                    if (currentInputFiles == null) {
+                        return null;
+                    }
+                }
+                Map<String, String> metadataInputFiles = OutdatedProductDetector.getInputFiles(jsonMetadata);
+                if (metadataInputFiles == null) {
+                    return null;
+                }
+                if (!currentInputFiles.equals(metadataInputFiles)) {
+                    if (log) {
+                        LOGGER.info(String.format("Product %s is outdated: its input files have changed", id));
+                    }
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private JSONObject getMetadata(String definitionId, String id) throws Exception {
+        Map<String, JSONObject> definitionMetadata = this.metadataIndex.get(definitionId);
+        if (definitionMetadata == null) {
+            definitionMetadata = new HashMap<String, JSONObject>();
+
+            MetadataManager metadataManager = new MetadataManager(this.dbClient, CacheStrategy.DISK);
+            JSONObjectIterable jsonMetadatas = metadataManager.selectByDefinitionId(MetadataManager.MetadataType.NCANIMATE_PRODUCT, definitionId);
+            this.metadataQueryCount++;
+            if (jsonMetadatas != null) {
+                for (JSONObject jsonMetadata : jsonMetadatas) {
+                    String metadataId = jsonMetadata == null ? null : jsonMetadata.optString("_id", null);
+                    if (metadataId != null) {
+                        definitionMetadata.put(metadataId, jsonMetadata);
+                    }
+                }
+            }
+            LOGGER.debug(String.format("Loaded %d product metadata for definition ID %s", definitionMetadata.size(), definitionId));
+
+            this.metadataIndex.put(definitionId, definitionMetadata);
+        }
+
+        return definitionMetadata.get(id);
+    }
+
+    /**
+     * @return true if the file exists, false if it doesn't, null if its directory can not be listed.
+     */
+    private Boolean exists(String fileUriStr) {
+        if (fileUriStr == null || fileUriStr.isEmpty()) {
+            return null;
+        }
+
+        URI fileUri;
+        try {
+            fileUri = new URI(fileUriStr).normalize();
+        } catch(Exception ex) {
+            LOGGER.warn(String.format("Invalid output file URI: %s", fileUriStr));
+            return null;
+        }
+
+        String fileUriPath = fileUri.toString();
+        int lastSlash = fileUriPath.lastIndexOf('/');
+        if (lastSlash < 0) {
+            return null;
+        }
+        String directoryUri = fileUriPath.substring(0, lastSlash + 1);
+
+        Set<String> directoryFiles;
+        if (this.outputFileIndex.containsKey(directoryUri)) {
+            directoryFiles = this.outputFileIndex.get(directoryUri);
+        } else {
+            directoryFiles = this.listDirectory(fileUri.getScheme(), directoryUri);
+            this.outputFileIndex.put(directoryUri, directoryFiles);
+        }
+
+        return directoryFiles == null ? null : directoryFiles.contains(fileUriPath);
+    }
+
+    /**
+     * List the files of an output directory.
+     * "file" URIs are used by the unit tests, as a stand-in for S3.
+     * @return The URI of the files found in the directory, or null if the directory can not be listed.
+     */
+    private Set<String> listDirectory(String scheme, String directoryUri) {
+        this.listingCount++;
+        try {
+            if ("s3".equalsIgnoreCase(scheme)) {
+                return this.listS3Directory(directoryUri);
+            }
+            if ("file".equalsIgnoreCase(scheme)) {
+                return OutdatedProductDetector.listLocalDirectory(directoryUri);
+            }
+        } catch(Exception ex) {
+            LOGGER.warn(String.format("Could not list the output directory: %s", directoryUri), ex);
+        }
+        return null;
+    }
+
+    private Set<String> listS3Directory(String directoryUri) {
+        if (this.s3Client == null) {
+            return null;
+        }
+        AmazonS3 s3 = this.s3Client.getS3();
+        if (s3 == null) {
+            return null;
+        }
+
+        URI uri = URI.create(directoryUri);
+        String bucket = uri.getHost();
+        String prefix = uri.getPath();
+        if (prefix.startsWith("/")) {
+            prefix = prefix.substring(1);
+        }
+
+        Set<String> files = new HashSet<String>();
+        ListObjectsV2Request request = new ListObjectsV2Request()
+            .withBucketName(bucket)
+            .withPrefix(prefix)
+            .withDelimiter("/");
+
+        ListObjectsV2Result result;
+        do {
+            result = s3.listObjectsV2(request);
+            for (S3ObjectSummary objectSummary : result.getObjectSummaries()) {
+                files.add(String.format("s3://%s/%s", bucket, objectSummary.getKey()));
+            }
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+
+        LOGGER.debug(String.format("Listed %d files in %s", files.size(), directoryUri));
+        return files;
+    }
+
+    private static Set<String> listLocalDirectory(String directoryUri) {
+        File directory = new File(URI.create(directoryUri));
+        Set<String> files = new HashSet<String>();
+
+        File[] directoryFiles = directory.listFiles();
+        if (directoryFiles != null) {
+            for (File file : directoryFiles) {
+                if (file.isFile()) {
+                    files.add(directoryUri + file.getName());
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return Input file URI => checksum of the input files currently used by the product,
+     *     or null if some input files have no checksum.
+     */
+    private static Map<String, String> getInputFiles(DateTimeRange dateRange, Map<DateTimeRange, List<FrameTimetableMap>> frameMap) {
+        Map<String, String> inputFiles = new HashMap<String, String>();
+        for (NetCDFMetadataBean netCDFMetadata : AbstractMediaGenerator.findInputFiles(dateRange, frameMap).values()) {
+            String checksum = netCDFMetadata.getChecksum();
+            if (checksum == null || checksum.isEmpty() || netCDFMetadata.getFileURI() == null) {
+                // Changes can't be detected with the checksum
+                return null;
+            }
+            inputFiles.put(netCDFMetadata.getFileURI().toString(), checksum);
+        }
+        return inputFiles;
+    }
+
+    /**
+     * @return Input file URI => checksum of the input files used to generate the product,
+     *     or null if the metadata input files can't be read.
+     */
+    private static Map<String, String> getInputFiles(JSONObject jsonMetadata) {
+        List<JSONObject> jsonInputFiles = new ArrayList<JSONObject>();
+
+        // See NcAnimateOutputFileMetadataBean.addInputFile
+        JSONArray jsonInputFileArray = jsonMetadata.optJSONArray("inputFiles");
+        JSONObject jsonInputFileObject = jsonMetadata.optJSONObject("inputFiles");
+        if (jsonInputFileArray != null) {
+            for (int i = 0; i < jsonInputFileArray.length(); i++) {
+                jsonInputFiles.add(jsonInputFileArray.optJSONObject(i));
+            }
+        } else if (jsonInputFileObject != null) {
+            for (String key : jsonInputFileObject.keySet()) {
+                jsonInputFiles.add(jsonInputFileObject.optJSONObject(key));
+            }
+        } else {
+            return null;
+        }
+
+        Map<String, String> inputFiles = new HashMap<String, String>();
+        for (JSONObject jsonInputFile : jsonInputFiles) {
+            String fileUri = jsonInputFile == null ? null : jsonInputFile.optString("fileURI", null);
+            if (fileUri == null) {
+                return null;
+            }
+            inputFiles.put(fileUri, jsonInputFile.optString("checksum", null));
+        }
+        return inputFiles;
+    }
+
+    private static DateTime getLastModified(JSONObject jsonMetadata) {
+        Object lastModified = jsonMetadata.opt("lastModified");
+        if (lastModified instanceof Number) {
+            return new DateTime(((Number)lastModified).longValue());
+        }
+        if (lastModified instanceof String) {
+            try {
+                return DateTime.parse((String)lastModified);
+            } catch(Exception ex) {
+                LOGGER.warn(String.format("Invalid product metadata last modified date: %s", lastModified));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Use the environment variable "NCANIMATE_BULK_OUTDATED_CHECK" if set.
+     * @return false to check the products one at the time with {@link NcAnimateUtils#isOutdated}. Default: true.
+     */
+    public static boolean isEnabled() {
+        return EnvironmentVariables.getBoolean(NCANIMATE_BULK_OUTDATED_CHECK_ENV_VARIABLE, true);
+    }
+}
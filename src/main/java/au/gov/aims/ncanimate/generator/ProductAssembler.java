@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.ereefs.bean.metadata.TimeIncrement;
+import au.gov.aims.ncanimate.EnvironmentVariables;
+import au.gov.aims.ncanimate.commons.NcAnimateGenerateFileBean;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.commons.timetable.FrameTimetableMap;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assembly stage of the product pipeline.
+ * Generates videos and maps (encoding, resizing, upload to S3 and metadata)
+ * in a background thread, while NcAnimate frame generates the frames
+ * of the next date ranges.
+ *
+ * Products are assembled one at a time, in the order they are submitted.
+ * The frames of a product can only be deleted once the product is assembled,
+ * therefore the caller should stop generating new frames when
+ * the assembler {@link #isFull()}, to keep the disk usage bounded.
+ */
+public class ProductAssembler {
+    private static final Logger LOGGER = Logger.getLogger(ProductAssembler.class);
+
+    private static final String NCANIMATE_MAX_PENDING_PRODUCTS_ENV_VARIABLE = "NCANIMATE_MAX_PENDING_PRODUCTS";
+    private static final int DEFAULT_MAX_PENDING_PRODUCTS = 50;
+
+    private VideoGenerator videoGenerator;
+    private MapGenerator mapGenerator;
+    private int maxPendingProducts;
+
+    private ExecutorService executor;
+    private CompletionService<NcAnimateGenerateFileBean> completionService;
+    private int pendingCount;
+
+    // Set when NcAnimate is shutting down. Products not started yet are skipped.
+    private volatile boolean draining;
+
+    public ProductAssembler(VideoGenerator videoGenerator, MapGenerator mapGenerator, int maxPendingProducts) {
+        this.videoGenerator = videoGenerator;
+        this.mapGenerator = mapGenerator;
+        this.maxPendingProducts = Math.max(1, maxPendingProducts);
+        this.pendingCount = 0;
+        this.draining = false;
+
+        // Single thread: video generation uses a shared directory of symbolic links
+        this.executor = Executors.newSingleThreadExecutor();
+        this.completionService = new ExecutorCompletionService<NcAnimateGenerateFileBean>(this.executor);
+    }
+
+    public int getPendingCount() {
+        return this.pendingCount;
+    }
+
+    /**
+     * @return true when enough products are waiting to be assembled.
+     *     No new frames should be generated until some of them are done.
+     */
+    public boolean isFull() {
+        return this.pendingCount >= this.maxPendingProducts;
+    }
+
+    public void submitVideo(
+            final NcAnimateGenerateFileBean videoOutputFileBean,
+            final Map<DateTimeRange, List<FrameTimetableMap>> videoFrameMap,
+            final TimeIncrement frameTimeIncrement,
+            final String regionId) {
+
+        this.completionService.submit(new Callable<NcAnimateGenerateFileBean>() {
+            @Override
+            public NcAnimateGenerateFileBean call() throws Exception {
+                if (ProductAssembler.this.draining) {
+                    return null;
+                }
+                ProductAssembler.this.videoGenerator.generateVideo(videoOutputFileBean, videoFrameMap, frameTimeIncrement, regionId);
+                return videoOutputFileBean;
+            }
+        });
+        this.pendingCount++;
+    }
+
+    public void submitMap(
+            final NcAnimateGenerateFileBean mapOutputFileBean,
+            final Map<DateTimeRange, List<FrameTimetableMap>> mapFrameMap,
+            final TimeIncrement frameTimeIncrement,
+            final String regionId) {
+
+        this.completionService.submit(new Callable<NcAnimateGenerateFileBean>() {
+            @Override
+            public NcAnimateGenerateFileBean call() throws Exception {
+                if (ProductAssembler.this.draining) {
+                    return null;
+                }
+                ProductAssembler.this.mapGenerator.generateMap(mapOutputFileBean, mapFrameMap, frameTimeIncrement, regionId);
+                return mapOutputFileBean;
+            }
+        });
+        this.pendingCount++;
+    }
+
+    /**
+     * Get the next assembled product, without waiting.
+     * @return The assembled product, or null if no product has finished yet.
+     * @throws Exception The exception thrown while assembling the product.
+     */
+    public NcAnimateGenerateFileBean poll() throws Exception {
+        if (this.pendingCount <= 0) {
+            return null;
+        }
+        return this.get(this.completionService.poll());
+    }
+
+    /**
+     * Wait for the next product to be assembled.
+     * @return The assembled product, or null if there is no product waiting to be assembled.
+     * @throws Exception The exception thrown while assembling the product.
+     */
+    public NcAnimateGenerateFileBean take() throws Exception {
+        if (this.pendingCount <= 0) {
+            return null;
+        }
+        return this.get(this.completionService.take());
+    }
+
+    private NcAnimateGenerateFileBean get(Future<NcAnimateGenerateFileBean> future) throws Exception {
+        if (future == null) {
+            return null;
+        }
+
+        this.pendingCount--;
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception)cause;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Stop assembling products, when NcAnimate is shutting down.
+     * The product being assembled is given some time to finish (encoding, upload and metadata).
+     * The products waiting to be assembled are skipped.
+     * @param timeoutMs Time given to the product being assembled to finish, in milliseconds.
+     * @return The products which have been assembled while draining.
+     */
+    public List<NcAnimateGenerateFileBean> drain(long timeoutMs) {
+        this.draining = true;
+
+        List<NcAnimateGenerateFileBean> assembledProducts = new ArrayList<NcAnimateGenerateFileBean>();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (this.pendingCount > 0) {
+            long remainingMs = deadline - System.currentTimeMillis();
+            if (remainingMs <= 0) {
+                LOGGER.warn(String.format("%d products were not assembled before the deadline", this.pendingCount));
+                break;
+            }
+
+            try {
+                Future<NcAnimateGenerateFileBean> future = this.completionService.poll(remainingMs, TimeUnit.MILLISECONDS);
+                if (future != null) {
+                    NcAnimateGenerateFileBean assembledProduct = this.get(future);
+                    if (assembledProduct != null) {
+                        assembledProducts.add(assembledProduct);
+                    }
+                }
+            } catch(InterruptedException ex) {
+                break;
+            } catch(Exception ex) {
+                LOGGER.error("Exception occurred while assembling a product during shutdown", ex);
+            }
+        }
+
+        return assembledProducts;
+    }
+
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Maximum number of products waiting to be assembled before the
+     * generation of frames is paused.
+     * Use the environment variable "NCANIMATE_MAX_PENDING_PRODUCTS" if set.
+     */
+    public static int getDefaultMaxPendingProducts() {
+        return EnvironmentVariables.getInteger(NCANIMATE_MAX_PENDING_PRODUCTS_ENV_VARIABLE, DEFAULT_MAX_PENDING_PRODUCTS, 1);
+    }
+}
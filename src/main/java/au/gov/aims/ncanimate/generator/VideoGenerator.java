@@ -14,6 +14,9 @@ import au.gov.aims.ereefs.bean.ncanimate.render.AbstractNcAnimateRenderFileBean;
 import au.gov.aims.ereefs.bean.ncanimate.render.NcAnimateRenderMapBean;
 import au.gov.aims.ereefs.bean.ncanimate.render.NcAnimateRenderVideoBean;
 import au.gov.aims.ereefs.database.DatabaseClient;
+import au.gov.aims.ncanimate.EnvironmentVariables;
+import au.gov.aims.ncanimate.FlightRecorder;
+import au.gov.aims.ncanimate.RunMetrics;
 import au.gov.aims.ncanimate.SystemCallThread;
 import au.gov.aims.ncanimate.commons.NcAnimateGenerateFileBean;
 import au.gov.aims.ncanimate.commons.NcAnimateUtils;
@@ -29,9 +32,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -46,8 +51,25 @@ public class VideoGenerator extends AbstractMediaGenerator {
     // NOTE: If the number is larger than the number of frames in the video, the last frame is used.
     private static final int PREVIEW_FRAME_NUMBER = 0;
 
+    // Zip entry listing the frames which are identical to a frame already in the zip archive
+    private static final String DUPLICATE_FRAMES_ZIP_ENTRY = "duplicates.txt";
+    private static final String NCANIMATE_VIDEO_ZIP_DEDUP_ENV_VARIABLE = "NCANIMATE_VIDEO_ZIP_DEDUP";
+
+    // Store of the frame files, used to find identical frames when creating zip archives. May be null.
+    private FrameStore frameStore;
+
     public VideoGenerator(NcAnimateConfigBean ncAnimateConfig, ProductTimetable productTimetable, S3Client s3Client, DatabaseClient dbClient) {
         super(ncAnimateConfig, productTimetable, s3Client, dbClient);
+        this.frameStore = null;
+    }
+
+    /**
+     * Set the store of the frame files.
+     * When zip deduplication is enabled (see {@link #isZipDedupEnabled()}),
+     * the digests of the stored frames are used to find identical frames in video zip archives.
+     */
+    public void setFrameStore(FrameStore frameStore) {
+        this.frameStore = frameStore;
     }
 
     public void generateVideo(
@@ -154,19 +176,35 @@ public class VideoGenerator extends AbstractMediaGenerator {
 
                                         File destinationFile = context.getOutputFile();
 
-                                        if (NcAnimateRenderVideoBean.VideoFormat.ZIP.equals(videoRenderFile.getFormat())) {
-                                            LOGGER.debug("Creating video frame zip archive");
-                                            this.zipVideoFrames(destinationFile, sortedFrameFiles);
-                                        } else {
-                                            LOGGER.debug("Executing command lines to generate the video");
-                                            this.callVideoCommandLines(context);
+                                        boolean zip = NcAnimateRenderVideoBean.VideoFormat.ZIP.equals(videoRenderFile.getFormat());
+                                        FlightRecorder.Event event = this.beginEvent(
+                                                zip ? FlightRecorder.ZIP_CREATION : FlightRecorder.VIDEO_ENCODING, videoDateRange)
+                                                .setDetail(destinationFile.getName());
+                                        RunMetrics.Timer timer = this.startTimer(RunMetrics.PHASE_VIDEO);
+                                        try {
+                                            if (zip) {
+                                                LOGGER.debug("Creating video frame zip archive");
+                                                this.zipVideoFrames(destinationFile, sortedFrameFiles);
+                                            } else {
+                                                LOGGER.debug("Executing command lines to generate the video");
+                                                this.callVideoCommandLines(context, videoDateRange);
+                                            }
+                                            if (timer != null) {
+                                                timer.stop(sortedFrameFiles.size(), destinationFile.length());
+                                            }
+                                            event.setBytes(destinationFile.length());
+                                        } finally {
+                                            if (timer != null) {
+                                                timer.stop();
+                                            }
+                                            event.commit();
                                         }
 
                                         if (destinationFile.exists()) {
                                             // Upload to S3
                                             URI uploadUri = this.getFileURI(videoRenderFile, context);
                                             LOGGER.info(String.format("Uploading video %s to %s", destinationFile, uploadUri));
-                                            this.uploadFile(destinationFile, uploadUri);
+                                            this.uploadFile(destinationFile, uploadUri, videoDateRange);
 
                                             // Delete generated video file (not the actual frame files, those might be needed for other products)
                                             if (!destinationFile.delete()) {
@@ -196,7 +234,7 @@ public class VideoGenerator extends AbstractMediaGenerator {
                     if (previewFile != null) {
                         URI previewFileUri = VideoGenerator.getPreviewFileURI(videoOutputFileBean, context);
                         LOGGER.debug(String.format("Uploading video preview %s to %s", previewFile, previewFileUri));
-                        this.uploadFile(previewFile, previewFileUri);
+                        this.uploadFile(previewFile, previewFileUri, videoDateRange);
                     }
 
                     // Generate metadata
@@ -208,7 +246,7 @@ public class VideoGenerator extends AbstractMediaGenerator {
                         LOGGER.error("Metadata is null");
                     } else {
                         LOGGER.debug("Saving metadata to the database");
-                        this.saveMetadata(metadata.toJSON());
+                        this.saveMetadata(metadata.toJSON(), videoDateRange);
                     }
                 }
             }
@@ -221,10 +259,38 @@ public class VideoGenerator extends AbstractMediaGenerator {
                 context));
     }
 
+    /**
+     * Create a zip archive containing the video frames.
+     *
+     * When zip deduplication is enabled (see {@link #isZipDedupEnabled()}),
+     * frames identical to a previous frame are not written again. They are listed
+     * in the "duplicates.txt" entry instead, one line per duplicated frame:
+     *     &lt;frame filename&gt; &lt;filename of the identical frame in the archive&gt;
+     * Identical frames are found using the digests of the frame store,
+     * frames which are not in the frame store are always written.
+     */
     private void zipVideoFrames(File zipFile, Collection<File> frameFiles) throws IOException {
+        FrameStore zipFrameStore = VideoGenerator.isZipDedupEnabled() ? this.frameStore : null;
+
+        // Digest => name of the zip entry containing the frame
+        Map<String, String> zippedDigests = new HashMap<String, String>();
+        StringBuilder duplicates = new StringBuilder();
+        int duplicateCount = 0;
+
         // Create a new zip archive (ZipOutputStream) using the parameter zipFile
         try (ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(zipFile))) {
             for (File frameFile : frameFiles) {
+                String digest = zipFrameStore == null ? null : zipFrameStore.getFrameDigest(frameFile);
+                if (digest != null) {
+                    String zippedEntryName = zippedDigests.get(digest);
+                    if (zippedEntryName != null) {
+                        duplicates.append(String.format("%s %s%n", frameFile.getName(), zippedEntryName));
+                        duplicateCount++;
+                        continue;
+                    }
+                    zippedDigests.put(digest, frameFile.getName());
+                }
+
                 try (FileInputStream fileInputStream = new FileInputStream(frameFile)) {
                     // Create a new entry in the zip archive
                     // The entry name will be the same name as the file name (it doesn't have to be)
@@ -242,10 +308,18 @@ public class VideoGenerator extends AbstractMediaGenerator {
                     zipOutputStream.closeEntry();
                 }
             }
+
+            if (duplicateCount > 0) {
+                zipOutputStream.putNextEntry(new ZipEntry(DUPLICATE_FRAMES_ZIP_ENTRY));
+                zipOutputStream.write(duplicates.toString().getBytes(StandardCharsets.UTF_8));
+                zipOutputStream.closeEntry();
+
+                LOGGER.info(String.format("%d duplicated frames written once in the zip archive", duplicateCount));
+            }
         }
     }
 
-    private void callVideoCommandLines(GeneratorContext context) throws Exception {
+    private void callVideoCommandLines(GeneratorContext context, DateTimeRange videoDateRange) throws Exception {
         AbstractNcAnimateRenderFileBean renderFile = context.getRenderFile();
         if (renderFile instanceof NcAnimateRenderVideoBean) {
             NcAnimateRenderVideoBean videoRenderFile = (NcAnimateRenderVideoBean)renderFile;
@@ -275,9 +349,16 @@ public class VideoGenerator extends AbstractMediaGenerator {
                             LOGGER.fatal(ex);
                         }
                     };
+                    systemCall.setFlightRecorderContext(this.getProductId(), this.getRegionId(), videoDateRange);
 
                     systemCall.start();
-                    systemCall.join();
+                    try {
+                        systemCall.join();
+                    } catch (InterruptedException ex) {
+                        // NcAnimate is shutting down. Do not leave the process running.
+                        systemCall.kill();
+                        throw ex;
+                    }
 
                     Integer exitCode = systemCall.getExitCode();
                     if (exitCode != null && exitCode != 0) {
@@ -287,4 +368,13 @@ public class VideoGenerator extends AbstractMediaGenerator {
             }
         }
     }
+
+    /**
+     * Use the environment variable "NCANIMATE_VIDEO_ZIP_DEDUP" if set.
+     * Readers of the zip archives need to support the "duplicates.txt" entry.
+     * @return true if identical frames are written once in video zip archives. Default: false.
+     */
+    public static boolean isZipDedupEnabled() {
+        return EnvironmentVariables.getBoolean(NCANIMATE_VIDEO_ZIP_DEDUP_ENV_VARIABLE, false);
+    }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.timetable;
+
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Incremental index of generated date ranges.
+ *
+ * Generated date ranges are merged as they are added, and kept in a TreeMap
+ * of epoch millis (start date => end date), so checking if a date range is
+ * covered is done in logarithmic time.
+ *
+ * The index also keeps track of pending elements (products) waiting for
+ * their date range to be fully covered. Adding a generated date range returns
+ * the pending elements which became covered, without going through all the
+ * other pending elements.
+ *
+ * Date ranges are considered as half-open intervals [start, end).
+ * A null start date (or end date) is considered as the beginning (or end) of time.
+ *
+ * @param <T> Type of the pending elements.
+ */
+public class DateRangeIndex<T> {
+    // Merged date ranges: start date => end date, in epoch millis.
+    private TreeMap<Long, Long> coveredRanges;
+
+    // Pending elements, indexed by their start date.
+    private TreeMap<Long, List<PendingElement<T>>> pendingElements;
+    private int pendingCount;
+
+    public DateRangeIndex() {
+        this.coveredRanges = new TreeMap<Long, Long>();
+        this.pendingElements = new TreeMap<Long, List<PendingElement<T>>>();
+        this.pendingCount = 0;
+    }
+
+    /**
+     * Add an element which is waiting for its date range to be covered.
+     * If the date range is already covered, the element is returned right away.
+     * @return true if the date range of the element is already covered.
+     */
+    public boolean addPending(DateTimeRange dateRange, T element) {
+        long start = DateRangeIndex.getStartMillis(dateRange);
+        long end = DateRangeIndex.getEndMillis(dateRange);
+
+        if (this.contains(start, end)) {
+            return true;
+        }
+
+        List<PendingElement<T>> elementList = this.pendingElements.get(start);
+        if (elementList == null) {
+            elementList = new ArrayList<PendingElement<T>>();
+            this.pendingElements.put(start, elementList);
+        }
+        elementList.add(new PendingElement<T>(end, element));
+        this.pendingCount++;
+
+        return false;
+    }
+
+    /**
+     * Add a generated date range to the index.
+     * The date range is merged with the overlapping or adjacent date ranges already in the index.
+     * @return The pending elements which are now fully covered. They are removed from the index.
+     */
+    public List<T> add(DateTimeRange dateRange) {
+        long start = DateRangeIndex.getStartMillis(dateRange);
+        long end = DateRangeIndex.getEndMillis(dateRange);
+
+        // Merge with the previous date range, if it overlaps or touches
+        Map.Entry<Long, Long> previous = this.coveredRanges.floorEntry(start);
+        if (previous != null && previous.getValue() >= start) {
+            start = previous.getKey();
+            end = Math.max(end, previous.getValue());
+        }
+
+        // Merge with the following date ranges, as long as they overlap or touch
+        Map.Entry<Long, Long> next = this.coveredRanges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            this.coveredRanges.remove(next.getKey());
+            next = this.coveredRanges.higherEntry(next.getKey());
+        }
+
+        this.coveredRanges.put(start, end);
+
+        return this.collectCovered(start, end);
+    }
+
+    /**
+     * Count the pending elements which would be covered if the date range was added,
+     * without modifying the index.
+     */
+    public int countCoveredIfAdded(DateTimeRange dateRange) {
+        if (this.pendingCount <= 0) {
+            return 0;
+        }
+
+        long start = DateRangeIndex.getStartMillis(dateRange);
+        long end = DateRangeIndex.getEndMillis(dateRange);
+
+        Map.Entry<Long, Long> previous = this.coveredRanges.floorEntry(start);
+        if (previous != null && previous.getValue() >= start) {
+            start = previous.getKey();
+            end = Math.max(end, previous.getValue());
+        }
+        Map.Entry<Long, Long> next = this.coveredRanges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            next = this.coveredRanges.higherEntry(next.getKey());
+        }
+
+        int count = 0;
+        for (List<PendingElement<T>> elementList : this.pendingElements.subMap(start, true, end, true).values()) {
+            for (PendingElement<T> pendingElement : elementList) {
+                if (pendingElement.end <= end) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Check if the date range is fully covered by the generated date ranges.
+     */
+    public boolean contains(DateTimeRange dateRange) {
+        return this.contains(DateRangeIndex.getStartMillis(dateRange), DateRangeIndex.getEndMillis(dateRange));
+    }
+
+    private boolean contains(long start, long end) {
+        Map.Entry<Long, Long> covering = this.coveredRanges.floorEntry(start);
+        return covering != null && covering.getValue() >= end;
+    }
+
+    public int getPendingCount() {
+        return this.pendingCount;
+    }
+
+    /**
+     * @return The number of disjoint date ranges in the index, after merge.
+     */
+    public int getCoveredRangeCount() {
+        return this.coveredRanges.size();
+    }
+
+    /**
+     * @return The disjoint date ranges in the index, after merge, in epoch millis (start date => end date).
+     */
+    public SortedMap<Long, Long> getCoveredRanges() {
+        return Collections.unmodifiableSortedMap(this.coveredRanges);
+    }
+
+    private List<T> collectCovered(long start, long end) {
+        List<T> covered = new ArrayList<T>();
+        if (this.pendingCount <= 0) {
+            return covered;
+        }
+
+        // Only look at the elements starting within the merged date range.
+        // Elements starting earlier can not be covered by it.
+        NavigableMap<Long, List<PendingElement<T>>> candidates = this.pendingElements.subMap(start, true, end, true);
+        Iterator<List<PendingElement<T>>> candidateIterator = candidates.values().iterator();
+        while (candidateIterator.hasNext()) {
+            List<PendingElement<T>> elementList = candidateIterator.next();
+            Iterator<PendingElement<T>> elementIterator = elementList.iterator();
+            while (elementIterator.hasNext()) {
+                PendingElement<T> pendingElement = elementIterator.next();
+                if (pendingElement.end <= end) {
+                    covered.add(pendingElement.element);
+                    elementIterator.remove();
+                    this.pendingCount--;
+                }
+            }
+            if (elementList.isEmpty()) {
+                candidateIterator.remove();
+            }
+        }
+
+        return covered;
+    }
+
+    public static long getStartMillis(DateTimeRange dateRange) {
+        DateTime startDate = dateRange == null ? null : dateRange.getStartDate();
+        return startDate == null ? Long.MIN_VALUE : startDate.getMillis();
+    }
+
+    public static long getEndMillis(DateTimeRange dateRange) {
+        DateTime endDate = dateRange == null ? null : dateRange.getEndDate();
+        return endDate == null ? Long.MAX_VALUE : endDate.getMillis();
+    }
+
+    private static class PendingElement<T> {
+        private final long end;
+        private final T element;
+
+        public PendingElement(long end, T element) {
+            this.end = end;
+            this.element = element;
+        }
+    }
+}
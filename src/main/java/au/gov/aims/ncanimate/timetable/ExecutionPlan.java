@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.timetable;
+
+import au.gov.aims.ncanimate.EnvironmentVariables;
+import au.gov.aims.ncanimate.commons.NcAnimateGenerateFileBean;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Execution plan of a NcAnimate run, created without generating anything.
+ * Used to size the instances and disks before launching a long run.
+ *
+ * The plan lists the frame groups in the order they are sent to NcAnimate frame,
+ * with their input files, their number of frames and the products which become
+ * ready once the group is generated.
+ *
+ * The number of input file downloads assumes NcAnimate frame keeps the input files
+ * which are used by the following group (see {@link FrameGroupScheduler}).
+ *
+ * The estimated disk usage assumes every frame file has the same size.
+ * The peak takes into account the frames of the groups generated at once by
+ * the frame workers, but not the products waiting to be assembled.
+ */
+public class ExecutionPlan {
+    private static final Logger LOGGER = Logger.getLogger(ExecutionPlan.class);
+
+    private static final String NCANIMATE_FRAME_SIZE_ENV_VARIABLE = "NCANIMATE_ESTIMATED_FRAME_SIZE_KB";
+    private static final long DEFAULT_FRAME_SIZE_KB = 250;
+
+    private String productId;
+    private String regionId;
+    private int frameWorkers;
+    private long frameSizeBytes;
+
+    private int outdatedVideoCount;
+    private int outdatedMapCount;
+
+    private List<GroupPlan> groupPlans;
+    private List<String> unreachableProductIds;
+    private long frameCount;
+    private long maxFramesOnDisk;
+    private int maxGroupFrameCount;
+    private int inputDownloadCount;
+    private Set<String> lastMetadataIds;
+
+    public ExecutionPlan(String productId, String regionId, int frameWorkers) {
+        this.productId = productId;
+        this.regionId = regionId;
+        this.frameWorkers = Math.max(1, frameWorkers);
+        this.frameSizeBytes = ExecutionPlan.getEstimatedFrameSizeKB() * 1024;
+
+        this.groupPlans = new ArrayList<GroupPlan>();
+        this.unreachableProductIds = new ArrayList<String>();
+        this.frameCount = 0;
+        this.maxFramesOnDisk = 0;
+        this.maxGroupFrameCount = 0;
+        this.inputDownloadCount = 0;
+        this.lastMetadataIds = Collections.<String>emptySet();
+    }
+
+    public void setOutdatedProductCount(int outdatedVideoCount, int outdatedMapCount) {
+        this.outdatedVideoCount = outdatedVideoCount;
+        this.outdatedMapCount = outdatedMapCount;
+    }
+
+    /**
+     * Add the next frame group to the plan.
+     * @param frameGroup The frame group.
+     * @param groupFrameCount Number of frames generated for the group.
+     * @param readyProducts Products which can be generated once the group is generated.
+     * @param framesOnDisk Number of frames on disk once the group is generated,
+     *     before the frames of the ready products are deleted.
+     */
+    public void addGroup(FrameGroup frameGroup, int groupFrameCount, Collection<NcAnimateGenerateFileBean> readyProducts, long framesOnDisk) {
+        List<String> readyProductIds = new ArrayList<String>();
+        if (readyProducts != null) {
+            for (NcAnimateGenerateFileBean readyProduct : readyProducts) {
+                readyProductIds.add(readyProduct.getFileId());
+            }
+        }
+
+        this.groupPlans.add(new GroupPlan(frameGroup, groupFrameCount, readyProductIds));
+        this.frameCount += groupFrameCount;
+        this.maxGroupFrameCount = Math.max(this.maxGroupFrameCount, groupFrameCount);
+        this.maxFramesOnDisk = Math.max(this.maxFramesOnDisk, framesOnDisk);
+
+        if (!frameGroup.isNoData()) {
+            for (String metadataId : frameGroup.getMetadataIds()) {
+                if (!this.lastMetadataIds.contains(metadataId)) {
+                    this.inputDownloadCount++;
+                }
+            }
+            this.lastMetadataIds = frameGroup.getMetadataIds();
+        }
+    }
+
+    /**
+     * Add the products which will not be generated, because some of their frames are not part of any group.
+     */
+    public void setUnreachableProducts(Collection<NcAnimateGenerateFileBean> unreachableProducts) {
+        this.unreachableProductIds.clear();
+        if (unreachableProducts != null) {
+            for (NcAnimateGenerateFileBean unreachableProduct : unreachableProducts) {
+                this.unreachableProductIds.add(unreachableProduct.getFileId());
+            }
+        }
+    }
+
+    public int getGroupCount() {
+        return this.groupPlans.size();
+    }
+
+    public long getFrameCount() {
+        return this.frameCount;
+    }
+
+    /**
+     * Number of times an input file is downloaded,
+     * when input files used by consecutive groups are downloaded once.
+     */
+    public int getInputDownloadCount() {
+        return this.inputDownloadCount;
+    }
+
+    public long getEstimatedFrameDiskUsage() {
+        return this.frameCount * this.frameSizeBytes;
+    }
+
+    /**
+     * Estimated maximum disk space used by the frames at any given time.
+     * The other workers may be generating a group as large as the largest one.
+     */
+    public long getEstimatedPeakFrameDiskUsage() {
+        return (this.maxFramesOnDisk + (long)(this.frameWorkers - 1) * this.maxGroupFrameCount) * this.frameSizeBytes;
+    }
+
+    public JSONObject toJSON() {
+        JSONArray jsonGroups = new JSONArray();
+        int order = 0;
+        for (GroupPlan groupPlan : this.groupPlans) {
+            jsonGroups.put(groupPlan.toJSON(order++));
+        }
+
+        JSONArray jsonUnreachableProducts = new JSONArray();
+        for (String unreachableProductId : this.unreachableProductIds) {
+            jsonUnreachableProducts.put(unreachableProductId);
+        }
+
+        return new JSONObject()
+            .put("productId", this.productId)
+            .put("regionId", this.regionId)
+            .put("created", new DateTime().toString())
+            .put("frameWorkers", this.frameWorkers)
+            .put("outdatedVideos", this.outdatedVideoCount)
+            .put("outdatedMaps", this.outdatedMapCount)
+            .put("frameGroupCount", this.groupPlans.size())
+            .put("frameCount", this.frameCount)
+            .put("inputDownloadCount", this.inputDownloadCount)
+            .put("estimatedFrameSizeBytes", this.frameSizeBytes)
+            .put("estimatedFrameDiskUsageBytes", this.getEstimatedFrameDiskUsage())
+            .put("estimatedPeakFrameDiskUsageBytes", this.getEstimatedPeakFrameDiskUsage())
+            .put("frameGroups", jsonGroups)
+            .put("unreachableProducts", jsonUnreachableProducts);
+    }
+
+    public void save(File planFile) throws IOException {
+        File parentDirectory = planFile.getAbsoluteFile().getParentFile();
+        if (parentDirectory != null && !parentDirectory.exists() && !parentDirectory.mkdirs()) {
+            throw new IOException(String.format("Could not create the directory for the execution plan: %s", parentDirectory));
+        }
+
+        Files.write(planFile.toPath(), this.toJSON().toString(4).getBytes(StandardCharsets.UTF_8));
+
+        LOGGER.info(String.format("Execution plan saved: %s", planFile.getAbsolutePath()));
+        LOGGER.info(String.format("    %d frame groups, %d frames, %d products, %d input file downloads",
+                this.groupPlans.size(), this.frameCount, this.outdatedVideoCount + this.outdatedMapCount, this.inputDownloadCount));
+        LOGGER.info(String.format("    Estimated frame disk usage: %.2f MB (peak: %.2f MB)",
+                this.getEstimatedFrameDiskUsage() / (1024 * 1024.0), this.getEstimatedPeakFrameDiskUsage() / (1024 * 1024.0)));
+    }
+
+    /**
+     * Estimated size of a frame file, used to estimate the disk usage.
+     * Use the environment variable "NCANIMATE_ESTIMATED_FRAME_SIZE_KB" if set.
+     */
+    public static long getEstimatedFrameSizeKB() {
+        return EnvironmentVariables.getLong(NCANIMATE_FRAME_SIZE_ENV_VARIABLE, DEFAULT_FRAME_SIZE_KB, 1);
+    }
+
+    private static class GroupPlan {
+        private final FrameGroup frameGroup;
+        private final int frameCount;
+        private final List<String> readyProductIds;
+
+        public GroupPlan(FrameGroup frameGroup, int frameCount, List<String> readyProductIds) {
+            this.frameGroup = frameGroup;
+            this.frameCount = frameCount;
+            this.readyProductIds = readyProductIds;
+        }
+
+        public JSONObject toJSON(int order) {
+            DateTimeRange dateRange = this.frameGroup.getDateRange();
+
+            JSONArray jsonMetadataIds = new JSONArray();
+            for (String metadataId : this.frameGroup.getMetadataIds()) {
+                jsonMetadataIds.put(metadataId);
+            }
+
+            JSONArray jsonReadyProducts = new JSONArray();
+            for (String readyProductId : this.readyProductIds) {
+                jsonReadyProducts.put(readyProductId);
+            }
+
+            return new JSONObject()
+                .put("order", order)
+                .put("startDate", dateRange.getStartDate() == null ? null : dateRange.getStartDate().toString())
+                .put("endDate", dateRange.getEndDate() == null ? null : dateRange.getEndDate().toString())
+                .put("noData", this.frameGroup.isNoData())
+                .put("inputMetadataIds", jsonMetadataIds)
+                .put("frameCount", this.frameCount)
+                .put("readyProductCount", this.readyProductIds.size())
+                .put("readyProducts", jsonReadyProducts);
+        }
+    }
+}
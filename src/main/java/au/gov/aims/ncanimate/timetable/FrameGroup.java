@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.timetable;
+
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Date range of frames which are generated using the same input files,
+ * in a single run of NcAnimate frame.
+ * A group with no input files is a gap in the data, filled with "No data" frames.
+ */
+public class FrameGroup implements Comparable<FrameGroup> {
+    private DateTimeRange dateRange;
+    private Set<String> metadataIds;
+
+    public FrameGroup(DateTimeRange dateRange, Set<String> metadataIds) {
+        this.dateRange = dateRange;
+        this.metadataIds = metadataIds == null ?
+                Collections.<String>emptySet() :
+                Collections.unmodifiableSet(new TreeSet<String>(metadataIds));
+    }
+
+    public DateTimeRange getDateRange() {
+        return this.dateRange;
+    }
+
+    /**
+     * @return The IDs of the input files used by the frames, sorted alphabetically.
+     */
+    public Set<String> getMetadataIds() {
+        return this.metadataIds;
+    }
+
+    public boolean isNoData() {
+        return this.metadataIds.isEmpty();
+    }
+
+    @Override
+    public int compareTo(FrameGroup other) {
+        return this.dateRange.compareTo(other.dateRange);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof FrameGroup)) {
+            return false;
+        }
+        return this.dateRange.equals(((FrameGroup)other).dateRange);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.dateRange.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%s - %s] %s",
+                this.dateRange.getStartDate(), this.dateRange.getEndDate(),
+                this.isNoData() ? "No data" : this.metadataIds);
+    }
+}
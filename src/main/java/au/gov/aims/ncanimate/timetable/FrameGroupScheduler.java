@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.timetable;
+
+import au.gov.aims.ncanimate.EnvironmentVariables;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.generator.FrameKeys;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Decide in which order the frame groups are sent to NcAnimate frame,
+ * to keep the number of frame files on disk within a budget.
+ *
+ * Frames stay on disk until all the products which needs them are generated.
+ * The scheduler picks the next group among the first groups not generated yet:
+ * <ol>
+ *   <li>groups which fit in the disk budget,</li>
+ *   <li>then groups which complete the most pending products,</li>
+ *   <li>then groups which share the most input files with the previous group,</li>
+ *   <li>then the earliest group.</li>
+ * </ol>
+ * Input files are downloaded by NcAnimate frame, so consecutive groups using
+ * the same input files avoid downloading the same files again.
+ * Groups which have more frames than the budget allows are split
+ * at frame boundaries before scheduling.
+ *
+ * The scheduler also keeps track of the frames on disk, to report
+ * the peak and average frame disk usage of the run.
+ */
+public class FrameGroupScheduler {
+    private static final Logger LOGGER = Logger.getLogger(FrameGroupScheduler.class);
+
+    private static final String NCANIMATE_FRAME_DISK_BUDGET_ENV_VARIABLE = "NCANIMATE_FRAME_DISK_BUDGET_MB";
+
+    // Number of groups, from the earliest one not generated yet, considered for the next group.
+    // Products span consecutive groups, so groups further away can not complete any product.
+    private static final int CANDIDATE_WINDOW = 32;
+
+    private long[] sortedFrameKeys;
+    private long budgetFrames;
+    private long frameSizeBytes;
+
+    private LinkedList<ScheduledGroup> remainingGroups;
+
+    // Products, indexed by date range. Scheduled groups are added to it,
+    // to find out which products a group would complete.
+    private DateRangeIndex<Boolean> productIndex;
+
+    // Input files of the last group returned by next()
+    private Set<String> lastMetadataIds;
+
+    private long framesOnDisk;
+    private long peakFramesOnDisk;
+    private double frameMillisOnDisk;
+    private long startTime;
+    private long lastUpdateTime;
+
+    /**
+     * @param frameGroups Frame groups, in chronological order.
+     * @param sortedFrameKeys Keys of all the frames needed by the products, sorted.
+     * @param productDateRanges Date ranges of the products to generate.
+     * @param budgetBytes Maximum disk space used by frame files, in bytes. Set to 0 (or less) for no limit.
+     * @param frameSizeBytes Estimated size of a frame file, in bytes.
+     * @param frameWorkers Number of groups generated at once.
+     */
+    public FrameGroupScheduler(
+            List<FrameGroup> frameGroups,
+            long[] sortedFrameKeys,
+            Collection<DateTimeRange> productDateRanges,
+            long budgetBytes,
+            long frameSizeBytes,
+            int frameWorkers) {
+
+        this.sortedFrameKeys = sortedFrameKeys;
+        this.frameSizeBytes = Math.max(1, frameSizeBytes);
+        this.budgetFrames = budgetBytes <= 0 ? Long.MAX_VALUE : Math.max(1, budgetBytes / this.frameSizeBytes);
+
+        this.productIndex = new DateRangeIndex<Boolean>();
+        if (productDateRanges != null) {
+            for (DateTimeRange productDateRange : productDateRanges) {
+                this.productIndex.addPending(productDateRange, Boolean.TRUE);
+            }
+        }
+
+        // Split the groups which are too large, so the workers can generate a group each without exceeding the budget
+        long maxGroupFrames = this.budgetFrames == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(1, this.budgetFrames / Math.max(1, frameWorkers));
+        this.remainingGroups = new LinkedList<ScheduledGroup>();
+        if (frameGroups != null) {
+            for (FrameGroup frameGroup : frameGroups) {
+                this.remainingGroups.addAll(this.split(frameGroup, maxGroupFrames));
+            }
+        }
+
+        this.lastMetadataIds = Collections.<String>emptySet();
+
+        this.framesOnDisk = 0;
+        this.peakFramesOnDisk = 0;
+        this.frameMillisOnDisk = 0;
+        this.startTime = System.currentTimeMillis();
+        this.lastUpdateTime = this.startTime;
+    }
+
+    public boolean hasNext() {
+        return !this.remainingGroups.isEmpty();
+    }
+
+    public int getRemainingGroupCount() {
+        return this.remainingGroups.size();
+    }
+
+    /**
+     * Get the next frame group to generate.
+     * The frames of the group are considered to be on disk from now on.
+     * @param canWait True if frames are expected to be deleted later on (generation or assembly in progress).
+     *     When false, a group is always returned (if any), even if it doesn't fit in the disk budget.
+     * @return The next frame group, or null if there is no more groups
+     *     or if the next group needs to wait for frames to be deleted.
+     */
+    public FrameGroup next(boolean canWait) {
+        return this.next(canWait, true, true);
+    }
+
+    /**
+     * Same as {@link #next(boolean)}, restricted to the groups the available workers can generate.
+     * @param dataGroups True if a group with input files can be returned.
+     * @param noDataGroups True if a group without input files ("No data" frames) can be returned.
+     * @return The next frame group, or null if there is no more groups of the requested kind
+     *     or if the next group needs to wait for frames to be deleted.
+     */
+    public FrameGroup next(boolean canWait, boolean dataGroups, boolean noDataGroups) {
+        if (this.remainingGroups.isEmpty() || (!dataGroups && !noDataGroups)) {
+            return null;
+        }
+        if (!dataGroups) {
+            return this.nextNoData();
+        }
+
+        ScheduledGroup best = null;
+        int bestCompletedProducts = -1;
+        int bestSharedInputs = -1;
+
+        int candidateCount = 0;
+        ListIterator<ScheduledGroup> candidateIterator = this.remainingGroups.listIterator();
+        while (candidateIterator.hasNext() && candidateCount < CANDIDATE_WINDOW) {
+            ScheduledGroup candidate = candidateIterator.next();
+            candidateCount++;
+
+            if (!noDataGroups && candidate.frameGroup.isNoData()) {
+                continue;
+            }
+            if (this.framesOnDisk + candidate.frameCount > this.budgetFrames) {
+                continue;
+            }
+
+            int completedProducts = this.productIndex.countCoveredIfAdded(candidate.frameGroup.getDateRange());
+            if (completedProducts < bestCompletedProducts) {
+                continue;
+            }
+
+            int sharedInputs = FrameGroupScheduler.countShared(this.lastMetadataIds, candidate.frameGroup.getMetadataIds());
+            if (completedProducts > bestCompletedProducts || sharedInputs > bestSharedInputs) {
+                best = candidate;
+                bestCompletedProducts = completedProducts;
+                bestSharedInputs = sharedInputs;
+            }
+        }
+
+        if (best == null) {
+            if (canWait) {
+                return null;
+            }
+
+            // Nothing will free disk space. Generate the earliest group anyway.
+            best = this.getFirst(noDataGroups);
+            if (best == null) {
+                return null;
+            }
+            LOGGER.warn(String.format("Frame disk budget exceeded: %d frames on disk, %d frames in the next group, budget of %d frames",
+                    this.framesOnDisk, best.frameCount, this.budgetFrames));
+        }
+
+        this.remainingGroups.remove(best);
+        this.productIndex.add(best.frameGroup.getDateRange());
+        this.updateFramesOnDisk(best.frameCount);
+        if (!best.frameGroup.isNoData()) {
+            this.lastMetadataIds = best.frameGroup.getMetadataIds();
+        }
+
+        return best.frameGroup;
+    }
+
+    private ScheduledGroup getFirst(boolean noDataGroups) {
+        for (ScheduledGroup candidate : this.remainingGroups) {
+            if (noDataGroups || !candidate.frameGroup.isNoData()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    // The earliest group without input files which fits in the disk budget.
+    // There is usually only a few of them, at the beginning and the end of the products or in the gaps of the data.
+    private FrameGroup nextNoData() {
+        Iterator<ScheduledGroup> candidateIterator = this.remainingGroups.iterator();
+        while (candidateIterator.hasNext()) {
+            ScheduledGroup candidate = candidateIterator.next();
+            if (candidate.frameGroup.isNoData() && this.framesOnDisk + candidate.frameCount <= this.budgetFrames) {
+                candidateIterator.remove();
+                this.productIndex.add(candidate.frameGroup.getDateRange());
+                this.updateFramesOnDisk(candidate.frameCount);
+                return candidate.frameGroup;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Locality hint sent to NcAnimate frame: the input files of a group
+     * which are also used by the next groups to generate.
+     * Those files are worth keeping on disk after the group is generated.
+     * @param frameGroup A group returned by {@link #next(boolean)}.
+     * @return The IDs of the input files needed by the next groups, sorted alphabetically.
+     */
+    public Set<String> getUpcomingMetadataIds(FrameGroup frameGroup) {
+        Set<String> upcomingMetadataIds = new TreeSet<String>();
+        if (frameGroup == null || frameGroup.isNoData()) {
+            return upcomingMetadataIds;
+        }
+
+        int candidateCount = 0;
+        Iterator<ScheduledGroup> candidateIterator = this.remainingGroups.iterator();
+        while (candidateIterator.hasNext() && candidateCount < CANDIDATE_WINDOW) {
+            Set<String> candidateMetadataIds = candidateIterator.next().frameGroup.getMetadataIds();
+            candidateCount++;
+
+            for (String metadataId : frameGroup.getMetadataIds()) {
+                if (candidateMetadataIds.contains(metadataId)) {
+                    upcomingMetadataIds.add(metadataId);
+                }
+            }
+        }
+
+        return upcomingMetadataIds;
+    }
+
+    /**
+     * Number of frames generated for a frame group.
+     */
+    public int getFrameCount(FrameGroup frameGroup) {
+        return FrameKeys.countKeys(this.sortedFrameKeys, frameGroup.getDateRange());
+    }
+
+    /**
+     * Notify the scheduler that frame files have been deleted.
+     * @param frameCount Number of frames which are not needed anymore.
+     */
+    public void releaseFrames(int frameCount) {
+        this.updateFramesOnDisk(-frameCount);
+    }
+
+    public long getFramesOnDisk() {
+        return this.framesOnDisk;
+    }
+
+    /**
+     * @return The estimated maximum disk space used by frame files, in bytes.
+     */
+    public long getPeakFrameDiskUsage() {
+        return this.peakFramesOnDisk * this.frameSizeBytes;
+    }
+
+    /**
+     * @return The estimated average disk space used by frame files over time, in bytes.
+     */
+    public long getAverageFrameDiskUsage() {
+        this.updateFramesOnDisk(0);
+        long elapsed = this.lastUpdateTime - this.startTime;
+        if (elapsed <= 0) {
+            return this.framesOnDisk * this.frameSizeBytes;
+        }
+        return (long)(this.frameMillisOnDisk / elapsed * this.frameSizeBytes);
+    }
+
+    private void updateFramesOnDisk(long delta) {
+        long now = System.currentTimeMillis();
+        this.frameMillisOnDisk += (double)this.framesOnDisk * (now - this.lastUpdateTime);
+        this.lastUpdateTime = now;
+
+        this.framesOnDisk = Math.max(0, this.framesOnDisk + delta);
+        this.peakFramesOnDisk = Math.max(this.peakFramesOnDisk, this.framesOnDisk);
+    }
+
+    private List<ScheduledGroup> split(FrameGroup frameGroup, long maxGroupFrames) {
+        List<ScheduledGroup> groups = new ArrayList<ScheduledGroup>();
+
+        int frameCount = this.getFrameCount(frameGroup);
+        DateTimeRange dateRange = frameGroup.getDateRange();
+        if (frameCount <= maxGroupFrames || dateRange.getStartDate() == null || dateRange.getEndDate() == null) {
+            groups.add(new ScheduledGroup(frameGroup, frameCount));
+            return groups;
+        }
+
+        // Split at frame boundaries. Frames starting at the same time are kept together.
+        DateTime startDate = dateRange.getStartDate();
+        long endSeconds = Math.floorDiv(dateRange.getEndDate().getMillis(), 1000L);
+        int from = FrameGroupScheduler.getInsertionIndex(this.sortedFrameKeys, Math.floorDiv(startDate.getMillis(), 1000L));
+        int to = FrameGroupScheduler.getInsertionIndex(this.sortedFrameKeys, endSeconds);
+
+        DateTime subStartDate = startDate;
+        int subFrameCount = 0;
+        long previousSeconds = Long.MIN_VALUE;
+        for (int i = from; i < to; i++) {
+            long frameSeconds = FrameKeys.getStartSeconds(this.sortedFrameKeys[i]);
+            if (frameSeconds != previousSeconds && subFrameCount >= maxGroupFrames) {
+                DateTime splitDate = new DateTime(frameSeconds * 1000L, startDate.getZone());
+                groups.add(new ScheduledGroup(
+                        new FrameGroup(DateTimeRange.create(subStartDate, splitDate), frameGroup.getMetadataIds()), subFrameCount));
+                subStartDate = splitDate;
+                subFrameCount = 0;
+            }
+            subFrameCount++;
+            previousSeconds = frameSeconds;
+        }
+        groups.add(new ScheduledGroup(
+                new FrameGroup(DateTimeRange.create(subStartDate, dateRange.getEndDate()), frameGroup.getMetadataIds()), subFrameCount));
+
+        LOGGER.info(String.format("Frame group %s split into %d groups of at most %d frames", frameGroup, groups.size(), maxGroupFrames));
+        return groups;
+    }
+
+    private static int countShared(Set<String> metadataIds, Set<String> otherMetadataIds) {
+        int count = 0;
+        for (String metadataId : otherMetadataIds) {
+            if (metadataIds.contains(metadataId)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Index of the first key of a frame starting at or after the given time
+    private static int getInsertionIndex(long[] sortedFrameKeys, long seconds) {
+        long key = FrameKeys.pack(seconds, 0, 0, 0);
+        int low = 0;
+        int high = sortedFrameKeys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sortedFrameKeys[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Maximum disk space used by frame files, in bytes.
+     * Use the environment variable "NCANIMATE_FRAME_DISK_BUDGET_MB" if set.
+     * @return The budget, or 0 if there is no budget.
+     */
+    public static long getDefaultDiskBudget() {
+        return EnvironmentVariables.getLong(NCANIMATE_FRAME_DISK_BUDGET_ENV_VARIABLE, 0, 0) * 1024 * 1024;
+    }
+
+    private static class ScheduledGroup {
+        private final FrameGroup frameGroup;
+        private final int frameCount;
+
+        public ScheduledGroup(FrameGroup frameGroup, int frameCount) {
+            this.frameGroup = frameGroup;
+            this.frameCount = frameCount;
+        }
+    }
+}
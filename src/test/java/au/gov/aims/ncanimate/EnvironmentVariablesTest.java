@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EnvironmentVariablesTest {
+
+    @Test
+    public void testTrim() {
+        Assert.assertNull("Missing value should not be set", EnvironmentVariables.trim(null));
+        Assert.assertNull("Empty value should not be set", EnvironmentVariables.trim(""));
+        Assert.assertNull("Blank value should not be set", EnvironmentVariables.trim("   "));
+        Assert.assertEquals("Wrong trimmed value", "/tmp/frames", EnvironmentVariables.trim(" /tmp/frames\n"));
+    }
+
+    @Test
+    public void testParseBoolean() {
+        Assert.assertTrue("Missing value should use the default value", EnvironmentVariables.parseBoolean(null, true));
+        Assert.assertFalse("Missing value should use the default value", EnvironmentVariables.parseBoolean(null, false));
+        Assert.assertTrue("Blank value should use the default value", EnvironmentVariables.parseBoolean(" ", true));
+        Assert.assertTrue("Wrong value", EnvironmentVariables.parseBoolean(" TRUE ", false));
+        Assert.assertFalse("Wrong value", EnvironmentVariables.parseBoolean("false", true));
+        Assert.assertFalse("Unknown values are false", EnvironmentVariables.parseBoolean("yes", true));
+    }
+
+    @Test
+    public void testParseLong() {
+        Assert.assertNull("Missing value should not be set", EnvironmentVariables.parseLong("NCANIMATE_TEST", null));
+        Assert.assertNull("Blank value should not be set", EnvironmentVariables.parseLong("NCANIMATE_TEST", " "));
+        Assert.assertNull("Invalid value should be ignored", EnvironmentVariables.parseLong("NCANIMATE_TEST", "12 MB"));
+        Assert.assertEquals("Wrong value", Long.valueOf(12), EnvironmentVariables.parseLong("NCANIMATE_TEST", " 12 "));
+        Assert.assertEquals("Wrong value", Long.valueOf(-1), EnvironmentVariables.parseLong("NCANIMATE_TEST", "-1"));
+    }
+
+    @Test
+    public void testMissingVariable() {
+        // Environment variable which is never set
+        String name = "NCANIMATE_TEST_MISSING_ENVIRONMENT_VARIABLE";
+
+        Assert.assertNull("Missing value should not be set", EnvironmentVariables.getString(name));
+        Assert.assertNull("Missing value should not be set", EnvironmentVariables.getFile(name));
+        Assert.assertNull("Missing value should not be set", EnvironmentVariables.getInteger(name));
+        Assert.assertTrue("Missing value should use the default value", EnvironmentVariables.getBoolean(name, true));
+        Assert.assertEquals("Missing value should use the default value", 8, EnvironmentVariables.getInteger(name, 8, 1));
+        Assert.assertEquals("Missing value should use the default value", 250L, EnvironmentVariables.getLong(name, 250L, 1L));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate;
+
+import au.gov.aims.ereefs.Utils;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+public class FlightRecorderTest {
+
+    @Test
+    public void testAvailability() {
+        // JFR events can be created from Java 8u262, which provides the jdk.jfr.EventFactory class
+        boolean jfrEventFactory;
+        try {
+            Class.forName("jdk.jfr.EventFactory");
+            jfrEventFactory = true;
+        } catch(ClassNotFoundException ex) {
+            jfrEventFactory = false;
+        }
+        Assert.assertEquals("Wrong Java Flight Recorder availability", jfrEventFactory, FlightRecorder.isAvailable());
+    }
+
+    @Test
+    public void testEventWithoutRecording() {
+        // Events are ignored when nothing is recording them, or when JFR is not available
+        FlightRecorder.Event event = FlightRecorder.begin(FlightRecorder.S3_UPLOAD, "gbr4_v2_temp", "qld", null);
+        Assert.assertNotNull("No event returned", event);
+        Assert.assertEquals("Wrong event recording", !FlightRecorder.isAvailable(), event.isNoOp());
+        Assert.assertSame("The setters should return the event", event, event.setBytes(1000).setDetail("s3://bucket/products/video.mp4"));
+        event.commit();
+        Assert.assertTrue("The event would be recorded twice", event.isNoOp());
+        // Committing again is ignored
+        event.commit();
+
+        // Unknown events are ignored
+        FlightRecorder.Event unknownEvent = FlightRecorder.begin("Unknown", null, null, null);
+        Assert.assertNotNull("No event returned for an unknown event type", unknownEvent);
+        Assert.assertTrue("Unknown event type recorded", unknownEvent.isNoOp());
+        Assert.assertSame("The setters should return the event", unknownEvent, unknownEvent.setBytes(1).setDetail("detail"));
+        unknownEvent.commit();
+    }
+
+    @Test
+    public void testRecording() throws Exception {
+        // JFR requires Java 8u262 or later
+        if (!FlightRecorder.isAvailable()) {
+            return;
+        }
+
+        File tempDirectory = Files.createTempDirectory("flightRecorderTest").toFile();
+        try {
+            FlightRecorder.Recording recording = FlightRecorder.startRecording("flightRecorderTest");
+            Assert.assertNotNull("The recording was not started", recording);
+
+            DateTimeRange dateRange = DateTimeRange.create(
+                    new DateTime(2010, 9, 1, 0, 0, DateTimeZone.UTC),
+                    new DateTime(2010, 9, 2, 0, 0, DateTimeZone.UTC));
+            FlightRecorder.Event event = FlightRecorder.begin(FlightRecorder.FRAME_GENERATION, "gbr4_v2_temp", "qld", dateRange);
+            Thread.sleep(5);
+            event.setDetail("24 frames").commit();
+
+            File jfrFile = recording.stop(new File(tempDirectory, "gbr4_v2_temp_qld.jfr"));
+            Assert.assertNotNull("The recording was not written", jfrFile);
+            Assert.assertTrue("Empty recording", jfrFile.length() > 0);
+        } finally {
+            Utils.deleteDirectory(tempDirectory);
+        }
+    }
+}
@@ -10,11 +10,14 @@ import au.gov.aims.ereefs.database.manager.MetadataManager;
 import au.gov.aims.ereefs.database.table.JSONObjectIterable;
 import au.gov.aims.ncanimate.generator.MetadataGenerator;
 import org.apache.log4j.Logger;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
 public class NcAnimateTest extends DatabaseTestBase {
     private static final Logger LOGGER = Logger.getLogger(NcAnimateTest.class);
@@ -202,6 +205,47 @@ public class NcAnimateTest extends DatabaseTestBase {
         Assert.assertTrue(String.format("The generated file %s was not re-generated", generatedVideo), generatedVideo.exists());
     }
 
+    @Test
+    public void testPlanOnlyTinyGBR4v2() throws Exception {
+        super.insertData();
+        super.insertFakePartialGBR4NetCDFFile();
+
+        String productId = "gbr4_v2_temp-wind-salt-current";
+        File planFile = new File("/tmp/ncanimateTests/plan/plan.json");
+        File generatedVideo = new File("/tmp/ncanimateTests/s3/ncanimate/products/gbr4_v2_temp-wind-salt-current/gbr4_v2_temp-wind-salt-current_video_yearly_2010_qld_-1.5.mp4");
+
+        NcAnimate ncAnimate = this.getNcanimate();
+        ncAnimate.setPlanOnly(true);
+        ncAnimate.setPlanFile(planFile);
+        ncAnimate.generateFromProductId(productId);
+
+        Assert.assertTrue(String.format("The execution plan was not saved: %s", planFile), planFile.exists());
+        Assert.assertFalse(String.format("A product was generated in plan only mode: %s", generatedVideo), generatedVideo.exists());
+
+        JSONObject jsonPlan = new JSONObject(new String(Files.readAllBytes(planFile.toPath()), StandardCharsets.UTF_8));
+        LOGGER.info(String.format("Execution plan:%n%s", jsonPlan.toString(4)));
+
+        Assert.assertEquals("Wrong product ID", productId, jsonPlan.optString("productId", null));
+        Assert.assertEquals("Wrong number of outdated videos", 1, jsonPlan.optInt("outdatedVideos", -1));
+        Assert.assertEquals("Wrong number of outdated maps", 2, jsonPlan.optInt("outdatedMaps", -1));
+
+        JSONArray jsonGroups = jsonPlan.optJSONArray("frameGroups");
+        Assert.assertNotNull("The plan has no frame groups", jsonGroups);
+        Assert.assertTrue("The plan has no frame groups", jsonGroups.length() > 0);
+
+        // Every product becomes ready after one of the groups
+        int readyProductCount = 0;
+        long frameCount = 0;
+        for (int i = 0; i < jsonGroups.length(); i++) {
+            JSONObject jsonGroup = jsonGroups.optJSONObject(i);
+            readyProductCount += jsonGroup.optInt("readyProductCount", 0);
+            frameCount += jsonGroup.optLong("frameCount", 0);
+        }
+        Assert.assertEquals("Wrong number of ready products", 3, readyProductCount);
+        Assert.assertEquals("Wrong total number of frames", frameCount, jsonPlan.optLong("frameCount", -1));
+        Assert.assertTrue("The plan has no frames", frameCount > 0);
+    }
+
     private void validateMapMetadata(String metadataId, String regionId, JSONObject jsonMetadata) {
         this.validateCommonMetadata(metadataId, jsonMetadata);
 
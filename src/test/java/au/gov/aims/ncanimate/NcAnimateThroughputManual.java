@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate;
+
+import au.gov.aims.ereefs.bean.metadata.netcdf.NetCDFMetadataBean;
+import au.gov.aims.ereefs.database.CacheStrategy;
+import au.gov.aims.ereefs.database.manager.MetadataManager;
+import au.gov.aims.ereefs.database.manager.ncanimate.ConfigManager;
+import au.gov.aims.ereefs.helper.TestHelper;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Properties;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.regex.Pattern;
+
+/**
+ * - NcAnimate throughput benchmark -
+ * Generate a product end to end, with the in-memory database,
+ * a stub frame renderer (see {@link StubFrameRenderer}), a stub video encoder
+ * and the local directory used as S3 by the other tests.
+ *
+ * The frames and the videos are not rendered, so the time left is the
+ * time spent by NcAnimate orchestrating the generation: starting the frame
+ * subprocesses, planning, moving files around, uploading, saving metadata, etc.
+ * The overhead is logged per frame, per product and per date range
+ * (i.e. per call to the frame renderer).
+ *
+ * This test is run manually, after modifying NcAnimate orchestration,
+ * to compare the overhead before and after the change.
+ */
+public class NcAnimateThroughputManual extends DatabaseTestBase {
+    private static final Logger LOGGER = Logger.getLogger(NcAnimateThroughputManual.class);
+
+    private static final String PRODUCT_ID = "gbr4_v2_benchmark";
+    private static final File BENCHMARK_DIRECTORY = new File("/tmp/ncanimateTests/benchmark");
+
+    // Simulated rendering time, per frame
+    private static final long FRAME_DELAY_MS = 10;
+    // Simulated encoding time, per video
+    private static final double VIDEO_DELAY_SECONDS = 0.1;
+
+    // Number of days of input data, starting on 2010-09-01.
+    // The input file contains 2 hours of data, it's duplicated to cover the period.
+    private static final int INPUT_DAYS = 30;
+    private static final int INPUT_FILE_HOURS = 2;
+
+    private static final Pattern DATE_PATTERN = Pattern.compile("^\\d{4}-\\d{2}-\\d{2}T.*");
+
+    @Ignore
+    @Test
+    public void testThroughput() throws Exception {
+        this.insertData();
+        this.insertBenchmarkConfig();
+        this.insertSyntheticInputData();
+
+        File reportFile = new File(BENCHMARK_DIRECTORY, "stub-frame-renderer-report.tsv");
+        this.createStubFrameRendererJar(reportFile);
+        this.createStubEncoder();
+
+        NcAnimate ncAnimate = this.getNcanimate();
+        // A single worker, so the overhead is not hidden by the parallelism
+        ncAnimate.setFrameWorkers(1);
+
+        long start = System.nanoTime();
+        ncAnimate.generateFromProductId(PRODUCT_ID);
+        long elapsedNanos = System.nanoTime() - start;
+
+        RunMetrics runMetrics = ncAnimate.getLastRunMetrics();
+        if (runMetrics == null) {
+            throw new IllegalStateException(String.format("No metrics recorded for product %s", PRODUCT_ID));
+        }
+
+        // Time spent by the stub frame renderer, as reported by the stub
+        long renderCalls = 0;
+        long renderedFrames = 0;
+        long renderNanos = 0;
+        long processNanos = 0;
+        if (reportFile.exists()) {
+            List<String> reportLines = Files.readAllLines(reportFile.toPath(), StandardCharsets.UTF_8);
+            for (String reportLine : reportLines) {
+                String[] values = reportLine.split("\t");
+                if (values.length >= 5) {
+                    renderCalls++;
+                    renderedFrames += Long.parseLong(values[2]);
+                    renderNanos += Long.parseLong(values[3]);
+                    processNanos += Long.parseLong(values[4]) * 1000000L;
+                }
+            }
+        }
+
+        long frames = runMetrics.getPhaseItems(RunMetrics.PHASE_FRAME);
+        long frameWallNanos = runMetrics.getPhaseWallNanos(RunMetrics.PHASE_FRAME);
+        long products = runMetrics.getPhaseCount(RunMetrics.PHASE_METADATA);
+        long productWallNanos = runMetrics.getPhaseWallNanos(RunMetrics.PHASE_VIDEO) +
+                runMetrics.getPhaseWallNanos(RunMetrics.PHASE_MAP_RESIZE) +
+                runMetrics.getPhaseWallNanos(RunMetrics.PHASE_UPLOAD) +
+                runMetrics.getPhaseWallNanos(RunMetrics.PHASE_METADATA);
+
+        LOGGER.info(String.format("Product %s generated in %.3f s (run metrics wall time: %.3f s)",
+                PRODUCT_ID, elapsedNanos / 1e9, runMetrics.getWallNanos() / 1e9));
+        LOGGER.info(String.format("Frames: %d (%d rendered by the stub in %d calls), simulated rendering time: %.3f s",
+                frames, renderedFrames, renderCalls, renderNanos / 1e9));
+        LOGGER.info(String.format("Products: %d", products));
+
+        LOGGER.info(String.format("Overhead per frame: %.3f ms",
+                NcAnimateThroughputManual.perItemMillis(runMetrics.getWallNanos() - renderNanos, frames)));
+        LOGGER.info(String.format("Overhead per product (encoding, resizing, upload and metadata): %.3f ms",
+                NcAnimateThroughputManual.perItemMillis(productWallNanos, products)));
+        LOGGER.info(String.format("Overhead per date range (frame subprocess, excluding rendering): %.3f ms, including %.3f ms in the frame subprocess JVM",
+                NcAnimateThroughputManual.perItemMillis(frameWallNanos - renderNanos, renderCalls),
+                NcAnimateThroughputManual.perItemMillis(processNanos - renderNanos, renderCalls)));
+        LOGGER.info(String.format("Run metrics: %s", runMetrics.toJSON().toString(4)));
+    }
+
+    private static double perItemMillis(long nanos, long items) {
+        return items <= 0 ? 0 : nanos / 1e6 / items;
+    }
+
+    private void insertBenchmarkConfig() throws Exception {
+        ConfigManager configManager = new ConfigManager(this.getDatabaseClient(), CacheStrategy.DISK);
+        TestHelper.insertTestConfigs(configManager, "ncanimate/benchmark", "NcAnimate configuration");
+    }
+
+    /**
+     * Insert the metadata of the small GBR4 test file, duplicated to cover INPUT_DAYS days.
+     * The frames are not rendered, so the NetCDF files don't need to contain the data.
+     */
+    private void insertSyntheticInputData() throws Exception {
+        URL netCDFFileUrl = NcAnimateThroughputManual.class.getClassLoader().getResource("netcdf/gbr4_v2_2010-09-01_00h00-02h00.nc");
+        File netCDFFileOrig = new File(netCDFFileUrl.getFile());
+        File netCDFFileCopy = new File("/tmp/ncanimateTests/netcdfFiles/gbr4_v2_2010-09-01_00h00-02h00.nc");
+        netCDFFileCopy.getParentFile().mkdirs();
+        Files.copy(netCDFFileOrig.toPath(), netCDFFileCopy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        String definitionId = "downloads/gbr4_v2";
+        String datasetId = "gbr4_v2_2010-09-01_00h00-02h00.nc";
+        NetCDFMetadataBean metadata = NetCDFMetadataBean.create(definitionId, datasetId, netCDFFileCopy.toURI(),
+                netCDFFileCopy, netCDFFileCopy.lastModified(), false);
+        JSONObject jsonMetadata = metadata.toJSON();
+
+        MetadataManager metadataManager = new MetadataManager(this.getDatabaseClient(), CacheStrategy.DISK);
+        DateTime firstDate = new DateTime(2010, 9, 1, 0, 0);
+        int fileCount = INPUT_DAYS * 24 / INPUT_FILE_HOURS;
+        for (int i = 0; i < fileCount; i++) {
+            int shiftHours = i * INPUT_FILE_HOURS;
+            DateTime fileDate = firstDate.plusHours(shiftHours);
+            String syntheticDatasetId = String.format("gbr4_v2_%s.nc", fileDate.toString("yyyy-MM-dd_HH'h'mm"));
+
+            JSONObject syntheticMetadata = (JSONObject)NcAnimateThroughputManual.shiftDates(
+                    new JSONObject(jsonMetadata.toString()), shiftHours, datasetId, syntheticDatasetId);
+            metadataManager.save(syntheticMetadata);
+        }
+        LOGGER.info(String.format("Inserted %d synthetic input files", fileCount));
+    }
+
+    // Shift all the dates found in the JSON metadata and rename the dataset
+    private static Object shiftDates(Object json, int shiftHours, String datasetId, String syntheticDatasetId) {
+        if (json instanceof JSONObject) {
+            JSONObject jsonObject = (JSONObject)json;
+            for (String key : jsonObject.keySet()) {
+                jsonObject.put(key, NcAnimateThroughputManual.shiftDates(jsonObject.get(key), shiftHours, datasetId, syntheticDatasetId));
+            }
+            return jsonObject;
+        }
+        if (json instanceof JSONArray) {
+            JSONArray jsonArray = (JSONArray)json;
+            for (int i = 0; i < jsonArray.length(); i++) {
+                jsonArray.put(i, NcAnimateThroughputManual.shiftDates(jsonArray.get(i), shiftHours, datasetId, syntheticDatasetId));
+            }
+            return jsonArray;
+        }
+        if (json instanceof String) {
+            String value = (String)json;
+            if (DATE_PATTERN.matcher(value).matches()) {
+                try {
+                    return DateTime.parse(value).plusHours(shiftHours).toString();
+                } catch(IllegalArgumentException ex) {
+                    return value;
+                }
+            }
+            return value.replace(datasetId, syntheticDatasetId);
+        }
+        return json;
+    }
+
+    /**
+     * Create the stub frame renderer jar.
+     * The jar only contains a manifest pointing to the test classpath, and the stub settings.
+     */
+    private void createStubFrameRendererJar(File reportFile) throws IOException {
+        BENCHMARK_DIRECTORY.mkdirs();
+
+        StringBuilder classPath = new StringBuilder();
+        for (String classPathEntry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (!classPathEntry.isEmpty()) {
+                if (classPath.length() > 0) {
+                    classPath.append(' ');
+                }
+                // File.toURI() adds the trailing slash to directories
+                classPath.append(new File(classPathEntry).getAbsoluteFile().toURI().toString());
+            }
+        }
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, StubFrameRenderer.class.getName());
+        manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, classPath.toString());
+
+        Properties properties = new Properties();
+        properties.setProperty(StubFrameRenderer.FRAME_DELAY_MS_PROPERTY, String.valueOf(FRAME_DELAY_MS));
+        properties.setProperty(StubFrameRenderer.REPORT_FILE_PROPERTY, reportFile.getAbsolutePath());
+
+        File jarFile = new File(BENCHMARK_DIRECTORY, "stub-frame-renderer.jar");
+        try (JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(jarFile), manifest)) {
+            jarOutputStream.putNextEntry(new JarEntry(StubFrameRenderer.PROPERTIES_RESOURCE));
+            properties.store(jarOutputStream, "Stub frame renderer settings");
+            jarOutputStream.closeEntry();
+        }
+    }
+
+    /**
+     * Create the stub video encoder, used instead of ffmpeg.
+     * It waits VIDEO_DELAY_SECONDS and writes a small file to its output file (last parameter).
+     */
+    private void createStubEncoder() throws IOException {
+        BENCHMARK_DIRECTORY.mkdirs();
+
+        String script = String.format("#!/bin/sh%n" +
+                "for OUTPUT_FILE; do true; done%n" +
+                "sleep %s%n" +
+                "echo \"Stub video\" > \"$OUTPUT_FILE\"%n", String.valueOf(VIDEO_DELAY_SECONDS));
+
+        File encoderFile = new File(BENCHMARK_DIRECTORY, "ffmpeg");
+        Files.write(encoderFile.toPath(), script.getBytes(StandardCharsets.UTF_8));
+        if (!encoderFile.setExecutable(true)) {
+            throw new IOException(String.format("Could not make the stub encoder executable: %s", encoderFile));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate;
+
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.timetable.FrameGroup;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class RunCheckpointTest extends DatabaseTestBase {
+    private static final DateTime START = new DateTime(2010, 9, 1, 0, 0, DateTimeZone.UTC);
+
+    @Test
+    public void testSaveAndResume() throws Exception {
+        String inputId = "downloads/gbr4_v2/gbr4_simple_2010-09.nc";
+        Map<String, String> inputChecksums = new HashMap<String, String>();
+        inputChecksums.put(inputId, "MD5:abc");
+
+        FrameGroup firstDay = new FrameGroup(DateTimeRange.create(START, START.plusDays(1)), Collections.singleton(inputId));
+        FrameGroup secondDay = new FrameGroup(DateTimeRange.create(START.plusDays(1), START.plusDays(2)), Collections.singleton(inputId));
+
+        RunCheckpoint checkpoint = new RunCheckpoint(this.getDatabaseClient(), "task_1", "products__ncanimate__test", "qld");
+        Assert.assertFalse("Unexpected checkpoint found", checkpoint.load());
+        checkpoint.addGenerated(firstDay, inputChecksums);
+        checkpoint.addGeneratedProduct("products__ncanimate__test_video_2010-09");
+        checkpoint.save();
+
+        // Restarted task
+        RunCheckpoint resumedCheckpoint = new RunCheckpoint(this.getDatabaseClient(), "task_1", "products__ncanimate__test", "qld");
+        Assert.assertTrue("Checkpoint not found", resumedCheckpoint.load());
+        Assert.assertTrue("Generated frame group not found", resumedCheckpoint.isGenerated(firstDay, inputChecksums));
+        Assert.assertFalse("Frame group wrongly found", resumedCheckpoint.isGenerated(secondDay, inputChecksums));
+        Assert.assertEquals("Wrong number of generated products", 1, resumedCheckpoint.getGeneratedProductCount());
+
+        // The input file has changed since the frames were generated
+        Map<String, String> newInputChecksums = new HashMap<String, String>();
+        newInputChecksums.put(inputId, "MD5:def");
+        Assert.assertFalse("Frames generated from an old input file should not be reused",
+                resumedCheckpoint.isGenerated(firstDay, newInputChecksums));
+
+        // Other regions of the same task ID do not share the checkpoint
+        RunCheckpoint otherRegionCheckpoint = new RunCheckpoint(this.getDatabaseClient(), "task_1", "products__ncanimate__test", "torres-strait");
+        Assert.assertFalse("Checkpoint of another region used", otherRegionCheckpoint.load());
+
+        resumedCheckpoint.delete();
+        Assert.assertFalse("Checkpoint not deleted",
+                new RunCheckpoint(this.getDatabaseClient(), "task_1", "products__ncanimate__test", "qld").load());
+    }
+}
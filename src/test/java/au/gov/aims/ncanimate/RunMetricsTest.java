@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate;
+
+import au.gov.aims.ereefs.Utils;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class RunMetricsTest {
+
+    @Test
+    public void testPhases() throws Exception {
+        RunMetrics runMetrics = new RunMetrics("task_1", "gbr4_v2_temp", "qld");
+
+        // 2 uploads of 1000 bytes
+        for (int i = 0; i < 2; i++) {
+            RunMetrics.Timer timer = runMetrics.start(RunMetrics.PHASE_UPLOAD);
+            Thread.sleep(5);
+            timer.stop(1, 1000);
+            // Stopping twice doesn't count twice
+            timer.stop(1, 1000);
+        }
+
+        // 48 frames generated by a subprocess
+        runMetrics.start(RunMetrics.PHASE_FRAME).stop();
+        runMetrics.addItems(RunMetrics.PHASE_FRAME, 48);
+
+        runMetrics.stop();
+
+        Assert.assertEquals("Wrong number of uploads", 2, runMetrics.getPhaseCount(RunMetrics.PHASE_UPLOAD));
+        Assert.assertEquals("Wrong number of bytes uploaded", 2000, runMetrics.getPhaseBytes(RunMetrics.PHASE_UPLOAD));
+        Assert.assertEquals("Wrong number of frames", 48, runMetrics.getPhaseItems(RunMetrics.PHASE_FRAME));
+        Assert.assertEquals("Unexpected phase", 0, runMetrics.getPhaseCount(RunMetrics.PHASE_VIDEO));
+
+        Assert.assertTrue("Wrong frames per second", runMetrics.getFramesPerSecond() > 0);
+        // 2000 bytes uploaded in at least 10 ms
+        Assert.assertTrue("Wrong upload throughput: " + runMetrics.getUploadBytesPerSecond(),
+                runMetrics.getUploadBytesPerSecond() > 0 && runMetrics.getUploadBytesPerSecond() <= 200000);
+
+        JSONObject jsonMetrics = runMetrics.toJSON();
+        Assert.assertEquals("Wrong product ID", "gbr4_v2_temp", jsonMetrics.optString("productId", null));
+        JSONObject jsonUpload = jsonMetrics.optJSONObject("phases").optJSONObject(RunMetrics.PHASE_UPLOAD);
+        Assert.assertNotNull("Missing upload phase", jsonUpload);
+        Assert.assertEquals("Wrong number of uploads in JSON", 2, jsonUpload.optLong("count", -1));
+        Assert.assertEquals("Wrong number of bytes in JSON", 2000, jsonUpload.optLong("bytes", -1));
+        Assert.assertTrue("Wrong upload wall time in JSON", jsonUpload.optDouble("wallSeconds", -1) >= 0.01);
+    }
+
+    @Test
+    public void testPrometheusFile() throws Exception {
+        RunMetrics runMetrics = new RunMetrics(null, "gbr4_v2_temp", null);
+        runMetrics.start(RunMetrics.PHASE_METADATA).stop(1, 0);
+        runMetrics.stop();
+
+        File metricsDirectory = Files.createTempDirectory("runMetricsTest").toFile();
+        try {
+            File prometheusFile = runMetrics.writePrometheusFile(metricsDirectory);
+            Assert.assertEquals("Wrong Prometheus file name", "ncanimate_gbr4_v2_temp.prom", prometheusFile.getName());
+
+            String prometheus = new String(Files.readAllBytes(prometheusFile.toPath()), StandardCharsets.UTF_8);
+            Assert.assertTrue("Missing type declaration", prometheus.contains("# TYPE ncanimate_phase_count gauge"));
+            Assert.assertTrue("Missing phase count:\n" + prometheus,
+                    prometheus.contains("ncanimate_phase_count{product=\"gbr4_v2_temp\",region=\"\",phase=\"metadata\"} 1\n"));
+            Assert.assertTrue("Missing frames per second:\n" + prometheus,
+                    prometheus.contains("ncanimate_frames_per_second{product=\"gbr4_v2_temp\",region=\"\"} "));
+
+            File[] files = metricsDirectory.listFiles();
+            Assert.assertNotNull("Can not list the metrics directory", files);
+            Assert.assertEquals("Temporary file left in the metrics directory", 1, files.length);
+        } finally {
+            Utils.deleteDirectory(metricsDirectory);
+        }
+    }
+}
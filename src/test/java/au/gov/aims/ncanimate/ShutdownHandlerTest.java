@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class ShutdownHandlerTest {
+    private static final String PID_PREFIX = "PID ";
+    private static final String STOPPED = "CHILD PROCESS STOPPED";
+
+    @Test
+    public void testKillAll() throws Exception {
+        SystemCallThread systemCall = ShutdownHandlerTest.startSleep();
+
+        Assert.assertTrue("The process was not killed", SystemCallThread.killAll() >= 1);
+        systemCall.join(10000);
+
+        Assert.assertFalse("The process is still running", systemCall.isAlive());
+        Assert.assertNotEquals("The process was not interrupted", Integer.valueOf(SystemCallThread.SUCCESS), systemCall.getExitCode());
+    }
+
+    /**
+     * Processes which ignore the SIGTERM are killed once the grace period is over.
+     * The grace period is shared: killing several processes doesn't take longer than killing one.
+     */
+    @Test
+    public void testKillAllSharedGracePeriod() throws Exception {
+        List<SystemCallThread> systemCalls = new ArrayList<SystemCallThread>();
+        for (int i = 0; i < 3; i++) {
+            systemCalls.add(ShutdownHandlerTest.startSystemCall("sh -c \"trap '' TERM; while true; do sleep 1; done\""));
+        }
+
+        long start = System.currentTimeMillis();
+        Assert.assertTrue("The processes were not killed", SystemCallThread.killAll() >= systemCalls.size());
+        long elapsed = System.currentTimeMillis() - start;
+
+        for (SystemCallThread systemCall : systemCalls) {
+            systemCall.join(10000);
+            Assert.assertFalse("The process is still running", systemCall.isAlive());
+        }
+        // 5 seconds of grace period, shared by the 3 processes (15 seconds if each process had its own)
+        Assert.assertTrue(String.format("The processes were killed one after the other: %d ms", elapsed), elapsed < 10000);
+    }
+
+    /**
+     * Start a JVM with a shutdown handler, send it a SIGTERM
+     * and check that its child process is terminated before it exits.
+     */
+    @Test
+    public void testSigterm() throws Exception {
+        String javaBin = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder processBuilder = new ProcessBuilder(
+                javaBin, "-cp", System.getProperty("java.class.path"), ShutdownHandlerTest.class.getName());
+        processBuilder.redirectErrorStream(true);
+        Process jvm = processBuilder.start();
+
+        List<String> output = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(jvm.getInputStream()));
+        try {
+            String line;
+            String pid = null;
+            while (pid == null && (line = reader.readLine()) != null) {
+                output.add(line);
+                if (line.startsWith(PID_PREFIX)) {
+                    pid = line.substring(PID_PREFIX.length()).trim();
+                }
+            }
+            Assert.assertNotNull(String.format("The JVM did not start properly:%n%s", output), pid);
+
+            Process kill = new ProcessBuilder("kill", "-TERM", pid).start();
+            Assert.assertEquals("Could not send SIGTERM", 0, kill.waitFor());
+
+            while ((line = reader.readLine()) != null) {
+                output.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+
+        Assert.assertTrue("The JVM did not stop", jvm.waitFor(30, TimeUnit.SECONDS));
+        Assert.assertTrue(String.format("The child process was not stopped before the JVM exited:%n%s", output), output.contains(STOPPED));
+    }
+
+    /**
+     * JVM used by testSigterm.
+     * Simulates a NcAnimate run waiting for a process which doesn't stop by itself.
+     */
+    public static void main(String ... args) throws Exception {
+        ShutdownHandler shutdownHandler = new ShutdownHandler(1000);
+        shutdownHandler.register();
+        try {
+            SystemCallThread systemCall = ShutdownHandlerTest.startSleep();
+
+            String jvmName = ManagementFactory.getRuntimeMXBean().getName();
+            System.out.println(PID_PREFIX + jvmName.substring(0, jvmName.indexOf('@')));
+            System.out.flush();
+
+            // Wait for the shutdown hook to kill the process
+            while (systemCall.isAlive()) {
+                try {
+                    systemCall.join();
+                } catch(InterruptedException ex) {
+                    // Woken up by the shutdown hook, keep waiting for the deadline
+                }
+            }
+            System.out.println(STOPPED);
+            System.out.flush();
+        } finally {
+            shutdownHandler.done();
+        }
+    }
+
+    private static SystemCallThread startSleep() throws InterruptedException {
+        return ShutdownHandlerTest.startSystemCall("sleep 600");
+    }
+
+    private static SystemCallThread startSystemCall(String commandLine) throws InterruptedException {
+        SystemCallThread systemCall = new SystemCallThread(commandLine) {
+            @Override
+            public void onStart() {}
+
+            @Override
+            public void onStop(boolean succeed) {}
+
+            @Override
+            public void onException(Exception ex) {}
+        };
+        systemCall.start();
+
+        // Wait for the process to start. It's registered with the running processes as soon as it has started.
+        for (int i = 0; i < 200 && systemCall.getProcessInput() == null; i++) {
+            Thread.sleep(50);
+        }
+        // Give the process time to set up its signal handlers
+        Thread.sleep(200);
+
+        return systemCall;
+    }
+}
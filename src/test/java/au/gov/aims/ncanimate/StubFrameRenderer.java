@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate;
+
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ereefs.database.CacheStrategy;
+import au.gov.aims.ereefs.database.DatabaseClient;
+import au.gov.aims.ereefs.helper.NcAnimateConfigHelper;
+import au.gov.aims.ncanimate.commons.NcAnimateGenerateFileBean;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.commons.timetable.FrameTimetableMap;
+import au.gov.aims.ncanimate.commons.timetable.ProductTimetable;
+import au.gov.aims.ncanimate.generator.FrameKeys;
+import com.mongodb.ServerAddress;
+import org.joda.time.DateTime;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Stand-in for the ereefs-ncanimate2-frame jar, used by {@link NcAnimateThroughputManual}.
+ *
+ * It's called with the same parameters and environment variables as NcAnimate frame,
+ * finds the frame files NcAnimate expects for the date range and writes synthetic images,
+ * waiting the configured delay after each frame to simulate the rendering.
+ * The time spent rendering is appended to the report file, one line per call:
+ *     start date, end date, number of frames, rendering time (ns), process time (ms, including JVM startup)
+ *
+ * The settings are read from the resource {@link #PROPERTIES_RESOURCE}, added to the stub jar.
+ */
+public class StubFrameRenderer {
+    public static final String PROPERTIES_RESOURCE = "stub-frame-renderer.properties";
+    public static final String FRAME_DELAY_MS_PROPERTY = "frameDelayMs";
+    public static final String FRAME_WIDTH_PROPERTY = "frameWidth";
+    public static final String FRAME_HEIGHT_PROPERTY = "frameHeight";
+    public static final String REPORT_FILE_PROPERTY = "reportFile";
+
+    public static void main(String ... args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: StubFrameRenderer <productId> <startDate> <endDate>");
+            System.exit(1);
+        }
+
+        String productId = args[0];
+        DateTimeRange dateRange = DateTimeRange.create(DateTime.parse(args[1]), DateTime.parse(args[2]));
+
+        Properties properties = new Properties();
+        try (InputStream propertiesStream = StubFrameRenderer.class.getClassLoader().getResourceAsStream(PROPERTIES_RESOURCE)) {
+            if (propertiesStream != null) {
+                properties.load(propertiesStream);
+            }
+        }
+        long frameDelayMs = Long.parseLong(properties.getProperty(FRAME_DELAY_MS_PROPERTY, "0"));
+        int frameWidth = Integer.parseInt(properties.getProperty(FRAME_WIDTH_PROPERTY, "200"));
+        int frameHeight = Integer.parseInt(properties.getProperty(FRAME_HEIGHT_PROPERTY, "150"));
+        String reportFilename = properties.getProperty(REPORT_FILE_PROPERTY);
+
+        // Same environment variables as NcAnimate frame
+        DatabaseClient dbClient = new DatabaseClient(
+                new ServerAddress(System.getenv("DATABASE_SERVER_ADDRESS"), Integer.parseInt(System.getenv("DATABASE_SERVER_PORT"))),
+                System.getenv("DATABASE_NAME"));
+        String regionId = System.getenv("NCANIMATE_REGION");
+
+        NcAnimateConfigHelper configHelper = new NcAnimateConfigHelper(dbClient, CacheStrategy.NONE);
+        NcAnimateConfigBean ncAnimateConfig = configHelper.getNcAnimateConfig(productId);
+        ProductTimetable productTimetable = new ProductTimetable(ncAnimateConfig, dbClient);
+        FrameKeys frameKeys = new FrameKeys(ncAnimateConfig, ncAnimateConfig.getFrameTimeIncrement(), regionId);
+
+        long[] videoFrameKeys = StubFrameRenderer.getFrameKeys(frameKeys, dateRange,
+                productTimetable.getVideoOutputFiles(), productTimetable.getVideoFrames());
+        long[] mapFrameKeys = StubFrameRenderer.getFrameKeys(frameKeys, dateRange,
+                productTimetable.getMapOutputFiles(), productTimetable.getMapFrames());
+
+        long[] allFrameKeys = Arrays.copyOf(videoFrameKeys, videoFrameKeys.length + mapFrameKeys.length);
+        System.arraycopy(mapFrameKeys, 0, allFrameKeys, videoFrameKeys.length, mapFrameKeys.length);
+        long[] sortedFrameKeys = FrameKeys.sortUnique(allFrameKeys, allFrameKeys.length);
+
+        long renderStart = System.nanoTime();
+        for (long frameKey : sortedFrameKeys) {
+            File frameFile = frameKeys.getFrameFile(frameKey);
+            StubFrameRenderer.writeFrame(frameFile, frameWidth, frameHeight, frameKey);
+            if (frameDelayMs > 0) {
+                Thread.sleep(frameDelayMs);
+            }
+        }
+        long renderNanos = System.nanoTime() - renderStart;
+
+        if (reportFilename != null) {
+            long processMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+            String reportLine = String.format("%s\t%s\t%d\t%d\t%d%n",
+                    dateRange.getStartDate(), dateRange.getEndDate(), sortedFrameKeys.length, renderNanos, processMillis);
+            Files.write(new File(reportFilename).toPath(), reportLine.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        System.exit(0);
+    }
+
+    // Keys of the frames within the date range, for all the output files
+    private static long[] getFrameKeys(
+            FrameKeys frameKeys,
+            DateTimeRange dateRange,
+            List<NcAnimateGenerateFileBean> outputFiles,
+            Map<DateTimeRange, List<FrameTimetableMap>> frameMap) {
+
+        long[] keys = new long[0];
+        if (outputFiles == null) {
+            return keys;
+        }
+
+        for (NcAnimateGenerateFileBean outputFile : outputFiles) {
+            long[] productFrameKeys = NcAnimate.getFrameKeys(frameKeys, outputFile.getDateRange(),
+                    outputFile.getRenderFiles().values(), frameMap);
+            long[] dateRangeFrameKeys = FrameKeys.getKeys(productFrameKeys, dateRange);
+
+            int length = keys.length;
+            keys = Arrays.copyOf(keys, length + dateRangeFrameKeys.length);
+            System.arraycopy(dateRangeFrameKeys, 0, keys, length, dateRangeFrameKeys.length);
+        }
+
+        return FrameKeys.sortUnique(keys, keys.length);
+    }
+
+    private static void writeFrame(File frameFile, int width, int height, long frameKey) throws IOException {
+        File frameDirectory = frameFile.getParentFile();
+        if (!frameDirectory.exists() && !frameDirectory.mkdirs()) {
+            throw new IOException(String.format("Could not create the frame directory: %s", frameDirectory));
+        }
+
+        String filename = frameFile.getName();
+        String extension = filename.substring(filename.lastIndexOf('.') + 1).toLowerCase();
+
+        // Each frame has its own colour, so the frame store doesn't see them as duplicates
+        Color colour = new Color((int)(frameKey ^ (frameKey >>> 24)) & 0xFFFFFF);
+
+        if ("svg".equals(extension)) {
+            String svg = String.format("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"%d\" height=\"%d\">" +
+                    "<rect width=\"100%%\" height=\"100%%\" fill=\"#%06x\"/></svg>", width, height, colour.getRGB() & 0xFFFFFF);
+            Files.write(frameFile.toPath(), svg.getBytes(StandardCharsets.UTF_8));
+        } else {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = image.createGraphics();
+            try {
+                graphics.setColor(colour);
+                graphics.fillRect(0, 0, width, height);
+            } finally {
+                graphics.dispose();
+            }
+            if (!ImageIO.write(image, extension, frameFile)) {
+                throw new IOException(String.format("Unsupported frame format: %s", frameFile));
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.ereefs.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class FrameCacheTest {
+    private static final String FRAME_PATH = "frame/gbr4_v2_temp/qld/height_-1.5/frame_2010-09-01_00h00.png";
+
+    private File tempDirectory;
+
+    @Before
+    public void createTempDirectory() throws IOException {
+        this.tempDirectory = Files.createTempDirectory("frameCacheTest").toFile();
+    }
+
+    @After
+    public void deleteTempDirectory() {
+        Utils.deleteDirectory(this.tempDirectory);
+    }
+
+    @Test
+    public void testCacheKey() {
+        Set<String> metadataIds = Collections.singleton("downloads/gbr4_v2/2010-09.nc");
+        Map<String, String> inputChecksums = new HashMap<String, String>();
+        inputChecksums.put("downloads/gbr4_v2/2010-09.nc", "MD5:0123456789abcdef");
+
+        String cacheKey = FrameCache.getCacheKey("config", metadataIds, inputChecksums, FRAME_PATH);
+        Assert.assertNotNull("Missing cache key", cacheKey);
+        Assert.assertTrue("The cache key doesn't keep the frame extension", cacheKey.endsWith(".png"));
+        Assert.assertEquals("The cache key is not stable", cacheKey,
+                FrameCache.getCacheKey("config", metadataIds, inputChecksums, FRAME_PATH));
+
+        Assert.assertNotEquals("Same key for a different configuration", cacheKey,
+                FrameCache.getCacheKey("modified config", metadataIds, inputChecksums, FRAME_PATH));
+        Assert.assertNotEquals("Same key for a different frame", cacheKey,
+                FrameCache.getCacheKey("config", metadataIds, inputChecksums, FRAME_PATH.replace("00h00", "01h00")));
+
+        Map<String, String> modifiedInputChecksums = new HashMap<String, String>();
+        modifiedInputChecksums.put("downloads/gbr4_v2/2010-09.nc", "MD5:fedcba9876543210");
+        Assert.assertNotEquals("Same key for a different input file", cacheKey,
+                FrameCache.getCacheKey("config", metadataIds, modifiedInputChecksums, FRAME_PATH));
+
+        // Input files without checksum can't be cached
+        Assert.assertNull("Cache key without input checksum",
+                FrameCache.getCacheKey("config", metadataIds, new HashMap<String, String>(), FRAME_PATH));
+
+        // "No data" frames don't have input files
+        Assert.assertNotNull("Missing cache key for a \"No data\" frame",
+                FrameCache.getCacheKey("config", Collections.<String>emptySet(), null, FRAME_PATH));
+    }
+
+    @Test
+    public void testRestoreAndEviction() throws Exception {
+        File cacheDirectory = new File(this.tempDirectory, "cache");
+        File frameDirectory = new File(this.tempDirectory, "frames");
+        Assert.assertTrue("Could not create the frame directory", frameDirectory.mkdirs());
+
+        // Room for 2 frames of 10 bytes
+        FrameCache frameCache = new FrameCache(cacheDirectory, 20);
+
+        File frame1 = this.createFrame(frameDirectory, "frame_1.png", "frame 1 - ");
+        File frame2 = this.createFrame(frameDirectory, "frame_2.png", "frame 2 - ");
+        File frame3 = this.createFrame(frameDirectory, "frame_3.png", "frame 3 - ");
+
+        frameCache.put("key1.png", frame1);
+        frameCache.put("key2.png", frame2);
+        Assert.assertEquals("Wrong number of cached frames", 2, frameCache.getFrameCount());
+
+        // Use frame 1, so frame 2 becomes the least recently used frame
+        File restoredFrame = new File(frameDirectory, "restored/frame_1.png");
+        Assert.assertTrue("Frame not restored", frameCache.restore("key1.png", restoredFrame));
+        Assert.assertEquals("Wrong restored frame content", "frame 1 - ", this.readFrame(restoredFrame));
+
+        frameCache.put("key3.png", frame3);
+        Assert.assertEquals("Wrong number of cached frames after eviction", 2, frameCache.getFrameCount());
+        Assert.assertEquals("Wrong number of evicted frames", 1, frameCache.getEvictionCount());
+        Assert.assertTrue("Recently used frame evicted", frameCache.contains("key1.png"));
+        Assert.assertFalse("Least recently used frame not evicted", frameCache.contains("key2.png"));
+        Assert.assertFalse("Evicted frame restored", frameCache.restore("key2.png", new File(frameDirectory, "frame_2_restored.png")));
+
+        // The caller counts the hits and misses, once it knows which frames are generated again
+        Assert.assertEquals("Restored frames counted as hits", 0, frameCache.getHitCount());
+        Assert.assertEquals("Missing frames counted as misses", 0, frameCache.getMissCount());
+        frameCache.countLookups(1, 1);
+        Assert.assertEquals("Wrong number of hits", 1, frameCache.getHitCount());
+        Assert.assertEquals("Wrong number of misses", 1, frameCache.getMissCount());
+
+        // The cache survives across runs: the frames are still available after the working directory is deleted
+        Utils.deleteDirectory(frameDirectory);
+        FrameCache nextRunFrameCache = new FrameCache(cacheDirectory, 20);
+        Assert.assertEquals("Wrong number of cached frames in the next run", 2, nextRunFrameCache.getFrameCount());
+        Assert.assertEquals("Wrong cache size in the next run", 20, nextRunFrameCache.getSize());
+
+        File nextRunFrame = new File(frameDirectory, "frame_3.png");
+        Assert.assertTrue("Frame not restored in the next run", nextRunFrameCache.restore("key3.png", nextRunFrame));
+        Assert.assertEquals("Wrong restored frame content in the next run", "frame 3 - ", this.readFrame(nextRunFrame));
+    }
+
+    @Test
+    public void testSharedCacheDirectory() throws Exception {
+        File cacheDirectory = new File(this.tempDirectory, "cache");
+        File frameDirectory = new File(this.tempDirectory, "frames");
+        Assert.assertTrue("Could not create the frame directory", frameDirectory.mkdirs());
+
+        // Two NcAnimate processes sharing the cache directory, with room for 2 frames of 10 bytes
+        FrameCache frameCache = new FrameCache(cacheDirectory, 20);
+        FrameCache otherFrameCache = new FrameCache(cacheDirectory, 20);
+        otherFrameCache.setRefreshInterval(0);
+
+        long now = System.currentTimeMillis();
+        File frame1 = this.createFrame(frameDirectory, "frame_1.png", "frame 1 - ");
+        File frame2 = this.createFrame(frameDirectory, "frame_2.png", "frame 2 - ");
+        File frame3 = this.createFrame(frameDirectory, "frame_3.png", "frame 3 - ");
+        Assert.assertTrue("Could not set the frame date", frame1.setLastModified(now - 30000));
+        Assert.assertTrue("Could not set the frame date", frame2.setLastModified(now - 20000));
+        Assert.assertTrue("Could not set the frame date", frame3.setLastModified(now - 10000));
+
+        frameCache.put("key1.png", frame1);
+        frameCache.put("key2.png", frame2);
+        otherFrameCache.put("key3.png", frame3);
+
+        // The other process found the frames of the first process, and evicted the least recently used one
+        Assert.assertEquals("Wrong number of evicted frames", 1, otherFrameCache.getEvictionCount());
+        Assert.assertEquals("Wrong cache size", 20, otherFrameCache.getSize());
+        Assert.assertFalse("Least recently used frame not evicted", otherFrameCache.contains("key1.png"));
+        Assert.assertTrue("Frame of the first process not found", otherFrameCache.contains("key2.png"));
+
+        FrameCache nextRunFrameCache = new FrameCache(cacheDirectory, 20);
+        Assert.assertEquals("The shared cache directory exceeds its maximum size", 20, nextRunFrameCache.getSize());
+    }
+
+    private File createFrame(File directory, String filename, String content) throws IOException {
+        File frameFile = new File(directory, filename);
+        Files.write(frameFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return frameFile;
+    }
+
+    private String readFrame(File frameFile) throws IOException {
+        return new String(Files.readAllBytes(frameFile.toPath()), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.timetable.FrameGroup;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+public class FrameGeneratorPoolTest {
+
+    @Test
+    public void testMaxRamPercentage() {
+        long gigabyte = 1024L * 1024 * 1024;
+
+        Assert.assertEquals("Unknown total memory should use the default percentage",
+                FrameGenerator.DEFAULT_MAX_RAM_PERCENTAGE, FrameGeneratorPool.getMaxRamPercentage(0, gigabyte));
+        Assert.assertEquals("Wrong percentage without reserved memory",
+                80, FrameGeneratorPool.getMaxRamPercentage(16 * gigabyte, 0));
+        // NcAnimate heap of 4 GB, and 4 "No data" JVMs of 1 GB
+        Assert.assertEquals("The memory of the \"No data\" JVMs should not be given to the other JVMs",
+                40, FrameGeneratorPool.getMaxRamPercentage(16 * gigabyte, 8 * gigabyte));
+        Assert.assertEquals("Reserved memory larger than the total memory",
+                0, FrameGeneratorPool.getMaxRamPercentage(16 * gigabyte, 20 * gigabyte));
+    }
+
+    @Test
+    public void testFailedGroupsReleaseTheirWorker() throws Exception {
+        DateTime start = new DateTime(2010, 9, 1, 0, 0, DateTimeZone.UTC);
+        FrameGroup noDataGroup = new FrameGroup(DateTimeRange.create(start, start.plusDays(1)), null);
+        FrameGroup dataGroup = new FrameGroup(DateTimeRange.create(start.plusDays(1), start.plusDays(2)),
+                Collections.singleton("downloads/gbr4_v2/gbr4_simple_2010-09.nc"));
+
+        // ncanimate-frame crashes for every date range
+        FrameGenerator failingFrameGenerator = new FrameGenerator() {
+            @Override
+            public void generateFrames(NcAnimateConfigBean ncanimateConfig, DateTimeRange dateRange,
+                    Set<String> inputMetadataIds, Set<String> nextInputMetadataIds) throws Exception {
+                throw new IOException(String.format("Frame generation failed: %s", dateRange.getStartDate()));
+            }
+
+            @Override
+            public void generateNoDataFrames(NcAnimateConfigBean ncanimateConfig, DateTimeRange dateRange) throws Exception {
+                throw new IOException(String.format("\"No data\" frame generation failed: %s", dateRange.getStartDate()));
+            }
+        };
+
+        FrameGeneratorPool pool = new FrameGeneratorPool(failingFrameGenerator, 1, 1);
+        try {
+            pool.submit(null, noDataGroup, null);
+            pool.submit(null, dataGroup, null);
+            Assert.assertFalse("No capacity left for \"No data\" groups", pool.hasNoDataCapacity());
+            Assert.assertFalse("No capacity left for data groups", pool.hasDataCapacity());
+
+            for (int i = 0; i < 2; i++) {
+                try {
+                    pool.take();
+                    Assert.fail("No exception thrown for a failed frame group");
+                } catch(IOException ex) {
+                    Assert.assertTrue(String.format("Unexpected exception: %s", ex.getMessage()),
+                            ex.getMessage().contains("generation failed"));
+                }
+            }
+
+            Assert.assertEquals("Failed groups still in flight", 0, pool.getInFlightCount());
+            Assert.assertTrue("\"No data\" worker not released", pool.hasNoDataCapacity());
+            Assert.assertTrue("Data worker not released", pool.hasDataCapacity());
+            Assert.assertNull("take() should not wait when nothing is in flight", pool.take());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
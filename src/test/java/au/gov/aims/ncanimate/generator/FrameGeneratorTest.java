@@ -4,9 +4,19 @@
  */
 package au.gov.aims.ncanimate.generator;
 
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateRegionBean;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 public class FrameGeneratorTest {
 
     @Test
@@ -39,4 +49,131 @@ public class FrameGeneratorTest {
         Assert.assertFalse(String.format("NCANIMATE_FRAME_JAR_PATTERN accepted invalid filename: %s", invalidFilename2),
                 FrameGenerator.NCANIMATE_FRAME_JAR_PATTERN.matcher(invalidFilename2).matches());
     }
+
+    @Test
+    public void testResumedDateRange() {
+        DateTimeZone timezone = DateTimeZone.forID("Australia/Brisbane");
+        DateTimeRange dateRange = DateTimeRange.create(
+                new DateTime(2010, 9, 1, 0, 0, timezone),
+                new DateTime(2010, 9, 2, 0, 0, timezone));
+
+        // The first 10 hours were generated before the crash
+        long[] missingFrameKeys = FrameGeneratorTest.getHourlyFrameKeys(new DateTime(2010, 9, 1, 10, 0, timezone), 14, 2);
+        DateTimeRange resumedDateRange = FrameGenerator.getResumedDateRange(missingFrameKeys, dateRange);
+        Assert.assertEquals("Wrong resumed start date", new DateTime(2010, 9, 1, 10, 0, timezone), resumedDateRange.getStartDate());
+        Assert.assertEquals("Wrong resumed end date", dateRange.getEndDate(), resumedDateRange.getEndDate());
+        Assert.assertEquals("Wrong time zone", timezone, resumedDateRange.getStartDate().getZone());
+
+        // No frame generated before the crash
+        missingFrameKeys = FrameGeneratorTest.getHourlyFrameKeys(dateRange.getStartDate(), 24, 2);
+        Assert.assertSame("The date range should not change", dateRange, FrameGenerator.getResumedDateRange(missingFrameKeys, dateRange));
+    }
+
+    @Test
+    public void testBisect() {
+        DateTimeZone timezone = DateTimeZone.forID("Australia/Brisbane");
+        DateTimeRange dateRange = DateTimeRange.create(
+                new DateTime(2010, 9, 1, 0, 0, timezone),
+                new DateTime(2010, 9, 2, 0, 0, timezone));
+
+        // 24 hourly frames, 2 regions
+        long[] missingFrameKeys = FrameGeneratorTest.getHourlyFrameKeys(dateRange.getStartDate(), 24, 2);
+        DateTimeRange[] halves = FrameGenerator.bisect(missingFrameKeys, dateRange);
+        Assert.assertNotNull("Date range not split", halves);
+        Assert.assertEquals("Wrong first half start date", dateRange.getStartDate(), halves[0].getStartDate());
+        Assert.assertEquals("Wrong split date", new DateTime(2010, 9, 1, 12, 0, timezone), halves[0].getEndDate());
+        Assert.assertEquals("Wrong second half start date", halves[0].getEndDate(), halves[1].getStartDate());
+        Assert.assertEquals("Wrong second half end date", dateRange.getEndDate(), halves[1].getEndDate());
+
+        // 2 frames left: they are split
+        missingFrameKeys = FrameGeneratorTest.getHourlyFrameKeys(new DateTime(2010, 9, 1, 20, 0, timezone), 2, 2);
+        halves = FrameGenerator.bisect(missingFrameKeys, FrameGenerator.getResumedDateRange(missingFrameKeys, dateRange));
+        Assert.assertNotNull("Date range with 2 frame dates not split", halves);
+        Assert.assertEquals("Wrong split date", new DateTime(2010, 9, 1, 21, 0, timezone), halves[1].getStartDate());
+
+        // All the regions of a single frame date: the failing timestep is isolated
+        missingFrameKeys = FrameGeneratorTest.getHourlyFrameKeys(new DateTime(2010, 9, 1, 21, 0, timezone), 1, 2);
+        Assert.assertNull("Single frame date split", FrameGenerator.bisect(missingFrameKeys, dateRange));
+        Assert.assertNull("Date range without missing frame split", FrameGenerator.bisect(new long[0], dateRange));
+    }
+
+    @Test
+    public void testCrashOnTimestep() throws Exception {
+        DateTimeZone timezone = DateTimeZone.forID("Australia/Brisbane");
+        DateTimeRange dateRange = DateTimeRange.create(
+                new DateTime(2010, 9, 1, 0, 0, timezone),
+                new DateTime(2010, 9, 2, 0, 0, timezone));
+
+        // 24 hourly frames. The first 10 are already on disk (frame cache, previous run, etc).
+        final long[] sortedFrameKeys = FrameGeneratorTest.getHourlyFrameKeys(dateRange.getStartDate(), 24, 1);
+        final Set<Long> generatedFrameKeys = new HashSet<Long>();
+        for (int hour = 0; hour < 10; hour++) {
+            generatedFrameKeys.add(sortedFrameKeys[hour]);
+        }
+
+        FrameGenerator frameGenerator = new FrameGenerator() {
+            @Override
+            long[] getMissingFrameKeys(long[] dateRangeFrameKeys) {
+                long[] missingFrameKeys = new long[dateRangeFrameKeys.length];
+                int missingCount = 0;
+                for (long frameKey : dateRangeFrameKeys) {
+                    if (!generatedFrameKeys.contains(frameKey)) {
+                        missingFrameKeys[missingCount++] = frameKey;
+                    }
+                }
+                return Arrays.copyOf(missingFrameKeys, missingCount);
+            }
+        };
+        frameGenerator.setFrameKeys(new FrameKeys(new ArrayList<NcAnimateRegionBean>(), new ArrayList<Double>()), sortedFrameKeys);
+        frameGenerator.setBisectAfterCrashes(2);
+
+        // Stub of ncanimate-frame: generates the missing frames in chronological order, and crashes on the frame at 10:00
+        final long crashSeconds = new DateTime(2010, 9, 1, 10, 0, timezone).getMillis() / 1000L;
+        final int[] attemptCount = { 0 };
+        FrameGenerator.FrameCall frameCall = new FrameGenerator.FrameCall() {
+            @Override
+            public void call(DateTimeRange callDateRange, FrameProgress progress) throws Exception {
+                attemptCount[0]++;
+                for (long frameKey : FrameKeys.getKeys(sortedFrameKeys, callDateRange)) {
+                    if (!generatedFrameKeys.contains(frameKey)) {
+                        if (FrameKeys.getStartSeconds(frameKey) == crashSeconds) {
+                            throw new IOException("ncanimate-frame crashed");
+                        }
+                        generatedFrameKeys.add(frameKey);
+                    }
+                }
+            }
+        };
+
+        try {
+            frameGenerator.generateFrames("product", dateRange, null, frameCall);
+            Assert.fail("The frame which crashes ncanimate-frame was generated");
+        } catch(IOException ex) {
+            Assert.assertTrue(String.format("The failed timestep is not reported: %s", ex.getMessage()),
+                    ex.getMessage().contains(new DateTime(2010, 9, 1, 10, 0, timezone).toString()));
+        }
+
+        // 2 crashes without new frames before each split, the frames already on disk are not new frames:
+        //     00:00 - 24:00 (crash), 10:00 - 24:00 (crash), split at 17:00
+        //     10:00 - 17:00 (crash x2), split at 13:00
+        //     10:00 - 13:00 (crash x2), split at 11:00
+        //     10:00 - 11:00 (crash x2), can't be split
+        //     11:00 - 13:00, 13:00 - 17:00, 17:00 - 24:00
+        Assert.assertEquals("Wrong number of ncanimate-frame calls", 11, attemptCount[0]);
+        Assert.assertEquals("Wrong number of generated frames", 23, generatedFrameKeys.size());
+        Assert.assertFalse("The frame which crashes ncanimate-frame was generated",
+                generatedFrameKeys.contains(sortedFrameKeys[10]));
+    }
+
+    // Keys of hourly frames, sorted
+    private static long[] getHourlyFrameKeys(DateTime startDate, int hours, int regions) {
+        long[] frameKeys = new long[hours * regions];
+        long startSeconds = startDate.getMillis() / 1000L;
+        for (int hour = 0; hour < hours; hour++) {
+            for (int region = 0; region < regions; region++) {
+                frameKeys[hour * regions + region] = FrameKeys.pack(startSeconds + hour * 3600L, region, 0, 1);
+            }
+        }
+        return frameKeys;
+    }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * - Frame keys heap usage -
+ * Compare the heap used to keep track of the frames of a synthetic 5 years
+ * configuration (hourly frames, 4 regions, 3 target heights, 2 frame formats),
+ * using a map of absolute frame paths (as NcAnimate used to do) and using
+ * frame keys in a LongIntHashMap.
+ *
+ * Run manually. The JVM needs about 2 GB of heap.
+ */
+public class FrameKeysHeapManual {
+    private static final Logger LOGGER = Logger.getLogger(FrameKeysHeapManual.class);
+
+    private static final DateTime START = new DateTime(2010, 1, 1, 0, 0, DateTimeZone.UTC);
+    private static final int YEARS = 5;
+    private static final String[] REGIONS = { "qld", "torres-strait", "cape-york", "wet-tropics" };
+    private static final String[] TARGET_HEIGHTS = { "-1.5", "-5.55", "-17.75" };
+    private static final String[] FORMATS = { "png", "svg" };
+
+    private static final String FRAME_DIRECTORY = "/tmp/ncanimate/frame/products__ncanimate__ereefs__gbr4_v2__temp-wind-salt-current";
+
+    @Ignore
+    @Test
+    public void testHeapUsage() {
+        int hours = (int)((START.plusYears(YEARS).getMillis() - START.getMillis()) / (3600 * 1000L));
+        int frameCount = hours * REGIONS.length * TARGET_HEIGHTS.length * FORMATS.length;
+        LOGGER.info(String.format("Synthetic configuration: %d frames", frameCount));
+
+        long baseline = FrameKeysHeapManual.getUsedHeap();
+        Map<String, File> frameFiles = new HashMap<String, File>();
+        for (int hour = 0; hour < hours; hour++) {
+            DateTime frameDate = START.plusHours(hour);
+            String frameDateStr = frameDate.toString("yyyy-MM-dd_HH'h'mm");
+            for (String region : REGIONS) {
+                for (String targetHeight : TARGET_HEIGHTS) {
+                    for (String format : FORMATS) {
+                        File frameFile = new File(String.format("%s/%s/height_%s/frame_%s.%s",
+                                FRAME_DIRECTORY, region, targetHeight, frameDateStr, format));
+                        frameFiles.put(frameFile.getAbsolutePath(), frameFile);
+                    }
+                }
+            }
+        }
+        long pathMapHeap = FrameKeysHeapManual.getUsedHeap() - baseline;
+        Assert.assertEquals(frameCount, frameFiles.size());
+        frameFiles = null;
+
+        baseline = FrameKeysHeapManual.getUsedHeap();
+        LongIntHashMap frameKeys = new LongIntHashMap();
+        long startSeconds = START.getMillis() / 1000;
+        for (int hour = 0; hour < hours; hour++) {
+            for (int region = 0; region < REGIONS.length; region++) {
+                for (int targetHeight = 0; targetHeight < TARGET_HEIGHTS.length; targetHeight++) {
+                    for (int format = 0; format < FORMATS.length; format++) {
+                        frameKeys.add(FrameKeys.pack(startSeconds + hour * 3600L, region, targetHeight, format + 1), 1);
+                    }
+                }
+            }
+        }
+        long frameKeyHeap = FrameKeysHeapManual.getUsedHeap() - baseline;
+        Assert.assertEquals(frameCount, frameKeys.size());
+
+        LOGGER.info(String.format("Map of frame paths: %d MB (%d bytes per frame)",
+                pathMapHeap / (1024 * 1024), pathMapHeap / frameCount));
+        LOGGER.info(String.format("Frame keys: %d MB (%d bytes per frame)",
+                frameKeyHeap / (1024 * 1024), frameKeyHeap / frameCount));
+        LOGGER.info(String.format("Heap saved: %d MB", (pathMapHeap - frameKeyHeap) / (1024 * 1024)));
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class FrameKeysTest {
+
+    @Test
+    public void testPackUnpack() {
+        long[] dates = new long[] {
+            new DateTime(2010, 1, 1, 0, 0, DateTimeZone.UTC).getMillis() / 1000,
+            new DateTime(1950, 6, 15, 12, 30, DateTimeZone.UTC).getMillis() / 1000,
+            0
+        };
+
+        for (long date : dates) {
+            long key = FrameKeys.pack(date, FrameKeys.MAX_REGIONS - 1, 5, FrameKeys.MAX_FORMATS);
+
+            Assert.assertEquals("Wrong frame date", date, FrameKeys.getStartSeconds(key));
+            Assert.assertEquals("Wrong region index", FrameKeys.MAX_REGIONS - 1, FrameKeys.getRegionIndex(key));
+            Assert.assertEquals("Wrong height index", 5, FrameKeys.getHeightIndex(key));
+            Assert.assertEquals("Wrong format index", FrameKeys.MAX_FORMATS, FrameKeys.getFormatIndex(key));
+        }
+    }
+
+    @Test
+    public void testKeysSortChronologically() {
+        long date = new DateTime(2010, 1, 1, 0, 0, DateTimeZone.UTC).getMillis() / 1000;
+
+        long lastKeyOfFirstFrame = FrameKeys.pack(date, FrameKeys.MAX_REGIONS - 1, FrameKeys.MAX_TARGET_HEIGHTS - 1, FrameKeys.MAX_FORMATS);
+        long firstKeyOfSecondFrame = FrameKeys.pack(date + 3600, 0, 0, 0);
+        Assert.assertTrue("Keys are not sorted by date", lastKeyOfFirstFrame < firstKeyOfSecondFrame);
+
+        long before1970 = FrameKeys.pack(-3600, 3, 2, 1);
+        Assert.assertTrue("Keys before 1970 are not sorted by date", before1970 < FrameKeys.pack(0, 0, 0, 0));
+    }
+
+    @Test
+    public void testSortUnique() {
+        long[] keys = new long[] { 5, 3, 5, 1, 3, 9, 0, 0 };
+
+        // Only the first 6 elements are keys
+        long[] uniqueKeys = FrameKeys.sortUnique(keys, 6);
+        Assert.assertArrayEquals("Wrong unique keys", new long[] { 1, 3, 5, 9 }, uniqueKeys);
+    }
+
+    @Test
+    public void testCountKeys() {
+        DateTime start = new DateTime(2010, 1, 1, 0, 0, DateTimeZone.UTC);
+        long startSeconds = start.getMillis() / 1000;
+
+        // 10 hourly frames, 2 regions each
+        long[] keys = new long[20];
+        for (int hour = 0; hour < 10; hour++) {
+            keys[hour * 2] = FrameKeys.pack(startSeconds + hour * 3600L, 0, 0, 1);
+            keys[hour * 2 + 1] = FrameKeys.pack(startSeconds + hour * 3600L, 1, 0, 1);
+        }
+
+        Assert.assertEquals("Wrong number of keys in the first 3 hours", 6,
+                FrameKeys.countKeys(keys, DateTimeRange.create(start, start.plusHours(3))));
+        Assert.assertEquals("Wrong number of keys in the last hours", 4,
+                FrameKeys.countKeys(keys, DateTimeRange.create(start.plusHours(8), start.plusHours(20))));
+        Assert.assertEquals("Wrong number of keys before the first frame", 0,
+                FrameKeys.countKeys(keys, DateTimeRange.create(start.minusHours(5), start)));
+    }
+
+    @Test
+    public void testCountStartDates() {
+        DateTime start = new DateTime(2010, 1, 1, 0, 0, DateTimeZone.UTC);
+        long startSeconds = start.getMillis() / 1000;
+
+        // 10 hourly frames, 3 regions each
+        long[] keys = new long[30];
+        for (int hour = 0; hour < 10; hour++) {
+            for (int region = 0; region < 3; region++) {
+                keys[hour * 3 + region] = FrameKeys.pack(startSeconds + hour * 3600L, region, 0, 1);
+            }
+        }
+
+        Assert.assertEquals("Wrong number of timesteps in the first 3 hours", 3,
+                FrameKeys.countStartDates(keys, DateTimeRange.create(start, start.plusHours(3))));
+        Assert.assertEquals("Wrong number of timesteps in the last hours", 2,
+                FrameKeys.countStartDates(keys, DateTimeRange.create(start.plusHours(8), start.plusHours(20))));
+        Assert.assertEquals("Wrong number of timesteps before the first frame", 0,
+                FrameKeys.countStartDates(keys, DateTimeRange.create(start.minusHours(5), start)));
+    }
+
+    @Test
+    public void testLongIntHashMap() {
+        // Compare with a HashMap, with lots of additions and removals
+        Map<Long, Integer> expectedMap = new HashMap<Long, Integer>();
+        LongIntHashMap map = new LongIntHashMap(16);
+
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            long key = FrameKeys.pack(random.nextInt(5000) * 3600L, random.nextInt(3), random.nextInt(2), 1);
+            int delta = random.nextInt(3) == 0 ? -1 : 1;
+
+            Integer expectedValue = expectedMap.get(key);
+            int newExpectedValue = (expectedValue == null ? 0 : expectedValue) + delta;
+            if (newExpectedValue == 0) {
+                expectedMap.remove(key);
+            } else {
+                expectedMap.put(key, newExpectedValue);
+            }
+
+            Assert.assertEquals("Wrong value returned", newExpectedValue, map.add(key, delta));
+        }
+
+        Assert.assertEquals("Wrong map size", expectedMap.size(), map.size());
+        for (Map.Entry<Long, Integer> expectedEntry : expectedMap.entrySet()) {
+            Assert.assertEquals("Wrong value", (int)expectedEntry.getValue(), map.get(expectedEntry.getKey()));
+        }
+
+        long[] sortedKeys = map.getSortedKeys();
+        Assert.assertEquals("Wrong number of keys", expectedMap.size(), sortedKeys.length);
+        for (int i = 1; i < sortedKeys.length; i++) {
+            Assert.assertTrue("Keys are not sorted", sortedKeys[i - 1] < sortedKeys[i]);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FrameLaunchProfileTest {
+    private static final long GB = 1024L * 1024 * 1024;
+
+    @Test
+    public void testDefaultProfile() {
+        FrameLaunchProfile profile = new FrameLaunchProfile();
+        profile.setMaxRamPercentage(40);
+
+        Assert.assertEquals("Wrong default options", "-XX:MaxRAMPercentage=40.0", profile.getJavaOptions(96));
+    }
+
+    @Test
+    public void testFixedHeap() {
+        FrameLaunchProfile profile = new FrameLaunchProfile();
+        profile.setHeapMB(6000);
+        profile.setAutoHeap(true);
+        profile.setGarbageCollector("G1");
+        profile.setExtraOptions("  -XX:+ExitOnOutOfMemoryError ");
+
+        Assert.assertEquals("Wrong options", "-Xmx6000m -XX:+UseG1GC -XX:+ExitOnOutOfMemoryError", profile.getJavaOptions(96));
+        Assert.assertEquals("Wrong options for the \"No data\" frames", "-Xmx1024m -XX:+UseG1GC -XX:+ExitOnOutOfMemoryError",
+                profile.getJavaOptions("-Xmx1024m"));
+    }
+
+    @Test
+    public void testGarbageCollector() {
+        FrameLaunchProfile profile = new FrameLaunchProfile();
+        profile.setHeapMB(2048);
+
+        profile.setGarbageCollector("ParallelGC");
+        Assert.assertEquals("Wrong garbage collector option", "-Xmx2048m -XX:+UseParallelGC", profile.getJavaOptions(-1));
+
+        profile.setGarbageCollector("-XX:+UseSerialGC");
+        Assert.assertEquals("Wrong garbage collector option", "-Xmx2048m -XX:+UseSerialGC", profile.getJavaOptions(-1));
+
+        profile.setGarbageCollector("G1; rm -rf /");
+        Assert.assertEquals("Invalid garbage collector not ignored", "-Xmx2048m", profile.getJavaOptions(-1));
+    }
+
+    @Test
+    public void testAutoHeap() {
+        FrameLaunchProfile profile = new FrameLaunchProfile();
+        profile.setAutoHeap(true);
+        profile.setHeapMBPerTimestep(16);
+        profile.setMemoryLimitBytes(32 * GB);
+
+        // 32 GB container, 4 GB for NcAnimate and 1 GB for the "No data" frames, 3 workers:
+        // (32768 - 5120) / 3 = 9216 MB per worker, 75% of it for the heap
+        profile.setWorkers(3, 5120);
+        Assert.assertEquals("Wrong heap budget", 6912, profile.getHeapBudgetMB());
+
+        Assert.assertEquals("Wrong heap for 24 timesteps", 1024 + 24 * 16, profile.getAutoHeapMB(24));
+        Assert.assertEquals("Heap not capped to the budget", 6912, profile.getAutoHeapMB(744));
+        Assert.assertEquals("Wrong heap for unknown timesteps", 6912, profile.getAutoHeapMB(-1));
+        Assert.assertEquals("Wrong memory option", "-Xmx1408m", profile.getMemoryOption(24));
+
+        // Not enough memory: minimum heap
+        profile.setWorkers(100, 5120);
+        Assert.assertEquals("Wrong minimum heap", 512, profile.getAutoHeapMB(24));
+    }
+
+    @Test
+    public void testParseCgroupLimit() {
+        Assert.assertEquals("Wrong cgroup v2 limit", Long.valueOf(8 * GB), FrameLaunchProfile.parseCgroupLimit("8589934592\n"));
+        Assert.assertNull("cgroup v2 without limit", FrameLaunchProfile.parseCgroupLimit("max\n"));
+        Assert.assertNull("cgroup v1 without limit", FrameLaunchProfile.parseCgroupLimit("9223372036854771712"));
+        Assert.assertNull("Invalid cgroup limit", FrameLaunchProfile.parseCgroupLimit("unknown"));
+        Assert.assertNull("Empty cgroup limit", FrameLaunchProfile.parseCgroupLimit(""));
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FrameProgressTest {
+
+    @Test
+    public void testParse() {
+        AtomicLong totalFrameCount = new AtomicLong(10);
+        FrameProgress progress = new FrameProgress("gbr4_v2_temp 2010-09-01 - 2010-09-02", totalFrameCount);
+
+        Assert.assertFalse("Log line parsed as progress", progress.parse("INFO Generating frame 2010-09-01 00:00"));
+        Assert.assertFalse("Null line parsed as progress", progress.parse(null));
+
+        Assert.assertTrue("Progress line not parsed", progress.parse(
+                FrameProgress.PROGRESS_PREFIX + "{\"file\": \"/tmp/frame/qld/frame_2010-09-01_00h00.png\", \"millis\": 200}"));
+        Assert.assertTrue("Progress line not parsed", progress.parse(
+                FrameProgress.PROGRESS_PREFIX + "{\"file\": \"/tmp/frame/qld/frame_2010-09-01_01h00.png\", \"millis\": 400}"));
+        // A frame was generated, even if the line can't be parsed
+        Assert.assertTrue("Invalid progress line not counted", progress.parse(FrameProgress.PROGRESS_PREFIX + "{invalid"));
+
+        Assert.assertEquals("Wrong number of frames", 3, progress.getFrameCount());
+        Assert.assertEquals("Wrong total time", 600, progress.getTotalMillis());
+        Assert.assertEquals("Wrong max time", 400, progress.getMaxMillis());
+        Assert.assertEquals("Wrong average time", 200.0, progress.getAverageMillis(), 0.001);
+        Assert.assertEquals("Wrong last frame", "/tmp/frame/qld/frame_2010-09-01_01h00.png", progress.getLastFrame());
+
+        Assert.assertEquals("Wrong total number of frames", 13, totalFrameCount.get());
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FrameRegistryTest {
+    private static final long START_SECONDS = new DateTime(2010, 1, 1, 0, 0, DateTimeZone.UTC).getMillis() / 1000;
+
+    @Test
+    public void testSharedFramesReleasedWithLastProduct() {
+        long frame1 = this.getFrameKey(0);
+        long frame2 = this.getFrameKey(1);
+        long frame3 = this.getFrameKey(2);
+
+        // The hourly map uses frame 1. The video uses all the frames.
+        long[] mapFrames = new long[] { frame1 };
+        long[] videoFrames = new long[] { frame1, frame2, frame3 };
+
+        FrameRegistry frameRegistry = new FrameRegistry();
+        frameRegistry.register(mapFrames);
+        frameRegistry.register(videoFrames);
+
+        Assert.assertEquals("Wrong number of frames", 3, frameRegistry.getFrameCount());
+        Assert.assertEquals("Wrong reference count for frame 1", 2, frameRegistry.getReferenceCount(frame1));
+        Assert.assertEquals("Wrong reference count for frame 2", 1, frameRegistry.getReferenceCount(frame2));
+
+        // The video is generated. Frame 1 is still needed by the map.
+        long[] unneededFrames = frameRegistry.release(videoFrames);
+        Assert.assertArrayEquals("Wrong unneeded frames", new long[] { frame2, frame3 }, unneededFrames);
+        Assert.assertEquals("Wrong reference count for frame 1", 1, frameRegistry.getReferenceCount(frame1));
+        Assert.assertEquals("Wrong reference count for frame 2", 0, frameRegistry.getReferenceCount(frame2));
+
+        // The map is generated. Nothing left.
+        unneededFrames = frameRegistry.release(mapFrames);
+        Assert.assertArrayEquals("Wrong unneeded frames", new long[] { frame1 }, unneededFrames);
+        Assert.assertEquals("Wrong number of frames", 0, frameRegistry.getFrameCount());
+    }
+
+    @Test
+    public void testReleaseUnregisteredFrame() {
+        FrameRegistry frameRegistry = new FrameRegistry();
+        frameRegistry.register(new long[] { this.getFrameKey(0) });
+
+        long[] unneededFrames = frameRegistry.release(new long[] { this.getFrameKey(1) });
+        Assert.assertEquals("An unregistered frame can not be released", 0, unneededFrames.length);
+        Assert.assertEquals("Wrong number of frames", 1, frameRegistry.getFrameCount());
+    }
+
+    private long getFrameKey(int hour) {
+        return FrameKeys.pack(START_SECONDS + hour * 3600L, 0, 0, 1);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.ereefs.Utils;
+import au.gov.aims.ncanimate.Digests;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class FrameStoreTest {
+    private File workingDirectory;
+
+    @Before
+    public void createWorkingDirectory() throws IOException {
+        this.workingDirectory = Files.createTempDirectory("frameStoreTest").toFile();
+    }
+
+    @After
+    public void deleteWorkingDirectory() {
+        Utils.deleteDirectory(this.workingDirectory);
+    }
+
+    @Test
+    public void testDeduplication() throws Exception {
+        File frameDirectory = new File(this.workingDirectory, "frames");
+        Assert.assertTrue("Could not create the frame directory", frameDirectory.mkdirs());
+
+        // 2 "No data" frames and 1 frame with data
+        File noDataFrame1 = this.createFrame(frameDirectory, "frame_2010-09-01_00h00.png", "no data");
+        File noDataFrame2 = this.createFrame(frameDirectory, "frame_2010-09-01_01h00.png", "no data");
+        File dataFrame = this.createFrame(frameDirectory, "frame_2010-09-01_02h00.png", "data");
+
+        FrameStore frameStore = new FrameStore(this.workingDirectory);
+        Assert.assertFalse("First frame flagged as duplicate", frameStore.add(noDataFrame1));
+        Assert.assertTrue("Duplicated frame not detected", frameStore.add(noDataFrame2));
+        Assert.assertFalse("Unique frame flagged as duplicate", frameStore.add(dataFrame));
+        Assert.assertFalse("Frame added twice", frameStore.add(noDataFrame2));
+
+        Assert.assertTrue("Frame store disabled", frameStore.isEnabled());
+        Assert.assertEquals("Wrong number of frames", 3, frameStore.getFrameCount());
+        Assert.assertEquals("Wrong number of duplicates", 1, frameStore.getDuplicateCount());
+        Assert.assertEquals("Wrong number of stored frames", 2, frameStore.getStoredCount());
+        Assert.assertEquals("Wrong number of saved bytes", "no data".length(), frameStore.getSavedBytes());
+
+        // The frame files are still usable
+        Assert.assertTrue("Duplicated frames are not linked", Files.isSameFile(noDataFrame1.toPath(), noDataFrame2.toPath()));
+        Assert.assertEquals("Wrong frame content", "no data", this.readFrame(noDataFrame2));
+        Assert.assertEquals("Wrong frame content", "data", this.readFrame(dataFrame));
+
+        // The digests are kept, to find identical frames without reading the frame files again (video zip archives)
+        Assert.assertEquals("Wrong frame digest", Digests.sha256(noDataFrame1), frameStore.getFrameDigest(noDataFrame1));
+        Assert.assertEquals("Identical frames have different digests",
+                frameStore.getFrameDigest(noDataFrame1), frameStore.getFrameDigest(noDataFrame2));
+        Assert.assertNotEquals("Different frames have the same digest",
+                frameStore.getFrameDigest(noDataFrame1), frameStore.getFrameDigest(dataFrame));
+
+        // The stored frame is deleted with the last frame linked to it
+        Assert.assertTrue("Could not delete the frame", noDataFrame1.delete());
+        frameStore.release(noDataFrame1);
+        Assert.assertNull("Digest of a released frame", frameStore.getFrameDigest(noDataFrame1));
+        Assert.assertEquals("Stored frame deleted too early", 2, frameStore.getStoredCount());
+        Assert.assertEquals("Wrong frame content after deleting a duplicate", "no data", this.readFrame(noDataFrame2));
+
+        Assert.assertTrue("Could not delete the frame", noDataFrame2.delete());
+        frameStore.release(noDataFrame2);
+        Assert.assertEquals("Stored frame not released", 1, frameStore.getStoredCount());
+
+        File storeDirectory = new File(this.workingDirectory, "frameStore");
+        Assert.assertEquals("Wrong number of files in the store", 1, this.countFiles(storeDirectory));
+    }
+
+    private File createFrame(File directory, String filename, String content) throws IOException {
+        File frameFile = new File(directory, filename);
+        Files.write(frameFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return frameFile;
+    }
+
+    private String readFrame(File frameFile) throws IOException {
+        return new String(Files.readAllBytes(frameFile.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private int countFiles(File directory) {
+        int count = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                count += file.isDirectory() ? this.countFiles(file) : 1;
+            }
+        }
+        return count;
+    }
+}
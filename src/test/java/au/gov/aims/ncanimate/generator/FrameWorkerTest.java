@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.ereefs.Utils;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+public class FrameWorkerTest {
+    private File tempDirectory;
+
+    @Before
+    public void createTempDirectory() throws IOException {
+        this.tempDirectory = Files.createTempDirectory("frameWorkerTest").toFile();
+    }
+
+    @After
+    public void deleteTempDirectory() {
+        Utils.deleteDirectory(this.tempDirectory);
+    }
+
+    @Test
+    public void testRequests() throws Exception {
+        // Stand-in for ncanimate-frame in worker mode: 10 frames per request, 10% of the heap used
+        File workerScript = this.createWorkerScript("worker.sh",
+                "while read REQUEST; do\n" +
+                "  echo \"Generating frames: $REQUEST\"\n" +
+                "  echo '" + FrameProgress.PROGRESS_PREFIX + "{\"file\":\"frame_1.png\",\"millis\":5}'\n" +
+                "  echo '" + FrameProgress.PROGRESS_PREFIX + "{\"file\":\"frame_2.png\",\"millis\":7}'\n" +
+                "  echo '" + FrameWorker.RESPONSE_PREFIX + "{\"exitCode\":0,\"frames\":10,\"heapUsedMB\":100,\"heapMaxMB\":1000,\"region\":\"'$NCANIMATE_REGION'\"}'\n" +
+                "done\n");
+
+        FrameWorker worker = new FrameWorker("key", String.format("sh \"%s\"", workerScript.getAbsolutePath()),
+                Collections.singletonMap("NCANIMATE_REGION", "qld"));
+        FrameProgress progress = new FrameProgress("gbr4_v2_temp", null);
+        worker.start();
+        try {
+            for (int i = 0; i < 3; i++) {
+                JSONObject response = worker.generate(new JSONObject()
+                        .put("productId", "gbr4_v2_temp")
+                        .put("startDate", String.format("2010-09-0%dT00:00:00.000+10:00", i + 1))
+                        .put("endDate", String.format("2010-09-0%dT00:00:00.000+10:00", i + 2)), progress);
+
+                Assert.assertEquals("Wrong exit code", 0, response.optInt("exitCode", -1));
+                Assert.assertEquals("Environment variable not sent to the worker", "qld", response.optString("region", null));
+            }
+
+            Assert.assertFalse("The worker terminated", worker.isTerminated());
+            Assert.assertEquals("Wrong number of requests", 3, worker.getRequestCount());
+            Assert.assertEquals("Wrong number of frames", 30, worker.getFrameCount());
+            Assert.assertEquals("Wrong number of progress lines", 6, progress.getFrameCount());
+            Assert.assertEquals("Wrong frame time", 36, progress.getTotalMillis());
+
+            Assert.assertFalse("Worker recycled too early", worker.isWornOut(100, 75));
+            Assert.assertTrue("Worker not recycled after the maximum number of frames", worker.isWornOut(25, 75));
+            Assert.assertTrue("Worker not recycled after the heap threshold", worker.isWornOut(100, 10));
+        } finally {
+            worker.close();
+        }
+
+        Assert.assertTrue("The worker is still running after being closed", worker.isTerminated());
+    }
+
+    @Test
+    public void testCrashedWorker() throws Exception {
+        // The worker crashes while generating the frames
+        File workerScript = this.createWorkerScript("crash.sh",
+                "read REQUEST\n" +
+                "exit 3\n");
+
+        FrameWorker worker = new FrameWorker("key", String.format("sh \"%s\"", workerScript.getAbsolutePath()), null);
+        worker.start();
+        try {
+            worker.generate(new JSONObject().put("productId", "gbr4_v2_temp"));
+            Assert.fail("No exception thrown when the worker crashed");
+        } catch(IOException ex) {
+            Assert.assertTrue("Wrong exception message: " + ex.getMessage(), ex.getMessage().contains("Exit code: 3"));
+        } finally {
+            worker.close();
+        }
+
+        Assert.assertTrue("Crashed worker not terminated", worker.isTerminated());
+        Assert.assertTrue("Crashed worker not recycled", worker.isWornOut(0, 100));
+    }
+
+    private File createWorkerScript(String filename, String script) throws IOException {
+        File scriptFile = new File(this.tempDirectory, filename);
+        Files.write(scriptFile.toPath(), script.getBytes(StandardCharsets.UTF_8));
+        return scriptFile;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.ereefs.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+public class InProcessFrameRunnerTest {
+    private File tempDirectory;
+    private File stopFile;
+
+    @Before
+    public void createTempDirectory() throws IOException {
+        this.tempDirectory = Files.createTempDirectory("inProcessFrameRunnerTest").toFile();
+        this.stopFile = new File(this.tempDirectory, "stop");
+    }
+
+    @After
+    public void deleteTempDirectory() throws IOException {
+        // Stop the leaking thread, if any
+        Files.write(this.stopFile.toPath(), new byte[0]);
+        Utils.deleteDirectory(this.tempDirectory);
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        File jarFile = this.createStubJar(InProcessFrameStub.class.getName());
+        Map<String, String> environment = new HashMap<String, String>();
+        environment.put("OUTPUT_DIR", this.tempDirectory.getAbsolutePath());
+
+        // 2 date ranges with the same class loader
+        InProcessFrameRunner runner = new InProcessFrameRunner(jarFile, 2);
+        Assert.assertEquals("Wrong exit code", 0, runner.run(new String[] { "product", "2010-09-01" }, environment));
+        Assert.assertFalse("Batch completed too early", runner.isBatchComplete());
+        Assert.assertEquals("Wrong exit code", 0, runner.run(new String[] { "product", "2010-09-02" }, environment));
+        Assert.assertTrue("Batch not completed", runner.isBatchComplete());
+
+        Assert.assertEquals("The class loader was not reused within the batch", "2", this.readOutput("product_2010-09-02.txt"));
+        Assert.assertTrue("The class loader was not reclaimed", runner.dispose());
+
+        // A new class loader starts from scratch
+        InProcessFrameRunner nextRunner = new InProcessFrameRunner(jarFile, 2);
+        Assert.assertEquals("Wrong exit code for a failure", 2, nextRunner.run(new String[] { "fail", "2010-09-03" }, environment));
+        Assert.assertEquals("The class loader was shared between batches", "1", this.readOutput("fail_2010-09-03.txt"));
+        Assert.assertTrue("The class loader was not reclaimed", nextRunner.dispose());
+    }
+
+    @Test
+    public void testProgress() throws Exception {
+        File jarFile = this.createStubJar(InProcessFrameStub.class.getName());
+        Map<String, String> environment = new HashMap<String, String>();
+        environment.put("OUTPUT_DIR", this.tempDirectory.getAbsolutePath());
+
+        InProcessFrameRunner runner = new InProcessFrameRunner(jarFile, 2);
+        FrameProgress progress = new FrameProgress("product 2010-09-01", null);
+        Assert.assertEquals("Wrong exit code", 0, runner.run(new String[] { "product", "2010-09-01" }, environment, progress));
+        Assert.assertTrue("The progress entry point was not found", runner.isProgressSupported());
+        Assert.assertEquals("Wrong number of frames reported", 1, progress.getFrameCount());
+
+        // The progress is optional
+        Assert.assertEquals("Wrong exit code", 0, runner.run(new String[] { "product", "2010-09-02" }, environment));
+        Assert.assertEquals("The progress was reported twice", 1, progress.getFrameCount());
+        Assert.assertTrue("The class loader was not reclaimed", runner.dispose());
+    }
+
+    @Test
+    public void testLeak() throws Exception {
+        File jarFile = this.createStubJar(InProcessFrameStub.class.getName());
+        Map<String, String> environment = new HashMap<String, String>();
+        environment.put("OUTPUT_DIR", this.tempDirectory.getAbsolutePath());
+        environment.put("LEAK_UNTIL", this.stopFile.getAbsolutePath());
+
+        InProcessFrameRunner runner = new InProcessFrameRunner(jarFile, 1);
+        Assert.assertEquals("Wrong exit code", 0, runner.run(new String[] { "product", "2010-09-01" }, environment));
+        Assert.assertFalse("Leaked class loader not detected", runner.dispose());
+    }
+
+    @Test
+    public void testMissingEntryPoint() throws Exception {
+        // The leaking thread class doesn't have a "run(String[], Map)" method
+        File jarFile = this.createStubJar(InProcessFrameStub.class.getName() + "$1");
+        try {
+            new InProcessFrameRunner(jarFile, 1).load();
+            Assert.fail("No exception thrown for a jar without entry point");
+        } catch(NoSuchMethodException ex) {
+            // Expected
+        }
+    }
+
+    // Create a jar containing the stub classes, with the given main class
+    private File createStubJar(String mainClassName) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClassName);
+
+        File jarFile = new File(this.tempDirectory, "ereefs-ncanimate2-frame-stub.jar");
+        try (JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(jarFile), manifest)) {
+            String classPrefix = InProcessFrameStub.class.getName().replace('.', '/');
+            for (String classFile : new String[] { classPrefix + ".class", classPrefix + "$1.class" }) {
+                try (InputStream classStream = InProcessFrameRunnerTest.class.getClassLoader().getResourceAsStream(classFile)) {
+                    Assert.assertNotNull(String.format("Missing class file %s", classFile), classStream);
+                    jarOutputStream.putNextEntry(new JarEntry(classFile));
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = classStream.read(buffer)) != -1) {
+                        jarOutputStream.write(buffer, 0, read);
+                    }
+                    jarOutputStream.closeEntry();
+                }
+            }
+        }
+
+        return jarFile;
+    }
+
+    private String readOutput(String filename) throws IOException {
+        return new String(Files.readAllBytes(new File(this.tempDirectory, filename).toPath()), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Stand-in for ncanimate-frame, used by {@link InProcessFrameRunnerTest}.
+ * It's packaged in a jar and loaded by {@link InProcessFrameRunner},
+ * so it must only use the Java classes.
+ */
+public class InProcessFrameStub {
+    // Number of date ranges generated with this class loader
+    private static int runCount = 0;
+
+    public static void main(String ... args) throws Exception {
+        System.exit(InProcessFrameStub.run(args, System.getenv()));
+    }
+
+    /**
+     * Write the number of date ranges generated with this class loader
+     * in the file "OUTPUT_DIR/<productId>_<startDate>.txt".
+     * When the environment variable "LEAK_UNTIL" is set, start a thread
+     * which ignores interruptions until that file exists, holding on to the class loader.
+     */
+    public static int run(String[] args, Map<String, String> environment) throws IOException {
+        runCount++;
+
+        File outputFile = new File(environment.get("OUTPUT_DIR"), String.format("%s_%s.txt", args[0], args[1]));
+        Files.write(outputFile.toPath(), String.valueOf(runCount).getBytes(StandardCharsets.UTF_8));
+
+        String leakUntil = environment.get("LEAK_UNTIL");
+        if (leakUntil != null) {
+            final File stopFile = new File(leakUntil);
+            Thread leakingThread = new Thread() {
+                @Override
+                public void run() {
+                    while (!stopFile.exists()) {
+                        try {
+                            Thread.sleep(50);
+                        } catch(InterruptedException ex) {
+                            // Ignore interruptions, like a badly written library
+                        }
+                    }
+                }
+            };
+            leakingThread.setDaemon(true);
+            leakingThread.start();
+        }
+
+        return "fail".equals(args[0]) ? 2 : 0;
+    }
+
+    /**
+     * Same as {@link #run(String[], Map)}, reporting a frame for each date range.
+     */
+    public static int run(String[] args, Map<String, String> environment, Consumer<String> progress) throws IOException {
+        int exitCode = InProcessFrameStub.run(args, environment);
+        if (exitCode == 0 && progress != null) {
+            progress.accept(String.format("NCANIMATE_FRAME_PROGRESS {\"file\": \"%s/frame_%s.png\", \"millis\": 250}",
+                    environment.get("OUTPUT_DIR"), args[1]));
+        }
+        return exitCode;
+    }
+}
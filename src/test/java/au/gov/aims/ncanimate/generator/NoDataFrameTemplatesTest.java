@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.ereefs.Utils;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateRegionBean;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class NoDataFrameTemplatesTest {
+    private static final DateTime START_DATE = new DateTime(2010, 9, 1, 0, 0, DateTimeZone.UTC);
+
+    private File workingDirectory;
+    private File frameDirectory;
+
+    @Before
+    public void createWorkingDirectory() throws IOException {
+        this.workingDirectory = Files.createTempDirectory("noDataFrameTemplatesTest").toFile();
+        this.frameDirectory = new File(this.workingDirectory, "frames");
+    }
+
+    @After
+    public void deleteWorkingDirectory() {
+        Utils.deleteDirectory(this.workingDirectory);
+    }
+
+    @Test
+    public void testIdenticalFrames() throws Exception {
+        List<DateTimeRange> renderedDateRanges = new ArrayList<DateTimeRange>();
+        NoDataFrameTemplates templates = new NoDataFrameTemplates(new File(this.workingDirectory, "noDataFrames"));
+        FrameGenerator frameGenerator = this.getFrameGenerator(templates, renderedDateRanges, false);
+
+        frameGenerator.generateNoDataFrames(null, DateTimeRange.create(START_DATE, START_DATE.plusHours(12)));
+        frameGenerator.generateNoDataFrames(null, DateTimeRange.create(START_DATE.plusHours(12), START_DATE.plusHours(24)));
+
+        // Only the frames of the first two dates are rendered
+        Assert.assertEquals("Wrong number of calls to ncanimate-frame", 1, renderedDateRanges.size());
+        Assert.assertEquals("Wrong rendered end date", START_DATE.plusHours(2), renderedDateRanges.get(0).getEndDate());
+        Assert.assertTrue("The frames should be identical", templates.isIdentical());
+        Assert.assertEquals("Linked frames not counted", 44, frameGenerator.getGeneratedFrameCount());
+
+        // The other frames are linked to the frames of the first date, for the same region
+        for (int hour = 0; hour < 24; hour++) {
+            for (int region = 0; region < 2; region++) {
+                File frameFile = this.getFrameFile(START_DATE.plusHours(hour), region);
+                Assert.assertTrue(String.format("Missing frame: %s", frameFile), frameFile.isFile());
+                Assert.assertEquals(String.format("Wrong frame content: %s", frameFile),
+                        String.format("No data, region %d", region), this.readFrame(frameFile));
+            }
+        }
+
+        // The templates are deleted once the product is done, the frames are kept
+        templates.delete();
+        File[] remainingTemplates = new File(this.workingDirectory, "noDataFrames").listFiles();
+        Assert.assertEquals("Templates not deleted", 0, remainingTemplates == null ? 0 : remainingTemplates.length);
+        Assert.assertTrue("Linked frame deleted with the templates", this.getFrameFile(START_DATE.plusHours(23), 1).isFile());
+    }
+
+    @Test
+    public void testDatedFrames() throws Exception {
+        List<DateTimeRange> renderedDateRanges = new ArrayList<DateTimeRange>();
+        NoDataFrameTemplates templates = new NoDataFrameTemplates(new File(this.workingDirectory, "noDataFrames"));
+        FrameGenerator frameGenerator = this.getFrameGenerator(templates, renderedDateRanges, true);
+
+        frameGenerator.generateNoDataFrames(null, DateTimeRange.create(START_DATE, START_DATE.plusHours(12)));
+        frameGenerator.generateNoDataFrames(null, DateTimeRange.create(START_DATE.plusHours(12), START_DATE.plusHours(24)));
+
+        // The first two dates are compared, then every frame is rendered
+        Assert.assertTrue("The frames should differ", templates.isDated());
+        Assert.assertEquals("Wrong number of calls to ncanimate-frame", 3, renderedDateRanges.size());
+        Assert.assertEquals("Wrong rendered date range", START_DATE.plusHours(2), renderedDateRanges.get(1).getStartDate());
+        Assert.assertEquals("Wrong rendered date range", START_DATE.plusHours(12), renderedDateRanges.get(2).getStartDate());
+
+        File frameFile = this.getFrameFile(START_DATE.plusHours(23), 1);
+        Assert.assertEquals("Wrong frame content", String.format("No data, region 1, %s", START_DATE.plusHours(23)), this.readFrame(frameFile));
+    }
+
+    // Hourly frames, for 2 regions, with a stub of ncanimate-frame
+    private FrameGenerator getFrameGenerator(final NoDataFrameTemplates templates,
+            final List<DateTimeRange> renderedDateRanges, final boolean dated) {
+
+        final long[] sortedFrameKeys = new long[24 * 2];
+        long startSeconds = START_DATE.getMillis() / 1000L;
+        for (int hour = 0; hour < 24; hour++) {
+            for (int region = 0; region < 2; region++) {
+                sortedFrameKeys[hour * 2 + region] = FrameKeys.pack(startSeconds + hour * 3600L, region, 0, 1);
+            }
+        }
+
+        final FrameKeys frameKeys = new FrameKeys(new ArrayList<NcAnimateRegionBean>(), new ArrayList<Double>()) {
+            @Override
+            public File getFrameFile(long key) {
+                return NoDataFrameTemplatesTest.this.getFrameFile(
+                        new DateTime(FrameKeys.getStartSeconds(key) * 1000L, DateTimeZone.UTC), FrameKeys.getRegionIndex(key));
+            }
+        };
+
+        FrameGenerator frameGenerator = new FrameGenerator() {
+            @Override
+            NoDataFrameTemplates getNoDataTemplates(NcAnimateConfigBean ncanimateConfig) {
+                return templates;
+            }
+
+            @Override
+            void renderNoDataFrames(NcAnimateConfigBean ncanimateConfig, DateTimeRange dateRange) throws Exception {
+                renderedDateRanges.add(dateRange);
+                for (long frameKey : FrameKeys.getKeys(sortedFrameKeys, dateRange)) {
+                    DateTime frameDate = new DateTime(FrameKeys.getStartSeconds(frameKey) * 1000L, DateTimeZone.UTC);
+                    String content = String.format("No data, region %d", FrameKeys.getRegionIndex(frameKey));
+                    NoDataFrameTemplatesTest.this.writeFrame(frameKeys.getFrameFile(frameKey),
+                            dated ? String.format("%s, %s", content, frameDate) : content);
+                }
+            }
+        };
+        frameGenerator.setFrameKeys(frameKeys, sortedFrameKeys);
+
+        return frameGenerator;
+    }
+
+    private File getFrameFile(DateTime frameDate, int region) {
+        return new File(this.frameDirectory, String.format("frame_%d_%d.png", frameDate.getMillis() / 1000L, region));
+    }
+
+    private void writeFrame(File frameFile, String content) throws IOException {
+        frameFile.getParentFile().mkdirs();
+        Files.write(frameFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String readFrame(File frameFile) throws IOException {
+        return new String(Files.readAllBytes(frameFile.toPath()), StandardCharsets.UTF_8);
+    }
+}
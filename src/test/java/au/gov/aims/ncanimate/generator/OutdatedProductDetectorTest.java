@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.generator;
+
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ereefs.database.CacheStrategy;
+import au.gov.aims.ereefs.database.DatabaseClient;
+import au.gov.aims.ereefs.helper.NcAnimateConfigHelper;
+import au.gov.aims.ncanimate.DatabaseTestBase;
+import au.gov.aims.ncanimate.commons.NcAnimateGenerateFileBean;
+import au.gov.aims.ncanimate.commons.NcAnimateUtils;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.commons.timetable.FrameTimetableMap;
+import au.gov.aims.ncanimate.commons.timetable.ProductTimetable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+public class OutdatedProductDetectorTest extends DatabaseTestBase {
+
+    /**
+     * The output files are "uploaded" to the local directory /tmp/ncanimateTests/s3,
+     * which stands in for S3.
+     */
+    @Test
+    public void testOutdatedMaps() throws Exception {
+        super.insertData();
+        super.insertFakePartialGBR4NetCDFFile(true);
+
+        String productId = "gbr4_v2_temp-wind-salt-current";
+        String regionId = "qld";
+        DatabaseClient dbClient = this.getDatabaseClient();
+
+        // Nothing generated yet
+        List<NcAnimateGenerateFileBean> outdatedMaps = this.getOutdatedMaps(dbClient, productId, regionId);
+        Assert.assertEquals("Wrong number of outdated maps before generation", 2, outdatedMaps.size());
+
+        this.getNcanimate().setRegionId(regionId);
+        this.getNcanimate().generateFromProductId(productId);
+
+        // Everything is up to date
+        outdatedMaps = this.getOutdatedMaps(dbClient, productId, regionId);
+        Assert.assertTrue(String.format("Found outdated maps after generation: %s", outdatedMaps), outdatedMaps.isEmpty());
+
+        // Delete an output file
+        File deletedMap = new File("/tmp/ncanimateTests/s3/ncanimate/products/gbr4_v2_temp-wind-salt-current/gbr4_v2_temp-wind-salt-current_map_hourly_2010-09-01_01h00_qld_-49.0.png");
+        Assert.assertTrue(String.format("Could not delete the map file %s", deletedMap), deletedMap.delete());
+
+        outdatedMaps = this.getOutdatedMaps(dbClient, productId, regionId);
+        Assert.assertEquals("The map with a missing output file is not outdated", 1, outdatedMaps.size());
+    }
+
+    /**
+     * Find the outdated maps using the detector,
+     * check that the result is the same as checking each map individually.
+     */
+    private List<NcAnimateGenerateFileBean> getOutdatedMaps(
+            DatabaseClient dbClient, String productId, String regionId) throws Exception {
+
+        NcAnimateConfigHelper configHelper = new NcAnimateConfigHelper(dbClient, CacheStrategy.MEMORY);
+        NcAnimateConfigBean ncAnimateConfig = configHelper.getNcAnimateConfig(productId);
+        ProductTimetable productTimetable = new ProductTimetable(ncAnimateConfig, dbClient);
+
+        Map<DateTimeRange, List<FrameTimetableMap>> mapFrameMap = productTimetable.getMapFrames();
+        List<NcAnimateGenerateFileBean> mapOutputFileBeans = productTimetable.getMapOutputFiles();
+        Assert.assertEquals("Wrong number of maps", 2, mapOutputFileBeans.size());
+
+        OutdatedProductDetector detector = new OutdatedProductDetector(
+                null, dbClient, ncAnimateConfig, ncAnimateConfig.getFrameTimeIncrement(), regionId);
+        List<NcAnimateGenerateFileBean> outdatedMaps = detector.getOutdated(mapOutputFileBeans, mapFrameMap, "map", 10);
+
+        Assert.assertEquals("The product metadata was not loaded with a single query", 1, detector.getMetadataQueryCount());
+        Assert.assertTrue("The output directory was listed more than once", detector.getListingCount() <= 1);
+
+        for (NcAnimateGenerateFileBean mapOutputFileBean : mapOutputFileBeans) {
+            boolean expected = NcAnimateUtils.isOutdated(null, mapOutputFileBean, mapFrameMap, ncAnimateConfig, regionId, false);
+            Assert.assertEquals(String.format("Wrong outdated status for map %s", mapOutputFileBean.getFileId()),
+                    expected, outdatedMaps.contains(mapOutputFileBean));
+        }
+
+        return outdatedMaps;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.timetable;
+
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * - DateRangeIndex benchmark -
+ * Compare the readiness check used by NcAnimate before the DateRangeIndex
+ * (re-merge all generated date ranges, then scan every remaining product)
+ * with the DateRangeIndex, for a 10 years rebuild of hourly maps,
+ * monthly videos and yearly videos, with daily frame date ranges
+ * finishing slightly out of order (concurrent frame workers).
+ *
+ * Run manually, it takes a while with the legacy algorithm.
+ */
+public class DateRangeIndexBenchmarkManual {
+    private static final Logger LOGGER = Logger.getLogger(DateRangeIndexBenchmarkManual.class);
+
+    private static final DateTime START = new DateTime(2010, 1, 1, 0, 0, DateTimeZone.UTC);
+    private static final int YEARS = 10;
+    private static final int FRAME_WORKERS = 4;
+
+    @Ignore
+    @Test
+    public void benchmarkTenYearsHourly() {
+        List<DateTimeRange> products = DateRangeIndexBenchmarkManual.getProducts();
+        List<DateTimeRange> frameDateRanges = DateRangeIndexBenchmarkManual.getFrameDateRanges();
+
+        LOGGER.info(String.format("Products: %d, frame date ranges: %d", products.size(), frameDateRanges.size()));
+
+        long indexStart = System.currentTimeMillis();
+        int indexReadyCount = DateRangeIndexBenchmarkManual.runIndex(products, frameDateRanges);
+        long indexElapsed = System.currentTimeMillis() - indexStart;
+        LOGGER.info(String.format("DateRangeIndex: %d products ready in %d ms", indexReadyCount, indexElapsed));
+
+        long legacyStart = System.currentTimeMillis();
+        int legacyReadyCount = DateRangeIndexBenchmarkManual.runLegacy(products, frameDateRanges);
+        long legacyElapsed = System.currentTimeMillis() - legacyStart;
+        LOGGER.info(String.format("Legacy merge and scan: %d products ready in %d ms", legacyReadyCount, legacyElapsed));
+
+        Assert.assertEquals("Both algorithms should find the same products", legacyReadyCount, indexReadyCount);
+        Assert.assertEquals("All products should be ready", products.size(), indexReadyCount);
+    }
+
+    private static int runIndex(List<DateTimeRange> products, List<DateTimeRange> frameDateRanges) {
+        DateRangeIndex<DateTimeRange> index = new DateRangeIndex<DateTimeRange>();
+        for (DateTimeRange product : products) {
+            index.addPending(product, product);
+        }
+
+        int readyCount = 0;
+        for (DateTimeRange frameDateRange : frameDateRanges) {
+            readyCount += index.add(frameDateRange).size();
+        }
+        return readyCount;
+    }
+
+    private static int runLegacy(List<DateTimeRange> products, List<DateTimeRange> frameDateRanges) {
+        List<DateTimeRange> remainingProducts = new ArrayList<DateTimeRange>(products);
+        SortedSet<DateTimeRange> generatedDateRanges = new TreeSet<DateTimeRange>();
+
+        int readyCount = 0;
+        for (DateTimeRange frameDateRange : frameDateRanges) {
+            generatedDateRanges.add(frameDateRange);
+            generatedDateRanges = DateTimeRange.mergeDateRanges(generatedDateRanges);
+
+            Iterator<DateTimeRange> remainingProductIterator = remainingProducts.iterator();
+            while (remainingProductIterator.hasNext()) {
+                DateTimeRange product = remainingProductIterator.next();
+                for (DateTimeRange generatedDateRange : generatedDateRanges) {
+                    if (generatedDateRange.contains(product)) {
+                        remainingProductIterator.remove();
+                        readyCount++;
+                        break;
+                    }
+                }
+            }
+        }
+        return readyCount;
+    }
+
+    // Hourly maps, monthly videos and yearly videos
+    private static List<DateTimeRange> getProducts() {
+        List<DateTimeRange> products = new ArrayList<DateTimeRange>();
+        DateTime end = START.plusYears(YEARS);
+
+        for (DateTime hour = START; hour.isBefore(end); hour = hour.plusHours(1)) {
+            products.add(DateTimeRange.create(hour, hour.plusHours(1)));
+        }
+        for (DateTime month = START; month.isBefore(end); month = month.plusMonths(1)) {
+            products.add(DateTimeRange.create(month, month.plusMonths(1)));
+        }
+        for (DateTime year = START; year.isBefore(end); year = year.plusYears(1)) {
+            products.add(DateTimeRange.create(year, year.plusYears(1)));
+        }
+
+        return products;
+    }
+
+    // Daily frame date ranges, shuffled within windows the size of the worker pool
+    private static List<DateTimeRange> getFrameDateRanges() {
+        List<DateTimeRange> frameDateRanges = new ArrayList<DateTimeRange>();
+        DateTime end = START.plusYears(YEARS);
+
+        Random random = new Random(42);
+        List<DateTimeRange> window = new ArrayList<DateTimeRange>();
+        for (DateTime day = START; day.isBefore(end); day = day.plusDays(1)) {
+            window.add(DateTimeRange.create(day, day.plusDays(1)));
+            if (window.size() >= FRAME_WORKERS) {
+                Collections.shuffle(window, random);
+                frameDateRanges.addAll(window);
+                window.clear();
+            }
+        }
+        frameDateRanges.addAll(window);
+
+        return frameDateRanges;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.timetable;
+
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class DateRangeIndexTest {
+    private static final DateTime START = new DateTime(2010, 1, 1, 0, 0, DateTimeZone.UTC);
+
+    @Test
+    public void testMergeOnInsert() {
+        DateRangeIndex<String> index = new DateRangeIndex<String>();
+
+        index.add(this.days(0, 1));
+        index.add(this.days(2, 3));
+        Assert.assertEquals("Wrong number of covered ranges after disjoint inserts", 2, index.getCoveredRangeCount());
+
+        // Touching both existing ranges
+        index.add(this.days(1, 2));
+        Assert.assertEquals("Touching ranges were not merged", 1, index.getCoveredRangeCount());
+
+        // Overlapping and extending the existing range
+        index.add(this.days(2, 5));
+        Assert.assertEquals("Overlapping ranges were not merged", 1, index.getCoveredRangeCount());
+
+        Assert.assertTrue("Merged range should cover its sub ranges", index.contains(this.days(0, 5)));
+        Assert.assertTrue("Merged range should cover its sub ranges", index.contains(this.days(3, 4)));
+        Assert.assertFalse("Range extending past the covered range should not be covered", index.contains(this.days(4, 6)));
+    }
+
+    @Test
+    public void testPendingElementsOutOfOrder() {
+        DateRangeIndex<String> index = new DateRangeIndex<String>();
+
+        Assert.assertFalse(index.addPending(this.days(0, 1), "day1"));
+        Assert.assertFalse(index.addPending(this.days(1, 2), "day2"));
+        Assert.assertFalse(index.addPending(this.days(2, 3), "day3"));
+        Assert.assertFalse(index.addPending(this.days(0, 3), "3days"));
+        Assert.assertEquals(4, index.getPendingCount());
+
+        // Date ranges are generated out of order
+        List<String> covered = index.add(this.days(2, 3));
+        Assert.assertEquals(1, covered.size());
+        Assert.assertEquals("day3", covered.get(0));
+
+        covered = index.add(this.days(0, 1));
+        Assert.assertEquals(1, covered.size());
+        Assert.assertEquals("day1", covered.get(0));
+
+        // Filling the gap covers the middle day and the product spanning the 3 days
+        covered = index.add(this.days(1, 2));
+        Assert.assertEquals(2, covered.size());
+        Assert.assertTrue(covered.contains("day2"));
+        Assert.assertTrue(covered.contains("3days"));
+
+        Assert.assertEquals("Covered elements should be removed from the index", 0, index.getPendingCount());
+
+        // Elements are only returned once
+        covered = index.add(this.days(0, 3));
+        Assert.assertTrue(covered.isEmpty());
+    }
+
+    @Test
+    public void testPendingElementStartingBeforeInsertedRange() {
+        DateRangeIndex<String> index = new DateRangeIndex<String>();
+
+        index.addPending(this.days(0, 10), "product");
+
+        Assert.assertTrue(index.add(this.days(5, 10)).isEmpty());
+        Assert.assertTrue(index.add(this.days(1, 5)).isEmpty());
+        Assert.assertEquals(1, index.getPendingCount());
+
+        List<String> covered = index.add(this.days(0, 1));
+        Assert.assertEquals(1, covered.size());
+        Assert.assertEquals("product", covered.get(0));
+    }
+
+    @Test
+    public void testAddPendingAlreadyCovered() {
+        DateRangeIndex<String> index = new DateRangeIndex<String>();
+
+        index.add(this.days(0, 7));
+
+        Assert.assertTrue("Range already covered", index.addPending(this.days(2, 3), "covered"));
+        Assert.assertFalse("Range not covered", index.addPending(this.days(6, 8), "not covered"));
+        Assert.assertEquals(1, index.getPendingCount());
+    }
+
+    private DateTimeRange days(int startDay, int endDay) {
+        return DateTimeRange.create(START.plusDays(startDay), START.plusDays(endDay));
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.timetable;
+
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.generator.FrameKeys;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class FrameGroupSchedulerTest {
+    private static final DateTime START = new DateTime(2010, 1, 1, 0, 0, DateTimeZone.UTC);
+
+    @Test
+    public void testNoBudget() {
+        // 4 daily groups of 24 hourly frames
+        List<FrameGroup> frameGroups = new ArrayList<FrameGroup>();
+        for (int day = 0; day < 4; day++) {
+            frameGroups.add(this.getFrameGroup(START.plusDays(day), START.plusDays(day + 1)));
+        }
+
+        FrameGroupScheduler scheduler = new FrameGroupScheduler(
+                frameGroups, this.getHourlyFrameKeys(4 * 24), new ArrayList<DateTimeRange>(), 0, 1, 2);
+
+        int groupCount = 0;
+        DateTime lastStartDate = null;
+        while (scheduler.hasNext()) {
+            FrameGroup frameGroup = scheduler.next(true);
+            Assert.assertNotNull("The scheduler waited without a budget", frameGroup);
+            Assert.assertEquals("Wrong number of frames", 24, scheduler.getFrameCount(frameGroup));
+
+            // Nothing to complete: the groups are returned in chronological order
+            DateTime startDate = frameGroup.getDateRange().getStartDate();
+            if (lastStartDate != null) {
+                Assert.assertTrue("Groups are not in chronological order", startDate.isAfter(lastStartDate));
+            }
+            lastStartDate = startDate;
+            groupCount++;
+        }
+
+        Assert.assertEquals("Wrong number of groups", 4, groupCount);
+        Assert.assertEquals("Wrong number of frames on disk", 4 * 24, scheduler.getFramesOnDisk());
+        Assert.assertEquals("Wrong peak disk usage", 4 * 24, scheduler.getPeakFrameDiskUsage());
+    }
+
+    @Test
+    public void testSplitLargeGroups() {
+        // 1 group of 48 hourly frames, budget of 20 frames shared by 2 workers
+        List<FrameGroup> frameGroups = new ArrayList<FrameGroup>();
+        frameGroups.add(this.getFrameGroup(START, START.plusDays(2)));
+
+        FrameGroupScheduler scheduler = new FrameGroupScheduler(
+                frameGroups, this.getHourlyFrameKeys(48), new ArrayList<DateTimeRange>(), 20, 1, 2);
+
+        Assert.assertEquals("Wrong number of groups after split", 5, scheduler.getRemainingGroupCount());
+
+        int totalFrameCount = 0;
+        DateTime lastEndDate = START;
+        while (scheduler.hasNext()) {
+            FrameGroup frameGroup = scheduler.next(false);
+            int frameCount = scheduler.getFrameCount(frameGroup);
+            Assert.assertTrue("Split group is too large: " + frameCount, frameCount <= 10);
+            Assert.assertEquals("Split groups are not contiguous", lastEndDate, frameGroup.getDateRange().getStartDate());
+            Assert.assertEquals("Split group lost its input files", 1, frameGroup.getMetadataIds().size());
+
+            lastEndDate = frameGroup.getDateRange().getEndDate();
+            totalFrameCount += frameCount;
+            scheduler.releaseFrames(frameCount);
+        }
+
+        Assert.assertEquals("Split groups do not cover the original group", START.plusDays(2), lastEndDate);
+        Assert.assertEquals("Frames lost during split", 48, totalFrameCount);
+    }
+
+    @Test
+    public void testBudget() {
+        // 4 daily groups of 24 hourly frames, daily products, budget of 2 days of frames
+        List<FrameGroup> frameGroups = new ArrayList<FrameGroup>();
+        List<DateTimeRange> productDateRanges = new ArrayList<DateTimeRange>();
+        for (int day = 0; day < 4; day++) {
+            frameGroups.add(this.getFrameGroup(START.plusDays(day), START.plusDays(day + 1)));
+            productDateRanges.add(DateTimeRange.create(START.plusDays(day), START.plusDays(day + 1)));
+        }
+
+        FrameGroupScheduler scheduler = new FrameGroupScheduler(
+                frameGroups, this.getHourlyFrameKeys(4 * 24), productDateRanges, 48, 1, 1);
+
+        Assert.assertNotNull("First group not scheduled", scheduler.next(true));
+        Assert.assertNotNull("Second group not scheduled", scheduler.next(true));
+
+        // The budget is reached: the scheduler waits for frames to be deleted
+        Assert.assertNull("Budget exceeded", scheduler.next(true));
+
+        scheduler.releaseFrames(24);
+        Assert.assertNotNull("Third group not scheduled after frames were deleted", scheduler.next(true));
+        Assert.assertNull("Budget exceeded", scheduler.next(true));
+
+        // Nothing in progress: the scheduler does not wait
+        Assert.assertNotNull("Last group not scheduled", scheduler.next(false));
+        Assert.assertFalse("Groups left", scheduler.hasNext());
+
+        Assert.assertEquals("Wrong peak disk usage", 3 * 24, scheduler.getPeakFrameDiskUsage());
+    }
+
+    @Test
+    public void testPreferGroupsCompletingProducts() {
+        // Day 0 is needed by a product spanning 2 days, day 1 and 2 are generated by their own groups
+        // and day 2 completes a daily product on its own.
+        List<FrameGroup> frameGroups = new ArrayList<FrameGroup>();
+        for (int day = 0; day < 3; day++) {
+            frameGroups.add(this.getFrameGroup(START.plusDays(day), START.plusDays(day + 1)));
+        }
+
+        List<DateTimeRange> productDateRanges = new ArrayList<DateTimeRange>();
+        productDateRanges.add(DateTimeRange.create(START, START.plusDays(2)));
+        productDateRanges.add(DateTimeRange.create(START.plusDays(2), START.plusDays(3)));
+
+        FrameGroupScheduler scheduler = new FrameGroupScheduler(
+                frameGroups, this.getHourlyFrameKeys(3 * 24), productDateRanges, 0, 1, 1);
+
+        FrameGroup first = scheduler.next(true);
+        Assert.assertEquals("The group completing a product should be first",
+                START.plusDays(2), first.getDateRange().getStartDate());
+
+        FrameGroup second = scheduler.next(true);
+        Assert.assertEquals("Earliest group expected when no group completes a product",
+                START, second.getDateRange().getStartDate());
+    }
+
+    @Test
+    public void testPreferGroupsSharingInputFiles() {
+        // Frames of odd hours use file A, frames of even hours use file B
+        List<FrameGroup> frameGroups = new ArrayList<FrameGroup>();
+        for (int hour = 0; hour < 6; hour++) {
+            HashSet<String> metadataIds = new HashSet<String>();
+            metadataIds.add(hour % 2 == 0 ? "file_B" : "file_A");
+            frameGroups.add(new FrameGroup(DateTimeRange.create(START.plusHours(hour), START.plusHours(hour + 1)), metadataIds));
+        }
+
+        // A single product spanning all the frames: no group completes it before the last one
+        List<DateTimeRange> productDateRanges = new ArrayList<DateTimeRange>();
+        productDateRanges.add(DateTimeRange.create(START, START.plusHours(6)));
+
+        FrameGroupScheduler scheduler = new FrameGroupScheduler(
+                frameGroups, this.getHourlyFrameKeys(6), productDateRanges, 0, 1, 1);
+
+        // The first group is the earliest. The others are ordered to download each file once.
+        String[] expectedFiles = new String[] { "file_B", "file_B", "file_B", "file_A", "file_A", "file_A" };
+        for (int i = 0; i < expectedFiles.length; i++) {
+            FrameGroup frameGroup = scheduler.next(true);
+            Assert.assertTrue(String.format("Group %d doesn't use the expected file: %s", i, frameGroup),
+                    frameGroup.getMetadataIds().contains(expectedFiles[i]));
+        }
+    }
+
+    @Test
+    public void testUpcomingMetadataIds() {
+        List<FrameGroup> frameGroups = new ArrayList<FrameGroup>();
+        frameGroups.add(this.getFrameGroup(START, START.plusDays(1), "file_A", "file_B"));
+        frameGroups.add(this.getFrameGroup(START.plusDays(1), START.plusDays(2), "file_B", "file_C"));
+
+        FrameGroupScheduler scheduler = new FrameGroupScheduler(
+                frameGroups, this.getHourlyFrameKeys(2 * 24), new ArrayList<DateTimeRange>(), 0, 1, 1);
+
+        FrameGroup first = scheduler.next(true);
+        Set<String> upcomingMetadataIds = scheduler.getUpcomingMetadataIds(first);
+        Assert.assertEquals("Wrong upcoming input files", Collections.singleton("file_B"), upcomingMetadataIds);
+
+        FrameGroup last = scheduler.next(true);
+        Assert.assertTrue("The last group has no upcoming input files", scheduler.getUpcomingMetadataIds(last).isEmpty());
+    }
+
+    @Test
+    public void testNoDataGroups() {
+        // Data on day 0 and 2, no data on day 1
+        List<FrameGroup> frameGroups = new ArrayList<FrameGroup>();
+        frameGroups.add(this.getFrameGroup(START, START.plusDays(1)));
+        frameGroups.add(new FrameGroup(DateTimeRange.create(START.plusDays(1), START.plusDays(2)), null));
+        frameGroups.add(this.getFrameGroup(START.plusDays(2), START.plusDays(3)));
+
+        FrameGroupScheduler scheduler = new FrameGroupScheduler(
+                frameGroups, this.getHourlyFrameKeys(3 * 24), new ArrayList<DateTimeRange>(), 0, 1, 2);
+
+        // Only the "No data" workers are available
+        FrameGroup noDataGroup = scheduler.next(true, false, true);
+        Assert.assertNotNull("The no data group was not scheduled", noDataGroup);
+        Assert.assertTrue("Wrong group scheduled for the no data workers", noDataGroup.isNoData());
+        Assert.assertNull("No data group scheduled twice", scheduler.next(true, false, true));
+
+        // Only the workers loading input files are available
+        FrameGroup dataGroup = scheduler.next(true, true, false);
+        Assert.assertNotNull("The data group was not scheduled", dataGroup);
+        Assert.assertFalse("No data group scheduled for the data workers", dataGroup.isNoData());
+
+        Assert.assertNull("No workers available", scheduler.next(false, false, false));
+        Assert.assertNotNull("Last group not scheduled", scheduler.next(false));
+        Assert.assertFalse("Groups left", scheduler.hasNext());
+    }
+
+    private FrameGroup getFrameGroup(DateTime startDate, DateTime endDate, String ... metadataIds) {
+        return new FrameGroup(DateTimeRange.create(startDate, endDate), new HashSet<String>(Arrays.asList(metadataIds)));
+    }
+
+    private FrameGroup getFrameGroup(DateTime startDate, DateTime endDate) {
+        HashSet<String> metadataIds = new HashSet<String>();
+        metadataIds.add("input_" + startDate.getDayOfMonth());
+        return new FrameGroup(DateTimeRange.create(startDate, endDate), metadataIds);
+    }
+
+    private long[] getHourlyFrameKeys(int hours) {
+        long startSeconds = START.getMillis() / 1000;
+        long[] keys = new long[hours];
+        for (int hour = 0; hour < hours; hour++) {
+            keys[hour] = FrameKeys.pack(startSeconds + hour * 3600L, 0, 0, 1);
+        }
+        return keys;
+    }
+}